@@ -29,6 +29,7 @@ import it.smartcommunitylab.aac.attributes.store.NullAttributeStore;
 import it.smartcommunitylab.aac.attributes.store.PersistentAttributeStore;
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.model.PersistenceMode;
+import it.smartcommunitylab.aac.utils.WebhookClient;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
@@ -39,15 +40,21 @@ public class WebhookAttributeAuthority
     // system attributes store
     protected final AutoJdbcAttributeStore jdbcAttributeStore;
 
+    // shared http client
+    protected final WebhookClient webhookClient;
+
     public WebhookAttributeAuthority(
         AttributeService attributeService,
         AutoJdbcAttributeStore jdbcAttributeStore,
+        WebhookClient webhookClient,
         ProviderConfigRepository<WebhookAttributeProviderConfig> registrationRepository
     ) {
         super(SystemKeys.AUTHORITY_WEBHOOK, attributeService, registrationRepository);
         Assert.notNull(jdbcAttributeStore, "attribute store is mandatory");
+        Assert.notNull(webhookClient, "webhook client is mandatory");
 
         this.jdbcAttributeStore = jdbcAttributeStore;
+        this.webhookClient = webhookClient;
     }
 
     @Override
@@ -58,6 +65,7 @@ public class WebhookAttributeAuthority
             config.getProvider(),
             attributeService,
             attributeStore,
+            webhookClient,
             config,
             config.getRealm()
         );
@@ -111,10 +111,8 @@ public class MapperAttributeProvider
         // fetch attribute sets
         for (String setId : config.getAttributeSets()) {
             try {
-                AttributeSet as = attributeService.getAttributeSet(setId);
-
-                // build mapper as per config
-                BaseAttributesMapper mapper = getAttributeMapper(config.getMapperType(), as);
+                // get mapper as per config
+                BaseAttributesMapper mapper = getAttributeMapper(config.getMapperType(), setId);
                 AttributeSet set = mapper.mapAttributes(principalAttributes);
                 if (set.getAttributes() != null && !set.getAttributes().isEmpty()) {
                     // build result
@@ -194,7 +192,8 @@ public class MapperAttributeProvider
 
     private AttributeSet readAttributes(String setId, Map<String, Serializable> attributes)
         throws NoSuchAttributeSetException {
-        AttributeSet as = attributeService.getAttributeSet(setId);
+        // use precompiled exact mapper
+        ExactAttributesMapper mapper = attributeService.getAttributesMapper(setId);
         String prefix = setId + "|";
         // TODO handle repeatable attributes by enum
         Map<String, Serializable> principalAttributes = attributes
@@ -203,17 +202,15 @@ public class MapperAttributeProvider
             .filter(e -> e.getKey().startsWith(prefix))
             .collect(Collectors.toMap(e -> e.getKey().substring(prefix.length()), e -> e.getValue()));
 
-        // use exact mapper
-        ExactAttributesMapper mapper = new ExactAttributesMapper(as);
         AttributeSet set = mapper.mapAttributes(principalAttributes);
         return set;
     }
 
-    private BaseAttributesMapper getAttributeMapper(String type, AttributeSet as) {
+    private BaseAttributesMapper getAttributeMapper(String type, String setId) throws NoSuchAttributeSetException {
         if (DefaultAttributesMapper.TYPE.equals(type)) {
-            return new DefaultAttributesMapper(as);
+            return new DefaultAttributesMapper(attributeService.getAttributeSet(setId));
         } else if (ExactAttributesMapper.TYPE.equals(type)) {
-            return new ExactAttributesMapper(as);
+            return attributeService.getAttributesMapper(setId);
         }
 
         throw new IllegalArgumentException("invalid mapper type");
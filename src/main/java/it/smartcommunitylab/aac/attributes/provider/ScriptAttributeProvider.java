@@ -126,10 +126,9 @@ public class ScriptAttributeProvider
         // fetch attribute sets
         for (String setId : config.getAttributeSets()) {
             try {
-                AttributeSet as = attributeService.getAttributeSet(setId);
-
-                // build exact mapper
-                mappers.put(as.getIdentifier(), new ExactAttributesMapper(as));
+                // use precompiled exact mapper
+                ExactAttributesMapper mapper = attributeService.getAttributesMapper(setId);
+                mappers.put(mapper.getIdentifier(), mapper);
             } catch (NoSuchAttributeSetException | RuntimeException e) {}
         }
 
@@ -233,7 +232,8 @@ public class ScriptAttributeProvider
 
     private AttributeSet readAttributes(String setId, Map<String, Serializable> attributes)
         throws NoSuchAttributeSetException {
-        AttributeSet as = attributeService.getAttributeSet(setId);
+        // use precompiled exact mapper
+        ExactAttributesMapper mapper = attributeService.getAttributesMapper(setId);
         String prefix = setId + "|";
         // TODO handle repeatable attributes by enum
         Map<String, Serializable> principalAttributes = attributes
@@ -242,8 +242,6 @@ public class ScriptAttributeProvider
             .filter(e -> e.getKey().startsWith(prefix))
             .collect(Collectors.toMap(e -> e.getKey().substring(prefix.length()), e -> e.getValue()));
 
-        // use exact mapper
-        ExactAttributesMapper mapper = new ExactAttributesMapper(as);
         AttributeSet set = mapper.mapAttributes(principalAttributes);
         return set;
     }
@@ -18,6 +18,10 @@ package it.smartcommunitylab.aac.attributes.provider;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import it.smartcommunitylab.aac.SystemKeys;
 import it.smartcommunitylab.aac.attributes.base.AbstractAttributeProvider;
 import it.smartcommunitylab.aac.attributes.mapper.ExactAttributesMapper;
@@ -30,6 +34,8 @@ import it.smartcommunitylab.aac.attributes.store.AttributeStore;
 import it.smartcommunitylab.aac.common.NoSuchAttributeSetException;
 import it.smartcommunitylab.aac.identity.model.UserAuthenticatedPrincipal;
 import it.smartcommunitylab.aac.oauth.flow.FlowExecutionException;
+import it.smartcommunitylab.aac.utils.HashUtils;
+import it.smartcommunitylab.aac.utils.WebhookClient;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -44,21 +50,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
-import org.springframework.web.client.RestTemplate;
 
 public class WebhookAttributeProvider
     extends AbstractAttributeProvider<DefaultUserAttributesImpl, WebhookAttributeProviderConfig, WebhookAttributeProviderConfigMap> {
@@ -67,30 +68,40 @@ public class WebhookAttributeProvider
 
     public static final String ATTRIBUTE_MAPPING_FUNCTION = "attributeMapping";
     private static final int DEFAULT_TIMEOUT = 5000;
+    private static final int DEFAULT_CACHE_SIZE = 1000;
 
     private final ObjectMapper mapper = new ObjectMapper();
     private final TypeReference<HashMap<String, Serializable>> serMapTypeRef =
         new TypeReference<HashMap<String, Serializable>>() {};
+    // sorted keys give a stable representation for cache keys
+    private final ObjectWriter keyWriter = mapper.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
 
     // services
     private final AttributeService attributeService;
     private final AttributeStore attributeStore;
+    private final WebhookClient webhookClient;
 
-    private RestTemplate restTemplate;
+    // webhook responses by request hash, when enabled
+    private final Cache<String, Map<String, Serializable>> responses;
+
+    private final int timeout;
 
     public WebhookAttributeProvider(
         String providerId,
         AttributeService attributeService,
         AttributeStore attributeStore,
+        WebhookClient webhookClient,
         WebhookAttributeProviderConfig providerConfig,
         String realm
     ) {
         super(SystemKeys.AUTHORITY_WEBHOOK, providerId, attributeService, providerConfig, realm);
         Assert.notNull(attributeService, "attribute service is mandatory");
         Assert.notNull(attributeStore, "attribute store is mandatory");
+        Assert.notNull(webhookClient, "webhook client is mandatory");
 
         this.attributeService = attributeService;
         this.attributeStore = attributeStore;
+        this.webhookClient = webhookClient;
 
         // validate url
         String url = providerConfig.getConfigMap().getUrl();
@@ -109,19 +120,19 @@ public class WebhookAttributeProvider
             throw new IllegalArgumentException("no attribute sets enabled");
         }
 
-        // build client
-        int timeout = config.getConfigMap().getTimeout() != null ? config.getConfigMap().getTimeout() : DEFAULT_TIMEOUT;
-        RequestConfig rconfig = RequestConfig
-            .custom()
-            .setConnectTimeout(timeout)
-            .setConnectionRequestTimeout(timeout)
-            .setSocketTimeout(timeout)
-            .build();
-        CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(rconfig).build();
-        HttpComponentsClientHttpRequestFactory clientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory(
-            client
-        );
-        restTemplate = new RestTemplate(clientHttpRequestFactory);
+        // calls go through the shared client
+        timeout = config.getConfigMap().getTimeout() != null ? config.getConfigMap().getTimeout() : DEFAULT_TIMEOUT;
+
+        // cache responses only if requested
+        Integer cacheTtl = config.getConfigMap().getCacheTtl();
+        responses =
+            cacheTtl != null && cacheTtl > 0
+                ? CacheBuilder
+                    .newBuilder()
+                    .expireAfterWrite(cacheTtl, TimeUnit.SECONDS)
+                    .maximumSize(DEFAULT_CACHE_SIZE)
+                    .build()
+                : null;
     }
 
     @Override
@@ -163,10 +174,9 @@ public class WebhookAttributeProvider
         // fetch attribute sets
         for (String setId : config.getAttributeSets()) {
             try {
-                AttributeSet as = attributeService.getAttributeSet(setId);
-
-                // build exact mapper
-                mappers.put(as.getIdentifier(), new ExactAttributesMapper(as));
+                // use precompiled exact mapper
+                ExactAttributesMapper mapper = attributeService.getAttributesMapper(setId);
+                mappers.put(mapper.getIdentifier(), mapper);
             } catch (NoSuchAttributeSetException | RuntimeException e) {}
         }
 
@@ -186,22 +196,30 @@ public class WebhookAttributeProvider
 
             HttpEntity<Map<String, Serializable>> entity = new HttpEntity<>(principalAttributes, headers);
 
-            ResponseEntity<String> response = restTemplate.exchange(
-                url.toString(),
-                HttpMethod.POST,
-                entity,
-                String.class
-            );
-
-            logger.debug("Hook response code: " + response.getStatusCodeValue());
-            logger.trace("Hook result: " + response.getBody());
+            String key = responses != null ? extractKey(principalAttributes) : null;
+            Map<String, Serializable> customAttributes = key != null ? responses.getIfPresent(key) : null;
+            if (customAttributes == null) {
+                ResponseEntity<String> response = webhookClient.post(
+                    SystemKeys.AUTHORITY_WEBHOOK,
+                    getProvider(),
+                    url.toString(),
+                    entity,
+                    timeout
+                );
+
+                logger.debug("Hook response code: " + response.getStatusCodeValue());
+                logger.trace("Hook result: " + response.getBody());
+
+                if (!response.getStatusCode().is2xxSuccessful()) {
+                    throw new FlowExecutionException("invalid response from webhook");
+                }
 
-            if (!response.getStatusCode().is2xxSuccessful()) {
-                throw new FlowExecutionException("invalid response from webhook");
+                customAttributes = mapper.readValue(response.getBody(), serMapTypeRef);
+                if (key != null && customAttributes != null) {
+                    responses.put(key, customAttributes);
+                }
             }
 
-            Map<String, Serializable> customAttributes = mapper.readValue(response.getBody(), serMapTypeRef);
-
             if (customAttributes != null) {
                 // we'll let each mapper parse the result set if present
                 for (String id : customAttributes.keySet()) {
@@ -292,9 +310,14 @@ public class WebhookAttributeProvider
         // nothing to do
     }
 
+    private String extractKey(Map<String, Serializable> attributes) throws Exception {
+        return HashUtils.sha256Key(keyWriter.writeValueAsString(attributes));
+    }
+
     private AttributeSet readAttributes(String setId, Map<String, Serializable> attributes)
         throws NoSuchAttributeSetException {
-        AttributeSet as = attributeService.getAttributeSet(setId);
+        // use precompiled exact mapper
+        ExactAttributesMapper mapper = attributeService.getAttributesMapper(setId);
         String prefix = setId + "|";
         // TODO handle repeatable attributes by enum
         Map<String, Serializable> principalAttributes = attributes
@@ -303,8 +326,6 @@ public class WebhookAttributeProvider
             .filter(e -> e.getKey().startsWith(prefix))
             .collect(Collectors.toMap(e -> e.getKey().substring(prefix.length()), e -> e.getValue()));
 
-        // use exact mapper
-        ExactAttributesMapper mapper = new ExactAttributesMapper(as);
         AttributeSet set = mapper.mapAttributes(principalAttributes);
         return set;
     }
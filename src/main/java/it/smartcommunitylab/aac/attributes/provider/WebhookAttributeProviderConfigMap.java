@@ -42,6 +42,7 @@ public class WebhookAttributeProviderConfigMap extends AbstractConfigMap {
     private String url;
     private String authentication;
     private Integer timeout;
+    private Integer cacheTtl;
 
     public WebhookAttributeProviderConfigMap() {}
 
@@ -69,10 +70,19 @@ public class WebhookAttributeProviderConfigMap extends AbstractConfigMap {
         this.timeout = timeout;
     }
 
+    public Integer getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(Integer cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
     public void setConfiguration(WebhookAttributeProviderConfigMap map) {
         this.url = map.getUrl();
         this.authentication = map.getAuthentication();
         this.timeout = map.getTimeout();
+        this.cacheTtl = map.getCacheTtl();
     }
 
     @Override
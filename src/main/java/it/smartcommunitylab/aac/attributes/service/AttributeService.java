@@ -16,8 +16,13 @@
 
 package it.smartcommunitylab.aac.attributes.service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import it.smartcommunitylab.aac.attributes.DefaultAttributesSet;
 import it.smartcommunitylab.aac.attributes.base.AbstractAttribute;
+import it.smartcommunitylab.aac.attributes.mapper.ExactAttributesMapper;
 import it.smartcommunitylab.aac.attributes.model.Attribute;
 import it.smartcommunitylab.aac.attributes.model.AttributeSet;
 import it.smartcommunitylab.aac.attributes.model.BooleanAttribute;
@@ -32,34 +37,65 @@ import it.smartcommunitylab.aac.attributes.persistence.AttributeSetEntity;
 import it.smartcommunitylab.aac.common.NoSuchAttributeException;
 import it.smartcommunitylab.aac.common.NoSuchAttributeSetException;
 import it.smartcommunitylab.aac.model.AttributeType;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 
+/*
+ * Attribute sets service
+ *
+ * Set definitions are compiled once, along with their exact mapper, and kept in
+ * memory: edits evict the entry after commit, while ttl bounds the staleness of
+ * edits made on other nodes.
+ */
 @Service
 @Transactional
 public class AttributeService {
 
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_CACHE_TTL = 300; // 5 minutes
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
     private AttributeEntityService attributeService;
 
-    private Map<String, AttributeSet> systemAttributeSets = Collections.emptyMap();
+    private Map<String, CompiledAttributeSet> systemAttributeSets = Collections.emptyMap();
+
+    // compiled attribute sets by identifier
+    private final Cache<String, CompiledAttributeSet> attributeSets = CacheBuilder
+        .newBuilder()
+        .expireAfterWrite(DEFAULT_CACHE_TTL, TimeUnit.SECONDS)
+        .maximumSize(DEFAULT_CACHE_SIZE)
+        .recordStats()
+        .build();
+
+    // bumped on every change to avoid caching reads racing with updates
+    private final AtomicLong generation = new AtomicLong();
 
     @Autowired
     public void setAttributeSets(List<AttributeSet> sets) {
-        systemAttributeSets = sets.stream().collect(Collectors.toMap(s -> s.getIdentifier(), s -> s));
+        systemAttributeSets =
+            sets.stream().collect(Collectors.toMap(s -> s.getIdentifier(), s -> new CompiledAttributeSet(s)));
+    }
+
+    @Autowired
+    public void setMeterRegistry(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(r -> GuavaCacheMetrics.monitor(r, attributeSets, "attributes.sets"));
     }
 
     /*
@@ -68,21 +104,40 @@ public class AttributeService {
 
     public AttributeSet getAttributeSet(String identifier) throws NoSuchAttributeSetException {
         logger.debug("get attribute set for id " + StringUtils.trimAllWhitespace(identifier));
+        return getCompiledAttributeSet(identifier).set;
+    }
+
+    /*
+     * Exact mapper for the given set, shared between callers
+     */
+    public ExactAttributesMapper getAttributesMapper(String identifier) throws NoSuchAttributeSetException {
+        return getCompiledAttributeSet(identifier).mapper;
+    }
 
+    private CompiledAttributeSet getCompiledAttributeSet(String identifier) throws NoSuchAttributeSetException {
         if (systemAttributeSets.containsKey(identifier)) {
             return systemAttributeSets.get(identifier);
         }
 
-        AttributeSetEntity se = attributeService.getAttributeSet(identifier);
-        List<AttributeEntity> attributes = attributeService.listAttributes(identifier);
+        CompiledAttributeSet compiled = attributeSets.getIfPresent(identifier);
+        if (compiled == null) {
+            long gen = generation.get();
+            AttributeSetEntity se = attributeService.getAttributeSet(identifier);
+            List<AttributeEntity> attributes = attributeService.listAttributes(identifier);
 
-        return toSet(se, attributes);
+            compiled = new CompiledAttributeSet(toSet(se, attributes));
+            if (gen == generation.get()) {
+                attributeSets.put(identifier, compiled);
+            }
+        }
+
+        return compiled;
     }
 
     public AttributeSet findAttributeSet(String identifier) {
         logger.debug("find attribute set for id " + identifier);
         if (systemAttributeSets.containsKey(identifier)) {
-            return systemAttributeSets.get(identifier);
+            return systemAttributeSets.get(identifier).set;
         }
 
         AttributeSetEntity se = attributeService.findAttributeSet(identifier);
@@ -100,7 +155,7 @@ public class AttributeService {
 
     public Collection<AttributeSet> listSystemAttributeSets() {
         logger.debug("list system sets");
-        return systemAttributeSets.values();
+        return systemAttributeSets.values().stream().map(c -> c.set).collect(Collectors.toList());
     }
 
     public Collection<AttributeSet> listAttributeSets() {
@@ -171,6 +226,8 @@ public class AttributeService {
         DefaultAttributesSet a = toSet(se);
         a.addAttributes(attrs);
 
+        evictAttributeSet(identifier);
+
         return a;
     }
 
@@ -239,6 +296,8 @@ public class AttributeService {
         DefaultAttributesSet a = toSet(se);
         a.addAttributes(attrs);
 
+        evictAttributeSet(identifier);
+
         return a;
     }
 
@@ -253,6 +312,21 @@ public class AttributeService {
         }
 
         attributeService.deleteAttributeSet(identifier);
+
+        evictAttributeSet(identifier);
+    }
+
+    private void evictAttributeSet(String identifier) {
+        generation.incrementAndGet();
+        attributeSets.invalidate(identifier);
+
+        // evict again after commit, concurrent reads may have cached the old definition
+        TransactionUtils.afterCompletion(
+            () -> {
+                generation.incrementAndGet();
+                attributeSets.invalidate(identifier);
+            }
+        );
     }
 
     /*
@@ -260,7 +334,7 @@ public class AttributeService {
      */
     public Collection<Attribute> listAttributes(String identifier) throws NoSuchAttributeSetException {
         if (systemAttributeSets.containsKey(identifier)) {
-            return systemAttributeSets.get(identifier).getAttributes();
+            return systemAttributeSets.get(identifier).set.getAttributes();
         }
         AttributeSetEntity se = attributeService.getAttributeSet(identifier);
         List<AttributeEntity> attributes = attributeService.listAttributes(se.getIdentifier());
@@ -320,4 +394,15 @@ public class AttributeService {
 
         return attr;
     }
+
+    private static class CompiledAttributeSet {
+
+        private final AttributeSet set;
+        private final ExactAttributesMapper mapper;
+
+        public CompiledAttributeSet(AttributeSet set) {
+            this.set = set;
+            this.mapper = new ExactAttributesMapper(set);
+        }
+    }
 }
@@ -20,11 +20,16 @@ import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import org.springframework.data.util.Pair;
@@ -34,12 +39,21 @@ import org.springframework.jdbc.core.support.SqlLobValue;
 import org.springframework.security.oauth2.common.util.SerializationUtils;
 import org.springframework.util.Assert;
 
+/*
+ * Jdbc attribute store, shared by all providers with repository persistence
+ *
+ * Attributes of an entity for many providers can be read with a single query,
+ * either directly or by prefetching them for the duration of a call: within the
+ * call reads for those providers are served from the prefetched rows.
+ */
 public class AutoJdbcAttributeStore {
 
     private static final String DEFAULT_SELECT_STATEMENT =
         "select attr_value from attributes where  provider_id = ? and entity_id = ? and attr_key = ?";
     private static final String DEFAULT_FIND_STATEMENT =
         "select entity_id, provider_id, attr_key, attr_value from attributes where  provider_id = ? and entity_id = ?";
+    private static final String DEFAULT_FIND_ALL_STATEMENT =
+        "select entity_id, provider_id, attr_key, attr_value from attributes where entity_id = ? and provider_id in (%s)";
     private static final String DEFAULT_INSERT_STATEMENT =
         "insert into attributes (provider_id, entity_id, attr_key, attr_value) values (?, ?, ?, ?)";
     private static final String DEFAULT_UPDATE_STATEMENT =
@@ -51,6 +65,7 @@ public class AutoJdbcAttributeStore {
 
     private String selectAttributeSql = DEFAULT_SELECT_STATEMENT;
     private String findAttributesSql = DEFAULT_FIND_STATEMENT;
+    private String findAllAttributesSql = DEFAULT_FIND_ALL_STATEMENT;
     private String insertAttributeSql = DEFAULT_INSERT_STATEMENT;
     private String updateAttributeSql = DEFAULT_UPDATE_STATEMENT;
     private String deleteAttributeSql = DEFAULT_DELETE_STATEMENT;
@@ -59,6 +74,9 @@ public class AutoJdbcAttributeStore {
     private final JdbcTemplate jdbcTemplate;
     private final RowMapper<Pair<String, Optional<Serializable>>> rowMapper = new AttributeRowMapper();
 
+    // attributes prefetched for the current call, if any
+    private final ThreadLocal<Prefetched> prefetched = new ThreadLocal<>();
+
     public AutoJdbcAttributeStore(DataSource dataSource) {
         Assert.notNull(dataSource, "DataSource required");
         this.jdbcTemplate = new JdbcTemplate(dataSource);
@@ -80,6 +98,11 @@ public class AutoJdbcAttributeStore {
     }
 
     public Map<String, Serializable> findAttributes(String providerId, String entityId) {
+        Prefetched pf = prefetched.get();
+        if (pf != null && pf.entityId.equals(entityId) && pf.attributes.containsKey(providerId)) {
+            return new HashMap<>(pf.attributes.get(providerId));
+        }
+
         List<Pair<String, Optional<Serializable>>> list = jdbcTemplate.query(
             findAttributesSql,
             rowMapper,
@@ -93,7 +116,64 @@ public class AutoJdbcAttributeStore {
             .collect(Collectors.toMap(p -> p.getFirst(), p -> p.getSecond().get()));
     }
 
+    /*
+     * Find attributes for all the given providers with a single query, result is
+     * keyed by provider and contains all the requested providers
+     */
+    public Map<String, Map<String, Serializable>> findAttributes(Collection<String> providerIds, String entityId) {
+        Map<String, Map<String, Serializable>> result = new HashMap<>();
+        if (providerIds == null || providerIds.isEmpty()) {
+            return result;
+        }
+
+        providerIds.forEach(id -> result.put(id, new HashMap<>()));
+
+        List<Object> params = new ArrayList<>();
+        params.add(entityId);
+        params.addAll(result.keySet());
+        String sql = String.format(findAllAttributesSql, String.join(",", Collections.nCopies(result.size(), "?")));
+
+        jdbcTemplate.query(
+            sql,
+            rs -> {
+                Serializable value = SerializationUtils.deserialize(rs.getBytes("attr_value"));
+                if (value != null) {
+                    result.get(rs.getString("provider_id")).put(rs.getString("attr_key"), value);
+                }
+            },
+            params.toArray()
+        );
+
+        return result;
+    }
+
+    /*
+     * Prefetch attributes for the given providers and execute the action: reads
+     * within the action for the same entity and providers won't hit the db
+     */
+    public <T> T prefetch(String entityId, Collection<String> providerIds, Supplier<T> action) {
+        if (prefetched.get() != null) {
+            // nested calls reuse the outer scope
+            return action.get();
+        }
+
+        prefetched.set(new Prefetched(entityId, findAttributes(providerIds, entityId)));
+        try {
+            return action.get();
+        } finally {
+            prefetched.remove();
+        }
+    }
+
+    private void evict(String providerId, String entityId) {
+        Prefetched pf = prefetched.get();
+        if (pf != null && pf.entityId.equals(entityId)) {
+            pf.attributes.remove(providerId);
+        }
+    }
+
     public void setAttributes(String providerId, String entityId, Set<Entry<String, Serializable>> attributesSet) {
+        evict(providerId, entityId);
         jdbcTemplate.update(clearAttributeSql, providerId, entityId);
 
         for (Entry<String, Serializable> entry : attributesSet) {
@@ -111,6 +191,7 @@ public class AutoJdbcAttributeStore {
     }
 
     public void addAttribute(String providerId, String entityId, String key, Serializable value) {
+        evict(providerId, entityId);
         jdbcTemplate.update(
             insertAttributeSql,
             new Object[] { providerId, entityId, key, new SqlLobValue(SerializationUtils.serialize(value)) },
@@ -119,14 +200,17 @@ public class AutoJdbcAttributeStore {
     }
 
     public void updateAttribute(String providerId, String entityId, String key, Serializable value) {
+        evict(providerId, entityId);
         jdbcTemplate.update(updateAttributeSql, value, providerId, entityId, key);
     }
 
     public void deleteAttribute(String providerId, String entityId, String key) {
+        evict(providerId, entityId);
         jdbcTemplate.update(deleteAttributeSql, providerId, entityId, key);
     }
 
     public void clearAttributes(String providerId, String entityId) {
+        evict(providerId, entityId);
         jdbcTemplate.update(clearAttributeSql, providerId, entityId);
     }
 
@@ -138,6 +222,10 @@ public class AutoJdbcAttributeStore {
         this.findAttributesSql = findAttributesSql;
     }
 
+    public void setFindAllAttributesSql(String findAllAttributesSql) {
+        this.findAllAttributesSql = findAllAttributesSql;
+    }
+
     public void setInsertAttributeSql(String insertAttributeSql) {
         this.insertAttributeSql = insertAttributeSql;
     }
@@ -154,6 +242,17 @@ public class AutoJdbcAttributeStore {
         this.clearAttributeSql = clearAttributeSql;
     }
 
+    private static class Prefetched {
+
+        private final String entityId;
+        private final Map<String, Map<String, Serializable>> attributes;
+
+        public Prefetched(String entityId, Map<String, Map<String, Serializable>> attributes) {
+            this.entityId = entityId;
+            this.attributes = attributes;
+        }
+    }
+
     private static class AttributeRowMapper implements RowMapper<Pair<String, Optional<Serializable>>> {
 
         @Override
@@ -22,6 +22,10 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import it.smartcommunitylab.aac.audit.model.ExtendedAuditEvent;
 import java.io.IOException;
 import java.sql.ResultSet;
@@ -29,21 +33,33 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.sql.DataSource;
 import javax.validation.constraints.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.boot.actuate.audit.AuditEvent;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
 import org.springframework.data.support.PageableExecutionUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
@@ -51,7 +67,25 @@ import org.springframework.jdbc.core.support.SqlLobValue;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
-public class AutoJdbcAuditEventStore implements AuditEventStore {
+/*
+ * Jdbc audit store
+ *
+ * When buffering is enabled events are queued in a bounded buffer and written
+ * in batches by a background flusher, which also takes care of conversion and
+ * signing off the caller thread. On shutdown the buffer is drained.
+ *
+ * Transient write errors are retried with backoff. When a batch still fails,
+ * rows are inserted one at a time so that a single bad event does not take the
+ * whole batch down; events which can not be written are logged.
+ */
+public class AutoJdbcAuditEventStore implements AuditEventStore, DisposableBean {
+
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_FLUSH_SIZE = 100;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000; // 1 second
+    public static final long SHUTDOWN_TIMEOUT = 30; // 30 seconds
+    public static final int MAX_RETRIES = 3;
+    public static final long RETRY_DELAY = 200; // 200 ms, doubled at each attempt
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final TypeReference<HashMap<String, Object>> typeRef = new TypeReference<HashMap<String, Object>>() {};
@@ -85,6 +119,17 @@ public class AutoJdbcAuditEventStore implements AuditEventStore {
 
     private static final String DEFAULT_ORDER_BY = "ORDER BY event_time DESC";
 
+    private static final int[] INSERT_TYPES = new int[] {
+        Types.VARCHAR,
+        Types.TIMESTAMP,
+        Types.VARCHAR,
+        Types.VARCHAR,
+        Types.VARCHAR,
+        Types.VARCHAR,
+        Types.VARCHAR,
+        Types.BLOB,
+    };
+
     private String insertAuditEventSql = DEFAULT_INSERT_STATEMENT;
 
     private String selectByPrincipalAuditEvent = DEFAULT_SELECT_PRINCIPAL_STATEMENT;
@@ -106,6 +151,20 @@ public class AutoJdbcAuditEventStore implements AuditEventStore {
     private Converter<Map<String, Object>, byte[]> writer;
     private Converter<byte[], Map<String, Object>> reader;
 
+    // buffered writer, when enabled
+    private BlockingQueue<AuditEvent> queue;
+    private Thread flusher;
+    private volatile boolean running = false;
+    // guards running against concurrent offers: writers stop under write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int flushSize = DEFAULT_FLUSH_SIZE;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private Timer flushTimer;
+
     public AutoJdbcAuditEventStore(DataSource dataSource) {
         Assert.notNull(dataSource, "DataSource required");
         this.jdbcTemplate = new JdbcTemplate(dataSource);
@@ -148,8 +207,261 @@ public class AutoJdbcAuditEventStore implements AuditEventStore {
         this.rowMapper = new AuditEventMappedRowMapper(reader);
     }
 
+    public void setFlushSize(int flushSize) {
+        Assert.isTrue(flushSize > 0, "flush size must be greater than 0");
+        this.flushSize = flushSize;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        Assert.isTrue(flushInterval > 0, "flush interval must be greater than 0");
+        this.flushInterval = flushInterval;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        Assert.notNull(overflowPolicy, "overflow policy can not be null");
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        Gauge
+            .builder("audit.writer.queue", this, s -> s.queue != null ? s.queue.size() : 0)
+            .description("Audit events waiting to be written")
+            .register(meterRegistry);
+        FunctionCounter
+            .builder("audit.writer.dropped", dropped, AtomicLong::get)
+            .description("Audit events dropped because the buffer was full")
+            .register(meterRegistry);
+        FunctionCounter
+            .builder("audit.writer.failed", failed, AtomicLong::get)
+            .description("Audit events lost because of write errors")
+            .register(meterRegistry);
+        flushTimer =
+            Timer.builder("audit.writer.flush").description("Latency of audit batch writes").register(meterRegistry);
+    }
+
+    /*
+     * Buffered writer
+     */
+    public synchronized void startBuffering(int queueSize) {
+        Assert.isTrue(queueSize > 0, "queue size must be greater than 0");
+        if (running) {
+            return;
+        }
+
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.running = true;
+        this.flusher = new Thread(this::flushLoop, "audit-writer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (!running) {
+            return;
+        }
+
+        // stop accepting and let flusher drain the buffer within the next interval
+        // note: we avoid interrupting to not abort in-flight writes
+        stop();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (flusher.isAlive()) {
+            logger.warn("audit writer stopped with {} events not written", queue.size());
+            return;
+        }
+
+        // no more offers after stop, write any leftover directly
+        List<AuditEvent> leftover = new ArrayList<>();
+        queue.drainTo(leftover);
+        if (!leftover.isEmpty()) {
+            write(leftover);
+        }
+    }
+
+    private void stop() {
+        // wait for in-flight offers to complete, later ones will see the flag
+        lock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     @Override
     public void add(AuditEvent event) {
+        // offer under read lock so that stop can not happen between check and offer
+        // block until there is room, unless writer is stopped meanwhile
+        while (running) {
+            lock.readLock().lock();
+            try {
+                if (!running) {
+                    break;
+                }
+
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    if (!queue.offer(event)) {
+                        dropped.incrementAndGet();
+                        logger.debug("audit buffer full, dropped event {}", event.getType());
+                    }
+
+                    return;
+                }
+
+                if (queue.offer(event, flushInterval, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // write directly
+        jdbcTemplate.update(insertAuditEventSql, toRow(event), INSERT_TYPES);
+    }
+
+    private void flushLoop() {
+        List<AuditEvent> batch = new ArrayList<>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                AuditEvent event = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    continue;
+                }
+
+                // collect up to flush size, waiting at most for flush interval
+                batch.add(event);
+                long deadline = System.currentTimeMillis() + flushInterval;
+                while (running && batch.size() < flushSize) {
+                    queue.drainTo(batch, flushSize - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= flushSize || wait <= 0) {
+                        break;
+                    }
+
+                    event = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (event == null) {
+                        break;
+                    }
+                    batch.add(event);
+                }
+            } catch (InterruptedException e) {
+                // flush what we have and stop
+                stop();
+            }
+
+            if (!running) {
+                queue.drainTo(batch, flushSize - batch.size());
+            }
+
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<AuditEvent> events) {
+        List<AuditEvent> converted = new ArrayList<>(events.size());
+        List<Object[]> rows = new ArrayList<>(events.size());
+        for (AuditEvent event : events) {
+            try {
+                rows.add(toRow(event));
+                converted.add(event);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                logger.error("error converting audit event {}: {}", describe(event), e.getMessage());
+            }
+        }
+
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (rows.size() == 1) {
+                insert(converted.get(0), rows.get(0));
+                return;
+            }
+
+            try {
+                withRetry(() -> jdbcTemplate.batchUpdate(insertAuditEventSql, rows, INSERT_TYPES));
+            } catch (RuntimeException e) {
+                // isolate failing rows, ids are stable so rows already written are skipped
+                logger.warn("error writing {} audit events, retry one by one: {}", rows.size(), e.getMessage());
+                for (int i = 0; i < rows.size(); i++) {
+                    insert(converted.get(i), rows.get(i));
+                }
+            }
+        } finally {
+            if (flushTimer != null) {
+                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void insert(AuditEvent event, Object[] row) {
+        try {
+            withRetry(() -> jdbcTemplate.update(insertAuditEventSql, row, INSERT_TYPES));
+        } catch (DuplicateKeyException e) {
+            // written by a partially applied batch
+            logger.debug("audit event {} already written", row[0]);
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            logger.error("dropped audit event {}: {}", describe(event), e.getMessage());
+        }
+    }
+
+    private void withRetry(Runnable op) {
+        long delay = RETRY_DELAY;
+        for (int attempt = 1;; attempt++) {
+            try {
+                op.run();
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= MAX_RETRIES || !isTransient(e)) {
+                    throw e;
+                }
+
+                logger.debug("transient error writing audit events, attempt {}: {}", attempt, e.getMessage());
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // stop retrying, let the caller fall back
+                Thread.currentThread().interrupt();
+                throw new RecoverableDataAccessException("interrupted while retrying audit write");
+            }
+            delay *= 2;
+        }
+    }
+
+    private static boolean isTransient(RuntimeException e) {
+        return (
+            e instanceof TransientDataAccessException ||
+            e instanceof RecoverableDataAccessException ||
+            e instanceof DataAccessResourceFailureException
+        );
+    }
+
+    private static String describe(AuditEvent event) {
+        return (
+            "[type=" + event.getType() + ", principal=" + event.getPrincipal() + ", time=" + event.getTimestamp() + "]"
+        );
+    }
+
+    private Object[] toRow(AuditEvent event) {
         // extract data and repack
         String principal = event.getPrincipal();
         long time = event.getTimestamp().toEpochMilli();
@@ -169,29 +481,16 @@ public class AutoJdbcAuditEventStore implements AuditEventStore {
 
         byte[] bytes = writer != null ? writer.convert(data) : null;
 
-        jdbcTemplate.update(
-            insertAuditEventSql,
-            new Object[] {
-                eventId,
-                new java.sql.Timestamp(time),
-                principal,
-                realm,
-                tx,
-                type,
-                clazz,
-                new SqlLobValue(bytes),
-            },
-            new int[] {
-                Types.VARCHAR,
-                Types.TIMESTAMP,
-                Types.VARCHAR,
-                Types.VARCHAR,
-                Types.VARCHAR,
-                Types.VARCHAR,
-                Types.VARCHAR,
-                Types.BLOB,
-            }
-        );
+        return new Object[] {
+            eventId,
+            new java.sql.Timestamp(time),
+            principal,
+            realm,
+            tx,
+            type,
+            clazz,
+            new SqlLobValue(bytes),
+        };
     }
 
     @Override
@@ -494,4 +793,9 @@ public class AutoJdbcAuditEventStore implements AuditEventStore {
             return new AuditEvent(time.toInstant(), principal, type, data);
         }
     }
+
+    public enum OverflowPolicy {
+        BLOCK,
+        DROP,
+    }
 }
@@ -22,7 +22,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.openid.connect.sdk.claims.IDTokenClaimsSet;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.Config;
+import it.smartcommunitylab.aac.attributes.model.DefaultUserAttributesImpl;
 import it.smartcommunitylab.aac.attributes.model.UserAttributes;
 import it.smartcommunitylab.aac.claims.model.SerializableClaim;
 import it.smartcommunitylab.aac.common.InvalidDefinitionException;
@@ -31,6 +34,9 @@ import it.smartcommunitylab.aac.common.SystemException;
 import it.smartcommunitylab.aac.core.ClientDetails;
 import it.smartcommunitylab.aac.core.UserDetails;
 import it.smartcommunitylab.aac.model.AttributeType;
+import it.smartcommunitylab.aac.model.Group;
+import it.smartcommunitylab.aac.model.RealmRole;
+import it.smartcommunitylab.aac.model.SpaceRole;
 import it.smartcommunitylab.aac.model.User;
 import it.smartcommunitylab.aac.users.service.UserService;
 import java.io.Serializable;
@@ -80,6 +86,7 @@ public class DefaultClaimsService implements ClaimsService, InitializingBean {
     private final ExtractorsRegistry extractorsRegistry;
     private ScriptExecutionService executionService;
     private UserService userService;
+    private DistributionSummary userLoads;
 
     // object mapper
     private final ObjectMapper mapper = new ObjectMapper()
@@ -101,6 +108,15 @@ public class DefaultClaimsService implements ClaimsService, InitializingBean {
         this.userService = userService;
     }
 
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        // users loaded from service for each issuance
+        this.userLoads =
+            DistributionSummary
+                .builder("claims.user.loads")
+                .description("Users loaded per claims issuance")
+                .register(meterRegistry);
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         Assert.notNull(executionService, "an execution service is required");
@@ -146,23 +162,15 @@ public class DefaultClaimsService implements ClaimsService, InitializingBean {
             // sorted alphabetically
         }
 
+        // user snapshots by realm, shared by all extractors for this issuance
+        Map<String, User> snapshots = new HashMap<>();
+
         // build scopeClaims
         for (String scope : scopes) {
             Collection<ScopeClaimsExtractor> exts = extractorsRegistry.getScopeExtractors(scope);
             for (ScopeClaimsExtractor ce : exts) {
                 // each extractor can respond, we keep only userClaims
-                User user = userService.getUser(userDetails, ce.getRealm());
-
-                // filter attribute sets according to scopes
-                if (!ce.getResourceId().startsWith("aac.") && !scopes.contains(Config.SCOPE_FULL_PROFILE)) {
-                    user.setAttributes(narrowUserAttributes(user.getAttributes(), scopes));
-                }
-
-                if (!scopes.contains(Config.SCOPE_USER_ROLE)) {
-                    user.setAuthorities(null);
-                    user.setRealmRoles(null);
-                    user.setSpaceRoles(null);
-                }
+                User user = getUser(snapshots, userDetails, ce.getRealm(), ce.getResourceId(), scopes);
 
                 ClaimsSet cs = ce.extractUserClaims(scope, user, client, scopes, extensions);
                 if (cs != null && cs.isUser()) {
@@ -177,18 +185,7 @@ public class DefaultClaimsService implements ClaimsService, InitializingBean {
             Collection<ResourceClaimsExtractor> exts = extractorsRegistry.getResourceExtractors(resourceId);
             for (ResourceClaimsExtractor ce : exts) {
                 // each extractor can respond, we keep only userClaims
-                User user = userService.getUser(userDetails, ce.getRealm());
-
-                // filter attribute sets according to scopes
-                if (!ce.getResourceId().startsWith("aac.") && !scopes.contains(Config.SCOPE_FULL_PROFILE)) {
-                    user.setAttributes(narrowUserAttributes(user.getAttributes(), scopes));
-                }
-
-                if (!scopes.contains(Config.SCOPE_USER_ROLE)) {
-                    user.setAuthorities(null);
-                    user.setRealmRoles(null);
-                    user.setSpaceRoles(null);
-                }
+                User user = getUser(snapshots, userDetails, ce.getRealm(), ce.getResourceId(), scopes);
 
                 ClaimsSet cs = ce.extractUserClaims(resourceId, user, client, scopes, extensions);
                 if (cs != null && cs.isUser()) {
@@ -251,6 +248,10 @@ public class DefaultClaimsService implements ClaimsService, InitializingBean {
         //        // integrate, no clash thanks to namespacing
         //        claims.putAll(servicesClaims);
 
+        if (userLoads != null) {
+            userLoads.record(snapshots.size());
+        }
+
         // freeze claims by keeping keys, these won't be modifiable
         Set<String> reservedKeys = Collections.unmodifiableSet(claims.keySet());
 
@@ -284,6 +285,121 @@ public class DefaultClaimsService implements ClaimsService, InitializingBean {
         return claims;
     }
 
+    /*
+     * Resolve the user for an extractor from the issuance snapshot, loading it only
+     * once per realm. Extractors receive a copy, narrowing never touches the snapshot
+     */
+    private User getUser(
+        Map<String, User> snapshots,
+        UserDetails userDetails,
+        String realm,
+        String resourceId,
+        Collection<String> scopes
+    ) {
+        User snapshot = snapshots.get(realm);
+        if (snapshot == null) {
+            snapshot = userService.getUser(userDetails, realm);
+            snapshots.put(realm, snapshot);
+        }
+
+        User user = copyUser(snapshot);
+
+        // filter attribute sets according to scopes
+        if (!resourceId.startsWith("aac.") && !scopes.contains(Config.SCOPE_FULL_PROFILE)) {
+            user.setAttributes(narrowUserAttributes(user.getAttributes(), scopes));
+        }
+
+        if (!scopes.contains(Config.SCOPE_USER_ROLE)) {
+            user.setAuthorities(null);
+            user.setRealmRoles(null);
+            user.setSpaceRoles(null);
+        }
+
+        return user;
+    }
+
+    private User copyUser(User user) {
+        User u = new User(user.getSubjectId(), user.getSource());
+        u.setRealm(user.getRealm());
+        u.setUsername(user.getUsername());
+        u.setEmail(user.getEmail());
+        u.setEmailVerified(user.isEmailVerified());
+        u.setLang(user.getLang());
+        u.setStatus(user.getStatus());
+        u.setExpirationDate(user.getExpirationDate());
+        u.setCreateDate(user.getCreateDate());
+        u.setModifiedDate(user.getModifiedDate());
+        u.setLoginDate(user.getLoginDate());
+        u.setLoginIp(user.getLoginIp());
+        u.setLoginProvider(user.getLoginProvider());
+        u.setTosAccepted(user.getTosAccepted());
+
+        // identities add their attributes, set attributes afterwards to replace
+        // mutable members are copied, extractors may modify the user they receive
+        u.setIdentities(user.getIdentities());
+        u.setAttributes(user.getAttributes().stream().map(a -> copyAttributes(a)).collect(Collectors.toList()));
+        u.setAuthorities(user.getAuthorities());
+        u.setRealmRoles(user.getRealmRoles().stream().map(r -> copyRole(r)).collect(Collectors.toList()));
+        u.setSpaceRoles(
+            user
+                .getSpaceRoles()
+                .stream()
+                .map(r -> new SpaceRole(r.getContext(), r.getSpace(), r.getRole()))
+                .collect(Collectors.toList())
+        );
+        u.setGroups(user.getGroups().stream().map(g -> copyGroup(g)).collect(Collectors.toList()));
+
+        return u;
+    }
+
+    private UserAttributes copyAttributes(UserAttributes attributes) {
+        DefaultUserAttributesImpl a = new DefaultUserAttributesImpl(
+            attributes.getAuthority(),
+            attributes.getProvider(),
+            attributes.getRealm(),
+            attributes.getUserId(),
+            attributes
+        );
+        if (attributes instanceof DefaultUserAttributesImpl) {
+            a.setUuid(((DefaultUserAttributesImpl) attributes).getUuid());
+        }
+
+        return a;
+    }
+
+    private RealmRole copyRole(RealmRole role) {
+        RealmRole r = new RealmRole(role.getRealm(), role.getRole());
+        r.setRoleId(role.getRoleId());
+        r.setName(role.getName());
+        r.setDescription(role.getDescription());
+        r.setPermissions(role.getPermissions() != null ? new HashSet<>(role.getPermissions()) : null);
+        r.setSubjects(role.getSubjects() != null ? new ArrayList<>(role.getSubjects()) : null);
+        r.setSize(role.getSize());
+
+        return r;
+    }
+
+    private Group copyGroup(Group group) {
+        Group g = new Group();
+        g.setGroupId(group.getGroupId());
+        g.setRealm(group.getRealm());
+        g.setGroup(group.getGroup());
+        g.setParentGroup(group.getParentGroup());
+        g.setName(group.getName());
+        g.setDescription(group.getDescription());
+        g.setMembers(group.getMembers() != null ? new ArrayList<>(group.getMembers()) : null);
+        g.setSize(group.getSize());
+        g.setRoles(
+            group.getRoles() != null
+                ? group.getRoles().stream().map(r -> copyRole(r)).collect(Collectors.toSet())
+                : null
+        );
+        g.setCreateDate(group.getCreateDate());
+        g.setModifiedDate(group.getModifiedDate());
+
+        return g;
+    }
+
     @Override
     public Map<String, Serializable> getClientClaims(
         ClientDetails client,
@@ -36,6 +36,11 @@ public interface ExtractorsRegistry {
 
     public void unregisterExtractorProvider(ResourceClaimsExtractorProvider provider);
 
+    /*
+     * Rebuild any index on providers, to pick up changes in what they expose
+     */
+    public void refresh();
+
     /*
      * Extractors
      */
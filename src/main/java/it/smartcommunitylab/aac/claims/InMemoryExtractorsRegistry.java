@@ -16,39 +16,139 @@
 
 package it.smartcommunitylab.aac.claims;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/*
+ * In-memory extractors registry
+ *
+ * Providers are indexed by the scopes and resources they declare at
+ * registration. Since some providers expose a list backed by stores, the index
+ * is rebuilt on registration changes, on explicit refresh and lazily once past
+ * its ttl, which bounds the staleness for changes made elsewhere (ie other
+ * nodes). Indexes are built off-lock and swapped as a whole, lookups never wait
+ * for a rebuild.
+ */
 public class InMemoryExtractorsRegistry implements ExtractorsRegistry {
 
+    public static final long DEFAULT_INDEX_TTL = 60; // 1 minute
+
     // claimExtractors
     // we keep a set for active extractors. Note that a single extractor can
     // respond to multiple scopes or resources
     // TODO export to a service to support clustered env, also use a load cache and
     // db store
-    private Set<ScopeClaimsExtractorProvider> scopeExtractorsProviders = new HashSet<>();
-    private Set<ResourceClaimsExtractorProvider> resourceExtractorsProviders = new HashSet<>();
+    private final Set<ScopeClaimsExtractorProvider> scopeExtractorsProviders = new CopyOnWriteArraySet<>();
+    private final Set<ResourceClaimsExtractorProvider> resourceExtractorsProviders = new CopyOnWriteArraySet<>();
+
+    // indexes, replaced as a whole on every change
+    // generations are bumped on changes so that older builds never replace newer ones
+    private final AtomicReference<Index<ScopeClaimsExtractorProvider>> scopeIndex = new AtomicReference<>(
+        Index.empty()
+    );
+    private final AtomicReference<Index<ResourceClaimsExtractorProvider>> resourceIndex = new AtomicReference<>(
+        Index.empty()
+    );
+    private final AtomicLong scopeGeneration = new AtomicLong();
+    private final AtomicLong resourceGeneration = new AtomicLong();
+    private final AtomicBoolean scopeReindexing = new AtomicBoolean(false);
+    private final AtomicBoolean resourceReindexing = new AtomicBoolean(false);
+    private long indexTtl = TimeUnit.SECONDS.toMillis(DEFAULT_INDEX_TTL);
 
     public InMemoryExtractorsRegistry(
         Collection<ScopeClaimsExtractorProvider> scopeExtractorsProviders,
         Collection<ResourceClaimsExtractorProvider> resourceExtractorsProviders
     ) {
-        for (ScopeClaimsExtractorProvider se : scopeExtractorsProviders) {
-            _registerProvider(se);
-        }
-        for (ResourceClaimsExtractorProvider re : resourceExtractorsProviders) {
-            _registerProvider(re);
-        }
+        this.scopeExtractorsProviders.addAll(scopeExtractorsProviders);
+        this.resourceExtractorsProviders.addAll(resourceExtractorsProviders);
+        refresh();
+    }
+
+    public void setIndexTtl(long indexTtl) {
+        // ttl in seconds
+        this.indexTtl = TimeUnit.SECONDS.toMillis(indexTtl);
     }
 
-    // TODO add locks when modifying extractor lists
     private void _registerProvider(ScopeClaimsExtractorProvider extractor) {
         scopeExtractorsProviders.add(extractor);
+        _reindexScopes(scopeGeneration.incrementAndGet());
     }
 
     private void _registerProvider(ResourceClaimsExtractorProvider extractor) {
         resourceExtractorsProviders.add(extractor);
+        _reindexResources(resourceGeneration.incrementAndGet());
+    }
+
+    private void _reindexScopes(long generation) {
+        Map<String, List<ScopeClaimsExtractorProvider>> index = new HashMap<>();
+        for (ScopeClaimsExtractorProvider p : scopeExtractorsProviders) {
+            for (String scope : p.getScopes()) {
+                index.computeIfAbsent(scope, k -> new ArrayList<>()).add(p);
+            }
+        }
+
+        swap(scopeIndex, new Index<>(index, generation));
+    }
+
+    private void _reindexResources(long generation) {
+        Map<String, List<ResourceClaimsExtractorProvider>> index = new HashMap<>();
+        for (ResourceClaimsExtractorProvider p : resourceExtractorsProviders) {
+            for (String resourceId : p.getResourceIds()) {
+                index.computeIfAbsent(resourceId, k -> new ArrayList<>()).add(p);
+            }
+        }
+
+        swap(resourceIndex, new Index<>(index, generation));
+    }
+
+    private static <T> void swap(AtomicReference<Index<T>> ref, Index<T> index) {
+        ref.accumulateAndGet(index, (cur, next) -> next.generation >= cur.generation ? next : cur);
+    }
+
+    private Map<String, List<ScopeClaimsExtractorProvider>> scopeIndex() {
+        Index<ScopeClaimsExtractorProvider> index = scopeIndex.get();
+        if (index.indexedAt + indexTtl < System.currentTimeMillis() && scopeReindexing.compareAndSet(false, true)) {
+            // single rebuild, concurrent lookups keep using the current index
+            try {
+                _reindexScopes(scopeGeneration.get());
+            } finally {
+                scopeReindexing.set(false);
+            }
+        }
+
+        return scopeIndex.get().entries;
+    }
+
+    private Map<String, List<ResourceClaimsExtractorProvider>> resourceIndex() {
+        Index<ResourceClaimsExtractorProvider> index = resourceIndex.get();
+        if (
+            index.indexedAt + indexTtl < System.currentTimeMillis() && resourceReindexing.compareAndSet(false, true)
+        ) {
+            try {
+                _reindexResources(resourceGeneration.get());
+            } finally {
+                resourceReindexing.set(false);
+            }
+        }
+
+        return resourceIndex.get().entries;
+    }
+
+    @Override
+    public void refresh() {
+        _reindexScopes(scopeGeneration.incrementAndGet());
+        _reindexResources(resourceGeneration.incrementAndGet());
     }
 
     /*
@@ -81,12 +181,16 @@ public class InMemoryExtractorsRegistry implements ExtractorsRegistry {
 
     @Override
     public void unregisterExtractorProvider(ResourceClaimsExtractorProvider extractor) {
-        resourceExtractorsProviders.remove(extractor);
+        if (resourceExtractorsProviders.remove(extractor)) {
+            _reindexResources(resourceGeneration.incrementAndGet());
+        }
     }
 
     @Override
     public void unregisterExtractorProvider(ScopeClaimsExtractorProvider extractor) {
-        scopeExtractorsProviders.remove(extractor);
+        if (scopeExtractorsProviders.remove(extractor)) {
+            _reindexScopes(scopeGeneration.incrementAndGet());
+        }
     }
 
     /*
@@ -96,16 +200,12 @@ public class InMemoryExtractorsRegistry implements ExtractorsRegistry {
     @Override
     public Set<ResourceClaimsExtractor> getResourceExtractors(String resourceId) {
         Set<ResourceClaimsExtractor> extractors = new HashSet<>();
-        resourceExtractorsProviders
-            .stream()
-            .forEach(p -> {
-                if (p.getResourceIds().contains(resourceId)) {
-                    ResourceClaimsExtractor r = p.getExtractor(resourceId);
-                    if (r != null) {
-                        extractors.add(r);
-                    }
-                }
-            });
+        for (ResourceClaimsExtractorProvider p : resourceIndex().getOrDefault(resourceId, Collections.emptyList())) {
+            ResourceClaimsExtractor r = p.getExtractor(resourceId);
+            if (r != null) {
+                extractors.add(r);
+            }
+        }
 
         return extractors;
     }
@@ -113,17 +213,30 @@ public class InMemoryExtractorsRegistry implements ExtractorsRegistry {
     @Override
     public Set<ScopeClaimsExtractor> getScopeExtractors(String scope) {
         Set<ScopeClaimsExtractor> extractors = new HashSet<>();
-        scopeExtractorsProviders
-            .stream()
-            .forEach(p -> {
-                if (p.getScopes().contains(scope)) {
-                    ScopeClaimsExtractor s = p.getExtractor(scope);
-                    if (s != null) {
-                        extractors.add(s);
-                    }
-                }
-            });
+        for (ScopeClaimsExtractorProvider p : scopeIndex().getOrDefault(scope, Collections.emptyList())) {
+            ScopeClaimsExtractor s = p.getExtractor(scope);
+            if (s != null) {
+                extractors.add(s);
+            }
+        }
 
         return extractors;
     }
+
+    private static class Index<T> {
+
+        private final Map<String, List<T>> entries;
+        private final long generation;
+        private final long indexedAt;
+
+        private Index(Map<String, List<T>> entries, long generation) {
+            this.entries = Collections.unmodifiableMap(entries);
+            this.generation = generation;
+            this.indexedAt = System.currentTimeMillis();
+        }
+
+        private static <T> Index<T> empty() {
+            return new Index<>(Collections.emptyMap(), -1);
+        }
+    }
 }
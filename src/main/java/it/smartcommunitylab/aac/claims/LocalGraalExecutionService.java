@@ -22,34 +22,86 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import delight.graaljssandbox.GraalSandbox;
 import delight.graaljssandbox.GraalSandboxes;
+import delight.nashornsandbox.SecuredJsCache;
 import delight.nashornsandbox.exceptions.ScriptCPUAbuseException;
 import delight.nashornsandbox.internal.RemoveComments;
 import it.smartcommunitylab.aac.common.InvalidDefinitionException;
 import it.smartcommunitylab.aac.common.SystemException;
+import it.smartcommunitylab.aac.utils.HashUtils;
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.StringWriter;
 import java.net.URL;
 import java.nio.file.FileSystems;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import javax.script.ScriptException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
 
-public class LocalGraalExecutionService implements ScriptExecutionService {
+/*
+ * Script execution via a pool of graal sandboxes.
+ *
+ * Scripts are built once per function and cached by hash, while input is bound as a
+ * variable: code is constant across calls and sandboxes can reuse prepared statements.
+ * Functions are evaluated inside a closure to avoid leaking state between executions.
+ * Since sandboxes are shared by all realms, built-in objects and their prototypes
+ * are frozen when the sandbox is created, and globals are restored after every run.
+ */
+public class LocalGraalExecutionService implements ScriptExecutionService, DisposableBean {
 
     public static final int DEFAULT_MAX_CPU_TIME = 100;
     public static final int DEFAULT_MAX_MEMORY = 10485760;
     public static final boolean DEFAULT_REMOVE_COMMENTS = true;
+    public static final int DEFAULT_POOL_SIZE = 10;
+    public static final int DEFAULT_CACHE_SIZE = 500;
+
+    private static final String INPUT_VAR = "_input";
+
+    static {
+        // workaround for graal 19.2.1 and fat jars, needed only once
+        // https://github.com/oracle/graal/issues/1348
+        try {
+            URL res =
+                com.oracle.js.parser.ScriptEnvironment.class.getClassLoader().getResource("/META-INF/truffle/language");
+            // initialize the file system for the language file
+            FileSystems.newFileSystem(res.toURI(), new HashMap<>());
+        } catch (Throwable ignored) {
+            // in case of starting without fat jar
+        }
+    }
 
     private int maxCpuTime;
     private int maxMemory;
     private boolean removeComments;
 
+    // idle sandboxes, ready for execution
+    private final BlockingQueue<GraalSandbox> sandboxes;
+
+    // scripts built from functions, by hash
+    private final Cache<String, String> scripts;
+
+    // sanitized scripts shared by all sandboxes, by hash
+    private final Cache<String, String> securedScripts;
+    private final SecuredJsCache securedJsCache = new SecuredJsCache() {
+        @Override
+        public String getOrCreate(String js, boolean allowNoBraces, Supplier<String> producer) {
+            try {
+                return securedScripts.get(HashUtils.sha256Key(allowNoBraces + ":" + js), () -> producer.get());
+            } catch (ExecutionException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+    };
+
     // custom jackson configuration with typeReference
     private final ObjectMapper mapper = new ObjectMapper()
         .registerModule(new JavaTimeModule())
@@ -58,9 +110,18 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
         new TypeReference<HashMap<String, Serializable>>() {};
 
     public LocalGraalExecutionService() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    public LocalGraalExecutionService(int poolSize, int cacheSize) {
+        Assert.isTrue(poolSize > 0, "pool size must be greater than zero");
         this.maxCpuTime = DEFAULT_MAX_CPU_TIME;
         this.maxMemory = DEFAULT_MAX_MEMORY;
         this.removeComments = DEFAULT_REMOVE_COMMENTS;
+
+        this.sandboxes = new ArrayBlockingQueue<>(poolSize);
+        this.scripts = CacheBuilder.newBuilder().maximumSize(Math.max(cacheSize, 0)).build();
+        this.securedScripts = CacheBuilder.newBuilder().maximumSize(Math.max(cacheSize, 0)).build();
     }
 
     public int getMaxCpuTime() {
@@ -69,6 +130,8 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
 
     public void setMaxCpuTime(int maxCpuTime) {
         this.maxCpuTime = maxCpuTime;
+        // idle sandboxes are configured with previous limits
+        clear();
     }
 
     public int getMaxMemory() {
@@ -77,6 +140,7 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
 
     public void setMaxMemory(int maxMemory) {
         this.maxMemory = maxMemory;
+        clear();
     }
 
     public boolean isRemoveComments() {
@@ -85,48 +149,36 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
 
     public void setRemoveComments(boolean removeComments) {
         this.removeComments = removeComments;
+        scripts.invalidateAll();
+    }
+
+    /*
+     * Bootstrap sandboxes ahead of first execution
+     */
+    public void prewarm(int count) {
+        for (int i = 0; i < count; i++) {
+            GraalSandbox sandbox = createSandbox();
+            if (!sandboxes.offer(sandbox)) {
+                // pool is full
+                sandbox.getExecutor().shutdown();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        clear();
     }
 
-    // TODO implement a threadPool for sandboxes to avoid bootstrap
     @Override
     public Map<String, Serializable> executeFunction(String name, String function, Map<String, Serializable> input)
         throws InvalidDefinitionException, SystemException {
         // TODO evaluate function syntax etc
-
-        // workaround for graal 19.2.1 and fat jars
-        // https://github.com/oracle/graal/issues/1348
-        try {
-            URL res =
-                com.oracle.js.parser.ScriptEnvironment.class.getClassLoader().getResource("/META-INF/truffle/language");
-            // initialize the file system for the language file
-            FileSystems.newFileSystem(res.toURI(), new HashMap<>());
-        } catch (Throwable ignored) {
-            // in case of starting without fat jar
-        }
-
-        GraalSandbox sandbox = createSandbox();
         try {
-            StringWriter writer = new StringWriter();
-            writer.append(CONSOLE_OVERRIDE);
-            writer.append("data = ");
-            mapper.writeValue(writer, input);
-            writer.append(";");
-            writer.append("\n");
-            writer.append(function);
-            writer.append(";");
-            writer.append("\n");
-            writer.append("result = JSON.stringify(" + name + "(data));");
-            writer.append("logs = JSON.stringify(_logs);");
-
-            String code = writer.toString();
-            if (removeComments) {
-                code = RemoveComments.perform(code);
-            }
-            sandbox.eval(code);
-
-            String output = (String) sandbox.get("result");
+            String code = buildScript(name, function, "JSON.parse(" + INPUT_VAR + ")");
+            String output = execute(code, mapper.writeValueAsString(input));
             Map<String, Serializable> result = mapper.readValue(output, typeRef);
-            String logs = (String) sandbox.get("logs");
 
             return result;
         } catch (JsonGenerationException | JsonMappingException e) {
@@ -135,8 +187,6 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
             throw new SystemException(e.getMessage());
         } catch (ScriptCPUAbuseException | ScriptException e) {
             throw new InvalidDefinitionException(e.getMessage());
-        } finally {
-            sandbox.getExecutor().shutdown();
         }
     }
 
@@ -144,45 +194,11 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
     public <T> T executeFunction(String name, String function, Class<T> clazz, Serializable... inputs)
         throws InvalidDefinitionException, SystemException {
         // TODO evaluate function syntax etc
-
-        // workaround for graal 19.2.1 and fat jars
-        // https://github.com/oracle/graal/issues/1348
-        try {
-            URL res =
-                com.oracle.js.parser.ScriptEnvironment.class.getClassLoader().getResource("/META-INF/truffle/language");
-            // initialize the file system for the language file
-            FileSystems.newFileSystem(res.toURI(), new HashMap<>());
-        } catch (Throwable ignored) {
-            // in case of starting without fat jar
-        }
-
-        GraalSandbox sandbox = createSandbox();
         try {
-            StringWriter writer = new StringWriter();
-            writer.append(CONSOLE_OVERRIDE);
-
-            List<String> vars = new LinkedList<>();
-            for (int i = 0; i < inputs.length; i++) {
-                String v = "a" + i;
-                writer.append(v).append("=");
-                mapper.writeValue(writer, inputs[i]);
-                writer.append(";\n");
-                vars.add(v);
-            }
-
-            writer.append(function).append(";").append("\n");
-            writer.append("result = JSON.stringify(" + name + "(" + String.join(",", vars) + "));");
-            writer.append("logs = JSON.stringify(_logs);");
-
-            String code = writer.toString();
-            if (removeComments) {
-                code = RemoveComments.perform(code);
-            }
-            sandbox.eval(code);
-
-            String output = (String) sandbox.get("result");
+            // inputs are bound as a single array and spread as arguments
+            String code = buildScript(name, function, "...JSON.parse(" + INPUT_VAR + ")");
+            String output = execute(code, mapper.writeValueAsString(inputs));
             T result = mapper.readValue(output, clazz);
-            String logs = (String) sandbox.get("logs");
 
             return result;
         } catch (JsonGenerationException | JsonMappingException e) {
@@ -191,7 +207,87 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
             throw new SystemException(e.getMessage());
         } catch (ScriptCPUAbuseException | ScriptException e) {
             throw new InvalidDefinitionException(e.getMessage());
+        }
+    }
+
+    private String buildScript(String name, String function, String arguments) {
+        String key = HashUtils.sha256Key(name + "\n" + arguments + "\n" + function);
+        String code = scripts.getIfPresent(key);
+        if (code != null) {
+            return code;
+        }
+
+        // result is returned as value, globals defined, replaced or deleted by function
+        // are reset to avoid sharing state with next executions on the same sandbox.
+        // helpers are captured upfront since the function may delete Object as well.
+        // failing to restore a global raises an error so the sandbox is discarded
+        StringBuilder sb = new StringBuilder();
+        sb.append("(function() {\n");
+        sb.append("var _globals = Object.getOwnPropertyDescriptors(globalThis);\n");
+        sb.append("var _names = Object.getOwnPropertyNames;\n");
+        sb.append("var _describe = Object.getOwnPropertyDescriptor;\n");
+        sb.append("var _define = Object.defineProperty;\n");
+        sb.append("var _has = Function.prototype.call.bind(Object.prototype.hasOwnProperty);\n");
+        sb.append("var _Error = Error;\n");
+        sb.append("try {\n");
+        sb.append(CONSOLE_OVERRIDE);
+        sb.append(function).append(";\n");
+        sb.append("return JSON.stringify(" + name + "(" + arguments + "));\n");
+        sb.append("} finally {\n");
+        sb.append("for (let g of _names(_globals)) {\n");
+        sb.append("if (!_has(globalThis, g)) {\n");
+        sb.append("_define(globalThis, g, _globals[g]);\n");
+        sb.append("if (!_has(globalThis, g)) {\n");
+        sb.append("throw new _Error('global ' + g + ' can not be restored');\n");
+        sb.append("}\n");
+        sb.append("}\n");
+        sb.append("}\n");
+        sb.append("for (let g of _names(globalThis)) {\n");
+        sb.append("if (!_has(_globals, g)) {\n");
+        sb.append("if (!delete globalThis[g]) {\n");
+        sb.append("throw new _Error('global ' + g + ' can not be removed');\n");
+        sb.append("}\n");
+        sb.append("} else if (_describe(globalThis, g).value !== _globals[g].value) {\n");
+        sb.append("_define(globalThis, g, _globals[g]);\n");
+        sb.append("}\n");
+        sb.append("}\n");
+        sb.append("}\n");
+        sb.append("})();");
+
+        code = sb.toString();
+        if (removeComments) {
+            code = RemoveComments.perform(code);
+        }
+
+        scripts.put(key, code);
+        return code;
+    }
+
+    private String execute(String code, String input) throws ScriptCPUAbuseException, ScriptException {
+        GraalSandbox sandbox = sandboxes.poll();
+        if (sandbox == null) {
+            // pool exhausted, bootstrap a new one
+            sandbox = createSandbox();
+        }
+
+        boolean reusable = false;
+        try {
+            sandbox.inject(INPUT_VAR, input);
+            String output = (String) sandbox.eval(code);
+
+            reusable = true;
+            return output;
         } finally {
+            // discard sandboxes after errors, execution could have been interrupted
+            if (!reusable || !sandboxes.offer(sandbox)) {
+                sandbox.getExecutor().shutdown();
+            }
+        }
+    }
+
+    private void clear() {
+        GraalSandbox sandbox;
+        while ((sandbox = sandboxes.poll()) != null) {
             sandbox.getExecutor().shutdown();
         }
     }
@@ -202,22 +298,52 @@ public class LocalGraalExecutionService implements ScriptExecutionService {
         sandbox.setMaxCPUTime(maxCpuTime);
         sandbox.setMaxMemory(maxMemory);
         sandbox.setMaxPreparedStatements(30); // because preparing scripts for execution is expensive
-        sandbox.setExecutor(Executors.newSingleThreadExecutor());
+        sandbox.setScriptCache(securedJsCache);
+        // pooled sandboxes keep their thread, don't block shutdown
+        sandbox.setExecutor(
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "graal-sandbox");
+                t.setDaemon(true);
+                return t;
+            })
+        );
         sandbox.allowNoBraces(false);
         sandbox.disallowAllClasses();
         sandbox.allowPrintFunctions(false);
+
+        // freeze built-ins once, before any function runs
+        try {
+            sandbox.eval(FREEZE_BUILTINS);
+        } catch (ScriptCPUAbuseException | ScriptException e) {
+            sandbox.getExecutor().shutdown();
+            throw new IllegalStateException("error initializing sandbox: " + e.getMessage());
+        }
+
         return sandbox;
     }
 
+    private static final String FREEZE_BUILTINS =
+        "(function() {\n" + //
+        "  for (let g of Object.getOwnPropertyNames(globalThis)) {\n" + //
+        "    let v = globalThis[g];\n" + //
+        "    if (v !== globalThis && v !== null && (typeof v === \"object\" || typeof v === \"function\")) {\n" + //
+        "      Object.freeze(v);\n" + //
+        "      if (v.prototype) {\n" + //
+        "        Object.freeze(v.prototype);\n" + //
+        "      }\n" + //
+        "    }\n" + //
+        "  }\n" + //
+        "})();";
+
+    // console is frozen, shadow it with a local one
     private static final String CONSOLE_OVERRIDE =
         "var _logs = [];\n" + //
-        "if (console) {\n" + //
-        "  for (let c of [\"log\", \"warn\", \"debug\", \"error\"]) {\n" + //
-        "    console[c] = function () {\n" + //
-        "      var line = { ...arguments };\n" + //
-        "      _logs.push(line);\n" + //
-        "    };\n" + //
-        "  }\n" + //
+        "var console = {};\n" + //
+        "for (let c of [\"log\", \"warn\", \"debug\", \"error\"]) {\n" + //
+        "  console[c] = function () {\n" + //
+        "    var line = { ...arguments };\n" + //
+        "    _logs.push(line);\n" + //
+        "  };\n" + //
         "}\n" + //
         "";
 }
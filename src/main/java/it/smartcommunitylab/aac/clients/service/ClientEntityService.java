@@ -22,10 +22,14 @@ import it.smartcommunitylab.aac.clients.persistence.ClientEntityRepository;
 import it.smartcommunitylab.aac.common.NoSuchClientException;
 import it.smartcommunitylab.aac.common.NoSuchSubjectException;
 import it.smartcommunitylab.aac.core.service.SubjectService;
+import it.smartcommunitylab.aac.events.ClientChangedEvent;
 import it.smartcommunitylab.aac.model.Subject;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 import java.util.Collection;
 import java.util.Map;
 import java.util.stream.Collectors;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
@@ -38,13 +42,15 @@ import org.springframework.util.StringUtils;
  */
 @Service
 @Transactional
-public class ClientEntityService {
+public class ClientEntityService implements ApplicationEventPublisherAware {
 
     private final ClientEntityRepository clientRepository;
 
     // TODO move to clientService when implemented properly
     private final SubjectService subjectService;
 
+    private ApplicationEventPublisher eventPublisher;
+
     public ClientEntityService(ClientEntityRepository clientRepository, SubjectService subjectService) {
         Assert.notNull(clientRepository, "client repository is mandatory");
         Assert.notNull(subjectService, "subject service is mandatory");
@@ -53,6 +59,11 @@ public class ClientEntityService {
         this.subjectService = subjectService;
     }
 
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
     public ClientEntity createClient() {
         String id = subjectService.generateUuid(SystemKeys.RESOURCE_CLIENT);
         ClientEntity c = new ClientEntity(id);
@@ -225,6 +236,8 @@ public class ClientEntityService {
             } catch (NoSuchSubjectException e) {}
         }
 
+        notifyClientChanged(clientId);
+
         return c;
     }
 
@@ -236,8 +249,19 @@ public class ClientEntityService {
 
             // remove subject if exists
             subjectService.deleteSubject(clientId);
+
+            notifyClientChanged(clientId);
         }
     }
+
+    public void notifyClientChanged(String clientId) {
+        if (eventPublisher == null) {
+            return;
+        }
+
+        // notify after commit so that listeners won't reload stale definitions
+        TransactionUtils.afterCommit(() -> eventPublisher.publishEvent(new ClientChangedEvent(clientId)));
+    }
     //    /*
     //     * Client authorities
     //     */
@@ -19,6 +19,7 @@ package it.smartcommunitylab.aac.config;
 import com.fasterxml.jackson.core.exc.StreamReadException;
 import com.fasterxml.jackson.databind.DatabindException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.bootstrap.BootstrapConfig;
 import it.smartcommunitylab.aac.claims.ClaimsService;
 import it.smartcommunitylab.aac.claims.DefaultClaimsService;
@@ -28,8 +29,10 @@ import it.smartcommunitylab.aac.core.entrypoint.RealmAwarePathUriBuilder;
 import it.smartcommunitylab.aac.core.service.CoreUserTranslator;
 import it.smartcommunitylab.aac.users.UserTranslator;
 import it.smartcommunitylab.aac.users.service.UserService;
+import it.smartcommunitylab.aac.utils.WebhookClient;
 import java.io.IOException;
 import java.util.Locale;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -61,6 +64,24 @@ public class AACConfig {
     @Value("${bootstrap.apply}")
     private boolean bootstrapApply;
 
+    @Value("${hook.connections.max}")
+    private int hookMaxConnections;
+
+    @Value("${hook.connections.per-host}")
+    private int hookMaxConnectionsPerHost;
+
+    @Value("${hook.connections.keep-alive}")
+    private int hookKeepAlive;
+
+    @Value("${hook.max-concurrent-calls}")
+    private int hookMaxConcurrentCalls;
+
+    @Value("${hook.circuit.failures}")
+    private int hookCircuitFailures;
+
+    @Value("${hook.circuit.open}")
+    private int hookCircuitOpen;
+
     @Autowired
     private ApplicationProperties appProps;
 
@@ -136,14 +157,29 @@ public class AACConfig {
     public ClaimsService claimsService(
         ExtractorsRegistry extractorsRegistry,
         ScriptExecutionService executionService,
-        UserService userService
+        UserService userService,
+        ObjectProvider<MeterRegistry> meterRegistry
     ) {
         DefaultClaimsService service = new DefaultClaimsService(extractorsRegistry);
         service.setExecutionService(executionService);
         service.setUserService(userService);
+        meterRegistry.ifAvailable(r -> service.registerMetrics(r));
         return service;
     }
 
+    /*
+     * Shared client for external hooks
+     */
+    @Bean
+    public WebhookClient webhookClient(ObjectProvider<MeterRegistry> meterRegistry) {
+        WebhookClient client = new WebhookClient(hookMaxConnections, hookMaxConnectionsPerHost, hookKeepAlive);
+        client.setMaxConcurrentCalls(hookMaxConcurrentCalls);
+        client.setFailureThreshold(hookCircuitFailures);
+        client.setOpenDuration(hookCircuitOpen);
+        meterRegistry.ifAvailable(r -> client.registerMetrics(r));
+        return client;
+    }
+
     /*
      * Cross realm user translator
      */
@@ -19,6 +19,7 @@ package it.smartcommunitylab.aac.config;
 import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.KeyUse;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.audit.listeners.AuthorizationEventListener;
 import it.smartcommunitylab.aac.audit.listeners.ClientAuthenticationEventListener;
 import it.smartcommunitylab.aac.audit.listeners.UserAuthenticationEventListener;
@@ -30,6 +31,7 @@ import it.smartcommunitylab.aac.identity.service.IdentityProviderService;
 import it.smartcommunitylab.aac.jose.JWKSetKeyStore;
 import it.smartcommunitylab.aac.oauth.event.OAuth2EventPublisher;
 import javax.sql.DataSource;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -64,6 +66,21 @@ public class AuditConfig {
     @Value("${audit.kid.enc}")
     private String encKid;
 
+    @Value("${audit.writer.async}")
+    private boolean asyncWriter;
+
+    @Value("${audit.writer.queue-size}")
+    private int writerQueueSize;
+
+    @Value("${audit.writer.flush-size}")
+    private int writerFlushSize;
+
+    @Value("${audit.writer.flush-interval}")
+    private long writerFlushInterval;
+
+    @Value("${audit.writer.overflow}")
+    private AutoJdbcAuditEventStore.OverflowPolicy writerOverflowPolicy;
+
     @Autowired
     private JWKSetKeyStore jwtKeyStore;
 
@@ -99,7 +116,7 @@ public class AuditConfig {
     //    }
 
     @Bean
-    public AutoJdbcAuditEventStore auditEventRepository() {
+    public AutoJdbcAuditEventStore auditEventRepository(ObjectProvider<MeterRegistry> meterRegistry) {
         AutoJdbcAuditEventStore store = new AutoJdbcAuditEventStore(dataSource);
 
         if (StringUtils.hasText(sigKid)) {
@@ -122,6 +139,16 @@ public class AuditConfig {
             }
         }
 
+        if (asyncWriter) {
+            // write in batches off the caller thread
+            store.setFlushSize(writerFlushSize);
+            store.setFlushInterval(writerFlushInterval);
+            store.setOverflowPolicy(writerOverflowPolicy);
+            store.startBuffering(writerQueueSize);
+        }
+
+        meterRegistry.ifAvailable(store::registerMetrics);
+
         return store;
     }
 
@@ -24,6 +24,7 @@ import it.smartcommunitylab.aac.claims.ScriptExecutionService;
 import it.smartcommunitylab.aac.core.model.ConfigMap;
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.AutoJDBCProviderConfigRepository;
+import it.smartcommunitylab.aac.core.service.CachingProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.InMemoryProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.JpaProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.ProviderConfigEntityService;
@@ -48,6 +49,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.util.StringUtils;
 
 /*
@@ -60,6 +62,9 @@ public class AuthoritiesConfig {
     @Value("${persistence.repository.providerConfig}")
     private String providerConfigRepository;
 
+    @Value("${persistence.repository.providerConfigRefresh}")
+    private int providerConfigRefresh;
+
     @Autowired
     @Qualifier("jdbcDataSource")
     private DataSource jdbcDataSource;
@@ -82,6 +87,10 @@ public class AuthoritiesConfig {
     @Autowired
     private AccountServiceAuthorityService accountServiceAuthorityService;
 
+    @Autowired
+    @Qualifier("providerConfigScheduler")
+    private TaskScheduler providerConfigScheduler;
+
     @Bean
     public IdentityProviderAuthorityService identityProviderAuthorityService(
         Collection<
@@ -164,10 +173,19 @@ public class AuthoritiesConfig {
         Class<U> clazz,
         String authority
     ) {
+        // persistent repositories are cached and kept in sync via version polling
         if ("jdbc".equals(providerConfigRepository)) {
-            return new AutoJDBCProviderConfigRepository<U>(jdbcDataSource, clazz, authority);
+            return new CachingProviderConfigRepository<U>(
+                new AutoJDBCProviderConfigRepository<U>(jdbcDataSource, clazz, authority),
+                providerConfigScheduler,
+                providerConfigRefresh
+            );
         } else if ("jpa".equals(providerConfigRepository)) {
-            return new JpaProviderConfigRepository<U>(providerConfigEntityService, clazz);
+            return new CachingProviderConfigRepository<U>(
+                new JpaProviderConfigRepository<U>(providerConfigEntityService, clazz),
+                providerConfigScheduler,
+                providerConfigRefresh
+            );
         }
 
         return new InMemoryProviderConfigRepository<U>();
@@ -35,12 +35,22 @@ public class ExecutionConfig {
     @Value("${engine.graal.remove-comments}")
     private boolean graalRemoveComments;
 
+    @Value("${engine.graal.pool-size}")
+    private int graalPoolSize;
+
+    @Value("${engine.graal.prewarm}")
+    private int graalPrewarm;
+
+    @Value("${engine.graal.cache-size}")
+    private int graalCacheSize;
+
     @Bean
     public LocalGraalExecutionService localGraalExecutionService() {
-        LocalGraalExecutionService executionService = new LocalGraalExecutionService();
+        LocalGraalExecutionService executionService = new LocalGraalExecutionService(graalPoolSize, graalCacheSize);
         executionService.setMaxMemory(graalMaxMemory);
         executionService.setMaxCpuTime(graalMaxCpuTime);
         executionService.setRemoveComments(graalRemoveComments);
+        executionService.prewarm(graalPrewarm);
         return executionService;
     }
 }
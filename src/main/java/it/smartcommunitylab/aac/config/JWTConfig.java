@@ -20,13 +20,17 @@ import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWEAlgorithm;
 import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.KeyUse;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.jose.JWKSetKeyStore;
+import it.smartcommunitylab.aac.jwt.ClientKeyCacheService;
 import it.smartcommunitylab.aac.jwt.DefaultJWTEncryptionAndDecryptionService;
 import it.smartcommunitylab.aac.jwt.DefaultJWTSigningAndValidationService;
+import it.smartcommunitylab.aac.jwt.JWKSetCacheService;
 import it.smartcommunitylab.aac.jwt.JWTEncryptionAndDecryptionService;
 import it.smartcommunitylab.aac.jwt.JWTSigningAndValidationService;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -51,8 +55,25 @@ public class JWTConfig {
     private JWKSetKeyStore jwtKeyStore;
 
     @Bean
-    public JWTSigningAndValidationService getJWTSigningAndValidationService()
-        throws NoSuchAlgorithmException, InvalidKeySpecException {
+    public JWKSetCacheService getJWKSetCacheService() {
+        return new JWKSetCacheService();
+    }
+
+    @Bean
+    public ClientKeyCacheService getClientKeyCacheService(
+        JWKSetCacheService jwksCacheService,
+        ObjectProvider<MeterRegistry> meterRegistry
+    ) {
+        ClientKeyCacheService service = new ClientKeyCacheService(jwksCacheService);
+        meterRegistry.ifAvailable(r -> service.registerMetrics(r));
+
+        return service;
+    }
+
+    @Bean
+    public JWTSigningAndValidationService getJWTSigningAndValidationService(
+        ObjectProvider<MeterRegistry> meterRegistry
+    ) throws NoSuchAlgorithmException, InvalidKeySpecException {
         // always check key
         JWK key = null;
 
@@ -91,6 +112,8 @@ public class JWTConfig {
         if (key.getAlgorithm() != null) {
             service.setDefaultSigningAlgorithmName(key.getAlgorithm().getName());
         }
+        meterRegistry.ifAvailable(r -> service.registerMetrics(r));
+
         return service;
     }
 
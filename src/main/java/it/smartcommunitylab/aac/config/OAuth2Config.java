@@ -16,6 +16,7 @@
 
 package it.smartcommunitylab.aac.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.audit.OAuth2EventListener;
 import it.smartcommunitylab.aac.claims.ClaimsService;
 import it.smartcommunitylab.aac.clients.service.ClientEntityService;
@@ -39,11 +40,13 @@ import it.smartcommunitylab.aac.oauth.service.OAuth2ClientDetailsService;
 import it.smartcommunitylab.aac.oauth.service.OAuth2ClientRegistrationServices;
 import it.smartcommunitylab.aac.oauth.service.OAuth2ClientService;
 import it.smartcommunitylab.aac.oauth.store.AuthorizationRequestStore;
+import it.smartcommunitylab.aac.oauth.store.CBORTokenSerializationCodec;
 import it.smartcommunitylab.aac.oauth.store.ExtTokenStore;
 import it.smartcommunitylab.aac.oauth.store.InMemoryAuthorizationRequestStore;
 import it.smartcommunitylab.aac.oauth.store.jdbc.AutoJdbcApprovalStore;
 import it.smartcommunitylab.aac.oauth.store.jdbc.AutoJdbcAuthorizationCodeServices;
 import it.smartcommunitylab.aac.oauth.store.jdbc.AutoJdbcTokenStore;
+import it.smartcommunitylab.aac.oauth.store.jdbc.JdbcExpiredTokenSweeper;
 import it.smartcommunitylab.aac.oauth.token.AACTokenEnhancer;
 import it.smartcommunitylab.aac.oauth.token.AbstractTokenGranter;
 import it.smartcommunitylab.aac.oauth.token.AuthorizationCodeTokenGranter;
@@ -64,6 +67,7 @@ import java.beans.PropertyVetoException;
 import java.util.ArrayList;
 import java.util.List;
 import javax.sql.DataSource;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -80,6 +84,7 @@ import org.springframework.security.oauth2.provider.approval.ApprovalStore;
 import org.springframework.security.oauth2.provider.code.AuthorizationCodeServices;
 import org.springframework.security.oauth2.provider.endpoint.RedirectResolver;
 import org.springframework.security.oauth2.provider.token.AuthorizationServerTokenServices;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.bind.support.DefaultSessionAttributeStore;
 import org.springframework.web.bind.support.SessionAttributeStore;
 import org.springframework.web.context.WebApplicationContext;
@@ -124,6 +129,30 @@ public class OAuth2Config {
     @Value("${oauth2.resourceOwnerPassword.allowRefresh}")
     private boolean oauth2ResourceOwnerPasswordAllowRefresh;
 
+    @Value("${oauth2.tokenstore.codec}")
+    private String tokenStoreCodec;
+
+    @Value("${oauth2.tokenstore.sweeper.batch}")
+    private int sweeperBatchSize;
+
+    @Value("${oauth2.introspection.cache.size}")
+    private int introspectionCacheSize;
+
+    @Value("${oauth2.introspection.cache.ttl}")
+    private int introspectionCacheTtl;
+
+    @Value("${oauth2.clients.cache.size}")
+    private int clientsCacheSize;
+
+    @Value("${oauth2.clients.cache.ttl}")
+    private int clientsCacheTtl;
+
+    @Value("${oauth2.approvals.cache.size}")
+    private int approvalsCacheSize;
+
+    @Value("${oauth2.approvals.cache.ttl}")
+    private int approvalsCacheTtl;
+
     @Autowired
     private DataSource dataSource;
 
@@ -174,9 +203,18 @@ public class OAuth2Config {
     @Bean
     public OAuth2ClientDetailsService getClientDetailsService(
         ClientEntityService clientService,
-        OAuth2ClientEntityRepository clientRepository
+        OAuth2ClientEntityRepository clientRepository,
+        ObjectProvider<MeterRegistry> meterRegistry
     ) throws PropertyVetoException {
-        return new OAuth2ClientDetailsService(clientService, clientRepository);
+        OAuth2ClientDetailsService clientDetailsService = new OAuth2ClientDetailsService(
+            clientService,
+            clientRepository,
+            clientsCacheSize,
+            clientsCacheTtl
+        );
+        meterRegistry.ifAvailable(r -> clientDetailsService.registerMetrics(r));
+
+        return clientDetailsService;
     }
 
     @Bean
@@ -187,12 +225,35 @@ public class OAuth2Config {
 
     @Bean
     public ExtTokenStore getJDBCTokenStore() throws PropertyVetoException {
-        return new AutoJdbcTokenStore(dataSource);
+        AutoJdbcTokenStore tokenStore = new AutoJdbcTokenStore(dataSource);
+        if ("cbor".equals(tokenStoreCodec)) {
+            // legacy blobs are still readable
+            tokenStore.setCodec(new CBORTokenSerializationCodec());
+        }
+
+        return tokenStore;
+    }
+
+    @Bean
+    public JdbcExpiredTokenSweeper getExpiredTokenSweeper(ObjectProvider<MeterRegistry> meterRegistry) {
+        JdbcExpiredTokenSweeper sweeper = new JdbcExpiredTokenSweeper(dataSource);
+        sweeper.setBatchSize(sweeperBatchSize);
+        meterRegistry.ifAvailable(r -> sweeper.registerMetrics(r));
+
+        return sweeper;
     }
 
     @Bean
-    public AutoJdbcApprovalStore getApprovalStore() throws PropertyVetoException {
-        return new AutoJdbcApprovalStore(dataSource);
+    public AutoJdbcApprovalStore getApprovalStore(ObjectProvider<MeterRegistry> meterRegistry)
+        throws PropertyVetoException {
+        AutoJdbcApprovalStore approvalStore = new AutoJdbcApprovalStore(
+            dataSource,
+            approvalsCacheSize,
+            approvalsCacheTtl
+        );
+        meterRegistry.ifAvailable(r -> approvalStore.registerMetrics(r));
+
+        return approvalStore;
     }
 
     public ApprovalStoreUserApprovalHandler userApprovalHandler(
@@ -299,9 +360,11 @@ public class OAuth2Config {
         OAuth2ClientDetailsService clientDetailsService,
         ExtTokenStore tokenStore,
         ApprovalStore approvalStore,
-        AACTokenEnhancer tokenEnhancer
+        AACTokenEnhancer tokenEnhancer,
+        PlatformTransactionManager transactionManager
     ) throws PropertyVetoException {
         OAuth2TokenServices tokenServices = new OAuth2TokenServices(tokenStore);
+        tokenServices.setTransactionManager(transactionManager);
         tokenServices.setClientDetailsService(clientDetailsService);
         tokenServices.setApprovalStore(approvalStore);
         tokenServices.setTokenEnhancer(tokenEnhancer);
@@ -440,9 +503,18 @@ public class OAuth2Config {
     }
 
     @Bean
-    public InternalOpaqueTokenIntrospector tokenIntrospector(ExtTokenStore tokenStore, SubjectService subjectService) {
-        InternalOpaqueTokenIntrospector introspector = new InternalOpaqueTokenIntrospector(tokenStore);
+    public InternalOpaqueTokenIntrospector tokenIntrospector(
+        ExtTokenStore tokenStore,
+        SubjectService subjectService,
+        ObjectProvider<MeterRegistry> meterRegistry
+    ) {
+        InternalOpaqueTokenIntrospector introspector = new InternalOpaqueTokenIntrospector(
+            tokenStore,
+            introspectionCacheSize,
+            introspectionCacheTtl
+        );
         introspector.setSubjectService(subjectService);
+        meterRegistry.ifAvailable(r -> introspector.registerMetrics(r));
 
         return introspector;
     }
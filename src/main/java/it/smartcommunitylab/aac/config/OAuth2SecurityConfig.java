@@ -19,6 +19,7 @@ package it.smartcommunitylab.aac.config;
 import it.smartcommunitylab.aac.Config;
 import it.smartcommunitylab.aac.clients.service.ClientDetailsService;
 import it.smartcommunitylab.aac.core.ClientAuthenticationManager;
+import it.smartcommunitylab.aac.jwt.ClientKeyCacheService;
 import it.smartcommunitylab.aac.oauth.auth.OAuth2ClientAuthFilter;
 import it.smartcommunitylab.aac.oauth.auth.OAuth2ClientJwtAssertionAuthenticationProvider;
 import it.smartcommunitylab.aac.oauth.auth.OAuth2ClientPKCEAuthenticationProvider;
@@ -82,6 +83,9 @@ public class OAuth2SecurityConfig {
     @Autowired
     private ExtTokenStore tokenStore;
 
+    @Autowired
+    private ClientKeyCacheService keyCacheService;
+
     /*
      * Configure a separated security context for oauth2 tokenEndpoints
      */
@@ -147,6 +151,7 @@ public class OAuth2SecurityConfig {
         OAuth2ClientJwtAssertionAuthenticationProvider jwtAssertionProvider =
             new OAuth2ClientJwtAssertionAuthenticationProvider(clientDetailsService, audience);
         jwtAssertionProvider.setClientService(clientService);
+        jwtAssertionProvider.setKeyCacheService(keyCacheService);
 
         ClientAuthenticationManager authManager = new ClientAuthenticationManager(
             secretAuthProvider,
@@ -38,6 +38,7 @@ import it.smartcommunitylab.aac.claims.ScopeClaimsExtractorProvider;
 import it.smartcommunitylab.aac.core.persistence.ProviderEntityRepository;
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.AutoJDBCProviderConfigRepository;
+import it.smartcommunitylab.aac.core.service.CachingProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.ConfigurableProviderEntityService;
 import it.smartcommunitylab.aac.core.service.InMemoryProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.JpaProviderConfigRepository;
@@ -82,6 +83,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.security.core.session.SessionRegistry;
 import org.springframework.security.core.session.SessionRegistryImpl;
 import org.springframework.session.web.http.CookieSerializer;
@@ -101,6 +103,9 @@ public class PersistenceConfig {
     @Value("${persistence.repository.providerConfig}")
     private String providerConfigRepository;
 
+    @Value("${persistence.repository.providerConfigRefresh}")
+    private int providerConfigRefresh;
+
     @Value("${security.session.cookie.sameSite}")
     private String sessionCookieSameSite;
 
@@ -321,6 +326,18 @@ public class PersistenceConfig {
         return new InMemoryExtractorsRegistry(scopeExtractorsProviders, resourceExtractorsProviders);
     }
 
+    /*
+     * Shared scheduler for provider config repositories, tasks are cancelled on shutdown
+     */
+    @Bean
+    public ThreadPoolTaskScheduler providerConfigScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("provider-config-refresh-");
+        scheduler.setDaemon(true);
+        return scheduler;
+    }
+
     /*
      * TODO use a proper builder to obtain implementation
      */
@@ -419,10 +436,19 @@ public class PersistenceConfig {
         Class<U> clazz,
         String authority
     ) {
+        // persistent repositories are cached and kept in sync via version polling
         if ("jdbc".equals(providerConfigRepository)) {
-            return new AutoJDBCProviderConfigRepository<U>(jdbcDataSource, clazz, authority);
+            return new CachingProviderConfigRepository<U>(
+                new AutoJDBCProviderConfigRepository<U>(jdbcDataSource, clazz, authority),
+                providerConfigScheduler(),
+                providerConfigRefresh
+            );
         } else if ("jpa".equals(providerConfigRepository)) {
-            return new JpaProviderConfigRepository<U>(providerConfigEntityService, clazz);
+            return new CachingProviderConfigRepository<U>(
+                new JpaProviderConfigRepository<U>(providerConfigEntityService, clazz),
+                providerConfigScheduler(),
+                providerConfigRefresh
+            );
         }
 
         return new InMemoryProviderConfigRepository<U>();
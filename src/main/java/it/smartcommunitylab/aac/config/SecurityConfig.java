@@ -70,6 +70,7 @@ public class SecurityConfig {
     private static final String LOGINPATH = "/login";
     private static final String LOGOUTPATH = "/logout";
     private static final String LOGOPATH = "/logo";
+    private static final String STYLEPATH = "/style.css";
     private static final String TERMSPATH = "/terms";
 
     @Autowired
@@ -144,6 +145,8 @@ public class SecurityConfig {
             .permitAll()
             .antMatchers("/-/{realm}" + LOGOPATH)
             .permitAll()
+            .antMatchers("/-/{realm}" + STYLEPATH)
+            .permitAll()
             // whitelist auth providers pages (login,registration etc)
             //                .antMatchers("/auth/**").permitAll()
             // TODO remove tech-specific paths
@@ -9,6 +9,15 @@ public class SpidProperties {
     @NestedConfigurationProperty
     private List<SpidRegistration> identityProviders;
 
+    // upstream metadata loading
+    private String metadataStore;
+    private Integer metadataTimeout;
+    private Long metadataRefresh;
+    private String metadataCertificates;
+
+    // published metadata
+    private Integer metadataValidity;
+
     public List<SpidRegistration> getIdentityProviders() {
         return identityProviders;
     }
@@ -16,4 +25,44 @@ public class SpidProperties {
     public void setIdentityProviders(List<SpidRegistration> identityProviders) {
         this.identityProviders = identityProviders;
     }
+
+    public String getMetadataStore() {
+        return metadataStore;
+    }
+
+    public void setMetadataStore(String metadataStore) {
+        this.metadataStore = metadataStore;
+    }
+
+    public Integer getMetadataTimeout() {
+        return metadataTimeout;
+    }
+
+    public void setMetadataTimeout(Integer metadataTimeout) {
+        this.metadataTimeout = metadataTimeout;
+    }
+
+    public Long getMetadataRefresh() {
+        return metadataRefresh;
+    }
+
+    public void setMetadataRefresh(Long metadataRefresh) {
+        this.metadataRefresh = metadataRefresh;
+    }
+
+    public Integer getMetadataValidity() {
+        return metadataValidity;
+    }
+
+    public void setMetadataValidity(Integer metadataValidity) {
+        this.metadataValidity = metadataValidity;
+    }
+
+    public String getMetadataCertificates() {
+        return metadataCertificates;
+    }
+
+    public void setMetadataCertificates(String metadataCertificates) {
+        this.metadataCertificates = metadataCertificates;
+    }
 }
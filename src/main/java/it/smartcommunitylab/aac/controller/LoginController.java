@@ -18,6 +18,7 @@ package it.smartcommunitylab.aac.controller;
 
 import it.smartcommunitylab.aac.clients.service.ClientDetailsService;
 import it.smartcommunitylab.aac.common.LoginException;
+import it.smartcommunitylab.aac.common.NoSuchRealmException;
 import it.smartcommunitylab.aac.config.ApplicationProperties;
 import it.smartcommunitylab.aac.core.ClientDetails;
 import it.smartcommunitylab.aac.identity.model.UserIdentity;
@@ -29,6 +30,8 @@ import it.smartcommunitylab.aac.identity.service.IdentityServiceAuthorityService
 import it.smartcommunitylab.aac.model.Realm;
 import it.smartcommunitylab.aac.oauth.store.AuthorizationRequestStore;
 import it.smartcommunitylab.aac.realms.RealmManager;
+import it.smartcommunitylab.aac.templates.service.RealmPresentationService;
+import it.smartcommunitylab.aac.templates.service.RealmPresentationService.RealmPresentation;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -93,6 +96,9 @@ public class LoginController {
     @Autowired
     private AuthorizationRequestStore authorizationRequestStore;
 
+    @Autowired
+    private RealmPresentationService presentationService;
+
     // TODO handle COMMON realm
     @RequestMapping(value = { "/login" }, method = RequestMethod.GET)
     public String entrypoint(
@@ -365,6 +371,22 @@ public class LoginController {
         return logo();
     }
 
+    @RequestMapping(value = { "/-/{realm}/style.css" }, method = RequestMethod.GET)
+    public ResponseEntity<String> realmStyle(@PathVariable("realm") String realm) throws NoSuchRealmException {
+        RealmPresentation p = presentationService.getPresentation(realm);
+        if (p.getCustomStyle() == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        // clients revalidate via etag, unchanged styles yield not modified
+        return ResponseEntity
+            .ok()
+            .contentType(MediaType.valueOf("text/css"))
+            .cacheControl(CacheControl.noCache())
+            .eTag(p.getCustomStyleETag())
+            .body(p.getCustomStyle());
+    }
+
     private String computeWeakEtag(InputStream is) throws IOException {
         StringBuilder builder = new StringBuilder();
         // use same pattern as shallow etag filter
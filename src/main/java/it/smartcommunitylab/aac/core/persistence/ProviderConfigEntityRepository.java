@@ -19,6 +19,7 @@ package it.smartcommunitylab.aac.core.persistence;
 import it.smartcommunitylab.aac.repository.CustomJpaRepository;
 import it.smartcommunitylab.aac.repository.DetachableJpaRepository;
 import java.util.List;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 @Repository
@@ -27,4 +28,7 @@ public interface ProviderConfigEntityRepository
     List<ProviderConfigEntity> findByRealm(String realm);
     List<ProviderConfigEntity> findByType(String type);
     List<ProviderConfigEntity> findByTypeAndRealm(String type, String realm);
+
+    @Query("select p.providerId, p.version from ProviderConfigEntity p where p.type = ?1")
+    List<Object[]> findVersionsByType(String type);
 }
@@ -17,6 +17,7 @@
 package it.smartcommunitylab.aac.core.persistence;
 
 import it.smartcommunitylab.aac.repository.CustomJpaRepository;
+import java.util.Collection;
 import java.util.List;
 import org.springframework.stereotype.Repository;
 
@@ -26,6 +27,8 @@ public interface SubjectAuthorityEntityRepository extends CustomJpaRepository<Su
 
     List<SubjectAuthorityEntity> findBySubjectAndRealm(String subject, String realm);
 
+    List<SubjectAuthorityEntity> findBySubjectIn(Collection<String> subjects);
+
     List<SubjectAuthorityEntity> findByRealm(String realm);
 
     List<SubjectAuthorityEntity> findByRealmAndRole(String realm, String role);
@@ -19,6 +19,8 @@ package it.smartcommunitylab.aac.core.provider;
 import it.smartcommunitylab.aac.core.model.ConfigMap;
 import it.smartcommunitylab.aac.core.provider.config.ProviderConfig;
 import java.util.Collection;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 public interface ProviderConfigRepository<T extends ProviderConfig<? extends ConfigMap, ? extends ConfigMap>> {
     T findByProviderId(String providerId);
@@ -32,4 +34,12 @@ public interface ProviderConfigRepository<T extends ProviderConfig<? extends Con
     void removeRegistration(String providerId);
 
     void removeRegistration(T registration);
+
+    /*
+     * Current version of every registration, by providerId.
+     * Implementations should override with a lightweight lookup.
+     */
+    default Map<String, Integer> findVersions() {
+        return findAll().stream().collect(Collectors.toMap(T::getProvider, T::getVersion, (v1, v2) -> v2));
+    }
 }
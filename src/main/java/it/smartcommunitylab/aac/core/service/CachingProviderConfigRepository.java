@@ -0,0 +1,168 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.core.service;
+
+import it.smartcommunitylab.aac.base.provider.config.AbstractProviderConfig;
+import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.Assert;
+
+/*
+ * Keeps decoded registrations from a persistent repository in memory, so that
+ * lookups by providerId do not hit the store.
+ *
+ * Local changes are applied via this repository and evict immediately, while
+ * changes made by other nodes are detected by polling the version index of the
+ * delegate at a fixed interval, on a scheduler managed by the application
+ * context. The polling task is cancelled when the repository is destroyed.
+ */
+public class CachingProviderConfigRepository<U extends AbstractProviderConfig<?, ?>>
+    implements ProviderConfigRepository<U>, DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_REFRESH_INTERVAL = 30; // seconds
+
+    private final ProviderConfigRepository<U> repository;
+
+    // polling task, if any
+    private final ScheduledFuture<?> refreshTask;
+
+    // decoded registrations by providerId
+    private final Map<String, U> registrations = new ConcurrentHashMap<>();
+
+    // bumped on local changes, to avoid caching concurrent stale reads
+    private final AtomicLong generation = new AtomicLong();
+
+    public CachingProviderConfigRepository(ProviderConfigRepository<U> repository, TaskScheduler scheduler) {
+        this(repository, scheduler, DEFAULT_REFRESH_INTERVAL);
+    }
+
+    public CachingProviderConfigRepository(
+        ProviderConfigRepository<U> repository,
+        TaskScheduler scheduler,
+        int refreshInterval
+    ) {
+        Assert.notNull(repository, "repository can not be null");
+        Assert.notNull(scheduler, "scheduler can not be null");
+        this.repository = repository;
+
+        // a non positive interval disables polling, for single node deployments
+        if (refreshInterval > 0) {
+            Duration delay = Duration.ofSeconds(refreshInterval);
+            this.refreshTask = scheduler.scheduleWithFixedDelay(this::refresh, Instant.now().plus(delay), delay);
+        } else {
+            this.refreshTask = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+        }
+    }
+
+    @Override
+    public U findByProviderId(String providerId) {
+        Assert.hasText(providerId, "providerId cannot be empty");
+        U registration = registrations.get(providerId);
+        if (registration != null) {
+            return registration;
+        }
+
+        long gen = generation.get();
+        registration = repository.findByProviderId(providerId);
+        if (registration != null && gen == generation.get()) {
+            registrations.putIfAbsent(providerId, registration);
+        }
+
+        return registration;
+    }
+
+    @Override
+    public Collection<U> findAll() {
+        return repository.findAll();
+    }
+
+    @Override
+    public Collection<U> findByRealm(String realm) {
+        return repository.findByRealm(realm);
+    }
+
+    @Override
+    public Map<String, Integer> findVersions() {
+        return repository.findVersions();
+    }
+
+    @Override
+    public void addRegistration(U registration) {
+        repository.addRegistration(registration);
+        generation.incrementAndGet();
+        if (registration != null) {
+            registrations.remove(registration.getProvider());
+        }
+    }
+
+    @Override
+    public void removeRegistration(String providerId) {
+        repository.removeRegistration(providerId);
+        generation.incrementAndGet();
+        registrations.remove(providerId);
+    }
+
+    @Override
+    public void removeRegistration(U registration) {
+        repository.removeRegistration(registration);
+        generation.incrementAndGet();
+        if (registration != null) {
+            registrations.remove(registration.getProvider());
+        }
+    }
+
+    /*
+     * Evict registrations updated or removed in store
+     */
+    public void refresh() {
+        if (registrations.isEmpty()) {
+            return;
+        }
+
+        try {
+            Map<String, Integer> versions = repository.findVersions();
+            registrations
+                .entrySet()
+                .removeIf(e -> {
+                    Integer version = versions.get(e.getKey());
+                    return version == null || version.intValue() != e.getValue().getVersion();
+                });
+        } catch (RuntimeException e) {
+            // keep current, retry at next round
+            logger.error("error refreshing provider configs: {}", e.getMessage());
+        }
+    }
+}
@@ -26,6 +26,7 @@ import it.smartcommunitylab.aac.core.persistence.ProviderConfigEntity;
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Map;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +79,11 @@ public class JpaProviderConfigRepository<U extends AbstractProviderConfig<?, ?>>
         return entityService.findByRealm(type, realm).stream().map(converter::from).collect(Collectors.toList());
     }
 
+    @Override
+    public Map<String, Integer> findVersions() {
+        return entityService.findVersions(type);
+    }
+
     @Override
     public void addRegistration(U registration) {
         if (registration != null) {
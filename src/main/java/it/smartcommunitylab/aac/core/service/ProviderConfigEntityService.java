@@ -20,6 +20,8 @@ import it.smartcommunitylab.aac.core.persistence.ProviderConfigEntity;
 import it.smartcommunitylab.aac.core.persistence.ProviderConfigEntityRepository;
 import it.smartcommunitylab.aac.core.persistence.ProviderConfigId;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.stream.Collectors;
 import javax.validation.constraints.NotNull;
 import org.springframework.stereotype.Service;
@@ -59,6 +61,14 @@ public class ProviderConfigEntityService {
         return repository.findByTypeAndRealm(type, realm).stream().map(repository::detach).collect(Collectors.toList());
     }
 
+    public Map<String, Integer> findVersions(@NotNull String type) {
+        Map<String, Integer> versions = new HashMap<>();
+        repository
+            .findVersionsByType(type)
+            .forEach(r -> versions.put((String) r[0], r[1] != null ? ((Number) r[1]).intValue() : 0));
+        return versions;
+    }
+
     public ProviderConfigEntity save(
         @NotNull String type,
         @NotNull String providerId,
@@ -24,11 +24,13 @@ import it.smartcommunitylab.aac.core.persistence.SubjectAuthorityEntity;
 import it.smartcommunitylab.aac.core.persistence.SubjectAuthorityEntityRepository;
 import it.smartcommunitylab.aac.core.persistence.SubjectEntity;
 import it.smartcommunitylab.aac.core.persistence.SubjectEntityRepository;
+import it.smartcommunitylab.aac.events.SubjectAuthoritiesChangedEvent;
 import it.smartcommunitylab.aac.groups.persistence.GroupEntity;
 import it.smartcommunitylab.aac.model.Subject;
 import it.smartcommunitylab.aac.roles.persistence.RealmRoleEntity;
 import it.smartcommunitylab.aac.services.persistence.ServiceEntity;
 import it.smartcommunitylab.aac.users.persistence.UserEntity;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -37,6 +39,8 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Service;
@@ -46,12 +50,14 @@ import org.springframework.util.StringUtils;
 
 @Service
 @Transactional
-public class SubjectService {
+public class SubjectService implements ApplicationEventPublisherAware {
 
     private final SubjectEntityRepository subjectRepository;
 
     private final SubjectAuthorityEntityRepository authorityRepository;
 
+    private ApplicationEventPublisher eventPublisher;
+
     // TODO add dynamic subject type registration via beans?
     // private Map<String, SubjectType> types;
 
@@ -69,6 +75,11 @@ public class SubjectService {
         this.authorityRepository = authorityRepository;
     }
 
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
     public String generateUuid(String type) {
         // generate random
         // TODO ensure unique on multi node deploy: replace with idGenerator
@@ -171,6 +182,7 @@ public class SubjectService {
         SubjectEntity s = subjectRepository.findBySubjectId(id);
         if (s != null) {
             subjectRepository.delete(s);
+            notifyAuthoritiesChanged(id);
         }
     }
 
@@ -237,6 +249,23 @@ public class SubjectService {
             .collect(Collectors.toList());
     }
 
+    @Transactional(readOnly = true)
+    public Map<String, List<GrantedAuthority>> getAuthoritiesBySubject(Collection<String> subjectIds) {
+        if (subjectIds == null || subjectIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        return authorityRepository
+            .findBySubjectIn(subjectIds)
+            .stream()
+            .collect(
+                Collectors.groupingBy(
+                    SubjectAuthorityEntity::getSubject,
+                    Collectors.mapping(a -> toAuthority(a), Collectors.toList())
+                )
+            );
+    }
+
     @Transactional(readOnly = true)
     public List<GrantedAuthority> getAuthorities(String subjectId, String realm) {
         return authorityRepository
@@ -274,7 +303,14 @@ public class SubjectService {
             .filter(r -> !oldRoles.contains(r))
             .collect(Collectors.toSet());
 
-        return authorityRepository.saveAll(toAdd).stream().map(a -> toAuthority(a)).collect(Collectors.toList());
+        List<GrantedAuthority> authorities = authorityRepository
+            .saveAll(toAdd)
+            .stream()
+            .map(a -> toAuthority(a))
+            .collect(Collectors.toList());
+
+        notifyAuthoritiesChanged(uuid);
+        return authorities;
     }
 
     public List<GrantedAuthority> addAuthorities(String uuid, Collection<Map.Entry<String, String>> roles)
@@ -304,7 +340,14 @@ public class SubjectService {
             .filter(r -> !oldRoles.contains(r))
             .collect(Collectors.toSet());
 
-        return authorityRepository.saveAll(toAdd).stream().map(a -> toAuthority(a)).collect(Collectors.toList());
+        List<GrantedAuthority> authorities = authorityRepository
+            .saveAll(toAdd)
+            .stream()
+            .map(a -> toAuthority(a))
+            .collect(Collectors.toList());
+
+        notifyAuthoritiesChanged(uuid);
+        return authorities;
     }
 
     public void removeAuthorities(String uuid, String realm, Collection<String> roles) throws NoSuchSubjectException {
@@ -335,6 +378,7 @@ public class SubjectService {
             .collect(Collectors.toSet());
 
         authorityRepository.deleteAll(toDelete);
+        notifyAuthoritiesChanged(uuid);
     }
 
     public void removeAuthorities(String uuid, Collection<Map.Entry<String, String>> roles)
@@ -365,6 +409,7 @@ public class SubjectService {
             .collect(Collectors.toSet());
 
         authorityRepository.deleteAll(toDelete);
+        notifyAuthoritiesChanged(uuid);
     }
 
     public List<GrantedAuthority> updateAuthorities(String uuid, String realm, Collection<String> roles)
@@ -401,6 +446,7 @@ public class SubjectService {
 
         authorityRepository.deleteAll(toDelete);
         authorityRepository.saveAll(toAdd);
+        notifyAuthoritiesChanged(uuid);
 
         return authorityRepository
             .findBySubjectAndRealm(uuid, realm)
@@ -442,6 +488,7 @@ public class SubjectService {
 
         authorityRepository.deleteAll(toDelete);
         authorityRepository.saveAll(toAdd);
+        notifyAuthoritiesChanged(uuid);
 
         return authorityRepository.findBySubject(uuid).stream().map(a -> toAuthority(a)).collect(Collectors.toList());
     }
@@ -451,6 +498,7 @@ public class SubjectService {
         if (!roles.isEmpty()) {
             // remove
             authorityRepository.deleteAll(roles);
+            notifyAuthoritiesChanged(subjectId);
         }
     }
 
@@ -459,9 +507,19 @@ public class SubjectService {
         if (!roles.isEmpty()) {
             // remove
             authorityRepository.deleteAll(roles);
+            notifyAuthoritiesChanged(subjectId);
         }
     }
 
+    private void notifyAuthoritiesChanged(String subjectId) {
+        if (eventPublisher == null) {
+            return;
+        }
+
+        // notify after commit so that listeners caching authorities won't reload stale ones
+        TransactionUtils.afterCommit(() -> eventPublisher.publishEvent(new SubjectAuthoritiesChangedEvent(subjectId)));
+    }
+
     private Subject toSubject(SubjectEntity s) {
         return new Subject(s.getSubjectId(), s.getRealm(), s.getName(), s.getType());
     }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.events;
+
+import it.smartcommunitylab.aac.SystemKeys;
+import org.springframework.context.ApplicationEvent;
+
+/*
+ * Emitted when templates for a realm are created, modified or removed
+ */
+public class TemplatesChangedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = SystemKeys.AAC_CORE_SERIAL_VERSION;
+
+    public TemplatesChangedEvent(String realm) {
+        super(realm);
+    }
+
+    public String getRealm() {
+        return (String) getSource();
+    }
+}
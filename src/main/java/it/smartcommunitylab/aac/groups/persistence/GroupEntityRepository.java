@@ -17,6 +17,7 @@
 package it.smartcommunitylab.aac.groups.persistence;
 
 import it.smartcommunitylab.aac.repository.CustomJpaRepository;
+import java.util.Collection;
 import java.util.List;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -34,6 +35,8 @@ public interface GroupEntityRepository
 
     List<GroupEntity> findByRealm(String realm);
 
+    List<GroupEntity> findByRealmAndGroupIn(String realm, Collection<String> groups);
+
     Page<GroupEntity> findByRealm(String realm, Pageable pageRequest);
 
     List<GroupEntity> findByRealmAndParentGroup(String realm, String parentGroup);
@@ -17,6 +17,7 @@
 package it.smartcommunitylab.aac.groups.persistence;
 
 import it.smartcommunitylab.aac.repository.CustomJpaRepository;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import org.springframework.data.domain.Page;
@@ -45,6 +46,8 @@ public interface GroupMemberEntityRepository
     List<GroupMemberEntity> findBySubject(String subject);
 
     List<GroupMemberEntity> findBySubjectAndRealm(String subject, String realm);
+
+    List<GroupMemberEntity> findByRealmAndSubjectIn(String realm, Collection<String> subjects);
     //    @Query("select g from GroupMemberEntity gm inner join GroupEntity g on gm.group = g.uuid where gm.subject = ?1")
     //    List<GroupEntity> findGroupsBySubject(String subject);
 
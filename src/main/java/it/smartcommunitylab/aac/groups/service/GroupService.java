@@ -28,6 +28,8 @@ import it.smartcommunitylab.aac.model.Subject;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -554,6 +556,38 @@ public class GroupService {
         return groups.stream().map(g -> toGroup(g, null)).collect(Collectors.toList());
     }
 
+    /*
+     * Batch variant: resolves memberships and groups for all subjects with a
+     * fixed number of queries
+     */
+    @Transactional(readOnly = true)
+    public Map<String, Collection<Group>> getSubjectsGroups(Collection<String> subjects, String realm) {
+        if (subjects == null || subjects.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        List<GroupMemberEntity> memberships = groupMemberRepository.findByRealmAndSubjectIn(realm, subjects);
+        if (memberships.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Set<String> keys = memberships.stream().map(GroupMemberEntity::getGroup).collect(Collectors.toSet());
+        Map<String, Group> groups = groupRepository
+            .findByRealmAndGroupIn(realm, keys)
+            .stream()
+            .collect(Collectors.toMap(GroupEntity::getGroup, g -> toGroup(g, null), (g1, g2) -> g1));
+
+        Map<String, Collection<Group>> result = new HashMap<>();
+        for (GroupMemberEntity gm : memberships) {
+            Group g = groups.get(gm.getGroup());
+            if (g != null) {
+                result.computeIfAbsent(gm.getSubject(), k -> new ArrayList<>()).add(g);
+            }
+        }
+
+        return result;
+    }
+
     public Collection<Group> setSubjectGroups(String subject, String realm, List<String> groups) {
         // fetch current
         List<GroupMemberEntity> oldMemberships = groupMemberRepository.findBySubjectAndRealm(subject, realm);
@@ -16,9 +16,8 @@
 
 package it.smartcommunitylab.aac.jwt;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.nimbusds.jose.JWEAlgorithm;
 import com.nimbusds.jose.JWSAlgorithm;
@@ -26,15 +25,28 @@ import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.KeyUse;
 import com.nimbusds.jose.jwk.OctetSequenceKey;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
 import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import it.smartcommunitylab.aac.jose.JWKSetKeyStore;
+import it.smartcommunitylab.aac.utils.HashUtils;
 import java.text.ParseException;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 /**
@@ -42,6 +54,9 @@ import org.springframework.util.StringUtils;
  * Takes in a client and returns the appropriate validator or encrypter for that
  * client's registered key types.
  *
+ * Services are cached by a fingerprint of client id and key content, which
+ * is computed once per key set instance.
+ *
  * @author jricher
  * @author mat
  *
@@ -51,21 +66,53 @@ public class ClientKeyCacheService {
 
     private static final Logger logger = LoggerFactory.getLogger(ClientKeyCacheService.class);
 
-    private final JWKSetCacheService jwksUriCache = new JWKSetCacheService();
+    private final JWKSetCacheService jwksUriCache;
+
+    // parsed by-value JWKs
+    private final Cache<String, JWKSet> jwksets = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    // fingerprints by key set instance
+    private final Cache<JWKSet, String> fingerprints = CacheBuilder.newBuilder().weakKeys().build();
 
-    // cache of validators for by-value JWKs
-    private final LoadingCache<JWKSet, JWTSigningAndValidationService> jwksValidators = CacheBuilder
+    // cache of validators by fingerprint and algorithm
+    private final Cache<String, JWTSigningAndValidationService> jwksValidators = CacheBuilder
         .newBuilder()
-        .expireAfterWrite(1, TimeUnit.HOURS) // expires 1 hour after fetch
-        .maximumSize(100)
-        .build(new JWKSetVerifierBuilder());
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .maximumSize(1000)
+        .recordStats()
+        .build();
 
-    // cache of encryptors for by-value JWKs
-    private final LoadingCache<JWKSet, JWTEncryptionAndDecryptionService> jwksEncrypters = CacheBuilder
+    // cache of encryptors by fingerprint
+    private final Cache<String, JWTEncryptionAndDecryptionService> jwksEncrypters = CacheBuilder
         .newBuilder()
-        .expireAfterWrite(1, TimeUnit.HOURS) // expires 1 hour after fetch
-        .maximumSize(100)
-        .build(new JWKSetEncryptorBuilder());
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .maximumSize(1000)
+        .recordStats()
+        .build();
+
+    // cache of assertion decoders by fingerprint
+    private final Cache<String, JwtDecoder> jwksDecoders = CacheBuilder
+        .newBuilder()
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .maximumSize(1000)
+        .recordStats()
+        .build();
+
+    public ClientKeyCacheService() {
+        this(new JWKSetCacheService());
+    }
+
+    public ClientKeyCacheService(JWKSetCacheService jwksUriCache) {
+        Assert.notNull(jwksUriCache, "jwks cache service is required");
+        this.jwksUriCache = jwksUriCache;
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        jwksUriCache.registerMetrics(meterRegistry);
+        GuavaCacheMetrics.monitor(meterRegistry, jwksValidators, "jwt.client.validators");
+        GuavaCacheMetrics.monitor(meterRegistry, jwksEncrypters, "jwt.client.encrypters");
+        GuavaCacheMetrics.monitor(meterRegistry, jwksDecoders, "jwt.client.decoders");
+    }
 
     /*
      * Get client specific signer
@@ -140,24 +187,31 @@ public class ClientKeyCacheService {
                 return null;
             }
 
-            // check that JWKS contains a key for selected algo
-            logger.trace("jwks for " + alg.getName() + ": " + set.getKeys().toString());
-
-            List<JWK> algJwks = set
-                .getKeys()
-                .stream()
-                .filter(k -> (k.getKeyUse() == null || k.getKeyUse().equals(KeyUse.SIGNATURE)))
-                .filter(k -> (k.getAlgorithm() != null && k.getAlgorithm().equals(alg)))
-                .collect(Collectors.toList());
-            if (algJwks.isEmpty()) {
-                logger.error("No key for the selected algorithm " + alg.getName());
-                return null;
-            }
-
-            logger.trace("jwks selected for " + alg.getName() + ": " + algJwks.toString());
+            // fetch from cache, building from matching keys only on miss
+            final JWKSet jwkSet = set;
+            String key = fingerprint(clientId, set) + ":" + alg.getName();
+            JWTSigningAndValidationService validator = jwksValidators.get(
+                key,
+                () -> {
+                    // check that JWKS contains a key for selected algo
+                    logger.trace("jwks for " + alg.getName() + ": " + jwkSet.getKeys().toString());
+
+                    List<JWK> algJwks = jwkSet
+                        .getKeys()
+                        .stream()
+                        .filter(k -> (k.getKeyUse() == null || k.getKeyUse().equals(KeyUse.SIGNATURE)))
+                        .filter(k -> (k.getAlgorithm() != null && k.getAlgorithm().equals(alg)))
+                        .collect(Collectors.toList());
+                    if (algJwks.isEmpty()) {
+                        throw new IllegalArgumentException("No key for the selected algorithm " + alg.getName());
+                    }
+
+                    logger.trace("jwks selected for " + alg.getName() + ": " + algJwks.toString());
+                    return new DefaultJWTSigningAndValidationService(new JWKSetKeyStore(new JWKSet(algJwks)));
+                }
+            );
 
-            // fetch from cache via loader, passing only matching keys
-            return jwksValidators.get(new JWKSet(algJwks));
+            return validator;
         } catch (UncheckedExecutionException | ExecutionException | IllegalArgumentException e) {
             logger.error("Problem loading client validator", e);
             return null;
@@ -211,18 +265,70 @@ public class ClientKeyCacheService {
             //            }
             //            logger.trace("jwks selected for " + alg.getName() + ": " + algJwks.toString());
 
-            return jwksEncrypters.get(set);
+            final JWKSet jwkSet = set;
+            return jwksEncrypters.get(
+                fingerprint(clientId, set),
+                () -> new DefaultJWTEncryptionAndDecryptionService(new JWKSetKeyStore(jwkSet))
+            );
         } catch (UncheckedExecutionException | ExecutionException e) {
             logger.error("Problem loading client encrypter", e);
             return null;
         }
     }
 
+    /*
+     * Get client specific decoder for RSA signed assertions
+     *
+     * Keys are selected by kid when provided, unknown kids trigger a refresh of
+     * remote keys.
+     */
+    public JwtDecoder getJwtDecoder(String clientId, String jwks, String jwksUri, String kid) {
+        JWKSet set = null;
+        if (StringUtils.hasText(jwks)) {
+            set = parseJwks(jwks);
+        }
+        if (set == null && StringUtils.hasText(jwksUri)) {
+            set = jwksUriCache.getJWKSet(jwksUri, kid);
+        }
+
+        if (set == null) {
+            logger.error("no jwkset found for client");
+            return null;
+        }
+
+        try {
+            final JWKSet jwkSet = set;
+            return jwksDecoders.get(
+                fingerprint(clientId, set),
+                () -> {
+                    // select keys per header, among RSA signature keys
+                    DefaultJWTProcessor<SecurityContext> jwtProcessor = new DefaultJWTProcessor<>();
+                    jwtProcessor.setJWSKeySelector(
+                        new JWSVerificationKeySelector<>(JWSAlgorithm.Family.RSA, new ImmutableJWKSet<>(jwkSet))
+                    );
+                    // claims are validated by decoder
+                    jwtProcessor.setJWTClaimsSetVerifier((claims, context) -> {});
+
+                    return new NimbusJwtDecoder(jwtProcessor);
+                }
+            );
+        } catch (UncheckedExecutionException | ExecutionException e) {
+            logger.error("Problem loading client decoder", e);
+            return null;
+        }
+    }
+
     private JWKSet parseJwks(String data) {
         if (data != null) {
+            JWKSet jwks = jwksets.getIfPresent(data);
+            if (jwks != null) {
+                return jwks;
+            }
+
             try {
-                JWKSet jwks = JWKSet.parse(data);
+                jwks = JWKSet.parse(data);
                 logger.trace("parsed jwks is " + jwks.getKeys().toString());
+                jwksets.put(data, jwks);
                 return jwks;
             } catch (ParseException e) {
                 logger.error("Unable to parse JWK Set", e.getMessage());
@@ -234,22 +340,22 @@ public class ClientKeyCacheService {
     }
 
     /*
-     * Cache loaders with single key used as default
+     * Fingerprint as client id plus digest of the full keys, including kid, alg
+     * and use, stable across instances of the same key set
      */
+    private String fingerprint(String clientId, JWKSet set) {
+        String fingerprint = fingerprints.getIfPresent(set);
+        if (fingerprint == null) {
+            // sort members and keys to be independent from ordering
+            TreeSet<String> keys = new TreeSet<>();
+            for (JWK jwk : set.getKeys()) {
+                keys.add(JSONObjectUtils.toJSONString(new TreeMap<>(jwk.toJSONObject())));
+            }
 
-    private class JWKSetEncryptorBuilder extends CacheLoader<JWKSet, JWTEncryptionAndDecryptionService> {
-
-        @Override
-        public JWTEncryptionAndDecryptionService load(JWKSet key) throws Exception {
-            return new DefaultJWTEncryptionAndDecryptionService(new JWKSetKeyStore(key));
+            fingerprint = HashUtils.sha256Key(String.join(",", keys));
+            fingerprints.put(set, fingerprint);
         }
-    }
 
-    private class JWKSetVerifierBuilder extends CacheLoader<JWKSet, JWTSigningAndValidationService> {
-
-        @Override
-        public JWTSigningAndValidationService load(JWKSet key) throws Exception {
-            return new DefaultJWTSigningAndValidationService(new JWKSetKeyStore(key));
-        }
+        return clientId + ":" + fingerprint;
     }
 }
@@ -32,12 +32,17 @@ import com.nimbusds.jose.jwk.KeyUse;
 import com.nimbusds.jose.jwk.OctetSequenceKey;
 import com.nimbusds.jose.jwk.RSAKey;
 import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.jose.JWKSetKeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -55,6 +60,14 @@ public class DefaultJWTSigningAndValidationService implements JWTSigningAndValid
     // map of identifier to verifier
     private Map<String, JWSVerifier> verifiers = new HashMap<>();
 
+    // index of algorithm to signer
+    private Map<JWSAlgorithm, JWSSigner> algSigners = new HashMap<>();
+
+    // index of algorithm to verifiers, used when kid is not available
+    private Map<JWSAlgorithm, List<JWSVerifier>> algVerifiers = new HashMap<>();
+
+    private DistributionSummary verifyAttempts;
+
     private String defaultSignerKeyId;
 
     private JWSAlgorithm defaultAlgorithm;
@@ -109,6 +122,14 @@ public class DefaultJWTSigningAndValidationService implements JWTSigningAndValid
         buildSignersAndVerifiers();
     }
 
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        verifyAttempts =
+            DistributionSummary
+                .builder("jwt.verify.attempts")
+                .description("Signature verifications attempted per token")
+                .register(meterRegistry);
+    }
+
     /**
      * @return the defaultSignerKeyId
      */
@@ -159,6 +180,12 @@ public class DefaultJWTSigningAndValidationService implements JWTSigningAndValid
      *                                  the keys to.
      */
     private void buildSignersAndVerifiers() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        // rebuild from scratch, indexes must reflect only the current keys
+        signers.clear();
+        verifiers.clear();
+        algSigners.clear();
+        algVerifiers.clear();
+
         for (Map.Entry<String, JWK> jwkEntry : keys.entrySet()) {
             String id = jwkEntry.getKey();
             JWK jwk = jwkEntry.getValue();
@@ -202,6 +229,24 @@ public class DefaultJWTSigningAndValidationService implements JWTSigningAndValid
             }
         }
 
+        // index by algorithm, preferring keys declaring the algorithm
+        for (Map.Entry<String, JWSSigner> e : signers.entrySet()) {
+            JWK jwk = keys.get(e.getKey());
+            if (jwk.getAlgorithm() != null) {
+                algSigners.putIfAbsent(JWSAlgorithm.parse(jwk.getAlgorithm().getName()), e.getValue());
+            }
+        }
+        for (JWSSigner signer : signers.values()) {
+            for (JWSAlgorithm alg : signer.supportedJWSAlgorithms()) {
+                algSigners.putIfAbsent(alg, signer);
+            }
+        }
+        for (JWSVerifier verifier : verifiers.values()) {
+            for (JWSAlgorithm alg : verifier.supportedJWSAlgorithms()) {
+                algVerifiers.computeIfAbsent(alg, k -> new ArrayList<>()).add(verifier);
+            }
+        }
+
         if (defaultSignerKeyId == null && keys.size() == 1) {
             // if there's only one key, it's the default
             Map.Entry<String, JWK> jwk = keys.entrySet().iterator().next();
@@ -231,14 +276,7 @@ public class DefaultJWTSigningAndValidationService implements JWTSigningAndValid
 
     @Override
     public void signJwt(SignedJWT jwt, JWSAlgorithm alg) {
-        JWSSigner signer = null;
-
-        for (JWSSigner s : signers.values()) {
-            if (s.supportedJWSAlgorithms().contains(alg)) {
-                signer = s;
-                break;
-            }
-        }
+        JWSSigner signer = algSigners.get(alg);
 
         if (signer == null) {
             // If we can't find an algorithm that matches, we can't sign
@@ -254,16 +292,40 @@ public class DefaultJWTSigningAndValidationService implements JWTSigningAndValid
 
     @Override
     public boolean validateSignature(SignedJWT jwt) {
-        for (JWSVerifier verifier : verifiers.values()) {
-            try {
-                if (jwt.verify(verifier)) {
+        int attempts = 0;
+        try {
+            // select by kid when available
+            String kid = jwt.getHeader().getKeyID();
+            JWSVerifier verifier = kid != null ? verifiers.get(kid) : null;
+            if (verifier != null) {
+                attempts++;
+                return verify(jwt, verifier);
+            }
+
+            // fall back to verifiers supporting the algorithm
+            JWSAlgorithm alg = jwt.getHeader().getAlgorithm();
+            for (JWSVerifier v : algVerifiers.getOrDefault(alg, Collections.emptyList())) {
+                attempts++;
+                if (verify(jwt, v)) {
                     return true;
                 }
-            } catch (JOSEException e) {
-                logger.error("Failed to validate signature with " + verifier + " error message: " + e.getMessage());
             }
+
+            return false;
+        } finally {
+            if (verifyAttempts != null) {
+                verifyAttempts.record(attempts);
+            }
+        }
+    }
+
+    private boolean verify(SignedJWT jwt, JWSVerifier verifier) {
+        try {
+            return jwt.verify(verifier);
+        } catch (JOSEException e) {
+            logger.error("Failed to validate signature with " + verifier + " error message: " + e.getMessage());
+            return false;
         }
-        return false;
     }
 
     @Override
@@ -17,19 +17,30 @@
  *******************************************************************************/
 package it.smartcommunitylab.aac.jwt;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.nimbusds.jose.jwk.JWKSet;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.net.URI;
 import java.text.ParseException;
+import java.time.Clock;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -39,56 +50,278 @@ import org.springframework.web.client.RestTemplate;
  * Creates a caching map of JOSE signers/validators and encrypters/decryptors
  * keyed on the JWK Set URI. Dynamically loads JWK Sets to create the services.
  *
+ * JWK Sets are refreshed ahead of expiration in background, according to the
+ * max-age advertised by the remote. When fetching fails the current set keeps
+ * being served, and further attempts are delayed with an exponential backoff.
+ * Callers never wait on a fetch when a set is available: while another thread
+ * is fetching, the current set is returned. Remote calls use explicit timeouts.
+ *
  * @author jricher
  * @author mat
  *
  */
 
-public class JWKSetCacheService {
+public class JWKSetCacheService implements DisposableBean {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    // loading cache for external url
-    private final LoadingCache<String, JWKSet> jwksets = CacheBuilder
+    public static final int DEFAULT_CACHE_SIZE = 100;
+    public static final long DEFAULT_TTL = 60 * 60; // 1 hour
+    public static final long MIN_TTL = 60; // 1 minute
+    public static final long MAX_TTL = 24 * 60 * 60; // 1 day
+    public static final long MIN_BACKOFF = 10; // 10 seconds
+    public static final long MAX_BACKOFF = 10 * 60; // 10 minutes
+    public static final long KID_REFRESH_INTERVAL = 60; // 1 minute
+
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age=(\\d+)");
+
+    public static final int DEFAULT_POOL_SIZE = 2;
+    public static final int DEFAULT_TIMEOUT = 5; // 5 seconds
+
+    // sets for external url
+    private final Cache<String, CachedJWKSet> jwksets = CacheBuilder
         .newBuilder()
-        .expireAfterWrite(1, TimeUnit.HOURS) // expires 1 hour after fetch
-        .maximumSize(100)
-        .build(new JWKSetFetcher(HttpClientBuilder.create().useSystemProperties().build()));
+        .maximumSize(DEFAULT_CACHE_SIZE)
+        .build();
+
+    private final RestTemplate restTemplate;
+
+    // background refresh, fetches are short lived
+    private final ExecutorService executor;
+
+    private MeterRegistry meterRegistry;
+    private Clock clock = Clock.systemUTC();
+
+    public JWKSetCacheService() {
+        this(HttpClientBuilder.create().useSystemProperties().build());
+    }
+
+    public JWKSetCacheService(HttpClient httpClient) {
+        this(new RestTemplate(requestFactory(httpClient, DEFAULT_TIMEOUT)));
+    }
+
+    public JWKSetCacheService(RestTemplate restTemplate) {
+        Assert.notNull(restTemplate, "rest template is required");
+        this.restTemplate = restTemplate;
+        this.executor =
+            Executors.newFixedThreadPool(
+                DEFAULT_POOL_SIZE,
+                r -> {
+                    Thread t = new Thread(r, "jwks-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            );
+    }
+
+    private static HttpComponentsClientHttpRequestFactory requestFactory(HttpClient httpClient, int timeout) {
+        // bound remote calls, a slow endpoint should not hold fetches indefinitely
+        int millis = (int) TimeUnit.SECONDS.toMillis(timeout);
+        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        factory.setConnectTimeout(millis);
+        factory.setConnectionRequestTimeout(millis);
+        factory.setReadTimeout(millis);
+        return factory;
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "clock can not be null");
+        this.clock = clock;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
 
     public JWKSet getJWKSet(String jwksUri) {
         if (!StringUtils.hasText(jwksUri)) {
             return null;
         }
 
+        CachedJWKSet cached = entry(jwksUri);
+        long now = clock.millis();
+
+        if (cached.jwks != null && now < cached.expiresAt) {
+            if (now >= cached.refreshAt && now >= cached.retryAt) {
+                // serve current while refreshing ahead of expiration
+                refresh(jwksUri, cached);
+            }
+
+            return cached.jwks;
+        }
+
+        // missing or expired, fetch now unless backing off
+        return load(jwksUri, cached, false);
+    }
+
+    /*
+     * Get the JWK Set ensuring it contains the given key, if available.
+     * Unknown kids trigger a (rate limited) refresh to pick up rotated keys.
+     */
+    public JWKSet getJWKSet(String jwksUri, String kid) {
+        JWKSet jwks = getJWKSet(jwksUri);
+        if (jwks == null || !StringUtils.hasText(kid) || jwks.getKeyByKeyId(kid) != null) {
+            return jwks;
+        }
+
+        CachedJWKSet cached = entry(jwksUri);
+        if (clock.millis() < cached.kidRefreshAt) {
+            return jwks;
+        }
+
+        logger.debug("unknown kid {} for {}, refresh", kid, jwksUri);
+        return load(jwksUri, cached, true);
+    }
+
+    private CachedJWKSet entry(String jwksUri) {
         try {
-            return jwksets.get(jwksUri);
-        } catch (UncheckedExecutionException | ExecutionException e) {
-            logger.warn("Couldn't load JWK Set from " + jwksUri + ": " + e.getMessage());
-            return null;
+            return jwksets.get(jwksUri, CachedJWKSet::new);
+        } catch (ExecutionException e) {
+            // can not happen
+            throw new IllegalStateException(e.getMessage());
         }
     }
 
-    private class JWKSetFetcher extends CacheLoader<String, JWKSet> {
+    private JWKSet load(String jwksUri, CachedJWKSet cached, boolean force) {
+        // single fetch per uri: wait for the result only when there is nothing to serve
+        if (cached.jwks != null) {
+            if (!cached.lock.tryLock()) {
+                return cached.jwks;
+            }
+        } else {
+            cached.lock.lock();
+        }
+
+        try {
+            long now = clock.millis();
+            if (cached.jwks != null && now < cached.expiresAt && !force) {
+                // loaded meanwhile
+                return cached.jwks;
+            }
+
+            if (force && now < cached.kidRefreshAt) {
+                return cached.jwks;
+            }
+
+            if (now < cached.retryAt) {
+                // negative cache, serve stale if any
+                return cached.jwks;
+            }
+
+            if (force) {
+                cached.kidRefreshAt = now + TimeUnit.SECONDS.toMillis(KID_REFRESH_INTERVAL);
+            }
 
-        private HttpComponentsClientHttpRequestFactory httpFactory;
-        private RestTemplate restTemplate;
+            fetch(jwksUri, cached);
+            return cached.jwks;
+        } finally {
+            cached.lock.unlock();
+        }
+    }
 
-        JWKSetFetcher(HttpClient httpClient) {
-            this.httpFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
-            this.restTemplate = new RestTemplate(httpFactory);
+    private void refresh(String jwksUri, CachedJWKSet cached) {
+        // single refresh per entry
+        if (!cached.refreshing.compareAndSet(false, true)) {
+            return;
         }
 
-        /**
-         * Load the JWK Set from URI
-         */
-        @Override
-        public JWKSet load(String uri) throws Exception {
-            try {
-                String jsonString = restTemplate.getForObject(uri, String.class);
-                return JWKSet.parse(jsonString);
-            } catch (ParseException | RestClientException e) {
-                throw new IllegalArgumentException("Unable to load JWK Set");
+        try {
+            executor.execute(() -> {
+                // skip if a caller is already fetching
+                if (!cached.lock.tryLock()) {
+                    cached.refreshing.set(false);
+                    return;
+                }
+
+                try {
+                    // skip if already refreshed by a caller
+                    if (clock.millis() >= cached.refreshAt) {
+                        fetch(jwksUri, cached);
+                    }
+                } finally {
+                    cached.lock.unlock();
+                    cached.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor rejected, retry on next access
+            cached.refreshing.set(false);
+        }
+    }
+
+    // callers need to hold the entry lock
+    private void fetch(String jwksUri, CachedJWKSet cached) {
+        long start = System.nanoTime();
+        try {
+            ResponseEntity<String> response = restTemplate.getForEntity(jwksUri, String.class);
+            JWKSet jwks = JWKSet.parse(response.getBody());
+
+            // evaluate ttl from cache control, if provided
+            long ttl = TimeUnit.SECONDS.toMillis(DEFAULT_TTL);
+            String cacheControl = response.getHeaders().getCacheControl();
+            if (StringUtils.hasText(cacheControl)) {
+                Matcher m = MAX_AGE_PATTERN.matcher(cacheControl);
+                if (m.find()) {
+                    ttl = TimeUnit.SECONDS.toMillis(Long.parseLong(m.group(1)));
+                }
             }
+            ttl = Math.max(TimeUnit.SECONDS.toMillis(MIN_TTL), Math.min(ttl, TimeUnit.SECONDS.toMillis(MAX_TTL)));
+
+            long now = clock.millis();
+            cached.jwks = jwks;
+            cached.expiresAt = now + ttl;
+            cached.refreshAt = now + (ttl * 3 / 4);
+            cached.failures = 0;
+            cached.retryAt = 0;
+
+            record(jwksUri, "success", start);
+        } catch (ParseException | RestClientException | IllegalArgumentException e) {
+            // back off before next attempt, keep serving stale set if any
+            cached.failures++;
+            long backoff = Math.min(MIN_BACKOFF << Math.min(cached.failures - 1, 16), MAX_BACKOFF);
+            cached.retryAt = clock.millis() + TimeUnit.SECONDS.toMillis(backoff);
+
+            logger.warn("Couldn't load JWK Set from " + jwksUri + ": " + e.getMessage());
+            record(jwksUri, "error", start);
         }
     }
+
+    private void record(String jwksUri, String outcome, long start) {
+        if (meterRegistry != null) {
+            Timer
+                .builder("jwks.fetch")
+                .description("Latency of remote JWK Set retrieval")
+                .tag("host", host(jwksUri))
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // tag by host to keep cardinality bounded
+    private static String host(String jwksUri) {
+        try {
+            String host = URI.create(jwksUri).getHost();
+            return host != null ? host : "unknown";
+        } catch (IllegalArgumentException e) {
+            return "unknown";
+        }
+    }
+
+    private static class CachedJWKSet {
+
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile JWKSet jwks;
+        private volatile long refreshAt;
+        private volatile long expiresAt;
+        private volatile long retryAt;
+        private volatile long kidRefreshAt;
+        private int failures;
+    }
 }
@@ -42,13 +42,15 @@ public class JWTService implements InitializingBean {
 
     private static final Logger logger = LoggerFactory.getLogger(JWTService.class);
 
-    private final ClientKeyCacheService keyCacheService = new ClientKeyCacheService();
+    private final ClientKeyCacheService keyCacheService;
 
     private JWTSigningAndValidationService defaultSignService;
 
-    public JWTService(JWTSigningAndValidationService signService) {
+    public JWTService(JWTSigningAndValidationService signService, ClientKeyCacheService keyCacheService) {
         Assert.notNull(signService, "a default sign service is mandatory");
+        Assert.notNull(keyCacheService, "client key cache service is mandatory");
         this.defaultSignService = signService;
+        this.keyCacheService = keyCacheService;
     }
 
     @Override
@@ -63,6 +63,7 @@ public final class JwtDecoderBuilder {
     //signature
     private URL jwkSetUri;
     private JWKSet jwks;
+    private JWKSource<SecurityContext> jwkSource;
     private Set<SignatureAlgorithm> signatureAlgorithms = new HashSet<>();
 
     //encryption
@@ -135,6 +136,12 @@ public final class JwtDecoderBuilder {
         return this;
     }
 
+    public JwtDecoderBuilder jwkSource(JWKSource<SecurityContext> jwkSource) {
+        Assert.notNull(jwkSource, "jwkSource cannot be null");
+        this.jwkSource = jwkSource;
+        return this;
+    }
+
     /*
      * JWE configuration
      */
@@ -224,6 +231,11 @@ public final class JwtDecoderBuilder {
             jwtProcessor.setJWEKeySelector(jwePublicKeySelector(jwkSource));
         }
 
+        if (this.jwkSource != null) {
+            jwtProcessor.setJWSKeySelector(jwsKeySelector(this.jwkSource));
+            jwtProcessor.setJWEKeySelector(jwePublicKeySelector(this.jwkSource));
+        }
+
         if (this.encKey != null && this.encAlgorithm != null && this.encMethod != null) {
             jwtProcessor.setJWEKeySelector(jwePrivateKeySelector(new ImmutableJWKSet<>(new JWKSet(encKey))));
         }
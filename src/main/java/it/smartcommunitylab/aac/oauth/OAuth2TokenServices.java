@@ -31,10 +31,13 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.ConcurrencyFailureException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.crypto.keygen.StringKeyGenerator;
@@ -56,8 +59,10 @@ import org.springframework.security.oauth2.provider.approval.ApprovalStore;
 import org.springframework.security.oauth2.provider.token.AuthorizationServerTokenServices;
 import org.springframework.security.oauth2.provider.token.ConsumerTokenServices;
 import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
-import org.springframework.transaction.annotation.Isolation;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -84,6 +89,9 @@ public class OAuth2TokenServices
     public static final int DEFAULT_REFRESH_TOKEN_VALIDITY = 60 * 60 * 24 * 30; // 30 days
     public static final int DEFAULT_REFRESH_TOKEN_RENEWAL_WINDOW = 60 * 60 * 24 * 3; // 3 days
 
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF = 25; // ms
+
     // services
     private final ExtTokenStore tokenStore;
     private ApprovalStore approvalStore;
@@ -98,7 +106,9 @@ public class OAuth2TokenServices
     private int refreshTokenRenewalWindowSeconds;
     private boolean removeExpired = true;
 
-    private Object refreshLock = new Object();
+    // token issuance runs at read committed, conflicts are retried
+    private TransactionTemplate transactionTemplate;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
 
     // TODO implement a refresh for stale user authentication on refreshtokens
     // at minimum we need to validate user existence, but we should really recover
@@ -124,8 +134,11 @@ public class OAuth2TokenServices
     }
 
     @Override
-    @Transactional(isolation = Isolation.SERIALIZABLE)
     public OAuth2AccessToken createAccessToken(OAuth2Authentication authentication) throws AuthenticationException {
+        return execute(() -> doCreateAccessToken(authentication));
+    }
+
+    private OAuth2AccessToken doCreateAccessToken(OAuth2Authentication authentication) {
         logger.debug("create access token for authentication " + authentication.getName());
         OAuth2Request request = authentication.getOAuth2Request();
         String clientId = request.getClientId();
@@ -175,9 +188,12 @@ public class OAuth2TokenServices
     }
 
     @Override
-    @Transactional(isolation = Isolation.SERIALIZABLE)
     public OAuth2AccessToken refreshAccessToken(String refreshTokenValue, TokenRequest tokenRequest)
         throws AuthenticationException {
+        return execute(() -> doRefreshAccessToken(refreshTokenValue, tokenRequest));
+    }
+
+    private OAuth2AccessToken doRefreshAccessToken(String refreshTokenValue, TokenRequest tokenRequest) {
         logger.debug("refresh access token for token " + refreshTokenValue);
 
         OAuth2RefreshToken refreshToken = tokenStore.readRefreshTokenForUpdate(refreshTokenValue);
@@ -225,90 +241,117 @@ public class OAuth2TokenServices
         // avoid those and return only those authorized, we could return an error and
         // avoid removing other tokens
 
-        // lock to make this call atomic, otherwise we could concurrently delete the
-        // newly created access tokens
-        // TODO rework with a keyed lock (per client/per user?) to improve performance
-        // also note that AuthorizationEndpoint has a similar approach
-        // AACOAuth2AccessToken accessToken;
-
-        // synchronized (this.refreshLock) {
-            // remove old access tokens, we enforce a single refresh -> accessToken
-            // this way clients will be able to invalidate old tokens by asking refresh
-            // for the same reason we build each time a new accessToken
-            tokenStore.removeAccessTokenUsingRefreshToken(refreshToken);
+        // the refresh token row is locked for update, so concurrent refreshes of the
+        // same token are applied one after the other: once rotated, later requests
+        // won't find the token and fail as invalid grant
+
+        // remove old access tokens, we enforce a single refresh -> accessToken
+        // this way clients will be able to invalidate old tokens by asking refresh
+        // for the same reason we build each time a new accessToken
+        tokenStore.removeAccessTokenUsingRefreshToken(refreshToken);
+
+        boolean renewToken = false;
+        if (refreshToken instanceof ExpiringOAuth2RefreshToken) {
+            // check if expired
+            ExpiringOAuth2RefreshToken expiringToken = (ExpiringOAuth2RefreshToken) refreshToken;
+            boolean isExpired =
+                (
+                    expiringToken.getExpiration() == null ||
+                    System.currentTimeMillis() > expiringToken.getExpiration().getTime()
+                );
+
+            if (isExpired) {
+                tokenStore.removeRefreshToken(refreshToken);
+                throw new InvalidTokenException("Invalid refresh token (expired): " + refreshToken);
+            }
 
-            boolean renewToken = false;
-            if (refreshToken instanceof ExpiringOAuth2RefreshToken) {
-                // check if expired
-                ExpiringOAuth2RefreshToken expiringToken = (ExpiringOAuth2RefreshToken) refreshToken;
-                boolean isExpired =
-                    (
-                        expiringToken.getExpiration() == null ||
-                        System.currentTimeMillis() > expiringToken.getExpiration().getTime()
-                    );
-
-                if (isExpired) {
-                    tokenStore.removeRefreshToken(refreshToken);
-                    throw new InvalidTokenException("Invalid refresh token (expired): " + refreshToken);
-                }
+            // renew if within window
+            renewToken =
+                (
+                    !isExpired &&
+                    System.currentTimeMillis() > (expiringToken.getExpiration().getTime() - refreshRenewalSeconds)
+                );
+        }
 
-                // renew if within window
-                renewToken =
-                    (
-                        !isExpired &&
-                        System.currentTimeMillis() > (expiringToken.getExpiration().getTime() - refreshRenewalSeconds)
-                    );
-            }
+        // check if client has rotate to always configured
+        if (clientDetails.isRefreshTokenRotation()) {
+            // renew regardless of expiration
+            renewToken = true;
+        }
 
-            // check if client has rotate to always configured
-            if (clientDetails.isRefreshTokenRotation()) {
-                // renew regardless of expiration
-                renewToken = true;
-            }
+        // build a new oauthAuthentication matching tokenRequest
+        OAuth2Authentication refreshedAuthentication = refreshAuthentication(authentication, tokenRequest);
 
-            // build a new oauthAuthentication matching tokenRequest
-            OAuth2Authentication refreshedAuthentication = refreshAuthentication(authentication, tokenRequest);
+        // build a new accessToken
+        logger.debug("create access token for authentication " + refreshedAuthentication.getName());
 
-            // build a new accessToken
-            logger.debug("create access token for authentication " + refreshedAuthentication.getName());
+        AACOAuth2AccessToken accessToken = createAccessToken(refreshedAuthentication, accessValiditySeconds);
+        if (accessToken == null || !StringUtils.hasText(accessToken.getValue())) {
+            throw new OAuth2Exception("token error");
+        }
 
-            AACOAuth2AccessToken accessToken = createAccessToken(refreshedAuthentication, accessValiditySeconds);
-            if (accessToken == null || !StringUtils.hasText(accessToken.getValue())) {
-                throw new OAuth2Exception("token error");
-            }
+        // additional params
+        // TODO evaluate additional params
+        accessToken.setRealm(clientDetails.getRealm());
 
-            // additional params
-            // TODO evaluate additional params
-            accessToken.setRealm(clientDetails.getRealm());
-
-            // make sure we return the same refresh token
-            accessToken.setRefreshToken(refreshToken);
-
-            // if needed build a new refresh token and replace in response
-            // TODO keep old refresh token valid for a small window to account delays
-            if (renewToken) {
-                // if we renew use the original authentication, not the refreshed
-                OAuth2RefreshToken refreshedToken = createRefreshToken(authentication, refreshValiditySeconds);
-                if (refreshedToken != null && StringUtils.hasText(refreshedToken.getValue())) {
-                    tokenStore.removeRefreshToken(refreshToken);
-                    tokenStore.storeRefreshToken(refreshedToken, authentication);
-                    accessToken.setRefreshToken(refreshedToken);
-                }
+        // make sure we return the same refresh token
+        accessToken.setRefreshToken(refreshToken);
+
+        // if needed build a new refresh token and replace in response
+        // TODO keep old refresh token valid for a small window to account delays
+        if (renewToken) {
+            // if we renew use the original authentication, not the refreshed
+            OAuth2RefreshToken refreshedToken = createRefreshToken(authentication, refreshValiditySeconds);
+            if (refreshedToken != null && StringUtils.hasText(refreshedToken.getValue())) {
+                tokenStore.removeRefreshToken(refreshToken);
+                tokenStore.storeRefreshToken(refreshedToken, authentication);
+                accessToken.setRefreshToken(refreshedToken);
             }
+        }
 
-            // call enhancer
-            if (tokenEnhancer != null) {
-                accessToken = tokenEnhancer.enhance(accessToken, refreshedAuthentication);
-            }
+        // call enhancer
+        if (tokenEnhancer != null) {
+            accessToken = tokenEnhancer.enhance(accessToken, refreshedAuthentication);
+        }
 
-            tokenStore.storeAccessToken(accessToken, refreshedAuthentication);
-        // }
+        tokenStore.storeAccessToken(accessToken, refreshedAuthentication);
 
         //        traceUserLogger.info(String.format("'type':'new','user':'%s','scope':'%s','token':'%s'",
         //                authentication.getName(), String.join(" ", accessToken.getScope()), accessToken.getValue()));
         return accessToken;
     }
 
+    /*
+     * Run within a read committed transaction, retrying on lock conflicts.
+     * A failed attempt is rolled back entirely, so every retry starts from scratch.
+     */
+    private OAuth2AccessToken execute(Supplier<OAuth2AccessToken> callback) {
+        if (transactionTemplate == null) {
+            return callback.get();
+        }
+
+        int attempt = 0;
+        while (true) {
+            try {
+                return transactionTemplate.execute(status -> callback.get());
+            } catch (ConcurrencyFailureException e) {
+                attempt++;
+                // retry only when we own the transaction
+                if (attempt >= maxAttempts || TransactionSynchronizationManager.isActualTransactionActive()) {
+                    throw e;
+                }
+
+                logger.debug("conflict on token issuance, retry {}: {}", attempt, e.getMessage());
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(RETRY_BACKOFF, RETRY_BACKOFF * 2) * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
     //    @Override
     //    @Transactional(isolation = Isolation.SERIALIZABLE)
     //    public OAuth2RefreshToken createRefreshToken(OAuth2Authentication authentication) {
@@ -582,6 +625,18 @@ public class OAuth2TokenServices
         this.removeExpired = removeExpired;
     }
 
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        Assert.notNull(transactionManager, "transaction manager can not be null");
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.transactionTemplate = template;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        Assert.isTrue(maxAttempts > 0, "max attempts must be greater than zero");
+        this.maxAttempts = maxAttempts;
+    }
+
     public void setApprovalStore(ApprovalStore approvalStore) {
         this.approvalStore = approvalStore;
     }
@@ -16,17 +16,31 @@
 
 package it.smartcommunitylab.aac.oauth.auth;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import it.smartcommunitylab.aac.Config;
 import it.smartcommunitylab.aac.api.scopes.ApiScopeProvider;
 import it.smartcommunitylab.aac.common.NoSuchSubjectException;
 import it.smartcommunitylab.aac.core.service.SubjectService;
+import it.smartcommunitylab.aac.events.SubjectAuthoritiesChangedEvent;
 import it.smartcommunitylab.aac.model.Subject;
 import it.smartcommunitylab.aac.oauth.AACOAuth2AccessToken;
+import it.smartcommunitylab.aac.oauth.event.TokenRemovalEvent;
+import it.smartcommunitylab.aac.utils.HashUtils;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.context.event.EventListener;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
@@ -40,19 +54,62 @@ import org.springframework.util.Assert;
 /*
  * A token inspector which resolves by looking via tokenStore.
  * By leveraging subject service the resulting principal will have up-to-date authorities.
+ *
+ * Resolved principals are cached by token hash up to token expiration, and
+ * evicted when tokens are removed from store or subject authorities change.
+ * Entries are indexed by subject and refresh token so that eviction does not
+ * scan the cache.
  */
 
 public class InternalOpaqueTokenIntrospector implements OpaqueTokenIntrospector {
 
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_CACHE_TTL = 300; // 5 minutes
+
     private final TokenStore tokenStore;
 
+    // resolved principals by token hash
+    private final Cache<String, CachedPrincipal> principals;
+
+    // token hashes by subject and by refresh token hash, for targeted eviction
+    private final Map<String, Set<String>> subjectKeys = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> refreshTokenKeys = new ConcurrentHashMap<>();
+
+    // bumped on every eviction to avoid caching reads racing with revocations
+    private final AtomicLong generation = new AtomicLong();
+
     private SubjectService subjectService;
 
     private ApiScopeProvider apiProvider = new ApiScopeProvider();
 
     public InternalOpaqueTokenIntrospector(TokenStore tokenStore) {
+        this(tokenStore, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+    }
+
+    public InternalOpaqueTokenIntrospector(TokenStore tokenStore, int cacheSize, int cacheTtl) {
         Assert.notNull(tokenStore, "token store can not be null");
         this.tokenStore = tokenStore;
+
+        // in multi node deployments ttl bounds the staleness of remote revocations
+        this.principals =
+            CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(cacheTtl, 0), TimeUnit.SECONDS)
+                .maximumSize(Math.max(cacheSize, 0))
+                .recordStats()
+                .removalListener(
+                    (RemovalNotification<String, CachedPrincipal> n) -> {
+                        // replaced entries share the same token, thus the same index entries
+                        if (n.getCause() != RemovalCause.REPLACED && n.getValue() != null) {
+                            unindex(n.getKey(), n.getValue());
+                        }
+                    }
+                )
+                .build();
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        GuavaCacheMetrics.monitor(meterRegistry, principals, "oauth2.introspection");
     }
 
     public void setApiProvider(ApiScopeProvider apiProvider) {
@@ -64,6 +121,18 @@ public class InternalOpaqueTokenIntrospector implements OpaqueTokenIntrospector
     }
 
     public OAuth2AuthenticatedPrincipal introspect(String tokenValue) {
+        String key = HashUtils.sha256Key(tokenValue);
+        CachedPrincipal cached = principals.getIfPresent(key);
+        if (cached != null) {
+            if (cached.expiresAt == null || cached.expiresAt > System.currentTimeMillis()) {
+                return cached.principal;
+            }
+
+            // expired, let store handle the token
+            principals.invalidate(key);
+        }
+
+        long gen = generation.get();
         OAuth2AccessToken token = tokenStore.readAccessToken(tokenValue);
         if (token == null) {
             throw new BadOpaqueTokenException("Provided token isn't active");
@@ -122,9 +191,108 @@ public class InternalOpaqueTokenIntrospector implements OpaqueTokenIntrospector
             params.put("realm", realm);
             params.putAll(accessToken.getClaims());
 
-            return new DefaultOAuth2AuthenticatedPrincipal(realm, principal, params, authorities);
+            DefaultOAuth2AuthenticatedPrincipal result = new DefaultOAuth2AuthenticatedPrincipal(
+                realm,
+                principal,
+                params,
+                authorities
+            );
+
+            // cache up to token expiration
+            CachedPrincipal cachedPrincipal = new CachedPrincipal(
+                result,
+                subjectId,
+                token.getRefreshToken() != null ? HashUtils.sha256Key(token.getRefreshToken().getValue()) : null,
+                token.getExpiration() != null ? token.getExpiration().getTime() : null
+            );
+
+            // skip caching when an eviction happened since the read
+            if (gen == generation.get()) {
+                // index before insert, so that removal always finds the entries
+                index(key, cachedPrincipal);
+                principals.put(key, cachedPrincipal);
+
+                // check again, an eviction may have run before the insert
+                if (gen != generation.get()) {
+                    principals.invalidate(key);
+                }
+            }
+
+            return result;
         } catch (NoSuchSubjectException e) {
             throw new BadOpaqueTokenException("Provided token isn't active");
         }
     }
+
+    @EventListener
+    public void onTokenRemoval(TokenRemovalEvent event) {
+        generation.incrementAndGet();
+        if (event.getAccessToken() != null) {
+            principals.invalidate(HashUtils.sha256Key(event.getAccessToken()));
+        }
+
+        if (event.getRefreshToken() != null) {
+            // evict all access tokens issued via the refresh token
+            invalidateAll(refreshTokenKeys.get(HashUtils.sha256Key(event.getRefreshToken())));
+        }
+    }
+
+    @EventListener
+    public void onSubjectAuthoritiesChanged(SubjectAuthoritiesChangedEvent event) {
+        generation.incrementAndGet();
+        invalidateAll(subjectKeys.get(event.getSubjectId()));
+    }
+
+    private void invalidateAll(Set<String> keys) {
+        if (keys != null) {
+            // copy, index is updated by the removal listener
+            principals.invalidateAll(new ArrayList<>(keys));
+        }
+    }
+
+    private void index(String key, CachedPrincipal cached) {
+        subjectKeys.computeIfAbsent(cached.subjectId, k -> ConcurrentHashMap.newKeySet()).add(key);
+        if (cached.refreshTokenKey != null) {
+            refreshTokenKeys.computeIfAbsent(cached.refreshTokenKey, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    private void unindex(String key, CachedPrincipal cached) {
+        subjectKeys.computeIfPresent(
+            cached.subjectId,
+            (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            }
+        );
+        if (cached.refreshTokenKey != null) {
+            refreshTokenKeys.computeIfPresent(
+                cached.refreshTokenKey,
+                (k, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                }
+            );
+        }
+    }
+
+    private static class CachedPrincipal {
+
+        private final OAuth2AuthenticatedPrincipal principal;
+        private final String subjectId;
+        private final String refreshTokenKey;
+        private final Long expiresAt;
+
+        public CachedPrincipal(
+            OAuth2AuthenticatedPrincipal principal,
+            String subjectId,
+            String refreshTokenKey,
+            Long expiresAt
+        ) {
+            this.principal = principal;
+            this.subjectId = subjectId;
+            this.refreshTokenKey = refreshTokenKey;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
@@ -16,21 +16,19 @@
 
 package it.smartcommunitylab.aac.oauth.auth;
 
-import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSAlgorithm;
-import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jwt.JWT;
 import com.nimbusds.jwt.JWTParser;
 import it.smartcommunitylab.aac.common.NoSuchClientException;
 import it.smartcommunitylab.aac.core.ClientDetails;
 import it.smartcommunitylab.aac.core.auth.ClientAuthentication;
 import it.smartcommunitylab.aac.core.auth.ClientAuthenticationProvider;
+import it.smartcommunitylab.aac.jwt.ClientKeyCacheService;
 import it.smartcommunitylab.aac.oauth.model.AuthenticationMethod;
 import it.smartcommunitylab.aac.oauth.model.OAuth2ClientDetails;
 import it.smartcommunitylab.aac.oauth.service.OAuth2ClientDetailsService;
 import java.nio.charset.StandardCharsets;
-import java.security.interfaces.RSAPublicKey;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collection;
@@ -44,6 +42,7 @@ import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.core.OAuth2TokenValidatorResult;
 import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.oauth2.jwt.JwtException;
 import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
 import org.springframework.security.oauth2.provider.ClientRegistrationException;
@@ -59,6 +58,9 @@ public class OAuth2ClientJwtAssertionAuthenticationProvider
     private final Collection<String> audience;
     private final OAuth2ClientDetailsService clientDetailsService;
 
+    // decoders for client keys, by value or remote
+    private ClientKeyCacheService keyCacheService = new ClientKeyCacheService();
+
     public OAuth2ClientJwtAssertionAuthenticationProvider(
         OAuth2ClientDetailsService clientDetailsService,
         String... audience
@@ -77,6 +79,10 @@ public class OAuth2ClientJwtAssertionAuthenticationProvider
         this.clientDetailsService = clientDetailsService;
     }
 
+    public void setKeyCacheService(ClientKeyCacheService keyCacheService) {
+        this.keyCacheService = keyCacheService;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         Assert.notNull(clientService, "client service is required");
@@ -127,7 +133,7 @@ public class OAuth2ClientJwtAssertionAuthenticationProvider
             }
 
             // load jwt decoder according to auth method
-            NimbusJwtDecoder jwtDecoder = null;
+            JwtDecoder jwtDecoder = null;
             if (AuthenticationMethod.CLIENT_SECRET_JWT == authMethod) {
                 // build key from secret as HmacSHA256
                 SecretKeySpec secretKey = new SecretKeySpec(
@@ -138,21 +144,15 @@ public class OAuth2ClientJwtAssertionAuthenticationProvider
                 jwtDecoder = NimbusJwtDecoder.withSecretKey(secretKey).build();
             }
             if (AuthenticationMethod.PRIVATE_KEY_JWT == authMethod) {
-                // load first RSA key from jwks
-                JWKSet jwks = JWKSet.parse(client.getJwks());
-                JWK jwk = jwks
-                    .getKeys()
-                    .stream()
-                    .filter(k -> JWSAlgorithm.Family.RSA.contains(k.getAlgorithm()))
-                    .findFirst()
-                    .orElse(null);
-                if (jwk == null) {
-                    this.logger.debug("Failed to authenticate since jwks does not contain a valid key");
+                JWT jwt = JWTParser.parse(clientAssertion);
+                String kid = jwt.getHeader() instanceof JWSHeader ? ((JWSHeader) jwt.getHeader()).getKeyID() : null;
+
+                // load cached decoder for registered keys or remote, where unknown kids trigger a refresh
+                jwtDecoder = keyCacheService.getJwtDecoder(clientId, client.getJwks(), client.getJwksUri(), kid);
+                if (jwtDecoder == null) {
+                    this.logger.debug("Failed to authenticate since client has no valid jwks");
                     throw new BadCredentialsException("invalid authentication");
                 }
-
-                RSAPublicKey publicKey = jwk.toRSAKey().toRSAPublicKey();
-                jwtDecoder = NimbusJwtDecoder.withPublicKey(publicKey).build();
             }
 
             if (jwtDecoder == null) {
@@ -200,7 +200,7 @@ public class OAuth2ClientJwtAssertionAuthenticationProvider
             result.setWebAuthenticationDetails(authRequest.getWebAuthenticationDetails());
 
             return result;
-        } catch (ClientRegistrationException | ParseException | JOSEException | JwtException e) {
+        } catch (ClientRegistrationException | ParseException | JwtException e) {
             throw new BadCredentialsException("invalid authentication");
         }
     }
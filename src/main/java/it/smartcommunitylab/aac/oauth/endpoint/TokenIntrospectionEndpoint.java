@@ -16,6 +16,8 @@
 
 package it.smartcommunitylab.aac.oauth.endpoint;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import it.smartcommunitylab.aac.core.auth.UserAuthentication;
@@ -26,9 +28,12 @@ import it.smartcommunitylab.aac.oauth.model.ApplicationType;
 import it.smartcommunitylab.aac.oauth.model.OAuth2ClientDetails;
 import it.smartcommunitylab.aac.oauth.model.TokenIntrospection;
 import it.smartcommunitylab.aac.oauth.service.OAuth2ClientDetailsService;
+import it.smartcommunitylab.aac.oauth.store.ExtTokenStore;
+import it.smartcommunitylab.aac.oauth.store.StoredToken;
 import it.smartcommunitylab.aac.openid.scope.OpenIdScopeProvider;
 import it.smartcommunitylab.aac.profiles.scope.OpenIdProfileScopeProvider;
 import it.smartcommunitylab.aac.scope.ScopeProvider;
+import it.smartcommunitylab.aac.utils.HashUtils;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,10 +41,12 @@ import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
@@ -56,7 +63,6 @@ import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
 import org.springframework.security.oauth2.common.exceptions.UnauthorizedClientException;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.OAuth2Request;
-import org.springframework.security.oauth2.provider.token.TokenStore;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -73,7 +79,7 @@ import org.springframework.web.bind.annotation.RequestParam;
  */
 @Controller
 @Tag(name = "OAuth 2.0 Token Introspection")
-public class TokenIntrospectionEndpoint {
+public class TokenIntrospectionEndpoint implements InitializingBean {
 
     public static final String TOKEN_INTROSPECTION_URL = "/oauth/introspect";
     public static final Set<String> WHITELISTED_SCOPES;
@@ -93,15 +99,35 @@ public class TokenIntrospectionEndpoint {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    // hashes of tokens not found in store
+    private Cache<String, Boolean> unknownTokens;
+
     @Value("${jwt.issuer}")
     private String issuer;
 
+    @Value("${oauth2.introspection.negativeCache.size}")
+    private int negativeCacheSize;
+
+    @Value("${oauth2.introspection.negativeCache.ttl}")
+    private int negativeCacheTtl;
+
     @Autowired
-    private TokenStore tokenStore;
+    private ExtTokenStore tokenStore;
 
     @Autowired
     private OAuth2ClientDetailsService clientDetailsService;
 
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        // short lived, a token unknown now could be stored later only via a race
+        unknownTokens =
+            CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(negativeCacheTtl, 0), TimeUnit.SECONDS)
+                .maximumSize(Math.max(negativeCacheSize, 0))
+                .build();
+    }
+
     /*
      * client_id should match audience, as per security considerations
      * https://tools.ietf.org/html/rfc7662#section-4
@@ -144,44 +170,52 @@ public class TokenIntrospectionEndpoint {
         }
 
         // check hint
-        // TODO add proper support
-        if (tokenTypeHint.isPresent()) {
-            String typeHint = tokenTypeHint.get();
-            if (!"access_token".equals(typeHint) && !"refresh_token".equals(typeHint)) {
-                // unsupported token type, reset to null to ignore
-                // spec doesn't exactly define how to handle invalid types, but
-                // says that when authentication is successful we should return a proper result
-                // regardless of the type hint
-            }
+        // spec doesn't exactly define how to handle invalid types, but
+        // says that when authentication is successful we should return a proper result
+        // regardless of the type hint: reset unsupported types to null to ignore
+        String typeHint = tokenTypeHint
+            .filter(h -> OAuth2AccessToken.ACCESS_TOKEN.equals(h) || OAuth2AccessToken.REFRESH_TOKEN.equals(h))
+            .orElse(null);
+
+        // skip lookup for tokens already known as missing
+        String key = HashUtils.sha256Key(tokenValue);
+        if (unknownTokens.getIfPresent(key) != null) {
+            logger.trace("token {} is unknown, skip lookup", key);
+            return ResponseEntity.ok(new TokenIntrospection(false));
         }
-        // as per spec this is a suggestion, if we don't find the token we need to
-        // extend the search to all token types
-        // as such we ignore hint for now, we can distinguish tokens by looking them up
-
-        // load refresh token if present
-        OAuth2RefreshToken refreshToken = tokenStore.readRefreshToken(tokenValue);
-        if (refreshToken != null) {
-            logger.trace("load auth for refresh token {}", refreshToken.getValue());
-
-            // load authentication
-            OAuth2Authentication auth = tokenStore.readAuthenticationForRefreshToken(refreshToken);
 
-            TokenIntrospection result = introspectRefreshToken(introspectClientId, auth, refreshToken);
+        // as per spec the hint is a suggestion, if we don't find the token we need to
+        // extend the search to all token types: store resolves both kinds in a single lookup
+        // and uses hint only to pick the preferred kind
+        StoredToken storedToken = tokenStore.findToken(tokenValue, typeHint);
+        if (storedToken != null && storedToken.isRefreshToken()) {
+            OAuth2RefreshToken refreshToken = storedToken.getRefreshToken();
+            logger.trace("found refresh token {}", refreshToken.getValue());
+
+            TokenIntrospection result = introspectRefreshToken(
+                introspectClientId,
+                storedToken.getAuthentication(),
+                refreshToken
+            );
             return ResponseEntity.ok(result);
         }
 
-        // as per spec, try as access_token independently of hint
-        OAuth2AccessToken accessToken = tokenStore.readAccessToken(tokenValue);
-        if (accessToken != null) {
-            logger.trace("load auth for access token {}", accessToken.getValue());
+        if (storedToken != null && storedToken.isAccessToken()) {
+            OAuth2AccessToken accessToken = storedToken.getAccessToken();
+            logger.trace("found access token {}", accessToken.getValue());
 
-            // load authentication
-            OAuth2Authentication auth = tokenStore.readAuthentication(accessToken);
-
-            TokenIntrospection result = introspectAccessToken(tokenValue, introspectClientDetails, auth, accessToken);
+            TokenIntrospection result = introspectAccessToken(
+                tokenValue,
+                introspectClientDetails,
+                storedToken.getAuthentication(),
+                accessToken
+            );
             return ResponseEntity.ok(result);
         }
 
+        // remember as missing to avoid hitting the store for garbage tokens
+        unknownTokens.put(key, Boolean.TRUE);
+
         // no token found
         // as per spec return a response with active=false
         return ResponseEntity.ok(new TokenIntrospection(false));
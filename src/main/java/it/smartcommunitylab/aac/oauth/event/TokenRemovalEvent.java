@@ -0,0 +1,53 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.event;
+
+import it.smartcommunitylab.aac.SystemKeys;
+
+/*
+ * Emitted by token stores when tokens are removed, either directly or via the
+ * associated refresh token
+ */
+public class TokenRemovalEvent extends OAuth2Event {
+
+    private static final long serialVersionUID = SystemKeys.AAC_OAUTH2_SERIAL_VERSION;
+
+    private final String accessToken;
+    private final String refreshToken;
+
+    public TokenRemovalEvent(String accessToken, String refreshToken) {
+        super(accessToken != null ? accessToken : refreshToken);
+        this.accessToken = accessToken;
+        this.refreshToken = refreshToken;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public String getRefreshToken() {
+        return refreshToken;
+    }
+
+    public static TokenRemovalEvent forAccessToken(String accessToken) {
+        return new TokenRemovalEvent(accessToken, null);
+    }
+
+    public static TokenRemovalEvent forRefreshToken(String refreshToken) {
+        return new TokenRemovalEvent(null, refreshToken);
+    }
+}
@@ -18,10 +18,12 @@ package it.smartcommunitylab.aac.oauth.flow;
 
 import it.smartcommunitylab.aac.claims.ScriptExecutionService;
 import it.smartcommunitylab.aac.oauth.model.OAuth2ClientDetails;
+import it.smartcommunitylab.aac.utils.WebhookClient;
 import java.util.ArrayList;
 import java.util.List;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -30,6 +32,12 @@ public class FlowExtensionsService implements InitializingBean {
     @Autowired
     private ScriptExecutionService executionService;
 
+    @Autowired
+    private WebhookClient webhookClient;
+
+    @Value("${hook.timeout:10000}")
+    private int timeout;
+
     private ScriptOAuthFlowExtensions scriptFlowExtensions;
     private WebhookOAuthFlowExtensions webhookFlowExtensions;
 
@@ -60,7 +68,7 @@ public class FlowExtensionsService implements InitializingBean {
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        webhookFlowExtensions = new WebhookOAuthFlowExtensions();
+        webhookFlowExtensions = new WebhookOAuthFlowExtensions(webhookClient, timeout);
         if (executionService != null) {
             scriptFlowExtensions = new ScriptOAuthFlowExtensions();
             scriptFlowExtensions.setExecutionService(executionService);
@@ -21,6 +21,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import it.smartcommunitylab.aac.model.User;
 import it.smartcommunitylab.aac.oauth.model.OAuth2ClientDetails;
+import it.smartcommunitylab.aac.utils.WebhookClient;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -32,22 +33,16 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
-import org.springframework.web.client.RestTemplate;
 
 /**
  * Implementation of the {@link OAuthFlowExtensions} with the Web hook
@@ -69,27 +64,16 @@ public class WebhookOAuthFlowExtensions implements OAuthFlowExtensions {
     private final TypeReference<HashMap<String, String>> stringMapTypeRef =
         new TypeReference<HashMap<String, String>>() {};
 
-    @Value("${hook.timeout:10000}")
-    private int timeout;
+    public static final String HOOK_TYPE = "flow";
 
-    private RestTemplate restTemplate;
+    // shared http client, hooks are tracked per client
+    private final WebhookClient webhookClient;
+    private final int timeout;
 
-    public WebhookOAuthFlowExtensions() {
-        init();
-    }
-
-    public void init() {
-        RequestConfig config = RequestConfig
-            .custom()
-            .setConnectTimeout(timeout)
-            .setConnectionRequestTimeout(timeout)
-            .setSocketTimeout(timeout)
-            .build();
-        CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
-        HttpComponentsClientHttpRequestFactory clientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory(
-            client
-        );
-        restTemplate = new RestTemplate(clientHttpRequestFactory);
+    public WebhookOAuthFlowExtensions(WebhookClient webhookClient, int timeout) {
+        Assert.notNull(webhookClient, "webhook client is mandatory");
+        this.webhookClient = webhookClient;
+        this.timeout = timeout;
     }
 
     @Override
@@ -122,11 +106,12 @@ public class WebhookOAuthFlowExtensions implements OAuthFlowExtensions {
             headers.set("Authorization", buildBasicAuth(client.getClientId(), client.getClientSecret()));
             HttpEntity<Map<String, Serializable>> entity = new HttpEntity<>(map, headers);
 
-            ResponseEntity<String> response = restTemplate.exchange(
+            ResponseEntity<String> response = webhookClient.post(
+                HOOK_TYPE,
+                client.getClientId(),
                 url.toString(),
-                HttpMethod.POST,
                 entity,
-                String.class
+                timeout
             );
 
             logger.debug("Hook response code: " + response.getStatusCodeValue());
@@ -172,11 +157,12 @@ public class WebhookOAuthFlowExtensions implements OAuthFlowExtensions {
             headers.set("Authorization", buildBasicAuth(client.getClientId(), client.getClientSecret()));
             HttpEntity<Map<String, Serializable>> entity = new HttpEntity<>(map, headers);
 
-            ResponseEntity<String> response = restTemplate.exchange(
+            ResponseEntity<String> response = webhookClient.post(
+                HOOK_TYPE,
+                client.getClientId(),
                 url.toString(),
-                HttpMethod.POST,
                 entity,
-                String.class
+                timeout
             );
 
             logger.debug("Hook response code: " + response.getStatusCodeValue());
@@ -231,11 +217,12 @@ public class WebhookOAuthFlowExtensions implements OAuthFlowExtensions {
             headers.set("Authorization", buildBasicAuth(client.getClientId(), client.getClientSecret()));
             HttpEntity<Map<String, Serializable>> entity = new HttpEntity<>(map, headers);
 
-            ResponseEntity<String> response = restTemplate.exchange(
+            ResponseEntity<String> response = webhookClient.post(
+                HOOK_TYPE,
+                client.getClientId(),
                 url.toString(),
-                HttpMethod.POST,
                 entity,
-                String.class
+                timeout
             );
 
             logger.debug("Hook response code: " + response.getStatusCodeValue());
@@ -269,11 +256,12 @@ public class WebhookOAuthFlowExtensions implements OAuthFlowExtensions {
                     headers.set("Authorization", buildBasicAuth(client.getClientId(), client.getClientSecret()));
                     HttpEntity<OAuth2AccessToken> entity = new HttpEntity<>(accessToken, headers);
 
-                    ResponseEntity<String> response = restTemplate.exchange(
+                    ResponseEntity<String> response = webhookClient.post(
+                        HOOK_TYPE,
+                        client.getClientId(),
                         url.toString(),
-                        HttpMethod.POST,
                         entity,
-                        String.class
+                        timeout
                     );
 
                     logger.debug("Hook response code: " + response.getStatusCodeValue());
@@ -16,25 +16,44 @@
 
 package it.smartcommunitylab.aac.oauth.service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import it.smartcommunitylab.aac.clients.persistence.ClientEntity;
 import it.smartcommunitylab.aac.clients.service.ClientEntityService;
+import it.smartcommunitylab.aac.events.ClientChangedEvent;
 import it.smartcommunitylab.aac.oauth.client.OAuth2ClientAdditionalConfig;
 import it.smartcommunitylab.aac.oauth.model.OAuth2ClientDetails;
 import it.smartcommunitylab.aac.oauth.persistence.OAuth2ClientEntity;
 import it.smartcommunitylab.aac.oauth.persistence.OAuth2ClientEntityRepository;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import org.springframework.context.event.EventListener;
 import org.springframework.security.oauth2.provider.ClientDetailsService;
 import org.springframework.security.oauth2.provider.ClientRegistrationException;
 import org.springframework.security.oauth2.provider.NoSuchClientException;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+/*
+ * Client details are cached locally, since definitions change rarely and a
+ * single request may resolve the same client many times.
+ *
+ * Entries are evicted when clients are modified or removed; in multi node
+ * deployments a ttl bounds the staleness of remote changes.
+ */
 @Transactional
 public class OAuth2ClientDetailsService implements ClientDetailsService {
 
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_CACHE_TTL = 60; // 1 minute
+
     // TODO evaluate direct repo access VS service
     // we lose validation but reduce complexity
     //    private final OAuth2ClientService clientService;
@@ -43,21 +62,65 @@ public class OAuth2ClientDetailsService implements ClientDetailsService {
     // we need access to client roles, we use service since we are outside core
     private final ClientEntityService clientService;
 
+    // client details by id
+    private final Cache<String, OAuth2ClientDetails> clients;
+
+    // bumped on every change to avoid caching reads racing with updates
+    private final AtomicLong generation = new AtomicLong();
+
     public OAuth2ClientDetailsService(
         ClientEntityService clientService,
         OAuth2ClientEntityRepository clientRepository
+    ) {
+        this(clientService, clientRepository, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+    }
+
+    public OAuth2ClientDetailsService(
+        ClientEntityService clientService,
+        OAuth2ClientEntityRepository clientRepository,
+        int cacheSize,
+        int cacheTtl
     ) {
         Assert.notNull(clientService, "client service is mandatory");
         Assert.notNull(clientRepository, "oauth client repository is mandatory");
         this.clientRepository = clientRepository;
         this.clientService = clientService;
+
+        // ttl <= 0 disables expiration, entries are evicted only on change
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(Math.max(cacheSize, 0));
+        if (cacheTtl > 0) {
+            builder.expireAfterWrite(cacheTtl, TimeUnit.SECONDS);
+        }
+        this.clients = builder.recordStats().build();
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        GuavaCacheMetrics.monitor(meterRegistry, clients, "oauth2.clients");
     }
 
-    // TODO add a local cache, client definitions don't change frequently
-    // even short window (30s) could cover a whole request
+    // cache hits don't need a transaction, misses join the caller one when available
     @Override
-    @Transactional(readOnly = true)
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
     public OAuth2ClientDetails loadClientByClientId(String clientId) throws ClientRegistrationException {
+        OAuth2ClientDetails clientDetails = clients.getIfPresent(clientId);
+        if (clientDetails == null) {
+            long gen = generation.get();
+            clientDetails = fetchClient(clientId);
+            if (gen == generation.get()) {
+                clients.put(clientId, clientDetails);
+            }
+        }
+
+        return clientDetails;
+    }
+
+    @EventListener
+    public void onClientChanged(ClientChangedEvent event) {
+        generation.incrementAndGet();
+        clients.invalidate(event.getClientId());
+    }
+
+    private OAuth2ClientDetails fetchClient(String clientId) throws ClientRegistrationException {
         ClientEntity client = clientService.findClient(clientId);
         OAuth2ClientEntity oauth = clientRepository.findByClientId(clientId);
         if (client == null || oauth == null) {
@@ -277,6 +277,7 @@ public class OAuth2ClientService implements ClientService {
 
             oauth.setClientSecret(secret);
             oauth = oauthClientRepository.save(oauth);
+            clientService.notifyClientChanged(clientId);
 
             return new ClientSecret(client.getRealm(), clientId, oauth.getClientSecret());
         }
@@ -285,6 +286,7 @@ public class OAuth2ClientService implements ClientService {
 
             oauth.setJwks(jwks);
             oauth = oauthClientRepository.save(oauth);
+            clientService.notifyClientChanged(clientId);
 
             return new ClientJwks(client.getRealm(), clientId, oauth.getJwks());
         }
@@ -314,11 +316,13 @@ public class OAuth2ClientService implements ClientService {
         if (SystemKeys.RESOURCE_CREDENTIALS_SECRET.equals(type) && StringUtils.hasText(oauth.getClientSecret())) {
             oauth.setClientSecret(null);
             oauth = oauthClientRepository.save(oauth);
+            clientService.notifyClientChanged(clientId);
         }
 
         if (SystemKeys.RESOURCE_CREDENTIALS_JWKS.equals(type) && StringUtils.hasText(oauth.getJwks())) {
             oauth.setJwks(null);
             oauth = oauthClientRepository.save(oauth);
+            clientService.notifyClientChanged(clientId);
         }
     }
 
@@ -359,6 +363,7 @@ public class OAuth2ClientService implements ClientService {
 
             oauth.setClientSecret(secret);
             oauth = oauthClientRepository.save(oauth);
+            clientService.notifyClientChanged(clientId);
 
             return new ClientSecret(client.getRealm(), clientId, oauth.getClientSecret());
         }
@@ -378,6 +383,7 @@ public class OAuth2ClientService implements ClientService {
 
             oauth.setJwks(jwks);
             oauth = oauthClientRepository.save(oauth);
+            clientService.notifyClientChanged(clientId);
 
             return new ClientJwks(client.getRealm(), clientId, oauth.getJwks());
         }
@@ -800,6 +806,7 @@ public class OAuth2ClientService implements ClientService {
             oauth.setAdditionalInformation(additionalInfo.toMap());
         }
         oauth = oauthClientRepository.save(oauth);
+        clientService.notifyClientChanged(clientId);
 
         return OAuth2Client.from(client, oauth);
     }
@@ -810,6 +817,7 @@ public class OAuth2ClientService implements ClientService {
 
         if (oauth != null) {
             oauthClientRepository.delete(oauth);
+            clientService.notifyClientChanged(clientId);
         }
 
         if (client != null) {
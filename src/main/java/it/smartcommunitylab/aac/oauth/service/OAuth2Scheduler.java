@@ -17,26 +17,26 @@
 
 package it.smartcommunitylab.aac.oauth.service;
 
-import java.time.Instant;
-import java.util.Date;
-
-import javax.transaction.Transactional;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import it.smartcommunitylab.aac.oauth.store.ExtTokenStore;
+import it.smartcommunitylab.aac.oauth.store.jdbc.AutoJdbcTokenStore;
+import it.smartcommunitylab.aac.oauth.store.jdbc.JdbcExpiredTokenSweeper;
 
 @Component
 public class OAuth2Scheduler {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     public static final int DEFAULT_DELAY = 24 * 60 * 60 * 1000; //every day
+    public static final int SWEEP_DELAY = 60 * 1000; //every minute
     public static final int INITIAL_DELAY = 6 * 1000; //wait 60s for start
+    public static final int MIGRATION_DELAY = 5 * 1000; //every 5s
+    public static final int MIGRATION_BATCH_SIZE = 500;
 
 
     @Value("${oauth2.accesstoken.cleanup}")
@@ -45,22 +45,93 @@ public class OAuth2Scheduler {
     @Value("${oauth2.refreshtoken.cleanup}")
     private int refreshTokenCleanupInterval;
 
+    @Value("${oauth2.tokenstore.migrate}")
+    private boolean migrateTokens;
+
+    // resolved lazily, migration is supported only by the jdbc store
     @Autowired
-    private ExtTokenStore tokenStore;
+    private ObjectProvider<AutoJdbcTokenStore> tokenStore;
+
+    @Autowired
+    private JdbcExpiredTokenSweeper sweeper;
+
+    // migration cursors are persisted in the store, track only completion here
+    private static final String ACCESS_TOKENS_MIGRATION = "access_tokens";
+    private static final String REFRESH_TOKENS_MIGRATION = "refresh_tokens";
+    private volatile boolean migrationCompleted = false;
 
-    @Scheduled(fixedDelay = DEFAULT_DELAY, initialDelay = INITIAL_DELAY)
-    @Transactional
+    // sweep continuously in small batches, each one committed on its own
+    @Scheduled(fixedDelay = SWEEP_DELAY, initialDelay = INITIAL_DELAY)
     public void deleteExpiredTokens() {
         try {
-            Date now = Date.from(Instant.now());
+            // only the lease holder sweeps, to avoid double work across nodes
+            if (!sweeper.acquireLease()) {
+                return;
+            }
 
-            logger.info("remove access tokens expired before {} - {}", now, accessTokenCleanupInterval);
-            tokenStore.deleteExpiredAccessTokens(accessTokenCleanupInterval);
+            long count = sweeper.sweep(JdbcExpiredTokenSweeper.ACCESS_TOKENS, accessTokenCleanupInterval);
+            count += sweeper.sweep(JdbcExpiredTokenSweeper.REFRESH_TOKENS, refreshTokenCleanupInterval);
+            // codes are single use, drop as soon as expired
+            count += sweeper.sweep(JdbcExpiredTokenSweeper.CODES, 0);
+            count += sweeper.sweep(JdbcExpiredTokenSweeper.APPROVALS, refreshTokenCleanupInterval);
 
-            logger.info("remove refresh tokens expired before {} - {}", now, refreshTokenCleanupInterval);
-            tokenStore.deleteExpiredRefreshTokens(refreshTokenCleanupInterval);            
+            if (count > 0) {
+                logger.info("removed {} expired tokens, codes and approvals", count);
+            }
         } catch (RuntimeException e) {
             logger.error("error removing expired tokens", e);
         }
     }
+
+    @Scheduled(fixedDelay = MIGRATION_DELAY, initialDelay = INITIAL_DELAY)
+    public void migrateTokens() {
+        if (!migrateTokens) {
+            return;
+        }
+
+        if (migrationCompleted) {
+            // nothing left to do
+            return;
+        }
+
+        AutoJdbcTokenStore store = tokenStore.getIfAvailable();
+        if (store == null) {
+            return;
+        }
+
+        // re-encode tokens in batches to keep the store online
+        try {
+            // only the lease holder migrates, cursors are shared via the store
+            if (!store.acquireMigrationLease()) {
+                return;
+            }
+
+            // cursors are scoped to the target codec, a switch restarts the migration
+            String codec = store.getCodec().getClass().getSimpleName();
+            String accessTokenMigration = ACCESS_TOKENS_MIGRATION + ":" + codec;
+            String refreshTokenMigration = REFRESH_TOKENS_MIGRATION + ":" + codec;
+
+            String accessTokenMigrationKey = store.readMigrationCursor(accessTokenMigration);
+            if (accessTokenMigrationKey != null) {
+                accessTokenMigrationKey = store.migrateAccessTokens(accessTokenMigrationKey, MIGRATION_BATCH_SIZE);
+                store.writeMigrationCursor(accessTokenMigration, accessTokenMigrationKey);
+                if (accessTokenMigrationKey == null) {
+                    logger.info("access tokens migration completed");
+                }
+            }
+
+            String refreshTokenMigrationKey = store.readMigrationCursor(refreshTokenMigration);
+            if (refreshTokenMigrationKey != null) {
+                refreshTokenMigrationKey = store.migrateRefreshTokens(refreshTokenMigrationKey, MIGRATION_BATCH_SIZE);
+                store.writeMigrationCursor(refreshTokenMigration, refreshTokenMigrationKey);
+                if (refreshTokenMigrationKey == null) {
+                    logger.info("refresh tokens migration completed");
+                }
+            }
+
+            migrationCompleted = accessTokenMigrationKey == null && refreshTokenMigrationKey == null;
+        } catch (RuntimeException e) {
+            logger.error("error migrating tokens", e);
+        }
+    }
 }
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.store;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTParser;
+import it.smartcommunitylab.aac.oauth.AACOAuth2AccessToken;
+import java.io.IOException;
+import java.io.Serializable;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+/*
+ * Compact codec which persists tokens as CBOR documents prefixed by a
+ * versioned header.
+ *
+ * Only content with a stable mapping is converted: tokens carrying claims or
+ * extensions with non-primitive values are written via java serialization.
+ * Legacy java serialized blobs are always readable.
+ *
+ * Note that user authentications are still java serialized, embedded as a
+ * binary field in the CBOR document: they carry provider specific principals
+ * and details which have no stable mapping, thus reading an authentication
+ * issued for a user still requires java deserialization.
+ */
+public class CBORTokenSerializationCodec implements TokenSerializationCodec {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    // header is magic + format version
+    private static final byte MAGIC_0 = (byte) 0xAA;
+    private static final byte MAGIC_1 = (byte) 0xC0;
+    // version 2 writes integers with their declared width
+    public static final byte VERSION = 2;
+    private static final int HEADER_LENGTH = 3;
+
+    private final CBORMapper mapper;
+
+    public CBORTokenSerializationCodec() {
+        CBORMapper cborMapper = new CBORMapper();
+        //serialize only fields and ignore all getter/setters to avoid any processing
+        cborMapper.setVisibility(PropertyAccessor.ALL, Visibility.NONE);
+        cborMapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+        cborMapper.setSerializationInclusion(Include.NON_NULL);
+        cborMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        //keep long values as 8 bytes integers so that they decode back as long
+        cborMapper.getFactory().configure(CBORGenerator.Feature.WRITE_MINIMAL_INTS, false);
+
+        this.mapper = cborMapper;
+    }
+
+    public static boolean isCBORFormat(byte[] bytes) {
+        return bytes != null && bytes.length > HEADER_LENGTH && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+
+    @Override
+    public boolean isCurrentFormat(byte[] bytes) {
+        return isCBORFormat(bytes) && bytes[2] == VERSION;
+    }
+
+    /*
+     * Access tokens
+     */
+    @Override
+    public byte[] serializeAccessToken(OAuth2AccessToken token) {
+        if (!(token instanceof AACOAuth2AccessToken)) {
+            return SerializationUtils.serialize(token);
+        }
+
+        AACOAuth2AccessToken accessToken = (AACOAuth2AccessToken) token;
+        if (
+            !isConvertible(accessToken.getClaims()) ||
+            !isConvertible(accessToken.getAdditionalInformation()) ||
+            !isConvertible(accessToken.getRefreshToken())
+        ) {
+            return SerializationUtils.serialize(token);
+        }
+
+        AccessTokenModel m = new AccessTokenModel();
+        m.value = accessToken.getValue();
+        m.token = accessToken.getToken();
+        m.subject = accessToken.getSubject();
+        m.authorizedParty = accessToken.getAuthorizedParty();
+        m.audience = accessToken.getAudience();
+        m.responseType = accessToken.getResponseType();
+        m.realm = accessToken.getRealm();
+        m.tokenType = accessToken.getTokenType();
+        m.expiration = toTime(accessToken.getExpiration());
+        m.issuedAt = toTime(accessToken.getIssuedAt());
+        m.notBeforeTime = toTime(accessToken.getNotBeforeTime());
+        m.scope = accessToken.getScope();
+        m.refreshToken = toModel(accessToken.getRefreshToken());
+        m.additionalInformation = toMap(accessToken.getAdditionalInformation());
+        m.claims = toMap(accessToken.getClaims());
+
+        if (accessToken.getIdToken() != null) {
+            try {
+                m.idToken = accessToken.getIdToken().serialize();
+            } catch (IllegalStateException e) {
+                // unsigned jwt can't be serialized
+                return SerializationUtils.serialize(token);
+            }
+        }
+
+        return write(m);
+    }
+
+    @Override
+    public OAuth2AccessToken deserializeAccessToken(byte[] bytes) {
+        if (!isCBORFormat(bytes)) {
+            return SerializationUtils.deserialize(bytes);
+        }
+
+        AccessTokenModel m = read(bytes, AccessTokenModel.class);
+        AACOAuth2AccessToken token = new AACOAuth2AccessToken(m.value, m.token);
+        token.setSubject(m.subject);
+        token.setAuthorizedParty(m.authorizedParty);
+        token.setAudience(m.audience);
+        token.setResponseType(m.responseType);
+        token.setRealm(m.realm);
+        token.setTokenType(m.tokenType);
+        token.setExpiration(toDate(m.expiration));
+        token.setIssuedAt(toDate(m.issuedAt));
+        token.setNotBeforeTime(toDate(m.notBeforeTime));
+        token.setRefreshToken(fromModel(m.refreshToken));
+
+        if (m.scope != null) {
+            token.setScope(m.scope);
+        }
+        if (m.additionalInformation != null) {
+            token.setAdditionalInformation(fromMap(m.additionalInformation));
+        }
+        if (m.claims != null) {
+            token.setClaims(fromMap(m.claims));
+        }
+
+        if (m.idToken != null) {
+            try {
+                JWT jwt = JWTParser.parse(m.idToken);
+                token.setIdToken(jwt);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("invalid id token");
+            }
+        }
+
+        return token;
+    }
+
+    /*
+     * Refresh tokens
+     */
+    @Override
+    public byte[] serializeRefreshToken(OAuth2RefreshToken token) {
+        if (!isConvertible(token)) {
+            return SerializationUtils.serialize(token);
+        }
+
+        return write(toModel(token));
+    }
+
+    @Override
+    public OAuth2RefreshToken deserializeRefreshToken(byte[] bytes) {
+        if (!isCBORFormat(bytes)) {
+            return SerializationUtils.deserialize(bytes);
+        }
+
+        return fromModel(read(bytes, RefreshTokenModel.class));
+    }
+
+    /*
+     * Authentications
+     */
+    @Override
+    public byte[] serializeAuthentication(OAuth2Authentication authentication) {
+        OAuth2Request request = authentication.getOAuth2Request();
+        if (
+            authentication.getClass() != OAuth2Authentication.class ||
+            authentication.getDetails() != null ||
+            request.getClass() != OAuth2Request.class ||
+            request.getRefreshTokenRequest() != null ||
+            !isConvertible(request.getExtensions()) ||
+            !request.getAuthorities().stream().allMatch(a -> a instanceof SimpleGrantedAuthority)
+        ) {
+            return SerializationUtils.serialize(authentication);
+        }
+
+        AuthenticationModel m = new AuthenticationModel();
+        m.clientId = request.getClientId();
+        m.scope = request.getScope();
+        m.requestParameters = request.getRequestParameters();
+        m.authorities =
+            request.getAuthorities().stream().map(GrantedAuthority::getAuthority).collect(Collectors.toList());
+        m.approved = request.isApproved();
+        m.resourceIds = request.getResourceIds();
+        m.redirectUri = request.getRedirectUri();
+        m.responseTypes = request.getResponseTypes();
+        m.extensions = toMap(request.getExtensions());
+
+        // user authentication graph is opaque, keep as serialized blob
+        if (authentication.getUserAuthentication() != null) {
+            m.userAuthentication = SerializationUtils.serialize(authentication.getUserAuthentication());
+        }
+
+        return write(m);
+    }
+
+    @Override
+    public OAuth2Authentication deserializeAuthentication(byte[] bytes) {
+        if (!isCBORFormat(bytes)) {
+            return SerializationUtils.deserialize(bytes);
+        }
+
+        AuthenticationModel m = read(bytes, AuthenticationModel.class);
+        List<GrantedAuthority> authorities = m.authorities == null
+            ? null
+            : m.authorities.stream().map(a -> new SimpleGrantedAuthority(a)).collect(Collectors.toList());
+
+        OAuth2Request request = new OAuth2Request(
+            m.requestParameters,
+            m.clientId,
+            authorities,
+            m.approved,
+            m.scope,
+            m.resourceIds,
+            m.redirectUri,
+            m.responseTypes,
+            m.extensions != null ? fromMap(m.extensions) : null
+        );
+
+        Authentication userAuth = null;
+        if (m.userAuthentication != null) {
+            userAuth = SerializationUtils.deserialize(m.userAuthentication);
+        }
+
+        return new OAuth2Authentication(request, userAuth);
+    }
+
+    /*
+     * Helpers
+     */
+    private byte[] write(Object model) {
+        try {
+            byte[] content = mapper.writeValueAsBytes(model);
+            byte[] bytes = new byte[HEADER_LENGTH + content.length];
+            bytes[0] = MAGIC_0;
+            bytes[1] = MAGIC_1;
+            bytes[2] = VERSION;
+            System.arraycopy(content, 0, bytes, HEADER_LENGTH, content.length);
+
+            return bytes;
+        } catch (IOException e) {
+            logger.error("error writing token: {}", e.getMessage());
+            throw new IllegalArgumentException("Could not serialize token", e);
+        }
+    }
+
+    private <T> T read(byte[] bytes, Class<T> clazz) {
+        if (bytes[2] > VERSION) {
+            throw new IllegalArgumentException("Unsupported token format version " + bytes[2]);
+        }
+
+        try {
+            return mapper.readValue(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, clazz);
+        } catch (IOException e) {
+            logger.error("error reading token: {}", e.getMessage());
+            throw new IllegalArgumentException("Could not deserialize token", e);
+        }
+    }
+
+    private static Long toTime(Date date) {
+        return date != null ? date.getTime() : null;
+    }
+
+    private static Date toDate(Long time) {
+        return time != null ? new Date(time) : null;
+    }
+
+    private static RefreshTokenModel toModel(OAuth2RefreshToken token) {
+        if (token == null) {
+            return null;
+        }
+
+        RefreshTokenModel m = new RefreshTokenModel();
+        m.value = token.getValue();
+        if (token instanceof ExpiringOAuth2RefreshToken) {
+            m.expiration = toTime(((ExpiringOAuth2RefreshToken) token).getExpiration());
+        }
+
+        return m;
+    }
+
+    private static OAuth2RefreshToken fromModel(RefreshTokenModel m) {
+        if (m == null) {
+            return null;
+        }
+
+        if (m.expiration != null) {
+            return new DefaultExpiringOAuth2RefreshToken(m.value, toDate(m.expiration));
+        }
+
+        return new DefaultOAuth2RefreshToken(m.value);
+    }
+
+    private static Map<String, Object> toMap(Map<String, Serializable> map) {
+        return map != null ? new HashMap<>(map) : null;
+    }
+
+    private static Map<String, Serializable> fromMap(Map<String, Object> map) {
+        // decoded values are all serializable (primitives, lists, maps)
+        Map<String, Serializable> result = new HashMap<>();
+        map.forEach((k, v) -> result.put(k, (Serializable) v));
+        return result;
+    }
+
+    private static boolean isConvertible(OAuth2RefreshToken token) {
+        return (
+            token == null ||
+            token.getClass() == DefaultOAuth2RefreshToken.class ||
+            token.getClass() == DefaultExpiringOAuth2RefreshToken.class
+        );
+    }
+
+    private static boolean isConvertible(Map<String, ?> map) {
+        return map == null || map.values().stream().allMatch(v -> isConvertible(v));
+    }
+
+    private static boolean isConvertible(Object value) {
+        // only types which decode back to an equivalent json value are supported
+        if (value == null || value instanceof String || value instanceof Boolean) {
+            return true;
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Double) {
+            return true;
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().allMatch(v -> isConvertible(v));
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            return (
+                map.keySet().stream().allMatch(k -> k instanceof String) &&
+                map.values().stream().allMatch(v -> isConvertible(v))
+            );
+        }
+
+        return false;
+    }
+
+    /*
+     * Models
+     */
+    private static class AccessTokenModel {
+
+        private String value;
+        private String token;
+        private String subject;
+        private String authorizedParty;
+        private String[] audience;
+        private String responseType;
+        private String realm;
+        private String tokenType;
+        private Long expiration;
+        private Long issuedAt;
+        private Long notBeforeTime;
+        private Set<String> scope;
+        private RefreshTokenModel refreshToken;
+        private Map<String, Object> additionalInformation;
+        private Map<String, Object> claims;
+        private String idToken;
+    }
+
+    private static class RefreshTokenModel {
+
+        private String value;
+        private Long expiration;
+    }
+
+    private static class AuthenticationModel {
+
+        private String clientId;
+        private Set<String> scope;
+        private Map<String, String> requestParameters;
+        private List<String> authorities;
+        private boolean approved;
+        private Set<String> resourceIds;
+        private String redirectUri;
+        private Set<String> responseTypes;
+        private Map<String, Object> extensions;
+        private byte[] userAuthentication;
+    }
+}
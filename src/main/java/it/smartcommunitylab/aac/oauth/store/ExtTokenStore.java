@@ -50,23 +50,20 @@ public interface ExtTokenStore extends TokenStore {
      */
     public OAuth2RefreshToken readRefreshTokenForUpdate(String token);
 
-
     /**
-     * @param clientId the client id to search
-     * @return a collection of access tokens
+     * Find a token of any kind along with its authentication in a single lookup.
+     * The hint, when valid, defines which kind is preferred when resolving.
+     *
+     * @param tokenValue
+     * @param tokenTypeHint either access_token or refresh_token, may be null
+     * @return the stored token or null if not found
      */
-    Collection<OAuth2AccessToken> findTokensByUserName(String userName);
+    public StoredToken findToken(String tokenValue, String tokenTypeHint);
 
 
     /**
-     * Delete tokens expired since interval
-     * @param interval
-     */
-    public void deleteExpiredAccessTokens(long interval);
-
-    /**
-     * Delete tokens expired since interval
-     * @param interval
+     * @param clientId the client id to search
+     * @return a collection of access tokens
      */
-    public void deleteExpiredRefreshTokens(long interval);
+    Collection<OAuth2AccessToken> findTokensByUserName(String userName);
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.store;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/*
+ * Legacy codec based on java serialization.
+ *
+ * Content written by the CBOR codec is detected by its header and decoded as
+ * such, so that switching back to this codec keeps every row readable.
+ */
+public class JdkTokenSerializationCodec implements TokenSerializationCodec {
+
+    // java serialization stream magic
+    private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+
+    // decoder for rows written by the compact codec
+    private final CBORTokenSerializationCodec cborCodec = new CBORTokenSerializationCodec();
+
+    public static boolean isJdkFormat(byte[] bytes) {
+        return bytes != null && bytes.length > 2 && bytes[0] == STREAM_MAGIC_0 && bytes[1] == STREAM_MAGIC_1;
+    }
+
+    @Override
+    public byte[] serializeAccessToken(OAuth2AccessToken token) {
+        return SerializationUtils.serialize(token);
+    }
+
+    @Override
+    public byte[] serializeRefreshToken(OAuth2RefreshToken token) {
+        return SerializationUtils.serialize(token);
+    }
+
+    @Override
+    public byte[] serializeAuthentication(OAuth2Authentication authentication) {
+        return SerializationUtils.serialize(authentication);
+    }
+
+    @Override
+    public OAuth2AccessToken deserializeAccessToken(byte[] bytes) {
+        if (CBORTokenSerializationCodec.isCBORFormat(bytes)) {
+            return cborCodec.deserializeAccessToken(bytes);
+        }
+
+        return SerializationUtils.deserialize(bytes);
+    }
+
+    @Override
+    public OAuth2RefreshToken deserializeRefreshToken(byte[] bytes) {
+        if (CBORTokenSerializationCodec.isCBORFormat(bytes)) {
+            return cborCodec.deserializeRefreshToken(bytes);
+        }
+
+        return SerializationUtils.deserialize(bytes);
+    }
+
+    @Override
+    public OAuth2Authentication deserializeAuthentication(byte[] bytes) {
+        if (CBORTokenSerializationCodec.isCBORFormat(bytes)) {
+            return cborCodec.deserializeAuthentication(bytes);
+        }
+
+        return SerializationUtils.deserialize(bytes);
+    }
+
+    @Override
+    public boolean isCurrentFormat(byte[] bytes) {
+        return isJdkFormat(bytes);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.smartcommunitylab.aac.oauth.store;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.util.Assert;
+
+/*
+ * A token resolved from store along with its kind and authentication
+ */
+public class StoredToken {
+
+    private final String tokenType;
+    private final OAuth2AccessToken accessToken;
+    private final OAuth2RefreshToken refreshToken;
+    private final OAuth2Authentication authentication;
+
+    private StoredToken(
+        String tokenType,
+        OAuth2AccessToken accessToken,
+        OAuth2RefreshToken refreshToken,
+        OAuth2Authentication authentication
+    ) {
+        Assert.hasText(tokenType, "token type can not be null");
+        this.tokenType = tokenType;
+        this.accessToken = accessToken;
+        this.refreshToken = refreshToken;
+        this.authentication = authentication;
+    }
+
+    public static StoredToken accessToken(OAuth2AccessToken accessToken, OAuth2Authentication authentication) {
+        Assert.notNull(accessToken, "access token can not be null");
+        return new StoredToken(OAuth2AccessToken.ACCESS_TOKEN, accessToken, null, authentication);
+    }
+
+    public static StoredToken refreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+        Assert.notNull(refreshToken, "refresh token can not be null");
+        return new StoredToken(OAuth2AccessToken.REFRESH_TOKEN, null, refreshToken, authentication);
+    }
+
+    public String getTokenType() {
+        return tokenType;
+    }
+
+    public boolean isAccessToken() {
+        return OAuth2AccessToken.ACCESS_TOKEN.equals(tokenType);
+    }
+
+    public boolean isRefreshToken() {
+        return OAuth2AccessToken.REFRESH_TOKEN.equals(tokenType);
+    }
+
+    public OAuth2AccessToken getAccessToken() {
+        return accessToken;
+    }
+
+    public OAuth2RefreshToken getRefreshToken() {
+        return refreshToken;
+    }
+
+    public OAuth2Authentication getAuthentication() {
+        return authentication;
+    }
+}
@@ -16,11 +16,28 @@
 
 package it.smartcommunitylab.aac.oauth.store.jdbc;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import it.smartcommunitylab.aac.oauth.store.SearchableApprovalStore;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -29,11 +46,33 @@ import org.springframework.security.oauth2.provider.approval.Approval;
 import org.springframework.security.oauth2.provider.approval.Approval.ApprovalStatus;
 import org.springframework.security.oauth2.provider.approval.JdbcApprovalStore;
 
+/*
+ * Approval store with batched writes and a local cache of approvals by
+ * (userId, clientId), as read on every authorization request.
+ *
+ * Entries are evicted on writes via this store, and again once the enclosing
+ * transaction completes. In multi node deployments ttl bounds the staleness of
+ * remote changes.
+ */
 public class AutoJdbcApprovalStore extends JdbcApprovalStore implements SearchableApprovalStore {
 
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_CACHE_TTL = 60; // 1 minute
+
     private JdbcTemplate jdbcTemplate;
     private final RowMapper<Approval> rowMapper = new AuthorizationRowMapper();
 
+    private static final String DEFAULT_GET_APPROVAL_SQL =
+        "SELECT expiresAt,status,lastModifiedAt,userId,clientId,scope FROM oauth_approvals WHERE userId=? AND clientId=?";
+    private static final String DEFAULT_REFRESH_APPROVAL_SQL =
+        "UPDATE oauth_approvals SET expiresAt=?, status=?, lastModifiedAt=? WHERE userId=? AND clientId=? AND scope=?";
+    private static final String DEFAULT_ADD_APPROVAL_SQL =
+        "INSERT INTO oauth_approvals (expiresAt,status,lastModifiedAt,userId,clientId,scope) VALUES (?,?,?,?,?,?)";
+    private static final String DEFAULT_DELETE_APPROVAL_SQL =
+        "DELETE FROM oauth_approvals WHERE userId=? AND clientId=? AND scope=?";
+    private static final String DEFAULT_EXPIRE_APPROVAL_SQL =
+        "UPDATE oauth_approvals SET expiresAt=? WHERE userId=? AND clientId=? AND scope=?";
+
     private static final String DEFAULT_FIND_SINGLE_APPROVAL_SQL =
         "SELECT expiresAt,status,lastModifiedAt,userId,clientId,scope FROM oauth_approvals WHERE userId=? AND clientId=? AND scope=?";
     private static final String DEFAULT_GET_USER_APPROVAL_SQL =
@@ -51,9 +90,202 @@ public class AutoJdbcApprovalStore extends JdbcApprovalStore implements Searchab
     private String findScopeApprovalStatement = DEFAULT_GET_SCOPE_APPROVAL_SQL;
     private String findUserScopeApprovalStatement = DEFAULT_GET_USER_SCOPE_APPROVAL_SQL;
 
+    private String findApprovalStatement = DEFAULT_GET_APPROVAL_SQL;
+    private String refreshApprovalStatement = DEFAULT_REFRESH_APPROVAL_SQL;
+    private String addApprovalStatement = DEFAULT_ADD_APPROVAL_SQL;
+    private String deleteApprovalStatement = DEFAULT_DELETE_APPROVAL_SQL;
+    private String expireApprovalStatement = DEFAULT_EXPIRE_APPROVAL_SQL;
+
+    private boolean handleRevocationsAsExpiry = false;
+
+    // approvals by (userId, clientId)
+    private final Cache<List<String>, List<Approval>> approvals;
+
+    // bumped on every change to avoid caching reads racing with updates
+    private final AtomicLong generation = new AtomicLong();
+
     public AutoJdbcApprovalStore(DataSource dataSource) {
+        this(dataSource, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+    }
+
+    public AutoJdbcApprovalStore(DataSource dataSource, int cacheSize, int cacheTtl) {
         super(dataSource);
         this.jdbcTemplate = new JdbcTemplate(dataSource);
+
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(Math.max(cacheSize, 0));
+        if (cacheTtl > 0) {
+            builder.expireAfterWrite(cacheTtl, TimeUnit.SECONDS);
+        }
+        this.approvals = builder.recordStats().build();
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        GuavaCacheMetrics.monitor(meterRegistry, approvals, "oauth2.approvals");
+    }
+
+    @Override
+    public void setHandleRevocationsAsExpiry(boolean handleRevocationsAsExpiry) {
+        super.setHandleRevocationsAsExpiry(handleRevocationsAsExpiry);
+        this.handleRevocationsAsExpiry = handleRevocationsAsExpiry;
+    }
+
+    @Override
+    public List<Approval> getApprovals(String userName, String clientId) {
+        List<String> key = extractKey(userName, clientId);
+        List<Approval> list = approvals.getIfPresent(key);
+        if (list == null) {
+            long gen = generation.get();
+            list = Collections.unmodifiableList(jdbcTemplate.query(findApprovalStatement, rowMapper, userName, clientId));
+            if (gen == generation.get()) {
+                approvals.put(key, list);
+            }
+        }
+
+        // return a copy, callers may modify the result
+        return new ArrayList<>(list);
+    }
+
+    /*
+     * Upsert approvals with one batch of updates per consent, followed by a batch
+     * of inserts for those not yet stored.
+     */
+    @Override
+    public boolean addApprovals(Collection<Approval> approvals) {
+        if (approvals == null || approvals.isEmpty()) {
+            return true;
+        }
+
+        List<Approval> list = new ArrayList<>(approvals);
+        try {
+            int[] counts = jdbcTemplate.batchUpdate(
+                refreshApprovalStatement,
+                list.stream().map(this::toUpsertParams).collect(Collectors.toList()),
+                new int[] { Types.TIMESTAMP, Types.VARCHAR, Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR }
+            );
+
+            List<Approval> missing = new ArrayList<>();
+            for (int i = 0; i < counts.length; i++) {
+                Approval a = list.get(i);
+                // drivers may not report counts for batches, check the row when unknown
+                if (
+                    counts[i] == 0 ||
+                    (
+                        counts[i] == Statement.SUCCESS_NO_INFO &&
+                        findApproval(a.getUserId(), a.getClientId(), a.getScope()) == null
+                    )
+                ) {
+                    missing.add(a);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                jdbcTemplate.batchUpdate(
+                    addApprovalStatement,
+                    missing.stream().map(this::toUpsertParams).collect(Collectors.toList()),
+                    new int[] {
+                        Types.TIMESTAMP,
+                        Types.VARCHAR,
+                        Types.TIMESTAMP,
+                        Types.VARCHAR,
+                        Types.VARCHAR,
+                        Types.VARCHAR,
+                    }
+                );
+            }
+
+            return true;
+        } finally {
+            evict(list);
+        }
+    }
+
+    @Override
+    public boolean revokeApprovals(Collection<Approval> approvals) {
+        if (approvals == null || approvals.isEmpty()) {
+            return true;
+        }
+
+        List<Approval> list = new ArrayList<>(approvals);
+        try {
+            int[] counts;
+            if (handleRevocationsAsExpiry) {
+                Timestamp now = new Timestamp(System.currentTimeMillis());
+                counts =
+                    jdbcTemplate.batchUpdate(
+                        expireApprovalStatement,
+                        list
+                            .stream()
+                            .map(a -> new Object[] { now, a.getUserId(), a.getClientId(), a.getScope() })
+                            .collect(Collectors.toList()),
+                        new int[] { Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR }
+                    );
+            } else {
+                counts =
+                    jdbcTemplate.batchUpdate(
+                        deleteApprovalStatement,
+                        list
+                            .stream()
+                            .map(a -> new Object[] { a.getUserId(), a.getClientId(), a.getScope() })
+                            .collect(Collectors.toList()),
+                        new int[] { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR }
+                    );
+            }
+
+            boolean success = true;
+            for (int count : counts) {
+                // drivers may not report counts for batches
+                if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                    success = false;
+                }
+            }
+
+            return success;
+        } finally {
+            evict(list);
+        }
+    }
+
+    @Override
+    public boolean purgeExpiredApprovals() {
+        try {
+            return super.purgeExpiredApprovals();
+        } finally {
+            evict(() -> approvals.invalidateAll());
+        }
+    }
+
+    private Object[] toUpsertParams(Approval approval) {
+        return new Object[] {
+            new Timestamp(approval.getExpiresAt().getTime()),
+            (approval.getStatus() == null ? ApprovalStatus.APPROVED : approval.getStatus()).toString(),
+            new Timestamp(approval.getLastUpdatedAt().getTime()),
+            approval.getUserId(),
+            approval.getClientId(),
+            approval.getScope(),
+        };
+    }
+
+    private void evict(Collection<Approval> list) {
+        Set<List<String>> keys = new HashSet<>();
+        list.forEach(a -> keys.add(extractKey(a.getUserId(), a.getClientId())));
+        evict(() -> approvals.invalidateAll(keys));
+    }
+
+    private void evict(Runnable invalidate) {
+        generation.incrementAndGet();
+        invalidate.run();
+
+        // evict again on completion, reads within the transaction may have cached uncommitted rows
+        TransactionUtils.afterCompletion(
+            () -> {
+                generation.incrementAndGet();
+                invalidate.run();
+            }
+        );
+    }
+
+    private static List<String> extractKey(String userId, String clientId) {
+        return Arrays.asList(userId, clientId);
     }
 
     @Override
@@ -17,16 +17,27 @@
 package it.smartcommunitylab.aac.oauth.store.jdbc;
 
 import it.smartcommunitylab.aac.oauth.AACOAuth2AccessToken;
+import it.smartcommunitylab.aac.oauth.event.TokenRemovalEvent;
 import it.smartcommunitylab.aac.oauth.store.ExtTokenStore;
 import it.smartcommunitylab.aac.oauth.store.ExtendedAuthenticationKeyGenerator;
+import it.smartcommunitylab.aac.oauth.store.JdkTokenSerializationCodec;
+import it.smartcommunitylab.aac.oauth.store.StoredToken;
+import it.smartcommunitylab.aac.oauth.store.TokenSerializationCodec;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
@@ -38,6 +49,7 @@ import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.token.AuthenticationKeyGenerator;
 import org.springframework.security.oauth2.provider.token.DefaultAuthenticationKeyGenerator;
 import org.springframework.security.oauth2.provider.token.store.JdbcTokenStore;
+import org.springframework.util.Assert;
 
 /**
  * Token store with DB tables creation on startup.
@@ -46,7 +58,7 @@ import org.springframework.security.oauth2.provider.token.store.JdbcTokenStore;
  * @author raman
  *
  */
-public class AutoJdbcTokenStore extends JdbcTokenStore implements ExtTokenStore {
+public class AutoJdbcTokenStore extends JdbcTokenStore implements ExtTokenStore, ApplicationEventPublisherAware {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -57,23 +69,46 @@ public class AutoJdbcTokenStore extends JdbcTokenStore implements ExtTokenStore
         "select token_id, token from oauth_access_token where refresh_token = ?";
     private static final String DEFAULT_REFRESH_TOKEN_SELECT_STATEMENT = "select token_id, token from oauth_refresh_token where token_id = ? FOR UPDATE";
 	private static final String DEFAULT_REFRESH_TOKEN_INSERT_STATEMENT = "insert into oauth_refresh_token (token_id, token, authentication_id, user_name, client_id, issued_at, expires_at, authentication) values (?, ?, ?, ?, ?, ?, ?, ?)";
-	private static final String DEFAULT_DELETE_EXPIRED_ACCESS_TOKENS_STATEMENT = "delete from oauth_access_token where expires_at < ?";
-    private static final String DEFAULT_DELETE_EXPIRED_REFRESH_TOKENS_STATEMENT = "delete from oauth_refresh_token where expires_at < ?";
+    private static final String DEFAULT_FIND_TOKEN_SELECT_STATEMENT = "select 'access_token' as token_type, token, authentication from oauth_access_token where token_id = ? union all select 'refresh_token' as token_type, token, authentication from oauth_refresh_token where token_id = ?";
+    private static final String DEFAULT_MIGRATE_ACCESS_TOKENS_SELECT_STATEMENT = "select token_id, token, authentication from oauth_access_token where token_id > ? order by token_id";
+    private static final String DEFAULT_MIGRATE_ACCESS_TOKEN_UPDATE_STATEMENT = "update oauth_access_token set token = ?, authentication = ? where token_id = ?";
+    private static final String DEFAULT_MIGRATE_REFRESH_TOKENS_SELECT_STATEMENT = "select token_id, token, authentication from oauth_refresh_token where token_id > ? order by token_id";
+    private static final String DEFAULT_MIGRATE_REFRESH_TOKEN_UPDATE_STATEMENT = "update oauth_refresh_token set token = ?, authentication = ? where token_id = ?";
+    private static final String DEFAULT_MIGRATION_CURSOR_SELECT_STATEMENT = "select last_key from oauth_migration_cursor where name = ?";
+    private static final String DEFAULT_MIGRATION_CURSOR_UPDATE_STATEMENT = "update oauth_migration_cursor set last_key = ? where name = ?";
+    private static final String DEFAULT_MIGRATION_CURSOR_INSERT_STATEMENT = "insert into oauth_migration_cursor (name, last_key) values (?, ?)";
+    private static final String MIGRATION_LEASE_NAME = "oauth_token_migration";
 
     private String insertAccessTokenSql = DEFAULT_ACCESS_TOKEN_INSERT_STATEMENT;
     private String selectAccessTokenFromRefreshTokenSql = DEFAULT_SELECT_ACCESS_TOKEN_FROM_REFRESH_TOKEN;
-	private String deleteExpiredAccessTokenSql = DEFAULT_DELETE_EXPIRED_ACCESS_TOKENS_STATEMENT;	
 
 	private String insertRefreshTokenSql = DEFAULT_REFRESH_TOKEN_INSERT_STATEMENT;
     private String selectRefreshTokenSql = DEFAULT_REFRESH_TOKEN_SELECT_STATEMENT;
-    private String deleteExpiredRefreshTokenSql = DEFAULT_DELETE_EXPIRED_REFRESH_TOKENS_STATEMENT;
+
+    private String findTokenSelectSql = DEFAULT_FIND_TOKEN_SELECT_STATEMENT;
+
+    private String migrateAccessTokensSelectSql = DEFAULT_MIGRATE_ACCESS_TOKENS_SELECT_STATEMENT;
+    private String migrateAccessTokenUpdateSql = DEFAULT_MIGRATE_ACCESS_TOKEN_UPDATE_STATEMENT;
+    private String migrateRefreshTokensSelectSql = DEFAULT_MIGRATE_REFRESH_TOKENS_SELECT_STATEMENT;
+    private String migrateRefreshTokenUpdateSql = DEFAULT_MIGRATE_REFRESH_TOKEN_UPDATE_STATEMENT;
+    private String selectMigrationCursorSql = DEFAULT_MIGRATION_CURSOR_SELECT_STATEMENT;
+    private String updateMigrationCursorSql = DEFAULT_MIGRATION_CURSOR_UPDATE_STATEMENT;
+    private String insertMigrationCursorSql = DEFAULT_MIGRATION_CURSOR_INSERT_STATEMENT;
 
     private AuthenticationKeyGenerator authenticationKeyGenerator = new DefaultAuthenticationKeyGenerator();
 
+    // codec for blobs, defaults to legacy java serialization
+    private TokenSerializationCodec codec = new JdkTokenSerializationCodec();
+
+    private ApplicationEventPublisher eventPublisher;
+
+    // migrations run on a single node, independently from other jobs
+    private final JdbcLease migrationLease;
 
     public AutoJdbcTokenStore(DataSource dataSource) {
         super(dataSource);
         this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.migrationLease = new JdbcLease(dataSource, MIGRATION_LEASE_NAME);
 
         // set a saner authkey generator, but we should really just drop it, we won't
         // read back anyway
@@ -81,6 +116,50 @@ public class AutoJdbcTokenStore extends JdbcTokenStore implements ExtTokenStore
         super.setAuthenticationKeyGenerator(this.authenticationKeyGenerator );
     }
 
+    public void setCodec(TokenSerializationCodec codec) {
+        Assert.notNull(codec, "codec can not be null");
+        this.codec = codec;
+    }
+
+    public TokenSerializationCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Override
+    protected byte[] serializeAccessToken(OAuth2AccessToken token) {
+        return codec.serializeAccessToken(token);
+    }
+
+    @Override
+    protected byte[] serializeRefreshToken(OAuth2RefreshToken token) {
+        return codec.serializeRefreshToken(token);
+    }
+
+    @Override
+    protected byte[] serializeAuthentication(OAuth2Authentication authentication) {
+        return codec.serializeAuthentication(authentication);
+    }
+
+    @Override
+    protected OAuth2AccessToken deserializeAccessToken(byte[] token) {
+        return codec.deserializeAccessToken(token);
+    }
+
+    @Override
+    protected OAuth2RefreshToken deserializeRefreshToken(byte[] token) {
+        return codec.deserializeRefreshToken(token);
+    }
+
+    @Override
+    protected OAuth2Authentication deserializeAuthentication(byte[] authentication) {
+        return codec.deserializeAuthentication(authentication);
+    }
+
 
     @Override
     public OAuth2AccessToken getAccessToken(OAuth2Authentication authentication) {
@@ -88,6 +167,37 @@ public class AutoJdbcTokenStore extends JdbcTokenStore implements ExtTokenStore
         return null;
     }
 
+    @Override
+    public void removeAccessToken(String tokenValue) {
+        super.removeAccessToken(tokenValue);
+
+        // notify listeners holding derived state
+        notifyTokenRemoval(TokenRemovalEvent.forAccessToken(tokenValue));
+    }
+
+    @Override
+    public void removeAccessTokenUsingRefreshToken(String refreshToken) {
+        super.removeAccessTokenUsingRefreshToken(refreshToken);
+
+        notifyTokenRemoval(TokenRemovalEvent.forRefreshToken(refreshToken));
+    }
+
+    @Override
+    public void removeRefreshToken(String token) {
+        super.removeRefreshToken(token);
+
+        notifyTokenRemoval(TokenRemovalEvent.forRefreshToken(token));
+    }
+
+    private void notifyTokenRemoval(TokenRemovalEvent event) {
+        if (eventPublisher == null) {
+            return;
+        }
+
+        // notify after commit so that listeners won't reload removed tokens
+        TransactionUtils.afterCommit(() -> eventPublisher.publishEvent(event));
+    }
+
     public OAuth2AccessToken readAccessTokenForRefreshToken(String tokenValue) {
         OAuth2AccessToken accessToken = null;
 
@@ -126,6 +236,50 @@ public class AutoJdbcTokenStore extends JdbcTokenStore implements ExtTokenStore
         return accessToken.getRefreshToken();
     }
 
+    @Override
+    public StoredToken findToken(String tokenValue, String tokenTypeHint) {
+        String key = extractTokenKey(tokenValue);
+
+        // fetch from both tables in a single round trip, token kind is resolved from
+        // the row. keys are unique per table so we expect at most one row per kind
+        List<Object[]> rows = jdbcTemplate.query(
+            findTokenSelectSql,
+            new RowMapper<Object[]>() {
+                public Object[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+                    return new Object[] { rs.getString(1), rs.getBytes(2), rs.getBytes(3) };
+                }
+            },
+            key,
+            key
+        );
+
+        if (rows.isEmpty()) {
+            return null;
+        }
+
+        // pick the hinted kind first, as per spec hint is only a suggestion
+        String preferred = OAuth2AccessToken.REFRESH_TOKEN.equals(tokenTypeHint)
+            ? OAuth2AccessToken.REFRESH_TOKEN
+            : OAuth2AccessToken.ACCESS_TOKEN;
+        Object[] row = rows.stream().filter(r -> preferred.equals(r[0])).findFirst().orElse(rows.get(0));
+        String tokenType = (String) row[0];
+
+        try {
+            if (OAuth2AccessToken.REFRESH_TOKEN.equals(tokenType)) {
+                OAuth2RefreshToken refreshToken = deserializeRefreshToken((byte[]) row[1]);
+                OAuth2Authentication authentication = deserializeAuthentication((byte[]) row[2]);
+                return StoredToken.refreshToken(refreshToken, authentication);
+            }
+
+            OAuth2AccessToken accessToken = deserializeAccessToken((byte[]) row[1]);
+            OAuth2Authentication authentication = deserializeAuthentication((byte[]) row[2]);
+            return StoredToken.accessToken(accessToken, authentication);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Failed to deserialize " + tokenType + " for key " + key);
+            return null;
+        }
+    }
+
     public OAuth2RefreshToken readRefreshTokenForUpdate(String token) {
 		OAuth2RefreshToken refreshToken = null;
 
@@ -192,21 +346,127 @@ public class AutoJdbcTokenStore extends JdbcTokenStore implements ExtTokenStore
 	}
 
 
-    @Override
-    public void deleteExpiredAccessTokens(long interval) {
-        //interval in seconds
-        long timestamp = System.currentTimeMillis()- (interval*1000);
+    /**
+     * Re-encode a batch of access tokens stored in a format different from the
+     * current codec, starting after the given token key.
+     *
+     * @param fromKey   the last key processed, or empty to start
+     * @param batchSize
+     * @return the last key processed, or null when the table is exhausted
+     */
+    public String migrateAccessTokens(String fromKey, int batchSize) {
+        return migrate(migrateAccessTokensSelectSql, migrateAccessTokenUpdateSql, fromKey, batchSize, true);
+    }
 
-        jdbcTemplate.update(deleteExpiredAccessTokenSql, new Object[] {new java.sql.Timestamp(timestamp)}, new int[] {Types.TIMESTAMP});
+    /**
+     * Re-encode a batch of refresh tokens stored in a format different from the
+     * current codec, starting after the given token key.
+     *
+     * @param fromKey   the last key processed, or empty to start
+     * @param batchSize
+     * @return the last key processed, or null when the table is exhausted
+     */
+    public String migrateRefreshTokens(String fromKey, int batchSize) {
+        return migrate(migrateRefreshTokensSelectSql, migrateRefreshTokenUpdateSql, fromKey, batchSize, false);
     }
 
+    private String migrate(String selectSql, String updateSql, String fromKey, int batchSize, boolean isAccessToken) {
+        // keyset pagination via maxRows to stay portable across dialects
+        JdbcTemplate template = new JdbcTemplate(jdbcTemplate.getDataSource());
+        template.setMaxRows(batchSize);
 
-    @Override
-    public void deleteExpiredRefreshTokens(long interval) {
-          //interval in seconds
-          long timestamp = System.currentTimeMillis()- (interval*1000);
+        // collect the whole batch first, result set is closed before updating
+        List<Object[]> rows = template.query(selectSql, new RowMapper<Object[]>() {
+            public Object[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+                return new Object[] { rs.getString(1), rs.getBytes(2), rs.getBytes(3) };
+            }
+        }, fromKey != null ? fromKey : "");
+
+        if (rows.isEmpty()) {
+            return null;
+        }
+
+        List<Object[]> updates = new ArrayList<>();
+        for (Object[] row : rows) {
+            String key = (String) row[0];
+            byte[] token = (byte[]) row[1];
+            byte[] authentication = (byte[]) row[2];
+            if (codec.isCurrentFormat(token) && codec.isCurrentFormat(authentication)) {
+                continue;
+            }
+
+            try {
+                byte[] t = isAccessToken
+                        ? serializeAccessToken(deserializeAccessToken(token))
+                        : serializeRefreshToken(deserializeRefreshToken(token));
+                byte[] a = serializeAuthentication(deserializeAuthentication(authentication));
+
+                // skip content not convertible to the current format
+                if (Arrays.equals(t, token) && Arrays.equals(a, authentication)) {
+                    continue;
+                }
+
+                updates.add(new Object[] { new SqlLobValue(t), new SqlLobValue(a), key });
+            } catch (IllegalArgumentException e) {
+                logger.warn("Could not migrate token {}: {}", key, e.getMessage());
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            jdbcTemplate.batchUpdate(updateSql, updates, new int[] { Types.BLOB, Types.BLOB, Types.VARCHAR });
+        }
+
+        logger.debug("migrated {} tokens out of {}", updates.size(), rows.size());
+
+        return (String) rows.get(rows.size() - 1)[0];
+    }
+
+    /**
+     * Acquire or renew the migration lease for this node.
+     *
+     * @return true when this node holds the lease
+     */
+    public boolean acquireMigrationLease() {
+        return migrationLease.acquire();
+    }
+
+    /**
+     * Read the persisted position of a migration job.
+     *
+     * @param name the job name
+     * @return the last key processed, empty when not started or null when
+     *         completed
+     */
+    public String readMigrationCursor(String name) {
+        List<String[]> cursors = jdbcTemplate.query(selectMigrationCursorSql,
+                (rs, rowNum) -> new String[] { rs.getString(1) }, name);
+        if (cursors.isEmpty()) {
+            return "";
+        }
+
+        return cursors.get(0)[0];
+    }
+
+    /**
+     * Persist the position of a migration job, so that a restart or another node
+     * resumes from there.
+     *
+     * @param name the job name
+     * @param key  the last key processed, or null when completed
+     */
+    public void writeMigrationCursor(String name, String key) {
+        int count = jdbcTemplate.update(updateMigrationCursorSql, new Object[] { key, name },
+                new int[] { Types.VARCHAR, Types.VARCHAR });
+        if (count == 0) {
+            try {
+                jdbcTemplate.update(insertMigrationCursorSql, new Object[] { name, key },
+                        new int[] { Types.VARCHAR, Types.VARCHAR });
+            } catch (DataIntegrityViolationException e) {
+                // concurrently created, retry as update
+                jdbcTemplate.update(updateMigrationCursorSql, new Object[] { key, name },
+                        new int[] { Types.VARCHAR, Types.VARCHAR });
+            }
+        }
+    }
 
-          jdbcTemplate.update(deleteExpiredRefreshTokenSql, new Object[] {new java.sql.Timestamp(timestamp)}, new int[] {Types.TIMESTAMP});
-      }
-   
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.store.jdbc;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+/*
+ * Incremental sweeper for expired rows in oauth tables.
+ *
+ * Rows are selected in bounded batches ordered by the (indexed) expiry column
+ * and deleted by key, so that every statement is short and bounded even when
+ * many rows share the same expiry, and does not lock against token issuance.
+ * Null key columns are matched explicitly, so such rows are removed as well.
+ * Nodes coordinate via a lease row: only the lease holder sweeps, and the lease
+ * is taken over by another node when the holder stops renewing it.
+ */
+public class JdbcExpiredTokenSweeper {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MAX_BATCHES = 50;
+    public static final long DEFAULT_LEASE_DURATION = JdbcLease.DEFAULT_DURATION;
+
+    public static final String ACCESS_TOKENS = "oauth_access_token";
+    public static final String REFRESH_TOKENS = "oauth_refresh_token";
+    public static final String CODES = "oauth_code";
+    public static final String APPROVALS = "oauth_approvals";
+
+    private static final String LEASE_NAME = "oauth_sweeper";
+
+    // expiry column by table
+    private static final Map<String, String> EXPIRY_COLUMNS = Map.of(
+        ACCESS_TOKENS,
+        "expires_at",
+        REFRESH_TOKENS,
+        "expires_at",
+        CODES,
+        "expiresAt",
+        APPROVALS,
+        "expiresAt"
+    );
+
+    // key columns by table, used to delete exactly the selected rows
+    private static final Map<String, List<String>> KEY_COLUMNS = Map.of(
+        ACCESS_TOKENS,
+        List.of("token_id"),
+        REFRESH_TOKENS,
+        List.of("token_id"),
+        CODES,
+        List.of("code"),
+        APPROVALS,
+        List.of("userId", "clientId", "scope")
+    );
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcLease lease;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxBatches = DEFAULT_MAX_BATCHES;
+
+    // lag in seconds between cutoff and oldest expired row, by table
+    private final Map<String, AtomicLong> lags = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    public JdbcExpiredTokenSweeper(DataSource dataSource) {
+        Assert.notNull(dataSource, "DataSource required");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.lease = new JdbcLease(dataSource, LEASE_NAME);
+
+        EXPIRY_COLUMNS.keySet().forEach(t -> lags.put(t, new AtomicLong(0)));
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        for (String table : EXPIRY_COLUMNS.keySet()) {
+            counters.put(
+                table,
+                Counter
+                    .builder("oauth2.sweeper.rows")
+                    .description("Expired rows removed by the sweeper")
+                    .tag("table", table)
+                    .register(meterRegistry)
+            );
+            Gauge
+                .builder("oauth2.sweeper.lag", lags.get(table), AtomicLong::get)
+                .description("Age in seconds of the oldest row past cleanup")
+                .tag("table", table)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        }
+    }
+
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batch size must be greater than zero");
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxBatches(int maxBatches) {
+        Assert.isTrue(maxBatches > 0, "max batches must be greater than zero");
+        this.maxBatches = maxBatches;
+    }
+
+    public void setLeaseDuration(long leaseDuration) {
+        lease.setDuration(leaseDuration);
+    }
+
+    /**
+     * Acquire or renew the sweeper lease for this node.
+     *
+     * @return true when this node holds the lease
+     */
+    public boolean acquireLease() {
+        return lease.acquire();
+    }
+
+    /**
+     * Delete rows expired since interval from the given table, in batches. Every
+     * batch is committed on its own.
+     *
+     * @param table    the table to sweep
+     * @param interval grace period in seconds after expiration
+     * @return the number of rows removed
+     */
+    public long sweep(String table, long interval) {
+        String column = EXPIRY_COLUMNS.get(table);
+        Assert.notNull(column, "unsupported table " + table);
+
+        List<String> keys = KEY_COLUMNS.get(table);
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(interval));
+        String selectSql =
+            "select " + String.join(", ", keys) + " from " + table + " where " + column + " < ? order by " + column;
+
+        // bound batches via maxRows to stay portable across dialects
+        JdbcTemplate template = new JdbcTemplate(jdbcTemplate.getDataSource());
+        template.setMaxRows(batchSize);
+
+        long total = 0;
+        for (int i = 0; i < maxBatches; i++) {
+            List<String[]> rows = template.query(
+                selectSql,
+                (rs, n) -> {
+                    String[] values = new String[keys.size()];
+                    for (int k = 0; k < keys.size(); k++) {
+                        values[k] = rs.getString(k + 1);
+                    }
+                    return values;
+                },
+                cutoff
+            );
+            if (rows.isEmpty()) {
+                break;
+            }
+
+            // null keys never match by equality, group rows by which keys are null
+            Map<List<Boolean>, List<Object[]>> groups = new HashMap<>();
+            for (String[] values : rows) {
+                List<Boolean> nulls = Arrays.stream(values).map(Objects::isNull).collect(Collectors.toList());
+                List<Object> args = Arrays.stream(values).filter(Objects::nonNull).collect(Collectors.toList());
+                args.add(cutoff);
+                groups.computeIfAbsent(nulls, k -> new ArrayList<>()).add(args.toArray());
+            }
+
+            for (Map.Entry<List<Boolean>, List<Object[]>> e : groups.entrySet()) {
+                int[] counts = jdbcTemplate.batchUpdate(deleteSql(table, column, keys, e.getKey()), e.getValue());
+                for (int count : counts) {
+                    // drivers may report unknown counts for batched statements
+                    total += count > 0 ? count : (count == Statement.SUCCESS_NO_INFO ? 1 : 0);
+                }
+            }
+
+            if (rows.size() < batchSize) {
+                // no more rows past cutoff
+                break;
+            }
+        }
+
+        Counter counter = counters.get(table);
+        if (counter != null) {
+            counter.increment(total);
+        }
+
+        // evaluate lag from the oldest leftover row, if any
+        Timestamp oldest = jdbcTemplate.queryForObject(
+            "select min(" + column + ") from " + table + " where " + column + " < ?",
+            Timestamp.class,
+            cutoff
+        );
+        long lag = oldest != null ? TimeUnit.MILLISECONDS.toSeconds(cutoff.getTime() - oldest.getTime()) : 0;
+        lags.get(table).set(lag);
+
+        logger.debug("removed {} expired rows from {}, lag {}s", total, table, lag);
+        return total;
+    }
+
+    private static String deleteSql(String table, String column, List<String> keys, List<Boolean> nulls) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("delete from ").append(table).append(" where ");
+        for (int k = 0; k < keys.size(); k++) {
+            sql.append(keys.get(k)).append(nulls.get(k) ? " is null" : " = ?").append(" and ");
+        }
+
+        // re-check expiry to skip rows refreshed since selection
+        sql.append(column).append(" < ?");
+        return sql.toString();
+    }
+}
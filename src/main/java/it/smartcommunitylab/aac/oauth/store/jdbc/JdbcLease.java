@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.smartcommunitylab.aac.oauth.store.jdbc;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+/*
+ * Named lease row shared across nodes, for background jobs which must run on a
+ * single node at a time.
+ *
+ * The holder renews the lease on every acquire, another node takes it over once
+ * the holder stops renewing it past its duration.
+ */
+public class JdbcLease {
+
+    public static final long DEFAULT_DURATION = 5 * 60; // 5 minutes
+
+    private static final String DEFAULT_LEASE_UPDATE_STATEMENT =
+        "update oauth_cleanup_lease set owner = ?, expires_at = ? where name = ? and (owner = ? or expires_at < ?)";
+    private static final String DEFAULT_LEASE_INSERT_STATEMENT =
+        "insert into oauth_cleanup_lease (name, owner, expires_at) values (?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String name;
+    private final String owner;
+
+    private long duration = DEFAULT_DURATION;
+
+    public JdbcLease(DataSource dataSource, String name) {
+        Assert.notNull(dataSource, "DataSource required");
+        Assert.hasText(name, "lease name required");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.name = name;
+        this.owner = UUID.randomUUID().toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setDuration(long duration) {
+        Assert.isTrue(duration > 0, "lease duration must be greater than zero");
+        this.duration = duration;
+    }
+
+    /**
+     * Acquire or renew the lease for this node.
+     *
+     * @return true when this node holds the lease
+     */
+    public boolean acquire() {
+        long now = System.currentTimeMillis();
+        Timestamp expiresAt = new Timestamp(now + TimeUnit.SECONDS.toMillis(duration));
+        int count = jdbcTemplate.update(
+            DEFAULT_LEASE_UPDATE_STATEMENT,
+            new Object[] { owner, expiresAt, name, owner, new Timestamp(now) },
+            new int[] { Types.VARCHAR, Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP }
+        );
+        if (count > 0) {
+            return true;
+        }
+
+        try {
+            jdbcTemplate.update(
+                DEFAULT_LEASE_INSERT_STATEMENT,
+                new Object[] { name, owner, expiresAt },
+                new int[] { Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP }
+            );
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            // held by another node
+            return false;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package it.smartcommunitylab.aac.oidc;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.SystemKeys;
 import it.smartcommunitylab.aac.accounts.persistence.UserAccountService;
 import it.smartcommunitylab.aac.claims.ScriptExecutionService;
@@ -23,6 +24,7 @@ import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.ResourceEntityService;
 import it.smartcommunitylab.aac.identity.base.AbstractIdentityProviderAuthority;
 import it.smartcommunitylab.aac.oidc.auth.OIDCClientRegistrationRepository;
+import it.smartcommunitylab.aac.oidc.auth.OIDCIdTokenDecoderFactory;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserAccount;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserIdentity;
 import it.smartcommunitylab.aac.oidc.provider.OIDCFilterProvider;
@@ -30,13 +32,16 @@ import it.smartcommunitylab.aac.oidc.provider.OIDCIdentityConfigurationProvider;
 import it.smartcommunitylab.aac.oidc.provider.OIDCIdentityProvider;
 import it.smartcommunitylab.aac.oidc.provider.OIDCIdentityProviderConfig;
 import it.smartcommunitylab.aac.oidc.provider.OIDCIdentityProviderConfigMap;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
 @Service
 public class OIDCIdentityAuthority
-    extends AbstractIdentityProviderAuthority<OIDCIdentityProvider, OIDCUserIdentity, OIDCIdentityProviderConfig, OIDCIdentityProviderConfigMap> {
+    extends AbstractIdentityProviderAuthority<OIDCIdentityProvider, OIDCUserIdentity, OIDCIdentityProviderConfig, OIDCIdentityProviderConfigMap>
+    implements DisposableBean {
 
     public static final String AUTHORITY_URL = "/auth/" + SystemKeys.AUTHORITY_OIDC + "/";
 
@@ -81,6 +86,14 @@ public class OIDCIdentityAuthority
         this.configProvider = configProvider;
     }
 
+    @Autowired
+    public void setMeterRegistry(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(r -> {
+            clientRegistrationRepository.registerMetrics(r);
+            OIDCIdTokenDecoderFactory.getInstance().registerMetrics(r);
+        });
+    }
+
     @Autowired
     public void setExecutionService(ScriptExecutionService executionService) {
         this.executionService = executionService;
@@ -91,6 +104,11 @@ public class OIDCIdentityAuthority
         this.resourceService = resourceService;
     }
 
+    @Override
+    public void destroy() {
+        clientRegistrationRepository.destroy();
+    }
+
     @Override
     public OIDCFilterProvider getFilterProvider() {
         return this.filterProvider;
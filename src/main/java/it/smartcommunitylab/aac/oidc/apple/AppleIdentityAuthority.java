@@ -16,6 +16,7 @@
 
 package it.smartcommunitylab.aac.oidc.apple;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.SystemKeys;
 import it.smartcommunitylab.aac.accounts.persistence.UserAccountService;
 import it.smartcommunitylab.aac.claims.ScriptExecutionService;
@@ -30,13 +31,16 @@ import it.smartcommunitylab.aac.oidc.apple.provider.AppleIdentityProviderConfig;
 import it.smartcommunitylab.aac.oidc.apple.provider.AppleIdentityProviderConfigMap;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserAccount;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserIdentity;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
 @Service
 public class AppleIdentityAuthority
-    extends AbstractSingleProviderIdentityAuthority<AppleIdentityProvider, OIDCUserIdentity, AppleIdentityProviderConfig, AppleIdentityProviderConfigMap> {
+    extends AbstractSingleProviderIdentityAuthority<AppleIdentityProvider, OIDCUserIdentity, AppleIdentityProviderConfig, AppleIdentityProviderConfigMap>
+    implements DisposableBean {
 
     public static final String AUTHORITY_URL = "/auth/" + SystemKeys.AUTHORITY_APPLE + "/";
 
@@ -72,6 +76,11 @@ public class AppleIdentityAuthority
         this.configProvider = configProvider;
     }
 
+    @Autowired
+    public void setMeterRegistry(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(r -> clientRegistrationRepository.registerMetrics(r));
+    }
+
     @Autowired
     public void setExecutionService(ScriptExecutionService executionService) {
         this.executionService = executionService;
@@ -87,6 +96,11 @@ public class AppleIdentityAuthority
         super.afterPropertiesSet();
     }
 
+    @Override
+    public void destroy() {
+        clientRegistrationRepository.destroy();
+    }
+
     @Override
     public AppleFilterProvider getFilterProvider() {
         return this.filterProvider;
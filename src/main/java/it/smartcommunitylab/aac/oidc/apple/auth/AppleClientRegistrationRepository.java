@@ -18,38 +18,40 @@ package it.smartcommunitylab.aac.oidc.apple.auth;
 
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.oidc.apple.provider.AppleIdentityProviderConfig;
+import it.smartcommunitylab.aac.oidc.auth.AbstractClientRegistrationRepository;
+import it.smartcommunitylab.aac.oidc.auth.OIDCDiscoveryCache;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
-import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
-import org.springframework.util.Assert;
 
-public class AppleClientRegistrationRepository implements ClientRegistrationRepository {
-
-    // provider configs by id
-    private final ProviderConfigRepository<AppleIdentityProviderConfig> registrationRepository;
+/*
+ * Client registrations for Apple providers, cached per config version and
+ * discovered metadata.
+ */
+public class AppleClientRegistrationRepository
+    extends AbstractClientRegistrationRepository<AppleIdentityProviderConfig> {
 
     public AppleClientRegistrationRepository(
         ProviderConfigRepository<AppleIdentityProviderConfig> registrationRepository
     ) {
-        Assert.notNull(registrationRepository, "provider registration repository can not be null");
-        this.registrationRepository = registrationRepository;
+        this(registrationRepository, new OIDCDiscoveryCache());
     }
 
-    /*
-     * read access as per interface
-     */
+    public AppleClientRegistrationRepository(
+        ProviderConfigRepository<AppleIdentityProviderConfig> registrationRepository,
+        OIDCDiscoveryCache discoveryCache
+    ) {
+        super("apple", registrationRepository, discoveryCache);
+    }
 
     @Override
-    public ClientRegistration findByRegistrationId(String registrationId) {
-        Assert.hasText(registrationId, "registration id cannot be empty");
-
-        // fetch provider registration with matching id
-        AppleIdentityProviderConfig providerConfig = registrationRepository.findByProviderId(registrationId);
-        if (providerConfig == null) {
-            return null;
-        }
+    protected String getIssuerUri(AppleIdentityProviderConfig providerConfig) {
+        return providerConfig.getIssuerUri();
+    }
 
-        // build
-        // TODO evaluate loading cache
-        return providerConfig.getClientRegistration();
+    @Override
+    protected ClientRegistration buildRegistration(
+        AppleIdentityProviderConfig providerConfig,
+        ClientRegistration providerMetadata
+    ) {
+        return providerConfig.getClientRegistration(providerMetadata);
     }
 }
@@ -30,6 +30,7 @@ import it.smartcommunitylab.aac.oidc.apple.auth.AppleClientAuthenticationParamet
 import it.smartcommunitylab.aac.oidc.apple.model.AppleOidcUserData;
 import it.smartcommunitylab.aac.oidc.auth.OIDCAuthenticationException;
 import it.smartcommunitylab.aac.oidc.auth.OIDCAuthenticationToken;
+import it.smartcommunitylab.aac.oidc.auth.OIDCIdTokenDecoderFactory;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserAccount;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserAuthenticatedPrincipal;
 import it.smartcommunitylab.aac.oidc.provider.OIDCAuthenticationProvider;
@@ -100,6 +101,8 @@ public class AppleAuthenticationProvider extends OIDCAuthenticationProvider {
         // use id token user service, apple does not expose a userinfo endpoint
         this.oidcProvider =
             new OidcAuthorizationCodeAuthenticationProvider(accessTokenResponseClient, new IdTokenOidcUserService());
+        // share id token decoders (and remote keys) across providers
+        this.oidcProvider.setJwtDecoderFactory(OIDCIdTokenDecoderFactory.getInstance());
     }
 
     @Override
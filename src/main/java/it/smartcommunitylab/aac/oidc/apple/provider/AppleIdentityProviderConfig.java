@@ -102,16 +102,31 @@ public class AppleIdentityProviderConfig extends AbstractIdentityProviderConfig<
     @JsonIgnore
     public ClientRegistration getClientRegistration() {
         if (clientRegistration == null) {
-            clientRegistration = toClientRegistration();
+            clientRegistration = toClientRegistration(null);
         }
 
         return clientRegistration;
     }
 
-    private ClientRegistration toClientRegistration() {
+    /*
+     * Build registration from already discovered provider metadata, if available
+     */
+    public ClientRegistration getClientRegistration(ClientRegistration providerMetadata) {
+        clientRegistration = toClientRegistration(providerMetadata);
+        return clientRegistration;
+    }
+
+    @JsonIgnore
+    public String getIssuerUri() {
+        return ISSUER_URI;
+    }
+
+    private ClientRegistration toClientRegistration(ClientRegistration providerMetadata) {
         // via builder,
-        // load well known configuration from apple
-        ClientRegistration.Builder builder = ClientRegistrations.fromIssuerLocation(ISSUER_URI);
+        // load well known configuration from apple, when not already discovered
+        ClientRegistration.Builder builder = providerMetadata != null
+            ? ClientRegistration.withClientRegistration(providerMetadata)
+            : ClientRegistrations.fromIssuerLocation(ISSUER_URI);
 
         /*
          * set config as per
@@ -141,8 +156,9 @@ public class AppleIdentityProviderConfig extends AbstractIdentityProviderConfig<
         builder.authorizationUri(AUTHORIZATION_URL);
 
         // re-set registrationId since auto-configuration sets values provided from
-        // issuer
+        // issuer, name will default to registrationId
         builder.registrationId(getProvider());
+        builder.clientName(null);
 
         // use email as name
         builder.userNameAttributeName("email");
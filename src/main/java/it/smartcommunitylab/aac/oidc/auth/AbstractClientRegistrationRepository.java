@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.smartcommunitylab.aac.oidc.auth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import it.smartcommunitylab.aac.base.provider.config.AbstractProviderConfig;
+import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.util.Assert;
+
+/*
+ * Client registrations are built once per provider config version and cached,
+ * along with the discovered provider metadata they are built from.
+ *
+ * Discovery is shared by issuer and refreshed in background, registrations are
+ * rebuilt when metadata changes. Subclasses provide the issuer and build the
+ * registration for their config type.
+ */
+public abstract class AbstractClientRegistrationRepository<C extends AbstractProviderConfig<?, ?>>
+    implements ClientRegistrationRepository, DisposableBean {
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    // provider configs by id
+    private final ProviderConfigRepository<C> registrationRepository;
+
+    // built registrations by provider id
+    private final Cache<String, CachedRegistration> registrations;
+
+    // discovered metadata by issuer
+    private final OIDCDiscoveryCache discoveryCache;
+
+    // prefix for metrics names
+    private final String name;
+
+    protected AbstractClientRegistrationRepository(
+        String name,
+        ProviderConfigRepository<C> registrationRepository,
+        OIDCDiscoveryCache discoveryCache
+    ) {
+        Assert.hasText(name, "name can not be null or empty");
+        Assert.notNull(registrationRepository, "provider registration repository can not be null");
+        Assert.notNull(discoveryCache, "discovery cache can not be null");
+        this.name = name;
+        this.registrationRepository = registrationRepository;
+        this.discoveryCache = discoveryCache;
+
+        this.registrations = CacheBuilder.newBuilder().maximumSize(DEFAULT_CACHE_SIZE).recordStats().build();
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        GuavaCacheMetrics.monitor(meterRegistry, registrations, name + ".registrations");
+        discoveryCache.registerMetrics(meterRegistry, name + ".discovery");
+    }
+
+    @Override
+    public void destroy() {
+        discoveryCache.destroy();
+    }
+
+    /*
+     * read access as per interface
+     */
+
+    @Override
+    public ClientRegistration findByRegistrationId(String registrationId) {
+        Assert.hasText(registrationId, "registration id cannot be empty");
+
+        // fetch provider registration with matching id
+        C providerConfig = registrationRepository.findByProviderId(registrationId);
+        if (providerConfig == null) {
+            registrations.invalidate(registrationId);
+            return null;
+        }
+
+        // resolve metadata via cache, served while refreshing
+        String issuerUri = getIssuerUri(providerConfig);
+        ClientRegistration providerMetadata = issuerUri != null ? discoveryCache.resolve(issuerUri) : null;
+
+        CachedRegistration cached = registrations.getIfPresent(registrationId);
+        if (
+            cached != null &&
+            cached.version == providerConfig.getVersion() &&
+            cached.providerMetadata == providerMetadata
+        ) {
+            return cached.registration;
+        }
+
+        // build and cache for this version
+        ClientRegistration registration = buildRegistration(providerConfig, providerMetadata);
+        registrations.put(
+            registrationId,
+            new CachedRegistration(providerConfig.getVersion(), providerMetadata, registration)
+        );
+
+        return registration;
+    }
+
+    /*
+     * Issuer used for discovery, null when not available
+     */
+    protected abstract String getIssuerUri(C providerConfig);
+
+    /*
+     * Build registration from already discovered provider metadata, if available
+     */
+    protected abstract ClientRegistration buildRegistration(C providerConfig, ClientRegistration providerMetadata);
+
+    private static class CachedRegistration {
+
+        private final int version;
+        private final ClientRegistration providerMetadata;
+        private final ClientRegistration registration;
+
+        public CachedRegistration(int version, ClientRegistration providerMetadata, ClientRegistration registration) {
+            this.version = version;
+            this.providerMetadata = providerMetadata;
+            this.registration = registration;
+        }
+    }
+}
@@ -19,37 +19,36 @@ package it.smartcommunitylab.aac.oidc.auth;
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.oidc.provider.OIDCIdentityProviderConfig;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
-import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
-import org.springframework.util.Assert;
 
-public class OIDCClientRegistrationRepository implements ClientRegistrationRepository {
-
-    // provider configs by id
-    private final ProviderConfigRepository<OIDCIdentityProviderConfig> registrationRepository;
+/*
+ * Client registrations for OIDC providers, cached per config version and
+ * discovered metadata.
+ */
+public class OIDCClientRegistrationRepository extends AbstractClientRegistrationRepository<OIDCIdentityProviderConfig> {
 
     public OIDCClientRegistrationRepository(
         ProviderConfigRepository<OIDCIdentityProviderConfig> registrationRepository
     ) {
-        Assert.notNull(registrationRepository, "provider registration repository can not be null");
-        this.registrationRepository = registrationRepository;
+        this(registrationRepository, new OIDCDiscoveryCache());
     }
 
-    /*
-     * read access as per interface
-     */
+    public OIDCClientRegistrationRepository(
+        ProviderConfigRepository<OIDCIdentityProviderConfig> registrationRepository,
+        OIDCDiscoveryCache discoveryCache
+    ) {
+        super("oidc", registrationRepository, discoveryCache);
+    }
 
     @Override
-    public ClientRegistration findByRegistrationId(String registrationId) {
-        Assert.hasText(registrationId, "registration id cannot be empty");
-
-        // fetch provider registration with matching id
-        OIDCIdentityProviderConfig providerConfig = registrationRepository.findByProviderId(registrationId);
-        if (providerConfig == null) {
-            return null;
-        }
+    protected String getIssuerUri(OIDCIdentityProviderConfig providerConfig) {
+        return providerConfig.getIssuerUri();
+    }
 
-        // build
-        // TODO registrationId loading cache
-        return providerConfig.getClientRegistration();
+    @Override
+    protected ClientRegistration buildRegistration(
+        OIDCIdentityProviderConfig providerConfig,
+        ClientRegistration providerMetadata
+    ) {
+        return providerConfig.getClientRegistration(providerMetadata);
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oidc.auth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrations;
+import org.springframework.util.Assert;
+
+/*
+ * Cache for openid provider metadata discovered via well-known configuration.
+ *
+ * Discovered metadata is returned as a template registration, to be completed
+ * with client details. Entries are refreshed in background once stale: while
+ * refreshing, and when refresh fails, the last known good metadata keeps being
+ * served.
+ */
+public class OIDCDiscoveryCache implements DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final long DEFAULT_DISCOVERY_TTL = 60 * 60; // 1 hour
+    public static final long RETRY_DELAY = 60; // 1 minute
+
+    // placeholders required to build a template registration
+    private static final String TEMPLATE_CLIENT_ID = "discovery";
+    private static final String TEMPLATE_REDIRECT_URI = "{baseUrl}";
+
+    // discovered metadata by issuer
+    private final Cache<String, CachedDiscovery> discoveries;
+
+    private final ExecutorService executor;
+
+    private long ttl = DEFAULT_DISCOVERY_TTL;
+    private MeterRegistry meterRegistry;
+
+    public OIDCDiscoveryCache() {
+        this.discoveries = CacheBuilder.newBuilder().maximumSize(DEFAULT_CACHE_SIZE).recordStats().build();
+
+        this.executor =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "oidc-discovery-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    public void setTtl(long ttl) {
+        Assert.isTrue(ttl > 0, "ttl must be positive");
+        this.ttl = ttl;
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry, String name) {
+        this.meterRegistry = meterRegistry;
+        GuavaCacheMetrics.monitor(meterRegistry, discoveries, name);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * Resolve metadata for the given issuer, discovering on first access.
+     * Returned registrations are templates: only provider details are meaningful.
+     */
+    public ClientRegistration resolve(String issuerUri) {
+        Assert.hasText(issuerUri, "issuer can not be null or empty");
+
+        CachedDiscovery cached = discoveries.getIfPresent(issuerUri);
+        if (cached != null) {
+            if (cached.refreshAt < System.currentTimeMillis()) {
+                // serve current while revalidating
+                refresh(issuerUri, cached);
+            }
+
+            return cached.registration;
+        }
+
+        // discover and cache, errors are propagated to caller
+        CachedDiscovery discovery = discover(issuerUri);
+        discoveries.put(issuerUri, discovery);
+
+        return discovery.registration;
+    }
+
+    public void evict(String issuerUri) {
+        discoveries.invalidate(issuerUri);
+    }
+
+    private void refresh(String issuerUri, CachedDiscovery cached) {
+        // single refresh per entry
+        if (!cached.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    CachedDiscovery discovery = discover(issuerUri);
+                    discoveries.asMap().replace(issuerUri, cached, discovery);
+                } catch (RuntimeException e) {
+                    logger.warn(
+                        "error refreshing discovery for {}, keep serving last known: {}",
+                        issuerUri,
+                        e.getMessage()
+                    );
+
+                    // back off before next attempt
+                    cached.refreshAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RETRY_DELAY);
+                    cached.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor rejected, retry on next access
+            cached.refreshing.set(false);
+        }
+    }
+
+    private CachedDiscovery discover(String issuerUri) {
+        long start = System.nanoTime();
+        String outcome = "failure";
+        try {
+            ClientRegistration registration = ClientRegistrations
+                .fromIssuerLocation(issuerUri)
+                .registrationId(issuerUri)
+                .clientId(TEMPLATE_CLIENT_ID)
+                .redirectUri(TEMPLATE_REDIRECT_URI)
+                .build();
+            outcome = "success";
+
+            long refreshAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl);
+            return new CachedDiscovery(registration, refreshAt);
+        } finally {
+            if (meterRegistry != null) {
+                Timer
+                    .builder("oidc.discovery")
+                    .description("Latency of openid provider configuration discovery")
+                    .tag("issuer", issuerUri)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static class CachedDiscovery {
+
+        private final ClientRegistration registration;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile long refreshAt;
+
+        public CachedDiscovery(ClientRegistration registration, long refreshAt) {
+            this.registration = registration;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
@@ -16,9 +16,23 @@
 
 package it.smartcommunitylab.aac.oidc.auth;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import it.smartcommunitylab.aac.jwt.JWKSetCacheService;
 import it.smartcommunitylab.aac.jwt.JwtDecoderBuilder;
+import it.smartcommunitylab.aac.utils.HashUtils;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import net.minidev.json.JSONObject;
 import org.springframework.core.convert.converter.Converter;
@@ -36,6 +50,7 @@ import org.springframework.security.oauth2.jose.jws.SignatureAlgorithm;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.oauth2.jwt.JwtDecoderFactory;
+import org.springframework.security.oauth2.jwt.JwtException;
 import org.springframework.security.oauth2.jwt.JwtTimestampValidator;
 import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
 import org.springframework.util.Assert;
@@ -43,17 +58,40 @@ import org.springframework.util.StringUtils;
 
 /*
  * IdToken decoder factory supporting JWKSet via uri or provided as metadata
+ *
+ * Decoders are kept in a bounded registry keyed by registration id and a
+ * fingerprint of the registration: any change to the provider configuration
+ * results in a new key, while stale entries expire when not accessed.
+ * Remote keys are resolved via a shared JWK Set cache, so that a single set
+ * is fetched (and refreshed ahead of expiration) per uri across realms.
  */
 
 public class OIDCIdTokenDecoderFactory implements JwtDecoderFactory<ClientRegistration> {
 
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final long DEFAULT_CACHE_TTL = 60 * 60; // 1 hour
+
     private static final String MISSING_SIGNATURE_VERIFIER_ERROR_CODE = "missing_signature_verifier";
 
+    // shared among all instances, sets are keyed by uri
+    private static final JWKSetCacheService jwksCache = new JWKSetCacheService();
+
+    // default instance, shared by providers with default validation
+    private static final OIDCIdTokenDecoderFactory instance = new OIDCIdTokenDecoderFactory();
+
     private static final ClaimTypeConverter DEFAULT_CLAIM_TYPE_CONVERTER = new ClaimTypeConverter(
         OidcIdTokenDecoderFactory.createDefaultClaimTypeConverters()
     );
 
-    private final Map<String, JwtDecoder> jwtDecoders = new ConcurrentHashMap<>();
+    // decoders by registration id + fingerprint
+    private final Cache<String, JwtDecoder> jwtDecoders = CacheBuilder
+        .newBuilder()
+        .maximumSize(DEFAULT_CACHE_SIZE)
+        .expireAfterAccess(DEFAULT_CACHE_TTL, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+
+    private MeterRegistry meterRegistry;
 
     private Function<ClientRegistration, OAuth2TokenValidator<Jwt>> jwtValidatorFactory = clientRegistration ->
         new DelegatingOAuth2TokenValidator<>(new JwtTimestampValidator(), new OidcIdTokenValidator(clientRegistration));
@@ -64,22 +102,47 @@ public class OIDCIdTokenDecoderFactory implements JwtDecoderFactory<ClientRegist
     private Function<ClientRegistration, Converter<Map<String, Object>, Map<String, Object>>> claimTypeConverterFactory =
         clientRegistration -> DEFAULT_CLAIM_TYPE_CONVERTER;
 
+    public static OIDCIdTokenDecoderFactory getInstance() {
+        return instance;
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        GuavaCacheMetrics.monitor(meterRegistry, jwtDecoders, "oidc.idtoken.decoders");
+        jwksCache.registerMetrics(meterRegistry);
+    }
+
     @Override
     public JwtDecoder createDecoder(ClientRegistration clientRegistration) {
         Assert.notNull(clientRegistration, "clientRegistration cannot be null");
-        return this.jwtDecoders.computeIfAbsent(
-                clientRegistration.getRegistrationId(),
-                key -> {
-                    NimbusJwtDecoder jwtDecoder = buildDecoder(clientRegistration);
-                    jwtDecoder.setJwtValidator(this.jwtValidatorFactory.apply(clientRegistration));
-                    Converter<Map<String, Object>, Map<String, Object>> claimTypeConverter =
-                        this.claimTypeConverterFactory.apply(clientRegistration);
-                    if (claimTypeConverter != null) {
-                        jwtDecoder.setClaimSetConverter(claimTypeConverter);
+        String key = clientRegistration.getRegistrationId() + ":" + fingerprint(clientRegistration);
+        try {
+            return this.jwtDecoders.get(
+                    key,
+                    () -> {
+                        NimbusJwtDecoder jwtDecoder = buildDecoder(clientRegistration);
+                        jwtDecoder.setJwtValidator(this.jwtValidatorFactory.apply(clientRegistration));
+                        Converter<Map<String, Object>, Map<String, Object>> claimTypeConverter =
+                            this.claimTypeConverterFactory.apply(clientRegistration);
+                        if (claimTypeConverter != null) {
+                            jwtDecoder.setClaimSetConverter(claimTypeConverter);
+                        }
+                        return new TimedJwtDecoder(jwtDecoder, issuer(clientRegistration));
                     }
-                    return jwtDecoder;
-                }
-            );
+                );
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof OAuth2AuthenticationException) {
+                throw (OAuth2AuthenticationException) e.getCause();
+            }
+
+            throw new IllegalStateException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+        }
+    }
+
+    public void evict(String registrationId) {
+        Assert.hasText(registrationId, "registrationId cannot be empty");
+        String prefix = registrationId + ":";
+        this.jwtDecoders.asMap().keySet().removeIf(k -> k.startsWith(prefix));
     }
 
     private NimbusJwtDecoder buildDecoder(ClientRegistration clientRegistration) {
@@ -104,7 +167,7 @@ public class OIDCIdTokenDecoderFactory implements JwtDecoderFactory<ClientRegist
             String jwkSetUri = clientRegistration.getProviderDetails().getJwkSetUri();
             if (StringUtils.hasText(jwkSetUri)) {
                 return new JwtDecoderBuilder()
-                    .jwksUri(jwkSetUri)
+                    .jwkSource(jwkSource(jwkSetUri))
                     .jwsAlgorithm((SignatureAlgorithm) jwsAlgorithm)
                     .build();
             }
@@ -131,6 +194,42 @@ public class OIDCIdTokenDecoderFactory implements JwtDecoderFactory<ClientRegist
         throw new OAuth2AuthenticationException(oauth2Error, oauth2Error.toString());
     }
 
+    private static JWKSource<SecurityContext> jwkSource(String jwkSetUri) {
+        return (selector, context) -> {
+            // pass the requested kid to let the cache pick up rotated keys
+            Set<String> kids = selector.getMatcher().getKeyIDs();
+            String kid = kids != null && kids.size() == 1 ? kids.iterator().next() : null;
+            JWKSet jwks = jwksCache.getJWKSet(jwkSetUri, kid);
+            if (jwks == null) {
+                throw new KeySourceException("Couldn't retrieve remote JWK set from " + jwkSetUri);
+            }
+
+            return selector.select(jwks);
+        };
+    }
+
+    private static String issuer(ClientRegistration clientRegistration) {
+        String issuerUri = clientRegistration.getProviderDetails().getIssuerUri();
+        return StringUtils.hasText(issuerUri) ? issuerUri : clientRegistration.getRegistrationId();
+    }
+
+    private String fingerprint(ClientRegistration clientRegistration) {
+        ClientRegistration.ProviderDetails details = clientRegistration.getProviderDetails();
+        Object jwks = details.getConfigurationMetadata().get("jwks");
+        StringBuilder sb = new StringBuilder()
+            .append(clientRegistration.getClientId())
+            .append('|')
+            .append(details.getIssuerUri())
+            .append('|')
+            .append(details.getJwkSetUri())
+            .append('|')
+            .append(jwks instanceof JSONObject ? ((JSONObject) jwks).toJSONString() : "")
+            .append('|')
+            .append(this.jwsAlgorithmResolver.apply(clientRegistration));
+
+        return HashUtils.sha256Key(sb.toString());
+    }
+
     /**
      * Sets the factory that provides an {@link OAuth2TokenValidator}, which is used by
      * the {@link JwtDecoder}. The default composes {@link JwtTimestampValidator} and
@@ -170,4 +269,36 @@ public class OIDCIdTokenDecoderFactory implements JwtDecoderFactory<ClientRegist
         Assert.notNull(claimTypeConverterFactory, "claimTypeConverterFactory cannot be null");
         this.claimTypeConverterFactory = claimTypeConverterFactory;
     }
+
+    private class TimedJwtDecoder implements JwtDecoder {
+
+        private final JwtDecoder decoder;
+        private final String issuer;
+
+        public TimedJwtDecoder(JwtDecoder decoder, String issuer) {
+            this.decoder = decoder;
+            this.issuer = issuer;
+        }
+
+        @Override
+        public Jwt decode(String token) throws JwtException {
+            long start = System.nanoTime();
+            String outcome = "error";
+            try {
+                Jwt jwt = decoder.decode(token);
+                outcome = "success";
+                return jwt;
+            } finally {
+                if (meterRegistry != null) {
+                    Timer
+                        .builder("oidc.idtoken.verify")
+                        .description("Latency of id token verification")
+                        .tag("issuer", issuer)
+                        .tag("outcome", outcome)
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+    }
 }
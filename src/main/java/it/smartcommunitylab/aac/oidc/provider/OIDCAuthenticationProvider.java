@@ -32,6 +32,7 @@ import it.smartcommunitylab.aac.identity.provider.IdentityProvider;
 import it.smartcommunitylab.aac.oidc.OIDCKeys;
 import it.smartcommunitylab.aac.oidc.auth.OIDCAuthenticationException;
 import it.smartcommunitylab.aac.oidc.auth.OIDCAuthenticationToken;
+import it.smartcommunitylab.aac.oidc.auth.OIDCIdTokenDecoderFactory;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserAccount;
 import it.smartcommunitylab.aac.oidc.model.OIDCUserAuthenticatedPrincipal;
 import java.io.Serializable;
@@ -177,6 +178,8 @@ public class OIDCAuthenticationProvider
             accessTokenResponseClient,
             new OidcUserService()
         );
+        // share id token decoders (and remote keys) across providers
+        this.oidcProvider.setJwtDecoderFactory(OIDCIdTokenDecoderFactory.getInstance());
         // oauth userinfo comes from oidc userinfo..
         this.oauthProvider = new OAuth2LoginAuthenticationProvider(
             accessTokenResponseClient,
@@ -87,16 +87,39 @@ public class OIDCIdentityProviderConfig extends AbstractIdentityProviderConfig<O
     @JsonIgnore
     public ClientRegistration getClientRegistration() {
         if (clientRegistration == null) {
-            clientRegistration = toClientRegistration();
+            clientRegistration = toClientRegistration(null);
         }
 
         return clientRegistration;
     }
 
+    /*
+     * Build registration from already discovered provider metadata, if available
+     */
+    public ClientRegistration getClientRegistration(ClientRegistration providerMetadata) {
+        clientRegistration = toClientRegistration(providerMetadata);
+        return clientRegistration;
+    }
+
+    @JsonIgnore
+    public String getIssuerUri() {
+        if (!StringUtils.hasText(configMap.getIssuerUri())) {
+            return null;
+        }
+
+        String issuerUri = configMap.getIssuerUri();
+        // remove well-known path if provided by user
+        if (issuerUri.endsWith(WELL_KNOWN_CONFIGURATION_OPENID)) {
+            issuerUri = issuerUri.substring(0, issuerUri.length() - WELL_KNOWN_CONFIGURATION_OPENID.length());
+        }
+
+        return issuerUri;
+    }
+
     // TODO map attributes? we could simply use clientRegistation
     // TODO validate? we could simply use clientRegistation
 
-    private ClientRegistration toClientRegistration() {
+    private ClientRegistration toClientRegistration(ClientRegistration providerMetadata) {
         //        // read base params from configMap
         //        String clientId = (String) getConfigurationProperty("clientId");
         //        String clientSecret = (String) getConfigurationProperty("clientSecret");
@@ -131,31 +154,15 @@ public class OIDCIdentityProviderConfig extends AbstractIdentityProviderConfig<O
         //        }
 
         // check for autoconf, will override template
-        if (StringUtils.hasText(configMap.getIssuerUri())) {
-            String issuerUri = configMap.getIssuerUri();
-            // remove well-known path if provided by user
-            if (issuerUri.endsWith(WELL_KNOWN_CONFIGURATION_OPENID)) {
-                issuerUri = issuerUri.substring(0, issuerUri.length() - WELL_KNOWN_CONFIGURATION_OPENID.length());
-            }
-
-            builder = ClientRegistrations.fromIssuerLocation(issuerUri);
+        if (providerMetadata != null) {
+            // start from discovered metadata, client details are replaced below
+            builder = ClientRegistration.withClientRegistration(providerMetadata);
+        } else if (getIssuerUri() != null) {
+            builder = ClientRegistrations.fromIssuerLocation(getIssuerUri());
         }
 
         // set config
-        ClientAuthenticationMethod clientAuthenticationMethod = ClientAuthenticationMethod.CLIENT_SECRET_BASIC;
-        if (configMap.getClientAuthenticationMethod() != null) {
-            // we support only these methods
-            if (AuthenticationMethod.CLIENT_SECRET_POST == configMap.getClientAuthenticationMethod()) {
-                clientAuthenticationMethod = ClientAuthenticationMethod.CLIENT_SECRET_POST;
-            } else if (AuthenticationMethod.NONE == configMap.getClientAuthenticationMethod()) {
-                clientAuthenticationMethod = ClientAuthenticationMethod.NONE;
-            } else if (AuthenticationMethod.CLIENT_SECRET_JWT == configMap.getClientAuthenticationMethod()) {
-                clientAuthenticationMethod = ClientAuthenticationMethod.CLIENT_SECRET_JWT;
-            } else if (AuthenticationMethod.PRIVATE_KEY_JWT == configMap.getClientAuthenticationMethod()) {
-                clientAuthenticationMethod = ClientAuthenticationMethod.PRIVATE_KEY_JWT;
-            }
-        }
-        builder.clientAuthenticationMethod(clientAuthenticationMethod);
+        builder.clientAuthenticationMethod(getClientAuthenticationMethod());
 
         String[] scope = StringUtils.commaDelimitedListToStringArray(configMap.getScope());
         builder.scope(scope);
@@ -249,8 +256,22 @@ public class OIDCIdentityProviderConfig extends AbstractIdentityProviderConfig<O
     }
 
     public ClientAuthenticationMethod getClientAuthenticationMethod() {
-        // TODO Auto-generated method stub
-        return getClientRegistration().getClientAuthenticationMethod();
+        // evaluate from config, avoid discovery
+        ClientAuthenticationMethod clientAuthenticationMethod = ClientAuthenticationMethod.CLIENT_SECRET_BASIC;
+        if (configMap.getClientAuthenticationMethod() != null) {
+            // we support only these methods
+            if (AuthenticationMethod.CLIENT_SECRET_POST == configMap.getClientAuthenticationMethod()) {
+                clientAuthenticationMethod = ClientAuthenticationMethod.CLIENT_SECRET_POST;
+            } else if (AuthenticationMethod.NONE == configMap.getClientAuthenticationMethod()) {
+                clientAuthenticationMethod = ClientAuthenticationMethod.NONE;
+            } else if (AuthenticationMethod.CLIENT_SECRET_JWT == configMap.getClientAuthenticationMethod()) {
+                clientAuthenticationMethod = ClientAuthenticationMethod.CLIENT_SECRET_JWT;
+            } else if (AuthenticationMethod.PRIVATE_KEY_JWT == configMap.getClientAuthenticationMethod()) {
+                clientAuthenticationMethod = ClientAuthenticationMethod.PRIVATE_KEY_JWT;
+            }
+        }
+
+        return clientAuthenticationMethod;
     }
 
     public boolean isPkceEnabled() {
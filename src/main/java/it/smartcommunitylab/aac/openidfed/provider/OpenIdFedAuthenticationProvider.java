@@ -113,7 +113,7 @@ public class OpenIdFedAuthenticationProvider
         oidcProvider = new OidcAuthorizationCodeAuthenticationProvider(accessTokenResponseClient, userService);
 
         // replace jwtDecoderFactory to support providers with jwks in place of jwksUri
-        oidcProvider.setJwtDecoderFactory(new OIDCIdTokenDecoderFactory());
+        oidcProvider.setJwtDecoderFactory(OIDCIdTokenDecoderFactory.getInstance());
 
         // use a custom authorities mapper to cleanup authorities spring injects
         // default impl translates the whole oauth response as an authority..
@@ -21,6 +21,7 @@ import it.smartcommunitylab.aac.common.AlreadyRegisteredException;
 import it.smartcommunitylab.aac.common.InvalidDataException;
 import it.smartcommunitylab.aac.common.NoSuchRealmException;
 import it.smartcommunitylab.aac.common.RegistrationException;
+import it.smartcommunitylab.aac.events.RealmChangedEvent;
 import it.smartcommunitylab.aac.model.Realm;
 import it.smartcommunitylab.aac.oauth.model.OAuth2ConfigurationMap;
 import it.smartcommunitylab.aac.realms.persistence.RealmEntity;
@@ -28,6 +29,7 @@ import it.smartcommunitylab.aac.realms.persistence.RealmEntityRepository;
 import it.smartcommunitylab.aac.templates.model.LocalizationConfigurationMap;
 import it.smartcommunitylab.aac.templates.model.TemplatesConfigurationMap;
 import it.smartcommunitylab.aac.tos.TosConfigurationMap;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 import java.io.Serializable;
 import java.util.HashSet;
 import java.util.List;
@@ -35,6 +37,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.support.PageableExecutionUtils;
@@ -45,7 +49,7 @@ import org.springframework.util.StringUtils;
 
 @Service
 @Transactional
-public class RealmService implements InitializingBean {
+public class RealmService implements InitializingBean, ApplicationEventPublisherAware {
 
     public static final Set<String> RESERVED_SLUG;
 
@@ -63,6 +67,8 @@ public class RealmService implements InitializingBean {
     // static immutable systemRealm
     private final Realm systemRealm;
 
+    private ApplicationEventPublisher eventPublisher;
+
     public RealmService(RealmEntityRepository realmRepository) {
         Assert.notNull(realmRepository, "realm repository is mandatory");
         this.realmRepository = realmRepository;
@@ -88,6 +94,11 @@ public class RealmService implements InitializingBean {
         Assert.notNull(systemRealm, "system realm can not be null");
     }
 
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
     public Realm addRealm(String slug, String name, String email, boolean isEditable, boolean isPublic)
         throws RegistrationException {
         if (!StringUtils.hasText(slug)) {
@@ -182,6 +193,7 @@ public class RealmService implements InitializingBean {
         r.setTemplatesConfigurationMap(templatesConfigurationMap);
 
         r = realmRepository.save(r);
+        notifyRealmChanged(slug);
 
         return toRealm(r);
     }
@@ -194,9 +206,19 @@ public class RealmService implements InitializingBean {
         RealmEntity r = realmRepository.findBySlug(slug);
         if (r != null) {
             realmRepository.delete(r);
+            notifyRealmChanged(slug);
         }
     }
 
+    private void notifyRealmChanged(String slug) {
+        if (eventPublisher == null) {
+            return;
+        }
+
+        // notify after commit so that listeners won't reload stale definitions
+        TransactionUtils.afterCommit(() -> eventPublisher.publishEvent(new RealmChangedEvent(slug)));
+    }
+
     @Transactional(readOnly = true)
     public List<Realm> listRealms() {
         List<RealmEntity> realms = realmRepository.findAll();
@@ -17,6 +17,7 @@
 package it.smartcommunitylab.aac.roles.persistence;
 
 import it.smartcommunitylab.aac.repository.CustomJpaRepository;
+import java.util.Collection;
 import java.util.List;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -27,6 +28,8 @@ import org.springframework.stereotype.Repository;
 public interface SpaceRoleEntityRepository extends CustomJpaRepository<SpaceRoleEntity, Long> {
     List<SpaceRoleEntity> findBySubject(String subject);
 
+    List<SpaceRoleEntity> findBySubjectIn(Collection<String> subjects);
+
     @Query("select r from SpaceRoleEntity r where subject = ?1 and (context = ?2 or context is null and ?2 is null)")
     List<SpaceRoleEntity> findBySubjectAndContext(String subject, String context);
 
@@ -17,6 +17,7 @@
 package it.smartcommunitylab.aac.roles.persistence;
 
 import it.smartcommunitylab.aac.repository.CustomJpaRepository;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import org.springframework.data.domain.Page;
@@ -38,4 +39,6 @@ public interface SubjectRoleEntityRepository extends CustomJpaRepository<Subject
     List<SubjectRoleEntity> findBySubject(String subject);
 
     List<SubjectRoleEntity> findBySubjectAndRealm(String subject, String realm);
+
+    List<SubjectRoleEntity> findByRealmAndSubjectIn(String realm, Collection<String> subjects);
 }
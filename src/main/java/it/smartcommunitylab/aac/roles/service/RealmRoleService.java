@@ -20,6 +20,7 @@ import it.smartcommunitylab.aac.SystemKeys;
 import it.smartcommunitylab.aac.common.NoSuchRoleException;
 import it.smartcommunitylab.aac.common.NoSuchSubjectException;
 import it.smartcommunitylab.aac.core.service.SubjectService;
+import it.smartcommunitylab.aac.events.RealmRolesChangedEvent;
 import it.smartcommunitylab.aac.model.RealmRole;
 import it.smartcommunitylab.aac.model.Subject;
 import it.smartcommunitylab.aac.oauth.store.SearchableApprovalStore;
@@ -27,6 +28,7 @@ import it.smartcommunitylab.aac.roles.persistence.RealmRoleEntity;
 import it.smartcommunitylab.aac.roles.persistence.RealmRoleEntityRepository;
 import it.smartcommunitylab.aac.roles.persistence.SubjectRoleEntity;
 import it.smartcommunitylab.aac.roles.persistence.SubjectRoleEntityRepository;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -34,6 +36,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.support.PageableExecutionUtils;
@@ -45,12 +49,13 @@ import org.springframework.util.StringUtils;
 
 @Service
 @Transactional
-public class RealmRoleService {
+public class RealmRoleService implements ApplicationEventPublisherAware {
 
     private final RealmRoleEntityRepository roleRepository;
     private final SubjectRoleEntityRepository rolesRepository;
     private final SubjectService subjectService;
     private SearchableApprovalStore approvalStore;
+    private ApplicationEventPublisher eventPublisher;
 
     public RealmRoleService(
         RealmRoleEntityRepository roleRepository,
@@ -71,6 +76,11 @@ public class RealmRoleService {
         this.approvalStore = approvalStore;
     }
 
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
     /*
      * Role model
      */
@@ -97,6 +107,7 @@ public class RealmRoleService {
         r.setDescription(description);
 
         r = roleRepository.save(r);
+        notifyRolesChanged(realm);
 
         return toRole(r);
     }
@@ -209,6 +220,7 @@ public class RealmRoleService {
         r.setDescription(description);
 
         r = roleRepository.save(r);
+        notifyRolesChanged(r.getRealm());
 
         // check if subject exists and update name
         Subject s = subjectService.findSubject(roleId);
@@ -227,12 +239,22 @@ public class RealmRoleService {
         RealmRoleEntity r = roleRepository.findOne(roleId);
         if (r != null) {
             roleRepository.delete(r);
+            notifyRolesChanged(r.getRealm());
 
             // remove subject if exists
             subjectService.deleteSubject(roleId);
         }
     }
 
+    private void notifyRolesChanged(String realm) {
+        if (eventPublisher == null) {
+            return;
+        }
+
+        // notify after commit so that listeners won't reload stale definitions
+        TransactionUtils.afterCommit(() -> eventPublisher.publishEvent(new RealmRolesChangedEvent(realm)));
+    }
+
     //    public Collection<Approval> getApprovals(String roleId) throws NoSuchRoleException {
     //        RealmRoleEntity r = roleRepository.findOne(roleId);
     //        if (r == null) {
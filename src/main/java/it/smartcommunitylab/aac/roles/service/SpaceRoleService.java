@@ -22,8 +22,10 @@ import it.smartcommunitylab.aac.roles.persistence.SpaceRoleEntity;
 import it.smartcommunitylab.aac.roles.persistence.SpaceRoleEntityRepository;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -45,20 +47,31 @@ public class SpaceRoleService {
     public Collection<SpaceRole> getRoles(String subject) {
         List<SpaceRoleEntity> rr = roleRepository.findBySubject(subject);
 
-        return rr
+        return rr.stream().map(r -> toRole(r)).collect(Collectors.toSet());
+    }
+
+    @Transactional(readOnly = true)
+    public Map<String, Collection<SpaceRole>> getRolesBySubject(Collection<String> subjects) {
+        if (subjects == null || subjects.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        return roleRepository
+            .findBySubjectIn(subjects)
             .stream()
-            .map(r -> addRole(subject, r.getContext(), r.getSpace(), r.getRole()))
-            .collect(Collectors.toSet());
+            .collect(
+                Collectors.groupingBy(
+                    SpaceRoleEntity::getSubject,
+                    Collectors.mapping(r -> toRole(r), Collectors.toCollection(HashSet::new))
+                )
+            );
     }
 
     @Transactional(readOnly = true)
     public Collection<SpaceRole> getRoles(String subject, String context) {
         List<SpaceRoleEntity> rr = roleRepository.findBySubjectAndContext(subject, context);
 
-        return rr
-            .stream()
-            .map(r -> addRole(subject, r.getContext(), r.getSpace(), r.getRole()))
-            .collect(Collectors.toSet());
+        return rr.stream().map(r -> toRole(r)).collect(Collectors.toSet());
     }
 
     @Transactional(readOnly = true)
@@ -93,10 +106,7 @@ public class SpaceRoleService {
     public Collection<SpaceRole> getRoles(String subject, String context, String space) {
         List<SpaceRoleEntity> rr = roleRepository.findBySubjectAndContextAndSpace(subject, context, space);
 
-        return rr
-            .stream()
-            .map(r -> addRole(subject, r.getContext(), r.getSpace(), r.getRole()))
-            .collect(Collectors.toSet());
+        return rr.stream().map(r -> toRole(r)).collect(Collectors.toSet());
     }
 
     public SpaceRole addRole(String subject, String context, String space, String role) {
@@ -16,16 +16,27 @@
 
 package it.smartcommunitylab.aac.roles.service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import it.smartcommunitylab.aac.events.RealmRolesChangedEvent;
 import it.smartcommunitylab.aac.model.RealmRole;
 import it.smartcommunitylab.aac.roles.persistence.RealmRoleEntity;
 import it.smartcommunitylab.aac.roles.persistence.RealmRoleEntityRepository;
 import it.smartcommunitylab.aac.roles.persistence.SubjectRoleEntity;
 import it.smartcommunitylab.aac.roles.persistence.SubjectRoleEntityRepository;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
@@ -34,15 +45,48 @@ import org.springframework.util.Assert;
 @Transactional
 public class SubjectRoleService {
 
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_CACHE_TTL = 300; // 5 minutes
+    public static final int DEFAULT_INDEX_SIZE = 1000;
+
+    // max number of subjects per IN query
+    private static final int BATCH_SIZE = 500;
+
     private final RealmRoleEntityRepository roleRepository;
     private final SubjectRoleEntityRepository rolesRepository;
 
-    public SubjectRoleService(RealmRoleEntityRepository roleRepository, SubjectRoleEntityRepository rolesRepository) {
+    // role definitions by realm
+    private final Cache<String, Map<String, RealmRoleEntity>> roleIndex;
+
+    // roles assigned to subjects, by realm and subject
+    private final Cache<String, Set<String>> subjectRoles;
+
+    public SubjectRoleService(
+        RealmRoleEntityRepository roleRepository,
+        SubjectRoleEntityRepository rolesRepository,
+        @Value("${roles.cache.size:" + DEFAULT_CACHE_SIZE + "}") int cacheSize,
+        @Value("${roles.cache.ttl:" + DEFAULT_CACHE_TTL + "}") int cacheTtl,
+        @Value("${roles.index.size:" + DEFAULT_INDEX_SIZE + "}") int indexSize
+    ) {
         Assert.notNull(roleRepository, "role repository is mandatory");
         Assert.notNull(rolesRepository, "roles repository is mandatory");
 
         this.roleRepository = roleRepository;
         this.rolesRepository = rolesRepository;
+
+        // ttl bounds staleness across nodes
+        this.roleIndex =
+            CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(cacheTtl, 0), TimeUnit.SECONDS)
+                .maximumSize(Math.max(indexSize, 0))
+                .build();
+        this.subjectRoles =
+            CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(cacheTtl, 0), TimeUnit.SECONDS)
+                .maximumSize(Math.max(cacheSize, 0))
+                .build();
     }
 
     /*
@@ -55,6 +99,7 @@ public class SubjectRoleService {
             sr.setRealm(realm);
             sr.setRole(role);
             sr = rolesRepository.save(sr);
+            evict(subjectId, realm);
         }
 
         return sr.getSubject();
@@ -101,6 +146,8 @@ public class SubjectRoleService {
         // update
         rolesRepository.deleteAllInBatch(toDelete);
         rolesRepository.saveAll(toAdd);
+        evict(toDelete);
+        evict(toAdd);
 
         return getRoleSubjects(realm, role);
     }
@@ -109,6 +156,7 @@ public class SubjectRoleService {
         SubjectRoleEntity sr = rolesRepository.findByRealmAndRoleAndSubject(realm, role, subjectId);
         if (sr != null) {
             rolesRepository.delete(sr);
+            evict(subjectId, realm);
         }
     }
 
@@ -122,11 +170,67 @@ public class SubjectRoleService {
 
     @Transactional(readOnly = true)
     public Collection<RealmRole> getRoles(String subjectId, String realm) {
-        return rolesRepository
-            .findBySubjectAndRealm(subjectId, realm)
-            .stream()
-            .map(r -> toRole(r))
-            .collect(Collectors.toList());
+        return getRoles(Collections.singleton(subjectId), realm);
+    }
+
+    /*
+     * Roles assigned to any of the given subjects, resolved via cache and a single
+     * IN query per batch for missing subjects
+     */
+    @Transactional(readOnly = true)
+    public Collection<RealmRole> getRoles(Collection<String> subjectIds, String realm) {
+        Set<String> roles = new HashSet<>();
+        loadRoles(subjectIds, realm).values().forEach(r -> roles.addAll(r));
+
+        return roles.stream().map(r -> toRole(realm, r)).collect(Collectors.toList());
+    }
+
+    /*
+     * Roles assigned to each of the given subjects, keyed by subject
+     */
+    @Transactional(readOnly = true)
+    public Map<String, Collection<RealmRole>> getRolesBySubject(Collection<String> subjectIds, String realm) {
+        Map<String, Collection<RealmRole>> result = new HashMap<>();
+        loadRoles(subjectIds, realm)
+            .forEach((subjectId, roles) ->
+                result.put(subjectId, roles.stream().map(r -> toRole(realm, r)).collect(Collectors.toList()))
+            );
+
+        return result;
+    }
+
+    private Map<String, Set<String>> loadRoles(Collection<String> subjectIds, String realm) {
+        Map<String, Set<String>> roles = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String subjectId : subjectIds) {
+            Set<String> cached = subjectRoles.getIfPresent(extractKey(subjectId, realm));
+            if (cached != null) {
+                roles.put(subjectId, cached);
+            } else {
+                missing.add(subjectId);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            // subjects with no roles are cached as empty
+            Map<String, Set<String>> assigned = new HashMap<>();
+            missing.forEach(subjectId -> assigned.put(subjectId, new HashSet<>()));
+
+            for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+                List<String> batch = missing.subList(i, Math.min(i + BATCH_SIZE, missing.size()));
+                rolesRepository
+                    .findByRealmAndSubjectIn(realm, batch)
+                    .forEach(r -> assigned.get(r.getSubject()).add(r.getRole()));
+            }
+
+            assigned.forEach((subjectId, r) -> {
+                Set<String> set = Collections.unmodifiableSet(r);
+                subjectRoles.put(extractKey(subjectId, realm), set);
+                roles.put(subjectId, set);
+            });
+        }
+
+        return roles;
     }
 
     public Collection<RealmRole> addRoles(String subjectId, String realm, Collection<String> roles) {
@@ -147,6 +251,7 @@ public class SubjectRoleService {
         // add
         Set<SubjectRoleEntity> toAdd = newRoles.stream().filter(r -> !oldRoles.contains(r)).collect(Collectors.toSet());
         Collection<SubjectRoleEntity> result = rolesRepository.saveAll(toAdd);
+        evict(subjectId, realm);
 
         return result.stream().map(r -> toRole(r)).collect(Collectors.toList());
     }
@@ -175,6 +280,7 @@ public class SubjectRoleService {
 
         rolesRepository.deleteAll(toDelete);
         rolesRepository.saveAll(toAdd);
+        evict(subjectId, realm);
 
         return getRoles(subjectId, realm);
     }
@@ -203,6 +309,8 @@ public class SubjectRoleService {
 
         rolesRepository.deleteAll(toDelete);
         rolesRepository.saveAll(toAdd);
+        evict(toDelete);
+        evict(toAdd);
 
         return getRoles(subjectId);
     }
@@ -229,6 +337,7 @@ public class SubjectRoleService {
             .collect(Collectors.toSet());
 
         rolesRepository.deleteAll(toDelete);
+        evict(subjectId, realm);
     }
 
     public void removeRoles(String realm, String role) {
@@ -236,6 +345,7 @@ public class SubjectRoleService {
         if (!roles.isEmpty()) {
             // remove
             rolesRepository.deleteAll(roles);
+            evict(roles);
         }
     }
 
@@ -244,6 +354,7 @@ public class SubjectRoleService {
         if (!roles.isEmpty()) {
             // remove
             rolesRepository.deleteAll(roles);
+            evict(roles);
         }
     }
 
@@ -252,20 +363,64 @@ public class SubjectRoleService {
         if (!roles.isEmpty()) {
             // remove
             rolesRepository.deleteAll(roles);
+            evict(roles);
         }
     }
 
+    @EventListener
+    public void onRealmRolesChanged(RealmRolesChangedEvent event) {
+        roleIndex.invalidate(event.getRealm());
+    }
+
+    private void evict(String subjectId, String realm) {
+        evictOnCompletion(Collections.singleton(extractKey(subjectId, realm)));
+    }
+
+    private void evict(Collection<SubjectRoleEntity> roles) {
+        evictOnCompletion(roles.stream().map(r -> extractKey(r.getSubject(), r.getRealm())).collect(Collectors.toSet()));
+    }
+
+    private void evictOnCompletion(Set<String> keys) {
+        // evict now for reads within this transaction, and again on completion so that
+        // entries loaded meanwhile from uncommitted or stale state are dropped
+        subjectRoles.invalidateAll(keys);
+        TransactionUtils.afterCompletion(() -> subjectRoles.invalidateAll(keys));
+    }
+
+    private String extractKey(String subjectId, String realm) {
+        return realm + ":" + subjectId;
+    }
+
+    private Map<String, RealmRoleEntity> getRoleIndex(String realm) {
+        Map<String, RealmRoleEntity> index = roleIndex.getIfPresent(realm);
+        if (index == null) {
+            // load all role definitions for realm with a single query
+            index =
+                roleRepository
+                    .findByRealm(realm)
+                    .stream()
+                    .collect(Collectors.toMap(e -> e.getRole(), e -> e, (e1, e2) -> e1));
+            roleIndex.put(realm, index);
+        }
+
+        return index;
+    }
+
     private RealmRole toRole(SubjectRoleEntity r) {
-        RealmRole role = new RealmRole(r.getRealm(), r.getRole());        
-        // load role model to fill properties
-        RealmRoleEntity re = roleRepository.findByRealmAndRole(r.getRealm(), r.getRole());
+        return toRole(r.getRealm(), r.getRole());
+    }
+
+    private RealmRole toRole(String realm, String r) {
+        RealmRole role = new RealmRole(realm, r);
+        // use role model to fill properties
+        RealmRoleEntity re = getRoleIndex(realm).get(r);
         if (re != null) {
             role.setRoleId(re.getId());
             String name = re.getName() != null ? re.getName() : re.getRole();
             role.setName(name);
             role.setDescription(re.getDescription());
         }
-        
+
         return role;
     }
 }
@@ -16,6 +16,7 @@
 
 package it.smartcommunitylab.aac.saml;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.SystemKeys;
 import it.smartcommunitylab.aac.accounts.persistence.UserAccountService;
 import it.smartcommunitylab.aac.claims.ScriptExecutionService;
@@ -30,6 +31,8 @@ import it.smartcommunitylab.aac.saml.provider.SamlIdentityConfigurationProvider;
 import it.smartcommunitylab.aac.saml.provider.SamlIdentityProvider;
 import it.smartcommunitylab.aac.saml.provider.SamlIdentityProviderConfig;
 import it.smartcommunitylab.aac.saml.provider.SamlIdentityProviderConfigMap;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
@@ -39,7 +42,7 @@ import org.springframework.util.Assert;
 @Service
 public class SamlIdentityAuthority
     extends AbstractIdentityProviderAuthority<SamlIdentityProvider, SamlUserIdentity, SamlIdentityProviderConfig, SamlIdentityProviderConfigMap>
-    implements ApplicationEventPublisherAware {
+    implements ApplicationEventPublisherAware, DisposableBean {
 
     public static final String AUTHORITY_URL = "/auth/" + SystemKeys.AUTHORITY_SAML + "/";
 
@@ -86,6 +89,11 @@ public class SamlIdentityAuthority
         this.configProvider = configProvider;
     }
 
+    @Autowired
+    public void setMeterRegistry(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(r -> relyingPartyRegistrationRepository.registerMetrics(r));
+    }
+
     @Autowired
     public void setExecutionService(ScriptExecutionService executionService) {
         this.executionService = executionService;
@@ -106,6 +114,11 @@ public class SamlIdentityAuthority
         super.afterPropertiesSet();
     }
 
+    @Override
+    public void destroy() {
+        relyingPartyRegistrationRepository.destroy();
+    }
+
     @Override
     public SamlFilterProvider getFilterProvider() {
         return this.filterProvider;
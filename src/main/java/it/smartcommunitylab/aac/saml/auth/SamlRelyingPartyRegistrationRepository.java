@@ -16,22 +16,144 @@
 
 package it.smartcommunitylab.aac.saml.auth;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.saml.provider.SamlIdentityProviderConfig;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.xml.XMLConstants;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.security.saml2.core.Saml2Error;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrationRepository;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.w3c.dom.Element;
 
-public class SamlRelyingPartyRegistrationRepository implements RelyingPartyRegistrationRepository {
+/*
+ * Relying party registrations are built once per provider config version and
+ * cached, along with the idp metadata they are built from.
+ *
+ * Metadata is refreshed in background according to validUntil/cacheDuration:
+ * while refreshing, and when refresh fails, the current registration keeps being
+ * served. Config changes are rebuilt from the current metadata when its location
+ * is unchanged, so that only the very first load hits the network: that one is
+ * performed in background as well, and callers wait for it up to a short delay.
+ * When the delay expires the lookup fails with a descriptive error instead of
+ * reporting the registration as missing, while the load completes in background.
+ */
+public class SamlRelyingPartyRegistrationRepository implements RelyingPartyRegistrationRepository, DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final long DEFAULT_METADATA_TTL = 6 * 60 * 60; // 6 hours
+    public static final long MIN_METADATA_TTL = 60; // 1 minute
+    public static final long MAX_METADATA_TTL = 24 * 60 * 60; // 1 day
+    public static final long RETRY_DELAY = 60; // 1 minute
+    public static final int DEFAULT_TIMEOUT = 10; // 10 seconds
+    public static final int DEFAULT_FIRST_LOAD_WAIT = 3; // 3 seconds
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    private static final String SAML_METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
 
     // provider configs by id
     private final ProviderConfigRepository<SamlIdentityProviderConfig> registrationRepository;
 
+    // built registrations by provider id
+    private final Cache<String, CachedRegistration> registrations;
+
+    // first loads in progress, by provider id and version
+    private final Map<String, Future<CachedRegistration>> loading = new ConcurrentHashMap<>();
+
+    private final ResourceLoader resourceLoader = new DefaultResourceLoader();
+    private final ExecutorService executor;
+    private final DatatypeFactory datatypeFactory;
+
+    private Timer fetchTimer;
+
+    // connect and read timeout for metadata, in seconds
+    private int timeout = DEFAULT_TIMEOUT;
+    // max wait for first loads, in seconds
+    private int firstLoadWait = DEFAULT_FIRST_LOAD_WAIT;
+
     public SamlRelyingPartyRegistrationRepository(
         ProviderConfigRepository<SamlIdentityProviderConfig> registrationRepository
     ) {
         Assert.notNull(registrationRepository, "provider registration repository can not be null");
         this.registrationRepository = registrationRepository;
+
+        this.registrations = CacheBuilder.newBuilder().maximumSize(DEFAULT_CACHE_SIZE).recordStats().build();
+
+        // a slow idp should not delay loads for the others
+        this.executor =
+            Executors.newFixedThreadPool(
+                DEFAULT_POOL_SIZE,
+                r -> {
+                    Thread t = new Thread(r, "saml-metadata-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            );
+
+        try {
+            this.datatypeFactory = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException("xml datatype factory not available");
+        }
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        GuavaCacheMetrics.monitor(meterRegistry, registrations, "saml.registrations");
+        fetchTimer =
+            Timer
+                .builder("saml.metadata.fetch")
+                .description("Latency of idp metadata retrieval")
+                .register(meterRegistry);
+    }
+
+    public void setTimeout(int timeout) {
+        Assert.isTrue(timeout > 0, "timeout must be positive");
+        this.timeout = timeout;
+    }
+
+    public void setFirstLoadWait(int firstLoadWait) {
+        Assert.isTrue(firstLoadWait >= 0, "wait can not be negative");
+        this.firstLoadWait = firstLoadWait;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
     }
 
     /*
@@ -45,11 +167,272 @@ public class SamlRelyingPartyRegistrationRepository implements RelyingPartyRegis
         // fetch provider registration with matching id
         SamlIdentityProviderConfig providerConfig = registrationRepository.findByProviderId(registrationId);
         if (providerConfig == null) {
+            registrations.invalidate(registrationId);
             return null;
         }
 
-        // build
-        // TODO registrationId loading cache
-        return providerConfig.getRelyingPartyRegistration();
+        CachedRegistration cached = registrations.getIfPresent(registrationId);
+        if (cached != null && cached.version == providerConfig.getVersion()) {
+            if (cached.metadataLocation != null && cached.refreshAt < System.currentTimeMillis()) {
+                // serve current while revalidating
+                refresh(registrationId, providerConfig, cached);
+            }
+
+            return cached.registration;
+        }
+
+        String metadataLocation = providerConfig.getIdpMetadataUrl();
+        if (metadataLocation == null) {
+            // manual configuration, build in place
+            CachedRegistration registration = build(providerConfig, null);
+            registrations.put(registrationId, registration);
+            return registration.registration;
+        }
+
+        if (cached != null && metadataLocation.equals(cached.metadataLocation)) {
+            // config changed but metadata did not, rebuild from current and keep refresh schedule
+            CachedRegistration registration = build(providerConfig, cached.metadata);
+            registration.refreshAt = Math.min(registration.refreshAt, cached.refreshAt);
+            if (!registrations.asMap().replace(registrationId, cached, registration)) {
+                // lost the race with a concurrent rebuild or refresh, prefer the current one if up to date
+                CachedRegistration current = registrations.getIfPresent(registrationId);
+                if (current != null && current.version == providerConfig.getVersion()) {
+                    return current.registration;
+                }
+
+                logger.debug("registration for {} changed while rebuilding, not cached", registrationId);
+            }
+
+            return registration.registration;
+        }
+
+        // first load for this location, fetch in background and wait for a bounded time
+        return load(registrationId, providerConfig);
+    }
+
+    private RelyingPartyRegistration load(String registrationId, SamlIdentityProviderConfig providerConfig) {
+        String key = registrationId + ":" + providerConfig.getVersion();
+        FutureTask<CachedRegistration> task = new FutureTask<>(() -> {
+            CachedRegistration registration = build(providerConfig);
+            registrations.put(registrationId, registration);
+            return registration;
+        });
+
+        Future<CachedRegistration> future = loading.putIfAbsent(key, task);
+        if (future == null) {
+            // single load per version, shared by concurrent callers
+            future = task;
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        loading.remove(key, task);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                loading.remove(key, task);
+                throw new RuntimeException("error loading metadata for " + registrationId);
+            }
+        }
+
+        try {
+            return future.get(firstLoadWait, TimeUnit.SECONDS).registration;
+        } catch (TimeoutException e) {
+            // keep loading in background, next requests will find the registration
+            logger.warn("metadata for {} not yet available", registrationId);
+            throw unavailable(registrationId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw unavailable(registrationId);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new RuntimeException("error loading metadata for " + registrationId + ": " + cause.getMessage());
+        }
+    }
+
+    private Saml2AuthenticationException unavailable(String registrationId) {
+        // registration exists but can not be served yet, do not report it as missing
+        return new Saml2AuthenticationException(
+            new Saml2Error(
+                Saml2ErrorCodes.INTERNAL_VALIDATION_ERROR,
+                "metadata for " + registrationId + " is still loading, retry later"
+            )
+        );
+    }
+
+    private void refresh(String registrationId, SamlIdentityProviderConfig providerConfig, CachedRegistration cached) {
+        // single refresh per entry
+        if (!cached.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    CachedRegistration registration = build(providerConfig);
+                    // replace only if config has not changed meanwhile
+                    if (!registrations.asMap().replace(registrationId, cached, registration)) {
+                        logger.debug("registration for {} changed during refresh, discard result", registrationId);
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn(
+                        "error refreshing metadata for {}, keep serving current: {}",
+                        registrationId,
+                        e.getMessage()
+                    );
+                    if (cached.expiresAt != null && cached.expiresAt < System.currentTimeMillis()) {
+                        logger.warn("metadata for {} is past validUntil", registrationId);
+                    }
+
+                    // back off before next attempt
+                    cached.refreshAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RETRY_DELAY);
+                    cached.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor rejected, retry on next access
+            cached.refreshing.set(false);
+        }
+    }
+
+    private CachedRegistration build(SamlIdentityProviderConfig providerConfig) {
+        String metadataLocation = providerConfig.getIdpMetadataUrl();
+        return build(providerConfig, metadataLocation != null ? fetchMetadata(metadataLocation) : null);
+    }
+
+    private CachedRegistration build(SamlIdentityProviderConfig providerConfig, byte[] metadata) {
+        String metadataLocation = providerConfig.getIdpMetadataUrl();
+        if (metadataLocation == null) {
+            // manual configuration, never expires
+            return new CachedRegistration(
+                providerConfig.getVersion(),
+                providerConfig.getRelyingPartyRegistration(),
+                null,
+                null,
+                Long.MAX_VALUE,
+                null
+            );
+        }
+
+        RelyingPartyRegistration registration = providerConfig.getRelyingPartyRegistration(
+            new ByteArrayInputStream(metadata)
+        );
+
+        // evaluate refresh from metadata validity
+        long now = System.currentTimeMillis();
+        long ttl = TimeUnit.SECONDS.toMillis(DEFAULT_METADATA_TTL);
+        Long expiresAt = null;
+        try {
+            Element root = parseRoot(metadata);
+            String cacheDuration = root.getAttribute("cacheDuration");
+            if (StringUtils.hasText(cacheDuration)) {
+                ttl = datatypeFactory.newDuration(cacheDuration.trim()).getTimeInMillis(new Date(now));
+            }
+
+            String validUntil = root.getAttribute("validUntil");
+            if (StringUtils.hasText(validUntil)) {
+                expiresAt =
+                    datatypeFactory.newXMLGregorianCalendar(validUntil.trim()).toGregorianCalendar().getTimeInMillis();
+            }
+        } catch (Exception e) {
+            // metadata was valid for registration, use defaults
+            logger.debug("error reading metadata validity from {}: {}", metadataLocation, e.getMessage());
+        }
+
+        ttl =
+            Math.max(
+                TimeUnit.SECONDS.toMillis(MIN_METADATA_TTL),
+                Math.min(ttl, TimeUnit.SECONDS.toMillis(MAX_METADATA_TTL))
+            );
+        long refreshAt = now + ttl;
+        if (expiresAt != null && expiresAt < refreshAt) {
+            refreshAt = Math.max(expiresAt, now + TimeUnit.SECONDS.toMillis(MIN_METADATA_TTL));
+        }
+
+        return new CachedRegistration(
+            providerConfig.getVersion(),
+            registration,
+            metadataLocation,
+            metadata,
+            refreshAt,
+            expiresAt
+        );
+    }
+
+    private byte[] fetchMetadata(String location) {
+        long start = System.nanoTime();
+        try (InputStream is = openMetadata(location)) {
+            byte[] metadata = is.readAllBytes();
+            if (fetchTimer != null) {
+                fetchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+
+            return metadata;
+        } catch (IOException e) {
+            throw new RuntimeException("error fetching metadata from " + location + ": " + e.getMessage());
+        }
+    }
+
+    private InputStream openMetadata(String location) throws IOException {
+        if (!location.startsWith("http://") && !location.startsWith("https://")) {
+            // local resources (classpath, file)
+            return resourceLoader.getResource(location).getInputStream();
+        }
+
+        // remote metadata with explicit timeouts
+        URLConnection conn = new URL(location).openConnection();
+        conn.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(timeout));
+        conn.setReadTimeout((int) TimeUnit.SECONDS.toMillis(timeout));
+        if (conn instanceof HttpURLConnection) {
+            int status = ((HttpURLConnection) conn).getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                ((HttpURLConnection) conn).disconnect();
+                throw new IOException("invalid response status " + status);
+            }
+        }
+
+        return conn.getInputStream();
+    }
+
+    private Element parseRoot(byte[] metadata) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+
+        Element root = factory.newDocumentBuilder().parse(new ByteArrayInputStream(metadata)).getDocumentElement();
+        if (!SAML_METADATA_NS.equals(root.getNamespaceURI())) {
+            throw new IllegalArgumentException("invalid metadata");
+        }
+
+        return root;
+    }
+
+    private static class CachedRegistration {
+
+        private final int version;
+        private final RelyingPartyRegistration registration;
+        private final String metadataLocation;
+        private final byte[] metadata;
+        private final Long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile long refreshAt;
+
+        public CachedRegistration(
+            int version,
+            RelyingPartyRegistration registration,
+            String metadataLocation,
+            byte[] metadata,
+            long refreshAt,
+            Long expiresAt
+        ) {
+            this.version = version;
+            this.registration = registration;
+            this.metadataLocation = metadataLocation;
+            this.metadata = metadata;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
     }
 }
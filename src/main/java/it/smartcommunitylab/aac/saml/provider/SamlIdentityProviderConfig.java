@@ -22,6 +22,7 @@ import it.smartcommunitylab.aac.identity.base.AbstractIdentityProviderConfig;
 import it.smartcommunitylab.aac.identity.model.ConfigurableIdentityProvider;
 import it.smartcommunitylab.aac.identity.provider.IdentityProviderSettingsMap;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.security.PrivateKey;
 import java.security.cert.CertificateException;
@@ -103,8 +104,31 @@ public class SamlIdentityProviderConfig extends AbstractIdentityProviderConfig<S
         return relyingPartyRegistration;
     }
 
-    // TODO throws exception if configuration is invalid
+    /*
+     * Build registration from an already fetched idp metadata document, to let
+     * callers handle retrieval and caching
+     */
+    @JsonIgnore
+    public RelyingPartyRegistration getRelyingPartyRegistration(InputStream idpMetadata) {
+        try {
+            return toRelyingPartyRegistration(idpMetadata);
+        } catch (IOException | CertificateException e) {
+            throw new RuntimeException("error building registration: " + e.getMessage());
+        }
+    }
+
+    @JsonIgnore
+    public String getIdpMetadataUrl() {
+        return StringUtils.hasText(configMap.getIdpMetadataUrl()) ? configMap.getIdpMetadataUrl() : null;
+    }
+
     private RelyingPartyRegistration toRelyingPartyRegistration() throws IOException, CertificateException {
+        return toRelyingPartyRegistration(null);
+    }
+
+    // TODO throws exception if configuration is invalid
+    private RelyingPartyRegistration toRelyingPartyRegistration(InputStream idpMetadata)
+        throws IOException, CertificateException {
         // set base parameters
         String entityId = getEntityId();
         String assertionConsumerServiceLocation = assertionConsumerUrlTemplate();
@@ -132,7 +156,10 @@ public class SamlIdentityProviderConfig extends AbstractIdentityProviderConfig<S
         String registrationId = getProvider();
         RelyingPartyRegistration.Builder builder = RelyingPartyRegistration.withRegistrationId(registrationId);
 
-        if (StringUtils.hasText(idpMetadataLocation)) {
+        if (idpMetadata != null) {
+            // read provided metadata to autoconfigure
+            builder = RelyingPartyRegistrations.fromMetadata(idpMetadata).registrationId(registrationId);
+        } else if (StringUtils.hasText(idpMetadataLocation)) {
             // read metadata to autoconfigure
             builder = RelyingPartyRegistrations.fromMetadataLocation(idpMetadataLocation).registrationId(
                 registrationId
@@ -20,11 +20,14 @@ import it.smartcommunitylab.aac.common.NoSuchResourceException;
 import it.smartcommunitylab.aac.common.NoSuchScopeException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,15 +35,32 @@ import org.springframework.util.StringUtils;
 
 /*
  * In-memory scope registry
+ *
+ * Scopes are indexed at registration, the index is replaced as a whole on
+ * every change so that lookups never observe partial updates. Providers backed
+ * by stores may change their scopes without registering again, so the index is
+ * also rebuilt lazily once past its ttl: a single thread rebuilds outside the
+ * lock while lookups keep using the current index, and the result is published
+ * only if no registration happened meanwhile.
  */
 
 public class InMemoryScopeRegistry implements ScopeRegistry {
 
+    public static final long DEFAULT_INDEX_TTL = 60; // 1 minute
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     // provider registry is a map with keys matching resourceIds
     private final Map<String, ScopeProvider> providers = new ConcurrentHashMap<>();
 
+    // scope index, first registered provider exporting a scope wins
+    private volatile Map<String, IndexedScope> scopes = Collections.emptyMap();
+    private volatile long indexedAt = System.currentTimeMillis();
+    // bumped on registration changes so that lazy rebuilds never replace newer indexes
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean reindexing = new AtomicBoolean(false);
+    private long indexTtl = TimeUnit.SECONDS.toMillis(DEFAULT_INDEX_TTL);
+
     // create the register and populate will all providers
     public InMemoryScopeRegistry(Collection<ScopeProvider> scopeProviders) {
         // register internal scopeProviders to bootstrap
@@ -50,6 +70,11 @@ public class InMemoryScopeRegistry implements ScopeRegistry {
         }
     }
 
+    public void setIndexTtl(long indexTtl) {
+        // ttl in seconds
+        this.indexTtl = TimeUnit.SECONDS.toMillis(indexTtl);
+    }
+
     @Override
     public void registerScopeProvider(ScopeProvider sp) {
         // check if aac scope, we don't want dynamic registration of core
@@ -72,9 +97,12 @@ public class InMemoryScopeRegistry implements ScopeRegistry {
             throw new IllegalArgumentException("can't register core scopes");
         }
 
-        if (providers.containsKey(resourceId)) {
+        synchronized (this) {
             // remove if matches registration
-            providers.remove(resourceId, sp);
+            if (providers.remove(resourceId, sp)) {
+                generation.incrementAndGet();
+                _unindex(sp);
+            }
         }
     }
 
@@ -106,7 +134,8 @@ public class InMemoryScopeRegistry implements ScopeRegistry {
             return null;
         }
 
-        return sp.getScopes().stream().filter(s -> s.getScope().equals(scope)).findFirst().orElse(null);
+        IndexedScope s = index().get(scope);
+        return s != null ? s.scope : null;
     }
 
     @Override
@@ -129,8 +158,9 @@ public class InMemoryScopeRegistry implements ScopeRegistry {
 
     @Override
     public Collection<Scope> listScopes(String resourceId) {
-        if (providers.containsKey(resourceId)) {
-            providers.get(resourceId).getScopes();
+        ScopeProvider sp = providers.get(resourceId);
+        if (sp != null) {
+            return sp.getScopes();
         }
 
         return Collections.emptyList();
@@ -141,17 +171,47 @@ public class InMemoryScopeRegistry implements ScopeRegistry {
      */
 
     private ScopeProvider _getProvider(String scope) {
-        Optional<ScopeProvider> provider = providers
-            .values()
-            .stream()
-            .filter(sp -> sp.getScopes().stream().anyMatch(s -> s.getScope().equals(scope)))
-            .findFirst();
+        IndexedScope s = index().get(scope);
+        return s != null ? s.provider : null;
+    }
 
-        if (provider.isPresent()) {
-            return provider.get();
+    private Map<String, IndexedScope> index() {
+        if (indexedAt + indexTtl < System.currentTimeMillis() && reindexing.compareAndSet(false, true)) {
+            // single rebuild, concurrent lookups keep using the current index
+            try {
+                _reindex();
+            } finally {
+                reindexing.set(false);
+            }
         }
 
-        return null;
+        return scopes;
+    }
+
+    private void _reindex() {
+        // providers may hit stores, build without holding the lock
+        long gen = generation.get();
+        Map<String, IndexedScope> current = this.scopes;
+        Map<String, IndexedScope> index = new HashMap<>();
+        for (ScopeProvider p : providers.values()) {
+            for (Scope s : p.getScopes()) {
+                IndexedScope e = current.get(s.getScope());
+                if (e != null && e.provider == p) {
+                    // keep current owner
+                    index.put(s.getScope(), new IndexedScope(p, s));
+                } else {
+                    index.putIfAbsent(s.getScope(), new IndexedScope(p, s));
+                }
+            }
+        }
+
+        synchronized (this) {
+            // discard if registrations changed meanwhile, next lookup will rebuild
+            if (gen == generation.get()) {
+                this.scopes = Collections.unmodifiableMap(index);
+                this.indexedAt = System.currentTimeMillis();
+            }
+        }
     }
 
     private void _registerProvider(ScopeProvider sp) {
@@ -170,7 +230,50 @@ public class InMemoryScopeRegistry implements ScopeRegistry {
 
         String resourceId = sp.getResourceId();
         logger.debug("register scope provider " + sp.toString() + " for resource " + resourceId);
-        providers.put(resourceId, sp);
+        synchronized (this) {
+            generation.incrementAndGet();
+            ScopeProvider previous = providers.put(resourceId, sp);
+            if (previous != null) {
+                _unindex(previous);
+            }
+
+            Map<String, IndexedScope> index = new HashMap<>(this.scopes);
+            for (Scope s : scopes) {
+                index.putIfAbsent(s.getScope(), new IndexedScope(sp, s));
+            }
+            this.scopes = Collections.unmodifiableMap(index);
+        }
+    }
+
+    // callers need to hold the lock
+    private void _unindex(ScopeProvider sp) {
+        Map<String, IndexedScope> index = new HashMap<>(this.scopes);
+        Set<String> removed = new HashSet<>();
+        index
+            .values()
+            .removeIf(e -> {
+                if (e.provider == sp) {
+                    removed.add(e.scope.getScope());
+                    return true;
+                }
+                return false;
+            });
+
+        // restore scopes shadowed by the removed provider, if any
+        if (!removed.isEmpty()) {
+            for (ScopeProvider p : providers.values()) {
+                if (p == sp) {
+                    continue;
+                }
+                for (Scope s : p.getScopes()) {
+                    if (removed.contains(s.getScope())) {
+                        index.putIfAbsent(s.getScope(), new IndexedScope(p, s));
+                    }
+                }
+            }
+        }
+
+        this.scopes = Collections.unmodifiableMap(index);
     }
 
     private boolean validateScope(Scope s) {
@@ -223,4 +326,15 @@ public class InMemoryScopeRegistry implements ScopeRegistry {
     public Collection<Resource> listResources() {
         return providers.values().stream().map(p -> p.getResource()).collect(Collectors.toList());
     }
+
+    private static class IndexedScope {
+
+        private final ScopeProvider provider;
+        private final Scope scope;
+
+        public IndexedScope(ScopeProvider provider, Scope scope) {
+            this.provider = provider;
+            this.scope = scope;
+        }
+    }
 }
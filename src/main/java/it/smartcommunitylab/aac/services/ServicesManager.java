@@ -217,6 +217,9 @@ public class ServicesManager implements InitializingBean {
         Service s = serviceService.addService(re.getSlug(), serviceId, namespace, name, description);
         serviceId = s.getServiceId();
 
+        // refresh extractors index with the new namespace
+        extractorsRegistry.refresh();
+
         try {
             // optional
             Map<String, String> claimMapping = service.getClaimMapping();
@@ -454,6 +457,9 @@ public class ServicesManager implements InitializingBean {
 
             // remove, will cleanup related entities
             serviceService.deleteService(serviceId);
+
+            // refresh extractors index without the namespace
+            extractorsRegistry.refresh();
         }
     }
 
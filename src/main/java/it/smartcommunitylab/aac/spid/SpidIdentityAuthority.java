@@ -19,6 +19,7 @@ package it.smartcommunitylab.aac.spid;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.smartcommunitylab.aac.SystemKeys;
 import it.smartcommunitylab.aac.accounts.persistence.UserAccountService;
 import it.smartcommunitylab.aac.claims.ScriptExecutionService;
@@ -27,6 +28,7 @@ import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.core.service.ResourceEntityService;
 import it.smartcommunitylab.aac.identity.base.AbstractIdentityProviderAuthority;
 import it.smartcommunitylab.aac.saml.model.SamlUserAccount;
+import it.smartcommunitylab.aac.spid.auth.SpidMetadataLoader;
 import it.smartcommunitylab.aac.spid.auth.SpidRelyingPartyRegistrationRepository;
 import it.smartcommunitylab.aac.spid.model.SpidUserIdentity;
 import it.smartcommunitylab.aac.spid.provider.SpidFilterProvider;
@@ -36,22 +38,34 @@ import it.smartcommunitylab.aac.spid.provider.SpidIdentityProviderConfig;
 import it.smartcommunitylab.aac.spid.provider.SpidIdentityProviderConfigMap;
 import it.smartcommunitylab.aac.spid.registry.LocalSpidRegistry;
 import it.smartcommunitylab.aac.spid.service.SpidRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.core.io.DefaultResourceLoader;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 
 @Service
 public class SpidIdentityAuthority
     extends AbstractIdentityProviderAuthority<SpidIdentityProvider, SpidUserIdentity, SpidIdentityProviderConfig, SpidIdentityProviderConfigMap>
-    implements ApplicationEventPublisherAware {
+    implements ApplicationEventPublisherAware, DisposableBean {
 
     public static final String AUTHORITY_URL = "/auth/" + SystemKeys.AUTHORITY_SPID + "/";
     private final UserAccountService<SamlUserAccount> accountService;
     private final SpidRelyingPartyRegistrationRepository registrationRepository;
     private final ProviderConfigRepository<SpidIdentityProviderConfig> providerConfigRepository;
     private final SpidFilterProvider filterProvider;
+    private final SpidMetadataLoader metadataLoader;
     private ScriptExecutionService executionService;
     private ResourceEntityService resourceService;
 
@@ -72,6 +86,7 @@ public class SpidIdentityAuthority
                         throw new IllegalArgumentException("no configuration matches id " + id);
                     }
                     config.setIdentityProviders(spidRegistry.getIdentityProviders());
+                    config.setMetadataLoader(metadataLoader);
                     return new SpidIdentityProvider(id, accountService, config, config.getRealm());
                 }
             }
@@ -87,6 +102,7 @@ public class SpidIdentityAuthority
         this.providerConfigRepository = providerConfigRepository;
         this.registrationRepository = new SpidRelyingPartyRegistrationRepository(providerConfigRepository);
         this.filterProvider = new SpidFilterProvider(registrationRepository, providerConfigRepository);
+        this.metadataLoader = new SpidMetadataLoader();
     }
 
     @Autowired
@@ -104,6 +120,11 @@ public class SpidIdentityAuthority
         this.resourceService = resourceService;
     }
 
+    @Autowired
+    public void setMeterRegistry(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(r -> metadataLoader.registerMetrics(r));
+    }
+
     @Autowired
     public void setSpidProperties(SpidProperties spidProperties) {
         this.spidProperties = spidProperties;
@@ -121,7 +142,22 @@ public class SpidIdentityAuthority
                 // remote Spid Registry currently not supported
                 spidRegistry = new LocalSpidRegistry(spidProperties);
             }
+
+            metadataLoader.setStoreDir(spidProperties.getMetadataStore());
+            if (spidProperties.getMetadataTimeout() != null) {
+                metadataLoader.setTimeout(spidProperties.getMetadataTimeout());
+            }
+            if (spidProperties.getMetadataRefresh() != null) {
+                metadataLoader.setRefreshInterval(spidProperties.getMetadataRefresh());
+            }
+            if (StringUtils.hasText(spidProperties.getMetadataCertificates())) {
+                metadataLoader.setTrustedCertificates(loadCertificates(spidProperties.getMetadataCertificates()));
+            }
+            if (spidProperties.getMetadataValidity() != null) {
+                filterProvider.setMetadataValidity(spidProperties.getMetadataValidity());
+            }
         }
+        metadataLoader.start();
 
         // TODO: rivedere: questa cosa è una porcheria
         SpidIdentityConfigurationProvider cfgProvider;
@@ -131,9 +167,22 @@ public class SpidIdentityAuthority
             throw new IllegalArgumentException();
         }
         cfgProvider.setLocalRegistry(spidRegistry.getIdentityProviders());
+        cfgProvider.setMetadataLoader(metadataLoader);
         setConfigProvider(cfgProvider);
     }
 
+    private Collection<X509Certificate> loadCertificates(String location) throws IOException, CertificateException {
+        // pem or der encoded, possibly more than one
+        try (InputStream is = new DefaultResourceLoader().getResource(location).getInputStream()) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            return factory
+                .generateCertificates(is)
+                .stream()
+                .map(c -> (X509Certificate) c)
+                .collect(Collectors.toList());
+        }
+    }
+
     @Override
     protected SpidIdentityProvider buildProvider(SpidIdentityProviderConfig config) {
         String id = config.getProvider();
@@ -148,6 +197,11 @@ public class SpidIdentityAuthority
         this.filterProvider.setApplicationEventPublisher(applicationEventPublisher);
     }
 
+    @Override
+    public void destroy() {
+        metadataLoader.destroy();
+    }
+
     @Override
     public SpidFilterProvider getFilterProvider() {
         return filterProvider;
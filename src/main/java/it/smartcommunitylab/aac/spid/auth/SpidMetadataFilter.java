@@ -18,37 +18,45 @@ package it.smartcommunitylab.aac.spid.auth;
 
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.spid.SpidIdentityAuthority;
+import it.smartcommunitylab.aac.spid.auth.SpidMetadataResolver.SignedMetadata;
 import it.smartcommunitylab.aac.spid.provider.SpidIdentityProviderConfig;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.springframework.core.convert.converter.Converter;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.lang.Nullable;
-import org.springframework.security.saml2.provider.service.metadata.OpenSamlMetadataResolver;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrationRepository;
 import org.springframework.security.saml2.provider.service.web.DefaultRelyingPartyRegistrationResolver;
 import org.springframework.security.saml2.provider.service.web.RelyingPartyRegistrationResolver;
-import org.springframework.security.saml2.provider.service.web.Saml2MetadataFilter;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.springframework.util.Assert;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 /*
- * SpidMetadataFilter is a wrapper around Saml2MetadataFilter that defines a custom registration resolver
- * and custom metadata resolver to comply with SPID peculiarities.
+ * SpidMetadataFilter serves the signed SP metadata, as Saml2MetadataFilter does,
+ * with a custom registration resolver and custom metadata resolver to comply
+ * with SPID peculiarities.
  * In the context of metadata, registrationId is providerId.
+ *
+ * Documents are cached by the resolver and served with ETag/Last-Modified to
+ * support conditional requests from validators and crawlers.
  */
 public class SpidMetadataFilter extends OncePerRequestFilter {
 
     public static final String DEFAULT_FILTER_URI = SpidIdentityAuthority.AUTHORITY_URL + "metadata/{registrationId}";
+    private static final String DEFAULT_METADATA_FILENAME = "spid-{registrationId}-metadata.xml";
 
-    private final Saml2MetadataFilter samlMetadataFilter;
+    private final RequestMatcher requestMatcher;
+    private final RelyingPartyRegistrationResolver registrationResolver;
+    private final SpidMetadataResolver metadataResolver;
 
     public SpidMetadataFilter(
         ProviderConfigRepository<SpidIdentityProviderConfig> configRepository,
@@ -56,18 +64,13 @@ public class SpidMetadataFilter extends OncePerRequestFilter {
     ) {
         Assert.notNull(configRepository, "provider registration repository cannot be null");
         Assert.notNull(relyingPartyRegistrationRepository, "relyingPartyRegistrationRepository cannot be null");
-        RelyingPartyRegistrationResolver registrationResolver = new DefaultRelyingPartyRegistrationResolver(
-            relyingPartyRegistrationRepository
-        );
-
-        RequestMatcher requestMatcher = new AntPathRequestMatcher(DEFAULT_FILTER_URI);
-        SpidMetadataResolver metadataResolver = new SpidMetadataResolver(configRepository);
-
-        samlMetadataFilter = new Saml2MetadataFilter(registrationResolver, metadataResolver);
+        this.registrationResolver = new DefaultRelyingPartyRegistrationResolver(relyingPartyRegistrationRepository);
+        this.requestMatcher = new AntPathRequestMatcher(DEFAULT_FILTER_URI);
+        this.metadataResolver = new SpidMetadataResolver(configRepository);
+    }
 
-        samlMetadataFilter.setRequestMatcher(requestMatcher);
-        samlMetadataFilter.setBeanName("SamlMetadataFilter" + "." + SpidIdentityAuthority.AUTHORITY_URL);
-        samlMetadataFilter.setMetadataFilename("spid-{registrationId}-metadata.xml");
+    public void setMetadataValidity(int metadataValidity) {
+        metadataResolver.setMetadataValidity(metadataValidity);
     }
 
     @Nullable
@@ -78,7 +81,41 @@ public class SpidMetadataFilter extends OncePerRequestFilter {
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
         throws ServletException, IOException {
-        // delegate
-        samlMetadataFilter.doFilter(request, response, filterChain);
+        RequestMatcher.MatchResult matcher = requestMatcher.matcher(request);
+        if (!matcher.isMatch()) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        String registrationId = matcher.getVariables().get("registrationId");
+        RelyingPartyRegistration registration = registrationResolver.resolve(request, registrationId);
+        if (registration == null) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        SignedMetadata metadata = metadataResolver.resolveMetadata(registration);
+
+        // let clients revalidate every time, revalidation is cheap
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        if (new ServletWebRequest(request, response).checkNotModified(metadata.getETag(), metadata.getLastModified())) {
+            // 304 with headers already set
+            return;
+        }
+
+        writeMetadataToResponse(response, registration.getRegistrationId(), metadata.getDocument());
+    }
+
+    private void writeMetadataToResponse(HttpServletResponse response, String registrationId, String metadata)
+        throws IOException {
+        response.setContentType(MediaType.APPLICATION_XML_VALUE);
+        String fileName = DEFAULT_METADATA_FILENAME.replace("{registrationId}", registrationId);
+        String encodedFileName = URLEncoder.encode(fileName, StandardCharsets.UTF_8.name());
+        String format = "attachment; filename=\"%s\"; filename*=UTF-8''%s";
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, String.format(format, fileName, encodedFileName));
+        byte[] body = metadata.getBytes(StandardCharsets.UTF_8);
+        response.setContentLength(body.length);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getOutputStream().write(body);
     }
 }
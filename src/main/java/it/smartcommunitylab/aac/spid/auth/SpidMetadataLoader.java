@@ -0,0 +1,612 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.spid.auth;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.smartcommunitylab.aac.utils.HashUtils;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.XMLConstants;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/*
+ * Loader for upstream SPID idp metadata, shared by all spid providers.
+ *
+ * Metadata locations are fetched in parallel with per-location timeouts, and
+ * the last known good copy is kept in memory and optionally persisted to a local
+ * directory: on startup persisted copies are served right away and revalidated
+ * in background, while on fetch failures the last known good copy keeps being
+ * served.
+ *
+ * Known locations are refreshed in background, version is bumped whenever
+ * content changes so that consumers can rebuild registrations.
+ *
+ * Locations whose first fetch fails are recorded and retried in background
+ * with an exponential backoff, never on the request path: once one of them is
+ * retrieved, version is bumped so that consumers pick it up.
+ *
+ * Fetched content replaces the last known good copy only once parsed and
+ * validated as an idp EntityDescriptor, signed by one of the trusted
+ * certificates when configured.
+ */
+public class SpidMetadataLoader implements DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_TIMEOUT = 10; // 10 seconds
+    public static final long DEFAULT_REFRESH_INTERVAL = 6 * 60 * 60; // 6 hours
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final long DEFAULT_RETRY_DELAY = 60; // 1 minute, doubled at each failure
+
+    private static final String SAML_METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+
+    private final ResourceLoader resourceLoader = new DefaultResourceLoader();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    // last known good metadata by location
+    private final Map<String, CachedMetadata> metadata = new ConcurrentHashMap<>();
+
+    // locations never retrieved, with retry schedule
+    private final Map<String, FailedLocation> failed = new ConcurrentHashMap<>();
+
+    // bumped on every content change
+    private final AtomicLong version = new AtomicLong();
+
+    private int timeout = DEFAULT_TIMEOUT;
+    private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private Path storeDir;
+
+    // when set, metadata must be signed by one of these
+    private Collection<X509Certificate> trustedCertificates = Collections.emptyList();
+
+    private MeterRegistry meterRegistry;
+    private Timer fetchTimer;
+    private Timer failedTimer;
+
+    public SpidMetadataLoader() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    public SpidMetadataLoader(int poolSize) {
+        Assert.isTrue(poolSize > 0, "pool size must be positive");
+
+        AtomicInteger count = new AtomicInteger();
+        this.executor =
+            Executors.newFixedThreadPool(
+                poolSize,
+                r -> {
+                    Thread t = new Thread(r, "spid-metadata-fetch-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            );
+
+        this.scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "spid-metadata-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    public void setTimeout(int timeout) {
+        Assert.isTrue(timeout > 0, "timeout must be positive");
+        this.timeout = timeout;
+    }
+
+    public void setRefreshInterval(long refreshInterval) {
+        Assert.isTrue(refreshInterval > 0, "refresh interval must be positive");
+        this.refreshInterval = refreshInterval;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        Assert.isTrue(retryDelay > 0, "retry delay must be positive");
+        this.retryDelay = retryDelay;
+    }
+
+    public void setStoreDir(String storeDir) {
+        this.storeDir = StringUtils.hasText(storeDir) ? Paths.get(storeDir) : null;
+    }
+
+    public void setTrustedCertificates(Collection<X509Certificate> trustedCertificates) {
+        this.trustedCertificates = trustedCertificates != null ? trustedCertificates : Collections.emptyList();
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.fetchTimer =
+            Timer
+                .builder("spid.metadata.fetch")
+                .description("Latency of upstream idp metadata retrieval")
+                .tag("outcome", "success")
+                .register(meterRegistry);
+        this.failedTimer =
+            Timer
+                .builder("spid.metadata.fetch")
+                .description("Latency of upstream idp metadata retrieval")
+                .tag("outcome", "failure")
+                .register(meterRegistry);
+
+        // expose freshness for locations loaded so far
+        metadata.forEach((location, cached) -> registerGauge(location));
+    }
+
+    public void start() {
+        // run often enough to honor retry backoff, only due entries are fetched
+        long period = Math.min(refreshInterval, retryDelay);
+        scheduler.scheduleWithFixedDelay(this::refreshAll, period, period, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /*
+     * Load metadata for all the given locations, in parallel. Locations which
+     * are neither reachable nor available as last known good are skipped.
+     */
+    public Map<String, byte[]> load(Collection<String> locations) {
+        Assert.notNull(locations, "locations can not be null");
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        Map<String, Future<byte[]>> pending = new HashMap<>();
+
+        for (String location : locations) {
+            CachedMetadata cached = metadata.get(location);
+            if (cached == null) {
+                cached = restore(location);
+            }
+
+            if (cached != null) {
+                if (cached.refreshAt < System.currentTimeMillis()) {
+                    // serve current while revalidating
+                    refresh(location, cached);
+                }
+
+                result.put(location, cached.metadata);
+            } else if (failed.containsKey(location)) {
+                // retried in background, do not wait on an unreachable location
+                logger.debug("spid metadata from {} not available, skip", location);
+            } else {
+                pending.put(location, executor.submit(() -> fetch(location)));
+            }
+        }
+
+        // wait for missing ones, timeout is enforced on each fetch
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout * 2L);
+        for (Map.Entry<String, Future<byte[]>> e : pending.entrySet()) {
+            String location = e.getKey();
+            try {
+                long wait = Math.max(deadline - System.nanoTime(), 0);
+                result.put(location, e.getValue().get(wait, TimeUnit.NANOSECONDS));
+            } catch (TimeoutException ex) {
+                e.getValue().cancel(true);
+                failed.computeIfAbsent(location, k -> new FailedLocation(1, nextRetry(1)));
+                logger.warn("timeout fetching spid metadata from {}", location);
+            } catch (ExecutionException ex) {
+                logger.warn("error fetching spid metadata from {}: {}", location, ex.getCause().getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Freshness as seconds since the last successful retrieval, by location
+     */
+    public Map<String, Long> getFreshness() {
+        Map<String, Long> result = new HashMap<>();
+        metadata.forEach((location, cached) -> result.put(location, age(cached)));
+        return Collections.unmodifiableMap(result);
+    }
+
+    void refreshAll() {
+        long now = System.currentTimeMillis();
+        metadata.forEach((location, cached) -> {
+            if (cached.refreshAt < now) {
+                refresh(location, cached);
+            }
+        });
+
+        failed.forEach((location, f) -> {
+            if (f.retryAt < now) {
+                retry(location, f);
+            }
+        });
+    }
+
+    private void retry(String location, FailedLocation f) {
+        // single retry per location
+        if (!f.retrying.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    fetch(location);
+                    logger.info("spid metadata from {} is now available", location);
+                } catch (RuntimeException e) {
+                    logger.warn("error retrying spid metadata from {}: {}", location, e.getMessage());
+                } finally {
+                    f.retrying.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor rejected, retry on next round
+            f.retrying.set(false);
+        }
+    }
+
+    private void refresh(String location, CachedMetadata cached) {
+        // single refresh per entry
+        if (!cached.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    fetch(location);
+                } catch (RuntimeException e) {
+                    logger.warn(
+                        "error refreshing spid metadata from {}, keep serving last known: {}",
+                        location,
+                        e.getMessage()
+                    );
+                } finally {
+                    cached.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor rejected, retry on next access
+            cached.refreshing.set(false);
+        }
+    }
+
+    // fetch, validate and store as last known good
+    byte[] fetch(String location) {
+        long start = System.nanoTime();
+        try (InputStream is = open(location)) {
+            byte[] content = is.readAllBytes();
+            if (content.length == 0) {
+                throw new IOException("empty metadata");
+            }
+
+            // never replace last known good with invalid content
+            validate(content);
+
+            if (fetchTimer != null) {
+                fetchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+
+            store(location, content, System.currentTimeMillis());
+            failed.remove(location);
+            return content;
+        } catch (IOException | IllegalArgumentException e) {
+            if (failedTimer != null) {
+                failedTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+
+            // back off before next attempt
+            CachedMetadata cached = metadata.get(location);
+            if (cached != null) {
+                cached.refreshAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout * 6L);
+            } else {
+                failed.compute(
+                    location,
+                    (k, f) -> {
+                        int failures = f != null ? f.failures + 1 : 1;
+                        return new FailedLocation(failures, nextRetry(failures));
+                    }
+                );
+            }
+
+            throw new RuntimeException("error fetching metadata from " + location + ": " + e.getMessage());
+        }
+    }
+
+    private long nextRetry(int failures) {
+        long delay = Math.min(retryDelay << Math.min(failures - 1, 16), Math.max(retryDelay, refreshInterval));
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delay);
+    }
+
+    private InputStream open(String location) throws IOException {
+        if (location.startsWith("http://") || location.startsWith("https://")) {
+            URLConnection conn = new URL(location).openConnection();
+            conn.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(timeout));
+            conn.setReadTimeout((int) TimeUnit.SECONDS.toMillis(timeout));
+            if (conn instanceof HttpURLConnection) {
+                int status = ((HttpURLConnection) conn).getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("invalid response status " + status);
+                }
+            }
+
+            return conn.getInputStream();
+        }
+
+        return resourceLoader.getResource(location).getInputStream();
+    }
+
+    private void store(String location, byte[] content, long fetchedAt) {
+        long refreshAt = fetchedAt + TimeUnit.SECONDS.toMillis(refreshInterval);
+        CachedMetadata previous = metadata.put(location, new CachedMetadata(content, fetchedAt, refreshAt));
+        if (previous == null) {
+            registerGauge(location);
+        }
+
+        if (previous == null || !Arrays.equals(previous.metadata, content)) {
+            version.incrementAndGet();
+            persist(location, content);
+        }
+    }
+
+    private void persist(String location, byte[] content) {
+        if (storeDir == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(storeDir);
+            Path target = storeDir.resolve(HashUtils.sha256Hex(location) + ".xml");
+            Path tmp = Files.createTempFile(storeDir, "spid-", ".tmp");
+            Files.write(tmp, content);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("error persisting spid metadata for {}: {}", location, e.getMessage());
+        }
+    }
+
+    private CachedMetadata restore(String location) {
+        if (storeDir == null) {
+            return null;
+        }
+
+        Path source = storeDir.resolve(HashUtils.sha256Hex(location) + ".xml");
+        if (!Files.isReadable(source)) {
+            return null;
+        }
+
+        try {
+            byte[] content = Files.readAllBytes(source);
+            if (content.length == 0) {
+                return null;
+            }
+
+            validate(content);
+
+            // persisted copies are served as stale and revalidated right away
+            long fetchedAt = Files.getLastModifiedTime(source).toMillis();
+            CachedMetadata cached = new CachedMetadata(content, fetchedAt, 0);
+            CachedMetadata previous = metadata.putIfAbsent(location, cached);
+            if (previous != null) {
+                return previous;
+            }
+
+            version.incrementAndGet();
+            registerGauge(location);
+            return cached;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("error reading persisted spid metadata for {}: {}", location, e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Check content is a single, valid idp EntityDescriptor
+     */
+    private void validate(byte[] content) {
+        Element root;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            root = factory.newDocumentBuilder().parse(new ByteArrayInputStream(content)).getDocumentElement();
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new IllegalArgumentException("invalid metadata: " + e.getMessage());
+        }
+
+        if (!SAML_METADATA_NS.equals(root.getNamespaceURI()) || !"EntityDescriptor".equals(root.getLocalName())) {
+            throw new IllegalArgumentException("invalid metadata: not an entity descriptor");
+        }
+
+        if (!StringUtils.hasText(root.getAttribute("entityID"))) {
+            throw new IllegalArgumentException("invalid metadata: missing entityID");
+        }
+
+        NodeList idps = root.getElementsByTagNameNS(SAML_METADATA_NS, "IDPSSODescriptor");
+        if (idps.getLength() == 0) {
+            throw new IllegalArgumentException("invalid metadata: missing idp descriptor");
+        }
+
+        String validUntil = root.getAttribute("validUntil");
+        if (StringUtils.hasText(validUntil)) {
+            try {
+                if (Instant.parse(validUntil).isBefore(Instant.now())) {
+                    throw new IllegalArgumentException("invalid metadata: expired");
+                }
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("invalid metadata: invalid validUntil");
+            }
+        }
+
+        if (!trustedCertificates.isEmpty()) {
+            verifySignature(root);
+        }
+    }
+
+    private void verifySignature(Element root) {
+        // only an enveloped signature on the root element is accepted
+        Element signature = null;
+        for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (
+                n instanceof Element &&
+                XMLSignature.XMLNS.equals(n.getNamespaceURI()) &&
+                "Signature".equals(n.getLocalName())
+            ) {
+                signature = (Element) n;
+                break;
+            }
+        }
+
+        if (signature == null) {
+            throw new IllegalArgumentException("invalid metadata: missing signature");
+        }
+
+        if (root.hasAttribute("ID")) {
+            root.setIdAttribute("ID", true);
+        }
+
+        XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+        for (X509Certificate certificate : trustedCertificates) {
+            try {
+                DOMValidateContext context = new DOMValidateContext(
+                    KeySelector.singletonKeySelector(certificate.getPublicKey()),
+                    signature
+                );
+                context.setProperty("org.jcp.xml.dsig.secureValidation", Boolean.TRUE);
+                XMLSignature xmlSignature = factory.unmarshalXMLSignature(context);
+                if (xmlSignature.validate(context) && isEnveloping(xmlSignature, root)) {
+                    return;
+                }
+            } catch (MarshalException | XMLSignatureException e) {
+                logger.debug("error validating spid metadata signature: {}", e.getMessage());
+            }
+        }
+
+        throw new IllegalArgumentException("invalid metadata: untrusted signature");
+    }
+
+    // signature must cover the whole document
+    private boolean isEnveloping(XMLSignature signature, Element root) {
+        String id = root.getAttribute("ID");
+        for (Object o : signature.getSignedInfo().getReferences()) {
+            String uri = ((Reference) o).getURI();
+            if ("".equals(uri) || (StringUtils.hasText(id) && ("#" + id).equals(uri))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void registerGauge(String location) {
+        if (meterRegistry != null) {
+            Gauge
+                .builder("spid.metadata.age", this, l -> l.age(l.metadata.get(location)))
+                .description("Seconds since last successful retrieval of upstream idp metadata")
+                .tag("location", location)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        }
+    }
+
+    private long age(CachedMetadata cached) {
+        if (cached == null) {
+            return -1;
+        }
+
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - cached.fetchedAt);
+    }
+
+    private static class CachedMetadata {
+
+        private final byte[] metadata;
+        private final long fetchedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile long refreshAt;
+
+        public CachedMetadata(byte[] metadata, long fetchedAt, long refreshAt) {
+            this.metadata = metadata;
+            this.fetchedAt = fetchedAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    private static class FailedLocation {
+
+        private final int failures;
+        private final long retryAt;
+        private final AtomicBoolean retrying = new AtomicBoolean(false);
+
+        public FailedLocation(int failures, long retryAt) {
+            this.failures = failures;
+            this.retryAt = retryAt;
+        }
+    }
+}
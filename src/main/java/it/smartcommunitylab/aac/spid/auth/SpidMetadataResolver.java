@@ -16,16 +16,21 @@
 
 package it.smartcommunitylab.aac.spid.auth;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.spid.provider.SpidIdentityProviderConfig;
 import it.smartcommunitylab.aac.spid.provider.SpidIdentityProviderConfigMap;
+import it.smartcommunitylab.aac.utils.HashUtils;
 import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.xml.SerializeSupport;
 import org.apache.commons.lang3.RandomStringUtils;
@@ -76,6 +81,13 @@ import org.w3c.dom.Element;
  * Partial references:
  *   [1] https://docs.italia.it/italia/spid/spid-regole-tecniche/it/stabile/metadata.html#service-provider
  *   [2] https://docs.oasis-open.org/security/saml/v2.0/saml-metadata-2.0-os.pdf
+ *
+ * Signed documents are cached per registration and provider config version, and
+ * signed again only when the configuration (and thus the keys) changes or the
+ * validity window elapses. Since entityId and ACS may be resolved from the
+ * request, they are part of the cache key so that a document built for a
+ * (spoofed) host is never served for another. ETags are derived from the same
+ * inputs, and are thus stable across nodes and signatures.
  */
 public class SpidMetadataResolver implements Saml2MetadataResolver {
     static {
@@ -88,9 +100,19 @@ public class SpidMetadataResolver implements Saml2MetadataResolver {
     private static final String DEFAULT_SERVICE_NAME = "Set0";
     private static final char PATH_DELIMITER = '/';
 
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_METADATA_VALIDITY = 24 * 60 * 60; // 1 day
+
     private final ProviderConfigRepository<SpidIdentityProviderConfig> configRepository;
     private final EntityDescriptorMarshaller edMarshaller;
 
+    // signed documents by registration id, entityId and acs
+    private final Cache<List<String>, SignedMetadata> documents = CacheBuilder
+        .newBuilder()
+        .maximumSize(DEFAULT_CACHE_SIZE)
+        .build();
+    private long metadataValidity = TimeUnit.SECONDS.toMillis(DEFAULT_METADATA_VALIDITY);
+
     // XML builder(s)
     private final EntityDescriptorBuilder entityDescriptorBuilder;
     private final SPSSODescriptorBuilder spSsoDescriptorBuilder;
@@ -170,8 +192,22 @@ public class SpidMetadataResolver implements Saml2MetadataResolver {
                 .getMarshaller(EntityDescriptor.DEFAULT_ELEMENT_NAME);
     }
 
+    public void setMetadataValidity(int metadataValidity) {
+        // validity in seconds
+        Assert.isTrue(metadataValidity > 0, "metadata validity must be positive");
+        this.metadataValidity = TimeUnit.SECONDS.toMillis(metadataValidity);
+    }
+
     @Override
     public String resolve(RelyingPartyRegistration relyingPartyRegistration) {
+        return resolveMetadata(relyingPartyRegistration).getDocument();
+    }
+
+    /*
+     * Resolve the signed metadata document, along with the info required to
+     * support conditional requests
+     */
+    public SignedMetadata resolveMetadata(RelyingPartyRegistration relyingPartyRegistration) {
         String registrationId = relyingPartyRegistration.getRegistrationId();
         String providerId = SpidIdentityProviderConfig.decodeRegistrationId(registrationId);
         SpidIdentityProviderConfig providerConfig = configRepository.findByProviderId(providerId);
@@ -182,6 +218,46 @@ public class SpidMetadataResolver implements Saml2MetadataResolver {
             );
             throw new Saml2AuthenticationException(err);
         }
+
+        long now = System.currentTimeMillis();
+        List<String> key = cacheKey(relyingPartyRegistration);
+        SignedMetadata cached = documents.getIfPresent(key);
+        if (cached != null && cached.version == providerConfig.getVersion() && cached.expiresAt > now) {
+            return cached;
+        }
+
+        // sign again and replace
+        String document = sign(relyingPartyRegistration, providerConfig);
+        SignedMetadata metadata = new SignedMetadata(
+            providerConfig.getVersion(),
+            document,
+            etag(key, providerConfig.getVersion()),
+            now,
+            now + metadataValidity
+        );
+        documents.put(key, metadata);
+
+        return metadata;
+    }
+
+    static List<String> cacheKey(RelyingPartyRegistration registration) {
+        return Arrays.asList(
+            registration.getRegistrationId(),
+            registration.getEntityId(),
+            registration.getAssertionConsumerServiceLocation()
+        );
+    }
+
+    /*
+     * ETag from the inputs of the document rather than its content, which
+     * includes a random id and the signature
+     */
+    static String etag(List<String> key, int version) {
+        // newline can not appear in ids or urls
+        return HashUtils.sha256ETag(String.join("\n", key) + "\n" + version);
+    }
+
+    private String sign(RelyingPartyRegistration relyingPartyRegistration, SpidIdentityProviderConfig providerConfig) {
         // The root element must be a _single_ <EntityDescriptor> as per SPID specs
         EntityDescriptor ed = build(relyingPartyRegistration, providerConfig);
 
@@ -413,4 +489,37 @@ public class SpidMetadataResolver implements Saml2MetadataResolver {
         uriVariables.put("registrationId", StringUtils.hasText(registrationId) ? registrationId : "");
         return UriComponentsBuilder.fromUriString(template).buildAndExpand(uriVariables).toUriString();
     }
+
+    public static class SignedMetadata {
+
+        private final int version;
+        private final String document;
+        private final String etag;
+        private final long lastModified;
+        private final long expiresAt;
+
+        public SignedMetadata(int version, String document, String etag, long lastModified, long expiresAt) {
+            this.version = version;
+            this.document = document;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getDocument() {
+            return document;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
 }
@@ -54,6 +54,7 @@ public class SpidFilterProvider implements FilterProvider, ApplicationEventPubli
 
     private ApplicationEventPublisher eventPublisher;
     private AuthenticationManager authManager;
+    private Integer metadataValidity;
 
     public SpidFilterProvider(
         SpidRelyingPartyRegistrationRepository relyingPartyRegistrationRepository,
@@ -102,6 +103,9 @@ public class SpidFilterProvider implements FilterProvider, ApplicationEventPubli
             providerConfigRepository,
             relyingPartyRegistrationRepository
         );
+        if (metadataValidity != null) {
+            metadataFilter.setMetadataValidity(metadataValidity);
+        }
 
         filters.add(requestFilter);
         filters.add(ssoFilter);
@@ -129,6 +133,11 @@ public class SpidFilterProvider implements FilterProvider, ApplicationEventPubli
         this.authManager = authManager;
     }
 
+    public void setMetadataValidity(Integer metadataValidity) {
+        // validity in seconds
+        this.metadataValidity = metadataValidity;
+    }
+
     private String buildFilterUrl(String action) {
         // always use same path building logic for saml
         return "/auth/" + authorityId + "/" + action;
@@ -22,6 +22,7 @@ import it.smartcommunitylab.aac.core.provider.ProviderConfigRepository;
 import it.smartcommunitylab.aac.identity.base.AbstractIdentityConfigurationProvider;
 import it.smartcommunitylab.aac.identity.model.ConfigurableIdentityProvider;
 import it.smartcommunitylab.aac.identity.provider.IdentityProviderSettingsMap;
+import it.smartcommunitylab.aac.spid.auth.SpidMetadataLoader;
 import it.smartcommunitylab.aac.spid.model.SpidRegistration;
 import java.util.Collection;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,6 +33,7 @@ public class SpidIdentityConfigurationProvider
     extends AbstractIdentityConfigurationProvider<SpidIdentityProviderConfig, SpidIdentityProviderConfigMap> {
 
     private Collection<SpidRegistration> localRegistry;
+    private SpidMetadataLoader metadataLoader;
 
     @Autowired
     public SpidIdentityConfigurationProvider(
@@ -63,10 +65,15 @@ public class SpidIdentityConfigurationProvider
         if (this.localRegistry != null) {
             spidConfig.setIdentityProviders(this.localRegistry);
         }
+        spidConfig.setMetadataLoader(metadataLoader);
         return spidConfig;
     }
 
     public void setLocalRegistry(Collection<SpidRegistration> localRegistry) {
         this.localRegistry = localRegistry;
     }
+
+    public void setMetadataLoader(SpidMetadataLoader metadataLoader) {
+        this.metadataLoader = metadataLoader;
+    }
 }
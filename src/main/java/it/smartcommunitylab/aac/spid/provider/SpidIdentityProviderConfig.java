@@ -23,9 +23,11 @@ import it.smartcommunitylab.aac.identity.base.AbstractIdentityProviderConfig;
 import it.smartcommunitylab.aac.identity.model.ConfigurableIdentityProvider;
 import it.smartcommunitylab.aac.identity.provider.IdentityProviderSettingsMap;
 import it.smartcommunitylab.aac.spid.SpidIdentityAuthority;
+import it.smartcommunitylab.aac.spid.auth.SpidMetadataLoader;
 import it.smartcommunitylab.aac.spid.model.SpidAttribute;
 import it.smartcommunitylab.aac.spid.model.SpidRegistration;
 import it.smartcommunitylab.aac.spid.model.SpidUserAttribute;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.URI;
@@ -61,7 +63,9 @@ public class SpidIdentityProviderConfig extends AbstractIdentityProviderConfig<S
     //    public static final String DEFAULT_LOGOUT_URL =
     //        "{baseUrl}" + SpidIdentityAuthority.AUTHORITY_URL + "slo/{registrationId}";
 
-    private transient Set<RelyingPartyRegistration> relyingPartyRegistrations; // first time evaluated by the getter, then immutable
+    private transient Set<RelyingPartyRegistration> relyingPartyRegistrations; // evaluated by the getter, rebuilt when metadata changes
+    private transient long relyingPartyRegistrationsVersion;
+    private transient SpidMetadataLoader metadataLoader; // shared loader for upstream metadata
     private Map<String, SpidRegistration> identityProviders; // local registry
 
     public SpidIdentityProviderConfig(String provider, String realm) {
@@ -122,16 +126,27 @@ public class SpidIdentityProviderConfig extends AbstractIdentityProviderConfig<S
         }
     }
 
+    public void setMetadataLoader(SpidMetadataLoader metadataLoader) {
+        this.metadataLoader = metadataLoader;
+    }
+
     public String getEntityId() {
         return configMap.getEntityId() != null ? configMap.getEntityId() : getMetadataUrl();
     }
 
     @JsonIgnore
     public Set<RelyingPartyRegistration> getRelyingPartyRegistrations() {
-        if (relyingPartyRegistrations == null) {
+        long version = metadataLoader != null ? metadataLoader.getVersion() : 0;
+        if (relyingPartyRegistrations == null || relyingPartyRegistrationsVersion != version) {
             try {
+                // read version before loading, a concurrent update will trigger another rebuild
                 relyingPartyRegistrations = toRelyingPartyRegistrations();
+                relyingPartyRegistrationsVersion = version;
             } catch (IOException | CertificateException e) {
+                if (relyingPartyRegistrations != null) {
+                    // keep serving current registrations
+                    return relyingPartyRegistrations;
+                }
                 throw new RuntimeException("error building registration: " + e.getMessage());
             }
         }
@@ -153,11 +168,23 @@ public class SpidIdentityProviderConfig extends AbstractIdentityProviderConfig<S
         Set<RelyingPartyRegistration> registrations = new HashSet<>();
         try {
             Set<String> idpMetadataUrls = getAssertingPartyMetadataUrls();
-            for (String idpMetadataUrl : idpMetadataUrls) {
-                try {
-                    registrations.add(toRelyingPartyRegistration(idpMetadataUrl));
-                } catch (Saml2Exception | ConnectException e) {
-                    // skip that registration if that idp is offline
+            if (metadataLoader != null) {
+                // fetch all in parallel, offline idps are served from last known good or skipped
+                Map<String, byte[]> idpMetadatas = metadataLoader.load(idpMetadataUrls);
+                for (Map.Entry<String, byte[]> e : idpMetadatas.entrySet()) {
+                    try {
+                        registrations.add(toRelyingPartyRegistration(e.getKey(), e.getValue()));
+                    } catch (Saml2Exception ex) {
+                        // skip that registration if metadata is invalid
+                    }
+                }
+            } else {
+                for (String idpMetadataUrl : idpMetadataUrls) {
+                    try {
+                        registrations.add(toRelyingPartyRegistration(idpMetadataUrl, null));
+                    } catch (Saml2Exception | ConnectException e) {
+                        // skip that registration if that idp is offline
+                    }
                 }
             }
         } catch (URISyntaxException e) {
@@ -248,15 +275,17 @@ public class SpidIdentityProviderConfig extends AbstractIdentityProviderConfig<S
     }
 
     // create a relying party registration for an upstream idp; only ap autoconfiguration
-    // is supported, hence function parameters require an idp metadata url
-    private RelyingPartyRegistration toRelyingPartyRegistration(String idpMetadataUrl)
+    // is supported, hence function parameters require an idp metadata url, along
+    // with its content when already loaded
+    private RelyingPartyRegistration toRelyingPartyRegistration(String idpMetadataUrl, byte[] idpMetadata)
         throws IOException, CertificateException, URISyntaxException {
         // start from ap autoconfiguration ...
         String key = evalIdpKeyIdentifier(idpMetadataUrl);
         String registrationId = encodeRegistrationId(evalRelyingPartyRegistrationId(key));
-        RelyingPartyRegistration.Builder builder = RelyingPartyRegistrations
-            .fromMetadataLocation(idpMetadataUrl)
-            .registrationId(registrationId);
+        RelyingPartyRegistration.Builder builder = idpMetadata != null
+            ? RelyingPartyRegistrations.fromMetadata(new ByteArrayInputStream(idpMetadata))
+            : RelyingPartyRegistrations.fromMetadataLocation(idpMetadataUrl);
+        builder.registrationId(registrationId);
 
         // ... then expand with rp configuration (i.e. ourself)
         builder
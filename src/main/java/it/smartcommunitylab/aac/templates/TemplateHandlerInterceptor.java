@@ -16,21 +16,20 @@
 
 package it.smartcommunitylab.aac.templates;
 
-import it.smartcommunitylab.aac.common.NoSuchAuthorityException;
-import it.smartcommunitylab.aac.common.NoSuchProviderException;
-import it.smartcommunitylab.aac.common.NoSuchTemplateException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import it.smartcommunitylab.aac.config.ApplicationProperties;
-import it.smartcommunitylab.aac.core.entrypoint.RealmAwareUriBuilder;
-import it.smartcommunitylab.aac.model.Realm;
-import it.smartcommunitylab.aac.realms.service.RealmService;
 import it.smartcommunitylab.aac.templates.model.FooterTemplate;
 import it.smartcommunitylab.aac.templates.model.Template;
-import it.smartcommunitylab.aac.templates.service.TemplateProviderAuthorityService;
+import it.smartcommunitylab.aac.templates.service.RealmPresentationService;
+import it.smartcommunitylab.aac.templates.service.RealmPresentationService.RealmPresentation;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.i18n.LocaleContextHolder;
 import org.springframework.stereotype.Component;
@@ -40,22 +39,35 @@ import org.springframework.web.servlet.ModelAndView;
 @Component
 public class TemplateHandlerInterceptor implements HandlerInterceptor {
 
+    private static final String START_ATTRIBUTE = TemplateHandlerInterceptor.class.getName() + ".start";
+    private static final String REALM_ATTRIBUTE = TemplateHandlerInterceptor.class.getName() + ".realm";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
     private ApplicationProperties appProps;
 
     @Autowired
-    private RealmAwareUriBuilder uriBuilder;
+    private RealmPresentationService presentationService;
 
     @Autowired
-    private RealmService realmService;
+    private TemplateAuthority templateAuthority;
 
-    @Autowired
-    private TemplateProviderAuthorityService templateProviderAuthorityService;
+    private MeterRegistry meterRegistry;
 
     @Autowired
-    private TemplateAuthority templateAuthority;
+    public void setMeterRegistry(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(r -> this.meterRegistry = r);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (meterRegistry != null) {
+            request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+
+        return true;
+    }
 
     @Override
     public void postHandle(
@@ -91,26 +103,12 @@ public class TemplateHandlerInterceptor implements HandlerInterceptor {
                 Locale locale = LocaleContextHolder.getLocale();
                 String lang = locale.getLanguage();
 
-                // load realm props
-                Realm r = realmService.getRealm(realm);
-
-                ApplicationProperties props = new ApplicationProperties();
-                props.setName(r.getName());
-
-                // build props from global
-                // TODO add fields to realm config
-                props.setEmail(appProps.getEmail());
-                props.setLang(appProps.getLang());
-                props.setLogo(appProps.getLogo());
+                // load realm presentation from cache
+                RealmPresentation p = presentationService.getPresentation(realm);
+                request.setAttribute(REALM_ATTRIBUTE, realm);
 
-                // via urlBuilder
-                String url = uriBuilder.buildUrl(realm, "/");
-                props.setUrl(url);
-
-                String displayName = r.getName();
-
-                modelAndView.addObject("displayName", displayName);
-                modelAndView.addObject("props", props);
+                modelAndView.addObject("displayName", p.getDisplayName());
+                modelAndView.addObject("props", p.getProps());
 
                 // fetch templates
                 String authority = templateAuthority.getAuthorityId();
@@ -127,38 +125,43 @@ public class TemplateHandlerInterceptor implements HandlerInterceptor {
 
                 logger.debug("fetch templates for {}:{} for realm {} with language {}", authority, name, realm, lang);
 
-                Template template = null;
-                Template footer = null;
-                String customStyle = null;
-                try {
-                    // footer from base
-                    footer = templateAuthority.getProviderByRealm(realm).getTemplate(FooterTemplate.TEMPLATE, locale);
-
-                    // fetch template from authority
-                    template =
-                        templateProviderAuthorityService
-                            .getAuthority(authority)
-                            .getProviderByRealm(realm)
-                            .getTemplate(name, locale);
-
-                    // // fetch custom style from config
-                    // customStyle = templateAuthority.getProviderByRealm(realm).getConfig().getCustomStyle();
-                } catch (NoSuchAuthorityException | NoSuchProviderException | NoSuchTemplateException e) {
-                    // skip templates on error
-                }
-
-                // fetch custom style from config
-                if(r.getTemplatesConfiguration() != null && r.getTemplatesConfiguration().getCustomStyle() != null) {
-                    customStyle = r.getTemplatesConfiguration().getCustomStyle();
-                }
+                // footer from base, template from authority
+                // missing templates are skipped
+                Template footer = presentationService.getTemplate(
+                    realm,
+                    templateAuthority.getAuthorityId(),
+                    FooterTemplate.TEMPLATE,
+                    locale
+                );
+                Template template = presentationService.getTemplate(realm, authority, name, locale);
 
                 modelAndView.addObject("template", template);
                 modelAndView.addObject("footer", footer);
-                modelAndView.addObject("customStyle", customStyle);
+                modelAndView.addObject("customStyle", p.getCustomStyle());
             }
         } catch (RuntimeException e) {
             // ignore errors to avoid stopping renderer
             logger.warn("error processing template: {}", e.getMessage());
         }
     }
+
+    @Override
+    public void afterCompletion(
+        HttpServletRequest request,
+        HttpServletResponse response,
+        Object handler,
+        Exception ex
+    ) {
+        // record latency, including view rendering, for realm pages
+        Object start = request.getAttribute(START_ATTRIBUTE);
+        Object realm = request.getAttribute(REALM_ATTRIBUTE);
+        if (meterRegistry != null && start instanceof Long && realm instanceof String) {
+            Timer
+                .builder("templates.render")
+                .description("Latency of realm html views, including rendering")
+                .tag("realm", (String) realm)
+                .register(meterRegistry)
+                .record(System.nanoTime() - (Long) start, TimeUnit.NANOSECONDS);
+        }
+    }
 }
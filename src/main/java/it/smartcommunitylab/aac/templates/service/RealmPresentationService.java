@@ -0,0 +1,272 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.templates.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import it.smartcommunitylab.aac.common.NoSuchAuthorityException;
+import it.smartcommunitylab.aac.common.NoSuchProviderException;
+import it.smartcommunitylab.aac.common.NoSuchRealmException;
+import it.smartcommunitylab.aac.common.NoSuchTemplateException;
+import it.smartcommunitylab.aac.config.ApplicationProperties;
+import it.smartcommunitylab.aac.core.entrypoint.RealmAwareUriBuilder;
+import it.smartcommunitylab.aac.events.RealmChangedEvent;
+import it.smartcommunitylab.aac.events.TemplatesChangedEvent;
+import it.smartcommunitylab.aac.model.Realm;
+import it.smartcommunitylab.aac.realms.service.RealmService;
+import it.smartcommunitylab.aac.templates.model.Template;
+import it.smartcommunitylab.aac.utils.HashUtils;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+/*
+ * Realm presentation (realm properties, templates per locale and custom style)
+ * is read on every html view: resolve once and cache per realm.
+ *
+ * Entries are evicted on realm and template changes, in multi node deployments
+ * ttl bounds the staleness of remote edits.
+ */
+@Service
+public class RealmPresentationService {
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_CACHE_TTL = 300; // 5 minutes
+
+    private final ApplicationProperties appProps;
+    private final RealmAwareUriBuilder uriBuilder;
+    private final RealmService realmService;
+    private final TemplateProviderAuthorityService templateProviderAuthorityService;
+
+    // presentation by realm
+    private final Cache<String, RealmPresentation> presentations;
+
+    // resolved templates by realm/authority/template/language
+    private final Cache<TemplateKey, Optional<Template>> templates;
+
+    // bumped on every change to avoid caching reads racing with updates
+    private final AtomicLong generation = new AtomicLong();
+
+    public RealmPresentationService(
+        ApplicationProperties appProps,
+        RealmAwareUriBuilder uriBuilder,
+        RealmService realmService,
+        TemplateProviderAuthorityService templateProviderAuthorityService
+    ) {
+        Assert.notNull(appProps, "application properties are mandatory");
+        Assert.notNull(uriBuilder, "uri builder is mandatory");
+        Assert.notNull(realmService, "realm service is mandatory");
+        Assert.notNull(templateProviderAuthorityService, "template authority service is mandatory");
+
+        this.appProps = appProps;
+        this.uriBuilder = uriBuilder;
+        this.realmService = realmService;
+        this.templateProviderAuthorityService = templateProviderAuthorityService;
+
+        this.presentations =
+            CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(DEFAULT_CACHE_TTL, TimeUnit.SECONDS)
+                .maximumSize(DEFAULT_CACHE_SIZE)
+                .recordStats()
+                .build();
+        this.templates =
+            CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(DEFAULT_CACHE_TTL, TimeUnit.SECONDS)
+                .maximumSize(DEFAULT_CACHE_SIZE * 10)
+                .recordStats()
+                .build();
+    }
+
+    @Autowired
+    public void setMeterRegistry(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(r -> {
+            GuavaCacheMetrics.monitor(r, presentations, "templates.presentations");
+            GuavaCacheMetrics.monitor(r, templates, "templates.templates");
+        });
+    }
+
+    public RealmPresentation getPresentation(String realm) throws NoSuchRealmException {
+        Assert.hasText(realm, "realm can not be null or empty");
+        RealmPresentation presentation = presentations.getIfPresent(realm);
+        if (presentation == null) {
+            long gen = generation.get();
+            presentation = buildPresentation(realm);
+            if (gen == generation.get()) {
+                presentations.put(realm, presentation);
+            }
+        }
+
+        return presentation;
+    }
+
+    /*
+     * Resolve a template from the realm provider of the given authority, null
+     * when either the provider or the template are not available
+     */
+    public Template getTemplate(String realm, String authority, String template, Locale locale) {
+        Assert.hasText(realm, "realm can not be null or empty");
+        Assert.notNull(locale, "locale can not be null");
+
+        TemplateKey key = new TemplateKey(realm, authority, template, locale.getLanguage());
+        Optional<Template> result = templates.getIfPresent(key);
+        if (result == null) {
+            long gen = generation.get();
+            try {
+                result =
+                    Optional.of(
+                        templateProviderAuthorityService
+                            .getAuthority(authority)
+                            .getProviderByRealm(realm)
+                            .getTemplate(template, locale)
+                    );
+            } catch (NoSuchAuthorityException | NoSuchProviderException | NoSuchTemplateException e) {
+                result = Optional.empty();
+            }
+
+            if (gen == generation.get()) {
+                templates.put(key, result);
+            }
+        }
+
+        return result.orElse(null);
+    }
+
+    public void evict(String realm) {
+        generation.incrementAndGet();
+        presentations.invalidate(realm);
+        templates.asMap().keySet().removeIf(k -> realm.equals(k.realm));
+    }
+
+    @EventListener
+    public void onRealmChanged(RealmChangedEvent event) {
+        evict(event.getRealm());
+    }
+
+    @EventListener
+    public void onTemplatesChanged(TemplatesChangedEvent event) {
+        evict(event.getRealm());
+    }
+
+    private RealmPresentation buildPresentation(String realm) throws NoSuchRealmException {
+        // load realm props
+        Realm r = realmService.getRealm(realm);
+
+        ApplicationProperties props = new ApplicationProperties();
+        props.setName(r.getName());
+
+        // build props from global
+        // TODO add fields to realm config
+        props.setEmail(appProps.getEmail());
+        props.setLang(appProps.getLang());
+        props.setLogo(appProps.getLogo());
+
+        // via urlBuilder
+        String url = uriBuilder.buildUrl(realm, "/");
+        props.setUrl(url);
+
+        // fetch custom style from config
+        String customStyle = null;
+        if (r.getTemplatesConfiguration() != null && r.getTemplatesConfiguration().getCustomStyle() != null) {
+            customStyle = r.getTemplatesConfiguration().getCustomStyle();
+        }
+
+        return new RealmPresentation(r, props, customStyle);
+    }
+
+    public static class RealmPresentation {
+
+        private final Realm realm;
+        private final ApplicationProperties props;
+        private final String customStyle;
+        private final String customStyleETag;
+
+        public RealmPresentation(Realm realm, ApplicationProperties props, String customStyle) {
+            this.realm = realm;
+            this.props = props;
+            this.customStyle = customStyle;
+            this.customStyleETag = customStyle != null ? HashUtils.sha256ETag(customStyle) : null;
+        }
+
+        public Realm getRealm() {
+            return realm;
+        }
+
+        public String getDisplayName() {
+            return realm.getName();
+        }
+
+        public ApplicationProperties getProps() {
+            return props;
+        }
+
+        public String getCustomStyle() {
+            return customStyle;
+        }
+
+        public String getCustomStyleETag() {
+            return customStyleETag;
+        }
+    }
+
+    private static class TemplateKey {
+
+        private final String realm;
+        private final String authority;
+        private final String template;
+        private final String language;
+
+        public TemplateKey(String realm, String authority, String template, String language) {
+            this.realm = realm;
+            this.authority = authority;
+            this.template = template;
+            this.language = language;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realm, authority, template, language);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TemplateKey)) {
+                return false;
+            }
+            TemplateKey other = (TemplateKey) obj;
+            return (
+                Objects.equals(realm, other.realm) &&
+                Objects.equals(authority, other.authority) &&
+                Objects.equals(template, other.template) &&
+                Objects.equals(language, other.language)
+            );
+        }
+    }
+}
@@ -20,8 +20,10 @@ import it.smartcommunitylab.aac.Config;
 import it.smartcommunitylab.aac.common.InvalidDataException;
 import it.smartcommunitylab.aac.common.NoSuchTemplateException;
 import it.smartcommunitylab.aac.common.RegistrationException;
+import it.smartcommunitylab.aac.events.TemplatesChangedEvent;
 import it.smartcommunitylab.aac.templates.model.TemplateModel;
 import it.smartcommunitylab.aac.templates.persistence.TemplateEntity;
+import it.smartcommunitylab.aac.utils.TransactionUtils;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -31,6 +33,8 @@ import org.jsoup.Jsoup;
 import org.jsoup.safety.Safelist;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.support.PageableExecutionUtils;
@@ -41,7 +45,7 @@ import org.springframework.util.StringUtils;
 
 @Service
 @Transactional
-public class TemplateService {
+public class TemplateService implements ApplicationEventPublisherAware {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -54,12 +58,19 @@ public class TemplateService {
 
     private final TemplateEntityService templateService;
 
+    private ApplicationEventPublisher eventPublisher;
+
     public TemplateService(TemplateEntityService templateService) {
         Assert.notNull(templateService, "template service is mandatory");
 
         this.templateService = templateService;
     }
 
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
     public TemplateModel findTemplate(String id) {
         logger.debug("find template model {} ", StringUtils.trimAllWhitespace(id));
 
@@ -209,6 +220,7 @@ public class TemplateService {
             StringUtils.trimAllWhitespace(realm)
         );
         TemplateEntity e = templateService.addTemplate(id, authority, realm, template, language, content);
+        notifyTemplatesChanged(e.getRealm());
         return toModel(e);
     }
 
@@ -231,6 +243,7 @@ public class TemplateService {
 
         logger.debug("update template {}", StringUtils.trimAllWhitespace(id));
         TemplateEntity e = templateService.updateTemplate(id, language, content);
+        notifyTemplatesChanged(e.getRealm());
         return toModel(e);
     }
 
@@ -239,6 +252,16 @@ public class TemplateService {
 
         logger.debug("delete template {}", StringUtils.trimAllWhitespace(id));
         templateService.deleteTemplate(e.getId());
+        notifyTemplatesChanged(e.getRealm());
+    }
+
+    private void notifyTemplatesChanged(String realm) {
+        if (eventPublisher == null) {
+            return;
+        }
+
+        // notify after commit so that listeners won't reload stale templates
+        TransactionUtils.afterCommit(() -> eventPublisher.publishEvent(new TemplatesChangedEvent(realm)));
     }
 
     public Map<String, String> sanitizeTemplate(String id, TemplateModel reg) {
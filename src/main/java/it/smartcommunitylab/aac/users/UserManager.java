@@ -63,6 +63,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
@@ -210,6 +211,32 @@ public class UserManager {
         return userService.searchUsers(r.getSlug(), query, pageRequest);
     }
 
+    @Transactional(readOnly = true)
+    public Page<User> searchUsers(String realm, String keywords, Pageable pageRequest, boolean summary)
+        throws NoSuchRealmException {
+        logger.debug(
+            "search users for realm {} with keywords {} summary {}",
+            StringUtils.trimAllWhitespace(realm),
+            StringUtils.trimAllWhitespace(keywords),
+            summary
+        );
+        String query = StringUtils.trimAllWhitespace(keywords);
+        Realm r = realmService.getRealm(realm);
+        return userService.searchUsers(r.getSlug(), query, pageRequest, summary);
+    }
+
+    /*
+     * Export all users in realm via consumer.
+     * Not transactional: every page is read in a short transaction, so the
+     * persistence context does not grow with the realm size.
+     */
+    public long exportUsers(String realm, boolean summary, Consumer<User> consumer) throws NoSuchRealmException {
+        logger.debug("export users for realm {}", StringUtils.trimAllWhitespace(realm));
+
+        Realm r = realmService.getRealm(realm);
+        return userService.exportUsers(r.getSlug(), summary, consumer);
+    }
+
     @Transactional(readOnly = true)
     public Page<User> searchUsersWithSpec(String realm, Specification<UserEntity> spec, Pageable pageRequest)
         throws NoSuchRealmException {
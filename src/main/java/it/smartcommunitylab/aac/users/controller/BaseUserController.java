@@ -16,6 +16,9 @@
 
 package it.smartcommunitylab.aac.users.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.v3.oas.annotations.Operation;
 import it.smartcommunitylab.aac.Config;
 import it.smartcommunitylab.aac.SystemKeys;
@@ -36,10 +39,14 @@ import it.smartcommunitylab.aac.model.User;
 import it.smartcommunitylab.aac.roles.RealmRoleManager;
 import it.smartcommunitylab.aac.users.UserManager;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Pattern;
@@ -50,6 +57,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.MediaType;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
@@ -72,10 +80,12 @@ public class BaseUserController implements InitializingBean {
     protected UserManager userManager;
     protected GroupManager groupManager;
     protected RealmRoleManager roleManager;
+    protected ObjectMapper mapper;
 
     @Override
     public void afterPropertiesSet() throws Exception {
         Assert.notNull(userManager, "user manager is required");
+        Assert.notNull(mapper, "object mapper is required");
     }
 
     @Autowired
@@ -92,6 +102,11 @@ public class BaseUserController implements InitializingBean {
     public void setRoleManager(RealmRoleManager roleManager) {
         this.roleManager = roleManager;
     }
+
+    @Autowired
+    public void setMapper(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
     public String getAuthority() {
         return Config.R_USER;
     }
@@ -107,6 +122,7 @@ public class BaseUserController implements InitializingBean {
         @RequestParam(required = false) String q,
         @RequestParam(required = false) String group,
         @RequestParam(required = false) String role,
+        @RequestParam(required = false, defaultValue = "false") boolean summary,
         Pageable pageRequest
     ) throws NoSuchRealmException, NoSuchGroupException {
         logger.debug("list users for realm {}", StringUtils.trimAllWhitespace(realm));
@@ -130,7 +146,85 @@ public class BaseUserController implements InitializingBean {
         }
 
         // list users owned or accessible by this realm
-        return userManager.searchUsers(realm, q, pageRequest);
+        return userManager.searchUsers(realm, q, pageRequest, summary);
+    }
+
+    @GetMapping("/users/{realm}/export")
+    @Operation(summary = "export all users from realm")
+    public void exportUsers(
+        @PathVariable @Valid @NotNull @Pattern(regexp = SystemKeys.SLUG_PATTERN) String realm,
+        @RequestParam(required = false, defaultValue = "true") boolean summary,
+        HttpServletResponse res
+    ) throws NoSuchRealmException, IOException {
+        logger.debug("export users for realm {}", StringUtils.trimAllWhitespace(realm));
+
+        // stream as json object, users are fetched and written one page at a time.
+        // output starts with the first user so that early errors get a proper
+        // response, later ones are reported by a terminal error in place of count
+        JsonGenerator gen = mapper.getFactory().createGenerator(res.getOutputStream());
+        AtomicBoolean started = new AtomicBoolean(false);
+        try {
+            long count = userManager.exportUsers(
+                realm,
+                summary,
+                u -> {
+                    try {
+                        if (started.compareAndSet(false, true)) {
+                            startExport(res, gen, realm);
+                        }
+                        gen.writeObject(u);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            );
+
+            if (started.compareAndSet(false, true)) {
+                startExport(res, gen, realm);
+            }
+            gen.writeEndArray();
+            gen.writeNumberField("count", count);
+            gen.writeEndObject();
+        } catch (RuntimeException e) {
+            if (!started.get()) {
+                // nothing written, let the error handler respond
+                throw e;
+            }
+
+            logger.error("error exporting users for realm {}: {}", StringUtils.trimAllWhitespace(realm), e.getMessage());
+
+            // close a partially written user, users array is nested in the root object
+            while (depth(gen.getOutputContext()) > 2) {
+                if (gen.getOutputContext().inArray()) {
+                    gen.writeEndArray();
+                } else {
+                    gen.writeEndObject();
+                }
+            }
+            gen.writeEndArray();
+            gen.writeStringField("error", "export_failed");
+            gen.writeEndObject();
+        }
+
+        gen.flush();
+        gen.close();
+    }
+
+    private static int depth(JsonStreamContext ctx) {
+        int depth = 0;
+        while (ctx.getParent() != null) {
+            ctx = ctx.getParent();
+            depth++;
+        }
+        return depth;
+    }
+
+    private void startExport(HttpServletResponse res, JsonGenerator gen, String realm) throws IOException {
+        res.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        res.setHeader("Content-Disposition", "attachment;filename=users-" + realm + ".json");
+        gen.writeStartObject();
+        gen.writeStringField("realm", realm);
+        gen.writeArrayFieldStart("users");
     }
 
     @GetMapping("/users/{realm}/{userId}")
@@ -55,4 +55,9 @@ public interface UserEntityRepository
     );
 
     long countByRealm(String realm);
+
+    // keyset pages ordered by primary key, limit is taken from the page request
+    List<UserEntity> findByRealmOrderByUuid(String realm, Pageable pageRequest);
+
+    List<UserEntity> findByRealmAndUuidGreaterThanOrderByUuid(String realm, String uuid, Pageable pageRequest);
 }
@@ -28,6 +28,7 @@ import it.smartcommunitylab.aac.users.persistence.UserEntityRepository;
 import java.util.Date;
 import java.util.List;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
@@ -134,6 +135,17 @@ public class UserEntityService {
         return page;
     }
 
+    /*
+     * Keyset paging by uuid, returns up to size users following the given one
+     */
+    @Transactional(readOnly = true)
+    public List<UserEntity> listUsersAfter(String realm, String after, int size) {
+        Pageable pageRequest = PageRequest.of(0, size);
+        return after == null
+            ? userRepository.findByRealmOrderByUuid(realm, pageRequest)
+            : userRepository.findByRealmAndUuidGreaterThanOrderByUuid(realm, after, pageRequest);
+    }
+
     @Transactional(readOnly = true)
     public Page<UserEntity> searchUsersWithSpec(Specification<UserEntity> spec, Pageable pageRequest) {
         Page<UserEntity> page = userRepository.findAll(spec, pageRequest);
@@ -26,6 +26,7 @@ import it.smartcommunitylab.aac.attributes.model.UserAttributes;
 import it.smartcommunitylab.aac.attributes.provider.AttributeProvider;
 import it.smartcommunitylab.aac.attributes.service.AttributeProviderAuthorityService;
 import it.smartcommunitylab.aac.attributes.service.AttributeProviderService;
+import it.smartcommunitylab.aac.attributes.store.AutoJdbcAttributeStore;
 import it.smartcommunitylab.aac.common.NoSuchAttributeSetException;
 import it.smartcommunitylab.aac.common.NoSuchAuthorityException;
 import it.smartcommunitylab.aac.common.NoSuchProviderException;
@@ -52,10 +53,15 @@ import it.smartcommunitylab.aac.roles.service.SubjectRoleService;
 import it.smartcommunitylab.aac.users.persistence.UserEntity;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -67,6 +73,7 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /*
  * User management
@@ -83,6 +90,9 @@ public class UserService {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private static final int CONVERT_BATCH_SIZE = 100;
+    private static final int EXPORT_PAGE_SIZE = 100;
+
     // base services for users
     @Autowired
     private UserEntityService userService;
@@ -114,6 +124,9 @@ public class UserService {
     @Autowired
     private AttributeProviderService attributeProviderService;
 
+    @Autowired
+    private AutoJdbcAttributeStore attributeStore;
+
     @Autowired
     private SpaceRoleService spaceRoleService;
 
@@ -123,6 +136,10 @@ public class UserService {
     @Autowired
     private List<it.smartcommunitylab.aac.accounts.persistence.UserAccountService<? extends UserAccount>> userAccountServices;
 
+    // shared persistence context, bound to the request when open in view
+    @PersistenceContext
+    private EntityManager entityManager;
+
     /*
      * User translation
      */
@@ -293,29 +310,7 @@ public class UserService {
         UserEntity ue = userService.getUser(subjectId);
         String realm = ue.getRealm();
 
-        User u = new User(subjectId, ue.getRealm());
-        u.setUsername(ue.getUsername());
-        u.setEmail(ue.getEmailAddress());
-        boolean emailVerified = ue.getEmailVerified() != null ? ue.getEmailVerified().booleanValue() : false;
-        u.setEmailVerified(emailVerified);
-
-        if (ue.getTosAccepted() != null) {
-            u.setTosAccepted(ue.isTosAccepted());
-        } else {
-            u.setTosAccepted(null);
-        }
-
-        // status
-        SubjectStatus status = SubjectStatus.parse(ue.getStatus());
-        u.setStatus(status);
-
-        // fetch attributes
-        u.setExpirationDate(ue.getExpirationDate());
-        u.setCreateDate(ue.getCreateDate());
-        u.setModifiedDate(ue.getModifiedDate());
-        u.setLoginDate(ue.getLoginDate());
-        u.setLoginIp(ue.getLoginIp());
-        u.setLoginProvider(ue.getLoginProvider());
+        User u = toUser(ue);
 
         // same realm, fetch all idps
         u.setIdentities(fetchUserIdentities(subjectId, realm));
@@ -350,29 +345,7 @@ public class UserService {
         UserEntity ue = userService.getUser(subjectId);
         String source = ue.getRealm();
 
-        User u = new User(subjectId, ue.getRealm());
-        u.setUsername(ue.getUsername());
-        u.setEmail(ue.getEmailAddress());
-        boolean emailVerified = ue.getEmailVerified() != null ? ue.getEmailVerified().booleanValue() : false;
-        u.setEmailVerified(emailVerified);
-
-        if (ue.getTosAccepted() != null) {
-            u.setTosAccepted(ue.isTosAccepted());
-        } else {
-            u.setTosAccepted(null);
-        }
-
-        // status
-        SubjectStatus status = SubjectStatus.parse(ue.getStatus());
-        u.setStatus(status);
-
-        // fetch attributes
-        u.setExpirationDate(ue.getExpirationDate());
-        u.setCreateDate(ue.getCreateDate());
-        u.setModifiedDate(ue.getModifiedDate());
-        u.setLoginDate(ue.getLoginDate());
-        u.setLoginIp(ue.getLoginIp());
-        u.setLoginProvider(ue.getLoginProvider());
+        User u = toUser(ue);
 
         u.setIdentities(fetchUserIdentities(subjectId, realm));
 
@@ -402,6 +375,34 @@ public class UserService {
         return u;
     }
 
+    private User toUser(UserEntity ue) {
+        User u = new User(ue.getUuid(), ue.getRealm());
+        u.setUsername(ue.getUsername());
+        u.setEmail(ue.getEmailAddress());
+        boolean emailVerified = ue.getEmailVerified() != null ? ue.getEmailVerified().booleanValue() : false;
+        u.setEmailVerified(emailVerified);
+
+        if (ue.getTosAccepted() != null) {
+            u.setTosAccepted(ue.isTosAccepted());
+        } else {
+            u.setTosAccepted(null);
+        }
+
+        // status
+        SubjectStatus status = SubjectStatus.parse(ue.getStatus());
+        u.setStatus(status);
+
+        // fetch attributes
+        u.setExpirationDate(ue.getExpirationDate());
+        u.setCreateDate(ue.getCreateDate());
+        u.setModifiedDate(ue.getModifiedDate());
+        u.setLoginDate(ue.getLoginDate());
+        u.setLoginIp(ue.getLoginIp());
+        u.setLoginProvider(ue.getLoginProvider());
+
+        return u;
+    }
+
     /*
      * Lists users under the given realm
      *
@@ -421,9 +422,13 @@ public class UserService {
     }
 
     public Page<User> searchUsers(String realm, String q, Pageable pageRequest) {
+        return searchUsers(realm, q, pageRequest, false);
+    }
+
+    public Page<User> searchUsers(String realm, String q, Pageable pageRequest, boolean summary) {
         Page<UserEntity> page = userService.searchUsers(realm, q, pageRequest);
         return PageableExecutionUtils.getPage(
-            convertUsers(realm, page.getContent()),
+            convertUsers(realm, page.getContent(), summary),
             pageRequest,
             () -> page.getTotalElements()
         );
@@ -438,18 +443,56 @@ public class UserService {
         );
     }
 
+    /*
+     * Streams all the users owned by the realm to the consumer, one page at a time
+     * to keep memory bounded regardless of realm size.
+     * Pages are fetched by keyset on uuid, so that every page is a bounded index
+     * range and concurrent inserts or deletes don't shift the following pages
+     */
+    public long exportUsers(String realm, boolean summary, Consumer<User> consumer) {
+        long count = 0;
+        String after = null;
+        List<UserEntity> page;
+        do {
+            page = userService.listUsersAfter(realm, after, EXPORT_PAGE_SIZE);
+            if (page.isEmpty()) {
+                break;
+            }
+
+            after = page.get(page.size() - 1).getUuid();
+            for (User u : convertUsers(realm, page, summary)) {
+                consumer.accept(u);
+                count++;
+            }
+
+            // with open in view every page would be retained by the request context,
+            // detach all the entities read once the page is consumed. outside
+            // transactions there are no pending changes to lose
+            if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+                entityManager.clear();
+            }
+        } while (page.size() == EXPORT_PAGE_SIZE);
+
+        return count;
+    }
+
     protected List<User> convertUsers(String realm, List<UserEntity> users) {
-        List<User> realmUsers = users
-            .stream()
-            .map(u -> {
-                try {
-                    return getUser(u.getUuid(), realm);
-                } catch (NoSuchUserException e) {
-                    return null;
-                }
-            })
-            .filter(u -> u != null)
-            .collect(Collectors.toList());
+        return convertUsers(realm, users, false);
+    }
+
+    /*
+     * Hydrate users in chunks, resolving authorities, groups and roles with a
+     * fixed number of queries per chunk instead of per user.
+     *
+     * Identities and attributes are exposed by providers, which do not offer a
+     * batch interface: summary mode skips them entirely.
+     */
+    protected List<User> convertUsers(String realm, List<UserEntity> users, boolean summary) {
+        List<User> realmUsers = new ArrayList<>();
+        for (int i = 0; i < users.size(); i += CONVERT_BATCH_SIZE) {
+            List<UserEntity> batch = users.subList(i, Math.min(i + CONVERT_BATCH_SIZE, users.size()));
+            realmUsers.addAll(convertBatch(realm, batch, summary));
+        }
 
         // accessible from this realm
         // TODO
@@ -458,6 +501,66 @@ public class UserService {
         return realmUsers;
     }
 
+    private List<User> convertBatch(String realm, List<UserEntity> users, boolean summary) {
+        Set<String> subjectIds = users.stream().map(UserEntity::getUuid).collect(Collectors.toSet());
+
+        Map<String, List<GrantedAuthority>> authorities = subjectService.getAuthoritiesBySubject(subjectIds);
+        Map<String, Collection<Group>> groups = groupService.getSubjectsGroups(subjectIds, realm);
+        Map<String, Collection<SpaceRole>> spaceRoles = spaceRoleService.getRolesBySubject(subjectIds);
+
+        // realm roles are assigned to users and groups, resolve all together
+        Set<String> roleSubjects = new HashSet<>(subjectIds);
+        groups.values().forEach(gg -> gg.forEach(g -> roleSubjects.add(g.getGroupId())));
+        Map<String, Collection<RealmRole>> realmRoles = roleService.getRolesBySubject(roleSubjects, realm);
+
+        List<User> result = new ArrayList<>();
+        for (UserEntity ue : users) {
+            String subjectId = ue.getUuid();
+            User u = toUser(ue);
+
+            try {
+                if (!summary) {
+                    u.setIdentities(fetchUserIdentities(subjectId, realm));
+                }
+
+                if (!ue.getRealm().equals(realm)) {
+                    // let translator filter content according to policy
+                    u = translator.translate(u, realm);
+                }
+
+                // add authorities
+                Set<GrantedAuthority> ua = new HashSet<>();
+                ua.add(new SimpleGrantedAuthority(Config.R_USER));
+                ua.addAll(authorities.getOrDefault(subjectId, Collections.emptyList()));
+                u.setAuthorities(ua);
+
+                // add user attributes
+                if (!summary) {
+                    u.setAttributes(fetchUserAttributes(subjectId, realm));
+                }
+
+                // add groups
+                Collection<Group> ug = groups.getOrDefault(subjectId, Collections.emptyList());
+                u.setGroups(ug);
+
+                // add realm roles, directly assigned or via groups
+                Set<RealmRole> rr = new HashSet<>();
+                rr.addAll(realmRoles.getOrDefault(subjectId, Collections.emptyList()));
+                ug.forEach(g -> rr.addAll(realmRoles.getOrDefault(g.getGroupId(), Collections.emptyList())));
+                u.setRealmRoles(rr);
+
+                // add space roles
+                u.setSpaceRoles(spaceRoles.getOrDefault(subjectId, Collections.emptyList()));
+
+                result.add(u);
+            } catch (NoSuchUserException e) {
+                // skip
+            }
+        }
+
+        return result;
+    }
+
     public List<User> findUsersByUsername(String realm, String username) {
         return convertUsers(realm, userService.findUsersByUsername(realm, username));
     }
@@ -772,9 +875,19 @@ public class UserService {
             .stream()
             .flatMap(a -> a.getProvidersByRealm(realm).stream())
             .collect(Collectors.toList());
-        for (AttributeProvider<?, ?, ?> ap : aps) {
-            attributes.addAll(ap.getUserAttributes(subjectId));
-        }
+        // read persisted attributes for all providers with a single query
+        Set<String> providerIds = aps.stream().map(ap -> ap.getProvider()).collect(Collectors.toSet());
+        attributeStore.prefetch(
+            subjectId,
+            providerIds,
+            () -> {
+                for (AttributeProvider<?, ?, ?> ap : aps) {
+                    attributes.addAll(ap.getUserAttributes(subjectId));
+                }
+
+                return attributes;
+            }
+        );
 
         return attributes;
     }
@@ -794,14 +907,16 @@ public class UserService {
     private Collection<RealmRole> fetchUserRealmRoles(String subjectId, String realm, Set<String> groupIds)
         throws NoSuchUserException {
         // merge directly assigned roles with those assigned to groups
-        Set<RealmRole> roles = new HashSet<>();
-        roles.addAll(roleService.getRoles(subjectId, realm));
+        // resolve all subjects in a single batch
+        Set<String> subjectIds = new HashSet<>();
+        subjectIds.add(subjectId);
         if (groupIds != null) {
-            groupIds.forEach(groupId -> {
-                roles.addAll(roleService.getRoles(groupId, realm));
-            });
+            subjectIds.addAll(groupIds);
         }
 
+        Set<RealmRole> roles = new HashSet<>();
+        roles.addAll(roleService.getRoles(subjectIds, realm));
+
         return roles;
     }
 
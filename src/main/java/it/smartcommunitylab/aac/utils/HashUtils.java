@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/*
+ * SHA-256 digests for cache keys, fingerprints and entity tags
+ */
+public class HashUtils {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static byte[] sha256(byte[] value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(value);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm not available");
+        }
+    }
+
+    /*
+     * Digest as url safe base64, without padding
+     */
+    public static String sha256Key(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sha256(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /*
+     * Digest as lowercase hex
+     */
+    public static String sha256Hex(String value) {
+        byte[] digest = sha256(value.getBytes(StandardCharsets.UTF_8));
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /*
+     * Strong entity tag for the given content
+     */
+    public static String sha256ETag(String content) {
+        return "\"" + sha256Key(content) + "\"";
+    }
+}
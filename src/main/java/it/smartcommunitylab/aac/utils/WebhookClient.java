@@ -0,0 +1,315 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.util.Assert;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+/*
+ * Shared http client for calls to external hooks
+ *
+ * All hooks share a pooled connection manager with per-host limits and bounded
+ * keep-alive. Each hook, identified by type and name, gets a bulkhead limiting
+ * concurrent calls and a circuit breaker which fails fast after consecutive
+ * failures, so that a slow or broken endpoint can't hold request threads.
+ *
+ * Hook states are dropped only once idle, ie with no calls in flight, so that
+ * limits are never bypassed by a fresh state.
+ */
+public class WebhookClient implements DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final int DEFAULT_KEEP_ALIVE = 30; // seconds
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 20;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final int DEFAULT_OPEN_DURATION = 30; // seconds
+    public static final int DEFAULT_TIMEOUT = 10000; // milliseconds
+    public static final long IDLE_TIMEOUT = 60 * 60; // 1 hour
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    // templates by timeout, all backed by the shared client
+    private final Map<Integer, RestTemplate> templates = new ConcurrentHashMap<>();
+
+    // state by hook type and name
+    private final Map<List<String>, HookState> hooks = new ConcurrentHashMap<>();
+    private final AtomicLong nextCleanup = new AtomicLong(0);
+
+    private int maxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openDuration = TimeUnit.SECONDS.toMillis(DEFAULT_OPEN_DURATION);
+
+    private MeterRegistry meterRegistry;
+
+    public WebhookClient() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE);
+    }
+
+    public WebhookClient(int maxConnections, int maxConnectionsPerHost, int keepAlive) {
+        Assert.isTrue(maxConnections > 0, "max connections must be positive");
+        Assert.isTrue(maxConnectionsPerHost > 0, "max connections per host must be positive");
+
+        connectionManager = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+        // honor server keep-alive, bounded by ours
+        long maxKeepAlive = TimeUnit.SECONDS.toMillis(keepAlive);
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, maxKeepAlive) : maxKeepAlive;
+        };
+
+        client =
+            HttpClientBuilder
+                .create()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.SECONDS)
+                .disableCookieManagement()
+                .build();
+    }
+
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        Assert.isTrue(maxConcurrentCalls > 0, "max concurrent calls must be positive");
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        Assert.isTrue(failureThreshold > 0, "failure threshold must be positive");
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setOpenDuration(int openDuration) {
+        // duration in seconds
+        this.openDuration = TimeUnit.SECONDS.toMillis(openDuration);
+    }
+
+    public void registerMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("webhook.connections.leased", connectionManager, m -> m.getTotalStats().getLeased());
+        meterRegistry.gauge("webhook.connections.pending", connectionManager, m -> m.getTotalStats().getPending());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        client.close();
+    }
+
+    /*
+     * Post the entity to the given url on behalf of the named hook, with the
+     * given timeout in milliseconds.
+     *
+     * Calls are rejected with a ResourceAccessException when the hook is
+     * saturated or its circuit is open.
+     */
+    public ResponseEntity<String> post(String type, String name, String url, HttpEntity<?> entity, int timeout) {
+        Assert.hasText(type, "hook type can not be null or empty");
+        Assert.hasText(name, "hook name can not be null or empty");
+        HookState hook = acquireHook(type, name);
+        try {
+            return post(hook, type, name, url, entity, timeout);
+        } finally {
+            hook.users.decrementAndGet();
+        }
+    }
+
+    private ResponseEntity<String> post(
+        HookState hook,
+        String type,
+        String name,
+        String url,
+        HttpEntity<?> entity,
+        int timeout
+    ) {
+        if (!hook.allowRequest()) {
+            record(type, "open", 0);
+            throw new ResourceAccessException("hook " + name + " is unavailable");
+        }
+
+        if (!hook.bulkhead.tryAcquire()) {
+            hook.release();
+            record(type, "rejected", 0);
+            throw new ResourceAccessException("too many concurrent calls to hook " + name);
+        }
+
+        long start = System.nanoTime();
+        try {
+            ResponseEntity<String> response = getRestTemplate(timeout).exchange(
+                url,
+                HttpMethod.POST,
+                entity,
+                String.class
+            );
+            hook.onSuccess();
+            record(type, "success", System.nanoTime() - start);
+
+            return response;
+        } catch (HttpServerErrorException | ResourceAccessException e) {
+            // server errors and io errors count for the circuit
+            hook.onFailure(failureThreshold, openDuration);
+            record(type, "error", System.nanoTime() - start);
+            if (hook.isOpen()) {
+                logger.warn("hook {} failing, circuit open for {}ms", name, openDuration);
+            }
+
+            throw e;
+        } catch (RuntimeException e) {
+            // client errors are valid responses from a healthy endpoint
+            hook.onSuccess();
+            record(type, "client_error", System.nanoTime() - start);
+
+            throw e;
+        } finally {
+            hook.bulkhead.release();
+        }
+    }
+
+    private RestTemplate getRestTemplate(int timeout) {
+        int t = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+        return templates.computeIfAbsent(
+            t,
+            k -> {
+                HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(client);
+                factory.setConnectTimeout(k);
+                factory.setConnectionRequestTimeout(k);
+                factory.setReadTimeout(k);
+                return new RestTemplate(factory);
+            }
+        );
+    }
+
+    // callers need to decrement users when done
+    private HookState acquireHook(String type, String name) {
+        long now = System.currentTimeMillis();
+        cleanup(now);
+
+        return hooks.compute(
+            Arrays.asList(type, name),
+            (k, h) -> {
+                HookState hook = h != null ? h : new HookState(maxConcurrentCalls);
+                hook.users.incrementAndGet();
+                hook.lastUsed = now;
+                return hook;
+            }
+        );
+    }
+
+    private void cleanup(long now) {
+        long next = nextCleanup.get();
+        if (now < next || !nextCleanup.compareAndSet(next, now + TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT))) {
+            return;
+        }
+
+        // remove atomically with respect to acquire, only when nobody is using the state
+        long idleSince = now - TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT);
+        for (List<String> key : hooks.keySet()) {
+            hooks.computeIfPresent(key, (k, h) -> h.users.get() == 0 && h.lastUsed < idleSince ? null : h);
+        }
+    }
+
+    private void record(String type, String outcome, long duration) {
+        if (meterRegistry != null) {
+            Timer
+                .builder("webhook.requests")
+                .description("Latency of calls to external hooks")
+                .tag("type", type)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(duration, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static class HookState {
+
+        private final Semaphore bulkhead;
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile long lastUsed;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean(false);
+        private volatile long openUntil = 0;
+
+        public HookState(int maxConcurrentCalls) {
+            this.bulkhead = new Semaphore(maxConcurrentCalls);
+        }
+
+        public boolean isOpen() {
+            return openUntil > System.currentTimeMillis();
+        }
+
+        public boolean allowRequest() {
+            if (openUntil == 0) {
+                return true;
+            }
+
+            if (isOpen()) {
+                return false;
+            }
+
+            // half-open, let a single call probe the endpoint
+            return probing.compareAndSet(false, true);
+        }
+
+        public void release() {
+            probing.set(false);
+        }
+
+        public void onSuccess() {
+            failures.set(0);
+            openUntil = 0;
+            probing.set(false);
+        }
+
+        public void onFailure(int threshold, long openDuration) {
+            if (failures.incrementAndGet() >= threshold || probing.get()) {
+                openUntil = System.currentTimeMillis() + openDuration;
+            }
+            probing.set(false);
+        }
+    }
+}
@@ -39,4 +39,26 @@ CREATE TABLE
         issued_at datetime DEFAULT NULL,
         expires_at datetime DEFAULT NULL,
         authentication BLOB NOT NULL
-    );
\ No newline at end of file
+    );
+
+CREATE TABLE
+    IF NOT EXISTS oauth_cleanup_lease (
+        name VARCHAR(64) NOT NULL PRIMARY KEY,
+        owner VARCHAR(256),
+        expires_at datetime DEFAULT NULL
+    );
+
+CREATE TABLE
+    IF NOT EXISTS oauth_migration_cursor (
+        name VARCHAR(64) NOT NULL PRIMARY KEY,
+        last_key VARCHAR(256)
+    );
+
+CREATE INDEX oauth_access_token_expires_at_index ON oauth_access_token (expires_at);
+CREATE INDEX oauth_refresh_token_expires_at_index ON oauth_refresh_token (expires_at);
+CREATE INDEX oauth_code_expires_at_index ON oauth_code (expiresAt);
+CREATE INDEX oauth_approvals_expires_at_index ON oauth_approvals (expiresAt);
+
+CREATE INDEX oauth_approvals_user_client_scope_index ON oauth_approvals (userId, clientId, scope);
+CREATE INDEX oauth_approvals_client_index ON oauth_approvals (clientId);
+CREATE INDEX oauth_approvals_scope_index ON oauth_approvals (scope);
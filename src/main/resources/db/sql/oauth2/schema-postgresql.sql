@@ -48,4 +48,26 @@ CREATE INDEX oauth_access_token_token_refresh_token_index ON public.oauth_access
 
 CREATE INDEX oauth_refresh_token_token_id_index ON public.oauth_refresh_token (token_id);
 CREATE INDEX oauth_refresh_token_token_user_index ON public.oauth_refresh_token (user_name);
-CREATE INDEX oauth_refresh_token_token_client_index ON public.oauth_refresh_token (client_id);
\ No newline at end of file
+CREATE INDEX oauth_refresh_token_token_client_index ON public.oauth_refresh_token (client_id);
+
+CREATE TABLE
+    IF NOT EXISTS oauth_cleanup_lease (
+        name VARCHAR(64) NOT NULL PRIMARY KEY,
+        owner VARCHAR(256),
+        expires_at timestamp DEFAULT NULL
+    );
+
+CREATE TABLE
+    IF NOT EXISTS oauth_migration_cursor (
+        name VARCHAR(64) NOT NULL PRIMARY KEY,
+        last_key VARCHAR(256)
+    );
+
+CREATE INDEX oauth_access_token_expires_at_index ON public.oauth_access_token (expires_at);
+CREATE INDEX oauth_refresh_token_expires_at_index ON public.oauth_refresh_token (expires_at);
+CREATE INDEX oauth_code_expires_at_index ON public.oauth_code (expiresAt);
+CREATE INDEX oauth_approvals_expires_at_index ON public.oauth_approvals (expiresAt);
+
+CREATE INDEX oauth_approvals_user_client_scope_index ON public.oauth_approvals (userId, clientId, scope);
+CREATE INDEX oauth_approvals_client_index ON public.oauth_approvals (clientId);
+CREATE INDEX oauth_approvals_scope_index ON public.oauth_approvals (scope);
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.attributes.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+public class AutoJdbcAttributeStoreTest {
+
+    private EmbeddedDatabase dataSource;
+    private AutoJdbcAttributeStore store;
+
+    @BeforeEach
+    public void setUp() {
+        dataSource =
+            new EmbeddedDatabaseBuilder()
+                .generateUniqueName(true)
+                .setType(EmbeddedDatabaseType.H2)
+                .addScript("db/sql/schema-h2.sql")
+                .build();
+        store = new AutoJdbcAttributeStore(dataSource);
+
+        store.addAttribute("p1", "user", "email|email", "user@test.local");
+        store.addAttribute("p1", "user", "profile|name", "user");
+        store.addAttribute("p2", "user", "custom|key", 42);
+        store.addAttribute("p2", "other", "custom|key", 1);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dataSource.shutdown();
+    }
+
+    @Test
+    public void findAttributesForManyProviders() {
+        Map<String, Map<String, Serializable>> result = store.findAttributes(Arrays.asList("p1", "p2", "p3"), "user");
+
+        assertThat(result).containsOnlyKeys("p1", "p2", "p3");
+        assertThat(result.get("p1")).containsOnlyKeys("email|email", "profile|name");
+        assertThat(result.get("p2")).containsEntry("custom|key", 42);
+        assertThat(result.get("p3")).isEmpty();
+    }
+
+    @Test
+    public void prefetchServesReadsWithinScope() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+        Map<String, Serializable> attributes = store.prefetch(
+            "user",
+            Arrays.asList("p1", "p2"),
+            () -> {
+                // rows removed behind the store are not visible within the scope
+                jdbcTemplate.update("delete from attributes where provider_id = 'p1'");
+                return store.findAttributes("p1", "user");
+            }
+        );
+        assertThat(attributes).hasSize(2);
+
+        // outside the scope reads hit the db
+        assertThat(store.findAttributes("p1", "user")).isEmpty();
+    }
+
+    @Test
+    public void writesWithinScopeAreVisible() {
+        Map<String, Serializable> attributes = store.prefetch(
+            "user",
+            Arrays.asList("p1", "p2"),
+            () -> {
+                store.addAttribute("p2", "user", "custom|other", "value");
+                return store.findAttributes("p2", "user");
+            }
+        );
+
+        assertThat(attributes).containsOnlyKeys("custom|key", "custom|other");
+    }
+}
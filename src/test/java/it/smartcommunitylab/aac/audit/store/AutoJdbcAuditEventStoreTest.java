@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.audit.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.audit.AuditEvent;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+public class AutoJdbcAuditEventStoreTest {
+
+    private EmbeddedDatabase dataSource;
+    private AutoJdbcAuditEventStore store;
+
+    @BeforeEach
+    public void setUp() {
+        dataSource =
+            new EmbeddedDatabaseBuilder()
+                .generateUniqueName(true)
+                .setType(EmbeddedDatabaseType.H2)
+                .addScript("db/sql/audit/schema-h2.sql")
+                .build();
+        store = new AutoJdbcAuditEventStore(dataSource);
+        store.setFlushInterval(10);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        store.destroy();
+        dataSource.shutdown();
+    }
+
+    @Test
+    public void eventsAddedAfterDestroyAreWrittenDirectly() {
+        store.startBuffering(10);
+        store.add(new AuditEvent("p1", "test", Collections.emptyMap()));
+        store.destroy();
+        store.add(new AuditEvent("p2", "test", Collections.emptyMap()));
+
+        assertThat(count()).isEqualTo(2);
+    }
+
+    @Test
+    public void noEventIsLostWhenDestroyRacesWithAdd() throws Exception {
+        int threads = 8;
+        int events = 200;
+        store.startBuffering(50);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                String principal = "p" + t;
+                futures.add(
+                    executor.submit(() -> {
+                        ready.countDown();
+                        for (int i = 0; i < events; i++) {
+                            store.add(new AuditEvent(principal, "test", Collections.emptyMap()));
+                        }
+                    })
+                );
+            }
+
+            // stop while producers are still offering
+            ready.await();
+            store.destroy();
+
+            for (Future<?> f : futures) {
+                f.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(count()).isEqualTo(threads * events);
+    }
+
+    @Test
+    public void failingEventDoesNotDropTheWholeBatch() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        store.registerMetrics(meterRegistry);
+        store.setFlushInterval(200);
+        store.startBuffering(10);
+        for (int i = 0; i < 4; i++) {
+            store.add(new AuditEvent("p" + i, "test", Collections.emptyMap()));
+        }
+        // principal exceeds the column size
+        store.add(new AuditEvent("p".repeat(300), "test", Collections.emptyMap()));
+        store.destroy();
+
+        assertThat(count()).isEqualTo(4);
+        assertThat(meterRegistry.get("audit.writer.failed").functionCounter().count()).isEqualTo(1);
+    }
+
+    private long count() {
+        return new JdbcTemplate(dataSource).queryForObject("SELECT COUNT(*) FROM audit_events", Long.class);
+    }
+}
@@ -96,4 +96,163 @@ public class TestGraalExecutionService {
         }
         assertThat(expectedResult.equals(obtainedResult));
     }
+
+    /**
+     * This test checks that pooled sandboxes do not share state between executions
+     * @throws Exception if either execution fails or if the result does not match expected result
+     */
+    @Test
+    public void testIsolationInPooledExecutionService() throws Exception {
+        LocalGraalExecutionService executionService = new LocalGraalExecutionService(1, 10);
+        Map<String, Serializable> funcInput = new HashMap<>() {
+            {
+                put("key_0", "value_0");
+            }
+        };
+
+        String setFunction =
+            """
+            function setFunction(attributes) {
+                leaked = attributes['key_0'];
+                return attributes;
+            }
+            """;
+        String getFunction =
+            """
+            function getFunction(attributes) {
+                attributes['leaked'] = typeof leaked;
+                attributes['function'] = typeof setFunction;
+                return attributes;
+            }
+            """;
+
+        try {
+            Map<String, Serializable> first = executionService.executeFunction("setFunction", setFunction, funcInput);
+            assertThat(first).containsEntry("key_0", "value_0");
+
+            // single sandbox pool, second execution runs on the same sandbox
+            Map<String, Serializable> second = executionService.executeFunction("getFunction", getFunction, funcInput);
+            assertThat(second).containsEntry("leaked", "undefined").containsEntry("function", "undefined");
+        } finally {
+            executionService.destroy();
+        }
+    }
+
+    /**
+     * This test checks that pooled sandboxes do not share modified built-ins between executions
+     * @throws Exception if either execution fails or if the result does not match expected result
+     */
+    @Test
+    public void testBuiltinsIsolationInPooledExecutionService() throws Exception {
+        LocalGraalExecutionService executionService = new LocalGraalExecutionService(1, 10);
+        Map<String, Serializable> funcInput = new HashMap<>() {
+            {
+                put("key_0", "value_0");
+            }
+        };
+
+        String setFunction =
+            """
+            function setFunction(attributes) {
+                JSON.parse = function() { return { 'tampered': true }; };
+                Object.prototype.polluted = 'yes';
+                Array.prototype.includes = function() { return true; };
+                console.log = function() {};
+                JSON = { 'parse': function() { return {}; }, 'stringify': function() { return '{}'; } };
+                return attributes;
+            }
+            """;
+        String getFunction =
+            """
+            function getFunction(attributes) {
+                attributes['polluted'] = typeof {}.polluted;
+                attributes['includes'] = [].includes('x');
+                attributes['console'] = typeof console.log;
+                return attributes;
+            }
+            """;
+
+        try {
+            executionService.executeFunction("setFunction", setFunction, funcInput);
+
+            // single sandbox pool, second execution runs on the same sandbox
+            Map<String, Serializable> second = executionService.executeFunction("getFunction", getFunction, funcInput);
+            assertThat(second)
+                .containsEntry("key_0", "value_0")
+                .doesNotContainKey("tampered")
+                .containsEntry("polluted", "undefined")
+                .containsEntry("includes", false)
+                .containsEntry("console", "function");
+        } finally {
+            executionService.destroy();
+        }
+    }
+
+    /**
+     * This test checks that pooled sandboxes restore globals deleted by a previous execution
+     * @throws Exception if either execution fails or if the result does not match expected result
+     */
+    @Test
+    public void testDeletedGlobalsInPooledExecutionService() throws Exception {
+        LocalGraalExecutionService executionService = new LocalGraalExecutionService(1, 10);
+        Map<String, Serializable> funcInput = new HashMap<>() {
+            {
+                put("key_0", "value_0");
+            }
+        };
+
+        String deleteFunction =
+            """
+            function deleteFunction(attributes) {
+                delete globalThis.JSON;
+                delete globalThis.Object;
+                return attributes;
+            }
+            """;
+        String getFunction =
+            """
+            function getFunction(attributes) {
+                attributes['json'] = typeof JSON;
+                attributes['keys'] = Object.keys(attributes).length;
+                return attributes;
+            }
+            """;
+
+        try {
+            Map<String, Serializable> first = executionService.executeFunction(
+                "deleteFunction",
+                deleteFunction,
+                funcInput
+            );
+            assertThat(first).containsEntry("key_0", "value_0");
+
+            // single sandbox pool, second execution runs on the same sandbox
+            Map<String, Serializable> second = executionService.executeFunction("getFunction", getFunction, funcInput);
+            assertThat(second).containsEntry("json", "object").containsEntry("keys", 2);
+        } finally {
+            executionService.destroy();
+        }
+    }
+
+    /**
+     * This test checks that input is bound per execution when reusing the same script
+     * @throws Exception if either execution fails or if the result does not match expected result
+     */
+    @Test
+    public void testInputsInPooledExecutionService() throws Exception {
+        LocalGraalExecutionService executionService = new LocalGraalExecutionService(1, 10);
+        String funcContent =
+            """
+            function sum(a, b) {
+                return a + b;
+            }
+            """;
+
+        try {
+            assertThat(executionService.executeFunction("sum", funcContent, Integer.class, 1, 2)).isEqualTo(3);
+            assertThat(executionService.executeFunction("sum", funcContent, Integer.class, 3, 4)).isEqualTo(7);
+        } finally {
+            executionService.destroy();
+        }
+    }
 }
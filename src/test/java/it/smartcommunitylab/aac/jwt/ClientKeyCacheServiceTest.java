@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.smartcommunitylab.aac.jwt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+
+public class ClientKeyCacheServiceTest {
+
+    private static final String CLIENT_ID = "client";
+
+    private final ClientKeyCacheService keyCacheService = new ClientKeyCacheService();
+
+    private RSAKey key1;
+    private RSAKey key2;
+
+    @BeforeEach
+    public void setUp() throws JOSEException {
+        key1 = new RSAKeyGenerator(2048).keyID("k1").keyUse(KeyUse.SIGNATURE).algorithm(JWSAlgorithm.RS256).generate();
+        key2 = new RSAKeyGenerator(2048).keyID("k2").keyUse(KeyUse.SIGNATURE).algorithm(JWSAlgorithm.RS256).generate();
+    }
+
+    @Test
+    public void decoderIsReusedForSameKeys() {
+        JWKSet set = new JWKSet(Arrays.asList(key1.toPublicJWK(), key2.toPublicJWK()));
+        JwtDecoder decoder = keyCacheService.getJwtDecoder(CLIENT_ID, set.toString(), null, "k1");
+        assertThat(decoder).isNotNull();
+
+        // same keys in a different order resolve to the same fingerprint
+        JWKSet reordered = new JWKSet(Arrays.asList(key2.toPublicJWK(), key1.toPublicJWK()));
+        assertThat(keyCacheService.getJwtDecoder(CLIENT_ID, reordered.toString(), null, "k2")).isSameAs(decoder);
+
+        // keys are bound to the client
+        assertThat(keyCacheService.getJwtDecoder("other", set.toString(), null, "k1")).isNotSameAs(decoder);
+
+        // rotated keys get a new decoder
+        JWKSet rotated = new JWKSet(key2.toPublicJWK());
+        assertThat(keyCacheService.getJwtDecoder(CLIENT_ID, rotated.toString(), null, "k2")).isNotSameAs(decoder);
+    }
+
+    @Test
+    public void keyMetadataIsPartOfFingerprint() throws JOSEException {
+        JWKSet set = new JWKSet(key1.toPublicJWK());
+        JwtDecoder decoder = keyCacheService.getJwtDecoder(CLIENT_ID, set.toString(), null, "k1");
+
+        // same key material with a different kid or alg is a different key set
+        RSAKey renamed = new RSAKey.Builder(key1.toPublicJWK()).keyID("k3").build();
+        assertThat(keyCacheService.getJwtDecoder(CLIENT_ID, new JWKSet(renamed).toString(), null, "k3"))
+            .isNotSameAs(decoder);
+
+        RSAKey realg = new RSAKey.Builder(key1.toPublicJWK()).algorithm(JWSAlgorithm.RS512).build();
+        assertThat(keyCacheService.getJwtDecoder(CLIENT_ID, new JWKSet(realg).toString(), null, "k1"))
+            .isNotSameAs(decoder);
+    }
+
+    @Test
+    public void decoderSelectsKeyByKid() throws JOSEException {
+        JWKSet set = new JWKSet(Arrays.asList(key1.toPublicJWK(), key2.toPublicJWK()));
+        JwtDecoder decoder = keyCacheService.getJwtDecoder(CLIENT_ID, set.toString(), null, "k2");
+
+        Jwt jwt = decoder.decode(assertion(key2));
+        assertThat(jwt.getSubject()).isEqualTo(CLIENT_ID);
+    }
+
+    @Test
+    public void validatorIsReusedForSameKeys() {
+        JWKSet set = new JWKSet(key1.toPublicJWK());
+        JWTSigningAndValidationService validator = keyCacheService.getSigner(
+            "RS256",
+            CLIENT_ID,
+            null,
+            set.toString(),
+            null
+        );
+        assertThat(validator).isNotNull();
+        assertThat(keyCacheService.getSigner("RS256", CLIENT_ID, null, set.toString(), null)).isSameAs(validator);
+
+        // no key for algorithm
+        assertThat(keyCacheService.getSigner("ES256", CLIENT_ID, null, set.toString(), null)).isNull();
+    }
+
+    private String assertion(RSAKey key) throws JOSEException {
+        Instant now = Instant.now();
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+            .issuer(CLIENT_ID)
+            .subject(CLIENT_ID)
+            .audience("aac")
+            .issueTime(Date.from(now))
+            .expirationTime(Date.from(now.plusSeconds(60)))
+            .build();
+
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+        jwt.sign(new RSASSASigner(key));
+
+        return jwt.serialize();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.jwt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DefaultJWTSigningAndValidationServiceTest {
+
+    private RSAKey key1;
+    private RSAKey key2;
+    private DefaultJWTSigningAndValidationService service;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        key1 = new RSAKeyGenerator(2048).keyID("k1").keyUse(KeyUse.SIGNATURE).algorithm(JWSAlgorithm.RS256).generate();
+        key2 = new RSAKeyGenerator(2048).keyID("k2").keyUse(KeyUse.SIGNATURE).algorithm(JWSAlgorithm.RS256).generate();
+
+        Map<String, JWK> keys = new HashMap<>();
+        keys.put("k1", key1);
+        keys.put("k2", key2);
+        service = new DefaultJWTSigningAndValidationService(keys);
+    }
+
+    @Test
+    public void validatesWithKeyMatchingKid() throws JOSEException {
+        assertThat(service.validateSignature(sign(key2, JWSAlgorithm.RS256, "k2"))).isTrue();
+
+        // kid pointing to another key does not validate
+        assertThat(service.validateSignature(sign(key2, JWSAlgorithm.RS256, "k1"))).isFalse();
+    }
+
+    @Test
+    public void unknownKidFallsBackToAlgorithm() throws JOSEException {
+        assertThat(service.validateSignature(sign(key1, JWSAlgorithm.RS256, "unknown"))).isTrue();
+    }
+
+    @Test
+    public void missingKidFallsBackToAlgorithm() throws JOSEException {
+        assertThat(service.validateSignature(sign(key1, JWSAlgorithm.RS256, null))).isTrue();
+        assertThat(service.validateSignature(sign(key2, JWSAlgorithm.RS256, null))).isTrue();
+    }
+
+    @Test
+    public void algorithmMismatchDoesNotValidate() throws Exception {
+        // signed by a key unknown to the service
+        RSAKey other = new RSAKeyGenerator(2048).keyID("k1").generate();
+        assertThat(service.validateSignature(sign(other, JWSAlgorithm.RS256, "k1"))).isFalse();
+
+        // algorithm not supported by any verifier
+        Map<String, JWK> keys = new HashMap<>();
+        keys.put("k1", key1);
+        DefaultJWTSigningAndValidationService rsa = new DefaultJWTSigningAndValidationService(keys);
+        SignedJWT hmac = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.HS256).build(), claims());
+        hmac.sign(new MACSigner(new byte[32]));
+        assertThat(rsa.validateSignature(hmac)).isFalse();
+    }
+
+    private SignedJWT sign(RSAKey key, JWSAlgorithm alg, String kid) throws JOSEException {
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(alg).keyID(kid).build(), claims());
+        jwt.sign(new RSASSASigner(key));
+        return jwt;
+    }
+
+    private JWTClaimsSet claims() {
+        return new JWTClaimsSet.Builder().subject("subject").issuer("issuer").build();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.jwt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.client.ExpectedCount.once;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.test.web.client.ResponseCreator;
+import org.springframework.web.client.RestTemplate;
+
+public class JWKSetCacheServiceTest {
+
+    private static final String JWKS_URI = "https://idp.test.local/jwks";
+
+    private final AtomicLong time = new AtomicLong(System.currentTimeMillis());
+
+    private MockRestServiceServer server;
+    private JWKSetCacheService service;
+
+    private RSAKey key1;
+    private RSAKey key2;
+
+    @BeforeEach
+    public void setUp() throws JOSEException {
+        RestTemplate restTemplate = new RestTemplate();
+        server = MockRestServiceServer.bindTo(restTemplate).ignoreExpectOrder(false).build();
+        service = new JWKSetCacheService(restTemplate);
+        service.setClock(new MutableClock(time));
+
+        key1 = new RSAKeyGenerator(2048).keyID("k1").keyUse(KeyUse.SIGNATURE).algorithm(JWSAlgorithm.RS256).generate();
+        key2 = new RSAKeyGenerator(2048).keyID("k2").keyUse(KeyUse.SIGNATURE).algorithm(JWSAlgorithm.RS256).generate();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Test
+    public void refreshServesCurrentSetAndUpdatesInBackground() throws InterruptedException {
+        server.expect(once(), requestTo(JWKS_URI)).andRespond(jwks(120, key1));
+        server.expect(once(), requestTo(JWKS_URI)).andRespond(jwks(120, key2));
+
+        assertThat(service.getJWKSet(JWKS_URI).getKeyByKeyId("k1")).isNotNull();
+
+        // past refresh time but before expiration current set is served
+        time.addAndGet(TimeUnit.SECONDS.toMillis(100));
+        assertThat(service.getJWKSet(JWKS_URI).getKeyByKeyId("k1")).isNotNull();
+
+        // refreshed set is picked up once the background fetch completes
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getJWKSet(JWKS_URI).getKeyByKeyId("k2") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(service.getJWKSet(JWKS_URI).getKeyByKeyId("k2")).isNotNull();
+        server.verify();
+    }
+
+    @Test
+    public void failedFetchBacksOff() {
+        server.expect(once(), requestTo(JWKS_URI)).andRespond(withServerError());
+        server.expect(once(), requestTo(JWKS_URI)).andRespond(jwks(120, key1));
+
+        assertThat(service.getJWKSet(JWKS_URI)).isNull();
+
+        // no new attempt while backing off
+        time.addAndGet(TimeUnit.SECONDS.toMillis(JWKSetCacheService.MIN_BACKOFF - 1));
+        assertThat(service.getJWKSet(JWKS_URI)).isNull();
+
+        time.addAndGet(TimeUnit.SECONDS.toMillis(2));
+        assertThat(service.getJWKSet(JWKS_URI).getKeyByKeyId("k1")).isNotNull();
+        server.verify();
+    }
+
+    @Test
+    public void unknownKidTriggersRateLimitedRefresh() {
+        server.expect(once(), requestTo(JWKS_URI)).andRespond(jwks(3600, key1));
+        server.expect(once(), requestTo(JWKS_URI)).andRespond(jwks(3600, key1, key2));
+
+        assertThat(service.getJWKSet(JWKS_URI, "k1").getKeyByKeyId("k1")).isNotNull();
+
+        // rotated key is fetched on miss
+        assertThat(service.getJWKSet(JWKS_URI, "k2").getKeyByKeyId("k2")).isNotNull();
+
+        // further misses within the interval do not hit the remote
+        JWKSet jwks = service.getJWKSet(JWKS_URI, "k3");
+        assertThat(jwks.getKeyByKeyId("k3")).isNull();
+        assertThat(jwks.getKeyByKeyId("k2")).isNotNull();
+        server.verify();
+    }
+
+    @Test
+    public void expiredSetIsServedWhileRefreshIsInProgress() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ResponseCreator slow = jwks(120, key2);
+        server.expect(once(), requestTo(JWKS_URI)).andRespond(jwks(120, key1));
+        server
+            .expect(once(), requestTo(JWKS_URI))
+            .andRespond(request -> {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return slow.createResponse(request);
+            });
+
+        assertThat(service.getJWKSet(JWKS_URI).getKeyByKeyId("k1")).isNotNull();
+
+        // start background refresh, then let the set expire while it is stuck
+        time.addAndGet(TimeUnit.SECONDS.toMillis(100));
+        service.getJWKSet(JWKS_URI);
+        Thread.sleep(100);
+        time.addAndGet(TimeUnit.SECONDS.toMillis(30));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<JWKSet> result = executor.submit(() -> service.getJWKSet(JWKS_URI));
+            assertThat(result.get(1, TimeUnit.SECONDS).getKeyByKeyId("k1")).isNotNull();
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private ResponseCreator jwks(long maxAge, RSAKey... keys) {
+        JWKSet set = new JWKSet(Arrays.asList((JWK[]) keys));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setCacheControl("max-age=" + maxAge);
+        return withSuccess(set.toString(), MediaType.APPLICATION_JSON).headers(headers);
+    }
+
+    private static class MutableClock extends Clock {
+
+        private final AtomicLong time;
+
+        MutableClock(AtomicLong time) {
+            this.time = time;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(time.get());
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import it.smartcommunitylab.aac.Config;
+import it.smartcommunitylab.aac.core.UserDetails;
+import it.smartcommunitylab.aac.core.auth.ExtendedAuthenticationToken;
+import it.smartcommunitylab.aac.core.auth.UserAuthentication;
+import it.smartcommunitylab.aac.core.auth.WebAuthenticationDetails;
+import it.smartcommunitylab.aac.model.Subject;
+import it.smartcommunitylab.aac.oauth.model.OAuth2ClientDetails;
+import it.smartcommunitylab.aac.oauth.service.OAuth2ClientDetailsService;
+import it.smartcommunitylab.aac.oauth.store.jdbc.AutoJdbcTokenStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.TokenRequest;
+
+/*
+ * Concurrent token issuance at read committed: refresh token rotation and
+ * reuse detection must hold under parallel requests
+ */
+public class OAuth2TokenServicesConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int CLIENTS = 20;
+
+    private JdbcTemplate jdbcTemplate;
+    private OAuth2TokenServices tokenServices;
+    private OAuth2ClientDetails clientDetails;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000"
+        );
+        new ResourceDatabasePopulator(new ClassPathResource("db/sql/oauth2/schema-h2.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        clientDetails = new OAuth2ClientDetails();
+        clientDetails.setRealm("test");
+        clientDetails.setAuthorizedGrantTypes(Set.of("authorization_code", "refresh_token"));
+
+        OAuth2ClientDetailsService clientDetailsService = mock(OAuth2ClientDetailsService.class);
+        when(clientDetailsService.loadClientByClientId(anyString())).thenReturn(clientDetails);
+
+        tokenServices = new OAuth2TokenServices(new AutoJdbcTokenStore(dataSource));
+        tokenServices.setClientDetailsService(clientDetailsService);
+        tokenServices.setTransactionManager(new DataSourceTransactionManager(dataSource));
+
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void parallelIssuanceForManyClients() throws Exception {
+        List<Callable<OAuth2AccessToken>> tasks = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            String clientId = "client" + i;
+            tasks.add(() -> tokenServices.createAccessToken(authentication(clientId)));
+        }
+
+        List<OAuth2AccessToken> tokens = new ArrayList<>();
+        for (Future<OAuth2AccessToken> f : executor.invokeAll(tasks)) {
+            tokens.add(f.get());
+        }
+
+        assertThat(tokens).extracting(OAuth2AccessToken::getValue).doesNotHaveDuplicates();
+        assertThat(count("oauth_access_token")).isEqualTo(CLIENTS);
+        assertThat(count("oauth_refresh_token")).isEqualTo(CLIENTS);
+    }
+
+    @Test
+    public void parallelRefreshWithRotationAllowsSingleUse() throws Exception {
+        clientDetails.setRefreshTokenRotation(true);
+        OAuth2AccessToken token = tokenServices.createAccessToken(authentication("client"));
+        String refreshToken = token.getRefreshToken().getValue();
+
+        List<Future<OAuth2AccessToken>> results = refreshInParallel(refreshToken, "client");
+
+        int success = 0;
+        int rejected = 0;
+        for (Future<OAuth2AccessToken> f : results) {
+            try {
+                OAuth2AccessToken refreshed = f.get();
+                assertThat(refreshed.getRefreshToken().getValue()).isNotEqualTo(refreshToken);
+                success++;
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(InvalidGrantException.class);
+                rejected++;
+            }
+        }
+
+        // the rotated token is consumed once, reuse is rejected
+        assertThat(success).isEqualTo(1);
+        assertThat(rejected).isEqualTo(THREADS - 1);
+        assertThat(count("oauth_refresh_token")).isEqualTo(1);
+        assertThat(count("oauth_access_token")).isEqualTo(1);
+    }
+
+    @Test
+    public void parallelRefreshWithoutRotationKeepsSingleAccessToken() throws Exception {
+        clientDetails.setRefreshTokenRotation(false);
+        OAuth2AccessToken token = tokenServices.createAccessToken(authentication("client"));
+        String refreshToken = token.getRefreshToken().getValue();
+
+        List<Future<OAuth2AccessToken>> results = refreshInParallel(refreshToken, "client");
+        for (Future<OAuth2AccessToken> f : results) {
+            assertThat(f.get().getRefreshToken().getValue()).isEqualTo(refreshToken);
+        }
+
+        // every refresh replaces the previous access token
+        assertThat(count("oauth_refresh_token")).isEqualTo(1);
+        assertThat(count("oauth_access_token")).isEqualTo(1);
+    }
+
+    private List<Future<OAuth2AccessToken>> refreshInParallel(String refreshToken, String clientId) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<OAuth2AccessToken>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(
+                executor.submit(() -> {
+                    start.await();
+                    TokenRequest request = new TokenRequest(
+                        Collections.emptyMap(),
+                        clientId,
+                        Collections.emptySet(),
+                        "refresh_token"
+                    );
+                    return tokenServices.refreshAccessToken(refreshToken, request);
+                })
+            );
+        }
+
+        start.countDown();
+        return results;
+    }
+
+    private int count(String table) {
+        return jdbcTemplate.queryForObject("select count(*) from " + table, Integer.class);
+    }
+
+    private OAuth2Authentication authentication(String clientId) {
+        OAuth2Request request = new OAuth2Request(
+            Collections.singletonMap("grant_type", "authorization_code"),
+            clientId,
+            Collections.emptySet(),
+            true,
+            Set.of(Config.SCOPE_OFFLINE_ACCESS),
+            Collections.emptySet(),
+            null,
+            Collections.emptySet(),
+            Collections.emptyMap()
+        );
+        return new OAuth2Authentication(request, new TestUserAuthentication("user-" + clientId));
+    }
+
+    private static class TestUserAuthentication extends UserAuthentication {
+
+        public TestUserAuthentication(String subjectId) {
+            super(
+                new Subject(subjectId, "test", subjectId, "user"),
+                "test",
+                Collections.singleton(new SimpleGrantedAuthority(Config.R_USER)),
+                true
+            );
+        }
+
+        @Override
+        public Object getDetails() {
+            return null;
+        }
+
+        @Override
+        public UserDetails getUser() {
+            return null;
+        }
+
+        @Override
+        public ExtendedAuthenticationToken getAuthentication(String authority, String provider, String userId) {
+            return null;
+        }
+
+        @Override
+        public void eraseAuthentication(ExtendedAuthenticationToken auth) {}
+
+        @Override
+        public Set<ExtendedAuthenticationToken> getAuthentications() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public WebAuthenticationDetails getWebAuthenticationDetails() {
+            return null;
+        }
+    }
+}
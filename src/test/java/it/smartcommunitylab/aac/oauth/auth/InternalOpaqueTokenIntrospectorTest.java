@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.auth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import it.smartcommunitylab.aac.SystemKeys;
+import it.smartcommunitylab.aac.core.service.SubjectService;
+import it.smartcommunitylab.aac.events.SubjectAuthoritiesChangedEvent;
+import it.smartcommunitylab.aac.model.Subject;
+import it.smartcommunitylab.aac.oauth.AACOAuth2AccessToken;
+import it.smartcommunitylab.aac.oauth.event.TokenRemovalEvent;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.server.resource.introspection.BadOpaqueTokenException;
+
+public class InternalOpaqueTokenIntrospectorTest {
+
+    private TokenStore tokenStore;
+    private SubjectService subjectService;
+    private InternalOpaqueTokenIntrospector introspector;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        tokenStore = mock(TokenStore.class);
+        subjectService = mock(SubjectService.class);
+        when(subjectService.getSubject(anyString()))
+            .thenAnswer(i -> new Subject(i.getArgument(0), "realm", "name", SystemKeys.RESOURCE_USER));
+        when(subjectService.getAuthorities(anyString())).thenReturn(Collections.emptyList());
+
+        introspector = new InternalOpaqueTokenIntrospector(tokenStore);
+        introspector.setSubjectService(subjectService);
+
+        register("token-1", "subject-1", "refresh-1");
+        register("token-2", "subject-1", "refresh-2");
+        register("token-3", "subject-2", "refresh-1");
+    }
+
+    @Test
+    public void principalsAreCached() {
+        introspector.introspect("token-1");
+        introspector.introspect("token-1");
+
+        verify(tokenStore, times(1)).readAccessToken("token-1");
+    }
+
+    @Test
+    public void subjectChangeEvictsOnlySubjectTokens() {
+        introspector.introspect("token-1");
+        introspector.introspect("token-2");
+        introspector.introspect("token-3");
+
+        introspector.onSubjectAuthoritiesChanged(new SubjectAuthoritiesChangedEvent("subject-1"));
+
+        introspector.introspect("token-1");
+        introspector.introspect("token-2");
+        introspector.introspect("token-3");
+
+        verify(tokenStore, times(2)).readAccessToken("token-1");
+        verify(tokenStore, times(2)).readAccessToken("token-2");
+        verify(tokenStore, times(1)).readAccessToken("token-3");
+    }
+
+    @Test
+    public void refreshTokenRemovalEvictsDerivedTokens() {
+        introspector.introspect("token-1");
+        introspector.introspect("token-2");
+        introspector.introspect("token-3");
+
+        introspector.onTokenRemoval(TokenRemovalEvent.forRefreshToken("refresh-1"));
+
+        introspector.introspect("token-1");
+        introspector.introspect("token-2");
+        introspector.introspect("token-3");
+
+        verify(tokenStore, times(2)).readAccessToken("token-1");
+        verify(tokenStore, times(1)).readAccessToken("token-2");
+        verify(tokenStore, times(2)).readAccessToken("token-3");
+
+        // index is rebuilt on reload
+        introspector.onTokenRemoval(TokenRemovalEvent.forRefreshToken("refresh-1"));
+        assertThat(introspector.introspect("token-1").getName()).isEqualTo("subject-1");
+        verify(tokenStore, times(3)).readAccessToken("token-1");
+    }
+
+    @Test
+    public void revocationDuringLoadIsNotCached() {
+        // token is revoked after the store read, before the principal is cached
+        when(tokenStore.readAuthentication("token-1"))
+            .thenAnswer(
+                i -> {
+                    introspector.onTokenRemoval(TokenRemovalEvent.forAccessToken("token-1"));
+                    return new OAuth2Authentication(request(), null);
+                }
+            )
+            .thenReturn(null);
+
+        introspector.introspect("token-1");
+
+        // next request reloads from store and sees the revocation
+        assertThatThrownBy(() -> introspector.introspect("token-1")).isInstanceOf(BadOpaqueTokenException.class);
+        verify(tokenStore, times(2)).readAccessToken("token-1");
+    }
+
+    private void register(String value, String subjectId, String refreshToken) {
+        AACOAuth2AccessToken token = new AACOAuth2AccessToken(value);
+        token.setSubject(subjectId);
+        token.setAuthorizedParty("client");
+        token.setRealm("realm");
+        token.setScope(Collections.singleton("profile"));
+        token.setExpiration(new Date(System.currentTimeMillis() + 3600 * 1000));
+        token.setRefreshToken(new DefaultOAuth2RefreshToken(refreshToken));
+        token.setClaims(new HashMap<>());
+
+        when(tokenStore.readAccessToken(value)).thenReturn(token);
+        when(tokenStore.readAuthentication(value)).thenReturn(new OAuth2Authentication(request(), null));
+    }
+
+    private OAuth2Request request() {
+        return new OAuth2Request(
+            new HashMap<>(),
+            "client",
+            Collections.emptyList(),
+            true,
+            Collections.singleton("profile"),
+            Collections.emptySet(),
+            null,
+            Collections.emptySet(),
+            new HashMap<>()
+        );
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import it.smartcommunitylab.aac.oauth.store.jdbc.AutoJdbcApprovalStore;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.oauth2.provider.approval.Approval;
+import org.springframework.security.oauth2.provider.approval.Approval.ApprovalStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class AutoJdbcApprovalStoreTest {
+
+    private static final int SCOPES = 20;
+
+    // round trips, every statement (or batch) outside a transaction borrows a connection
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private AutoJdbcApprovalStore approvalStore;
+
+    @BeforeEach
+    public void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"
+        ) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                roundTrips.incrementAndGet();
+                return super.getConnection();
+            }
+        };
+        new ResourceDatabasePopulator(new ClassPathResource("db/sql/oauth2/schema-h2.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        approvalStore = new AutoJdbcApprovalStore(dataSource);
+    }
+
+    @Test
+    public void consentIsStoredInBatches() {
+        roundTrips.set(0);
+        assertThat(approvalStore.addApprovals(approvals("user", "client", ApprovalStatus.APPROVED))).isTrue();
+
+        // one batch of updates and one of inserts for a new consent
+        assertThat(roundTrips.get()).isEqualTo(2);
+        assertThat(count()).isEqualTo(SCOPES);
+
+        roundTrips.set(0);
+        assertThat(approvalStore.addApprovals(approvals("user", "client", ApprovalStatus.DENIED))).isTrue();
+
+        // a returning user only needs updates
+        assertThat(roundTrips.get()).isEqualTo(1);
+        assertThat(count()).isEqualTo(SCOPES);
+        assertThat(approvalStore.getApprovals("user", "client"))
+            .extracting(Approval::getStatus)
+            .containsOnly(ApprovalStatus.DENIED);
+    }
+
+    @Test
+    public void returningUserApprovalsAreServedFromCache() {
+        approvalStore.addApprovals(approvals("user", "client", ApprovalStatus.APPROVED));
+        assertThat(approvalStore.getApprovals("user", "client")).hasSize(SCOPES);
+
+        // repeated authorization requests don't hit the database
+        roundTrips.set(0);
+        for (int i = 0; i < 100; i++) {
+            assertThat(approvalStore.getApprovals("user", "client")).hasSize(SCOPES);
+        }
+        assertThat(roundTrips.get()).isZero();
+
+        // writes evict the entry
+        List<Approval> list = approvalStore.getApprovals("user", "client");
+        assertThat(approvalStore.revokeApprovals(list.subList(0, 5))).isTrue();
+        assertThat(approvalStore.getApprovals("user", "client")).hasSize(SCOPES - 5);
+        assertThat(count()).isEqualTo(SCOPES - 5);
+    }
+
+    @Test
+    public void uncommittedApprovalsAreEvictedOnRollback() {
+        transactionTemplate.executeWithoutResult(status -> {
+            approvalStore.addApprovals(approvals("user", "client", ApprovalStatus.APPROVED));
+            // read within the transaction sees uncommitted rows
+            assertThat(approvalStore.getApprovals("user", "client")).hasSize(SCOPES);
+            status.setRollbackOnly();
+        });
+
+        assertThat(count()).isZero();
+        assertThat(approvalStore.getApprovals("user", "client")).isEmpty();
+    }
+
+    @Test
+    public void cacheKeysDoNotCollide() {
+        approvalStore.addApprovals(approvals("a|b", "c", ApprovalStatus.APPROVED));
+
+        assertThat(approvalStore.getApprovals("a|b", "c")).hasSize(SCOPES);
+        assertThat(approvalStore.getApprovals("a", "b|c")).isEmpty();
+    }
+
+    private List<Approval> approvals(String userId, String clientId, ApprovalStatus status) {
+        Date expiresAt = new Date(System.currentTimeMillis() + 3600 * 1000);
+        return IntStream
+            .range(0, SCOPES)
+            .mapToObj(i -> new Approval(userId, clientId, "scope" + i, expiresAt, status, new Date()))
+            .collect(Collectors.toList());
+    }
+
+    private int count() {
+        return jdbcTemplate.queryForObject("select count(*) from oauth_approvals", Integer.class);
+    }
+}
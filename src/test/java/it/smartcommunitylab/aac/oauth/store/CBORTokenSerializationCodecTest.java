@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import it.smartcommunitylab.aac.oauth.AACOAuth2AccessToken;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+public class CBORTokenSerializationCodecTest {
+
+    private final CBORTokenSerializationCodec codec = new CBORTokenSerializationCodec();
+
+    @Test
+    public void accessTokenRoundTrip() {
+        AACOAuth2AccessToken token = accessToken();
+
+        byte[] bytes = codec.serializeAccessToken(token);
+        assertThat(codec.isCurrentFormat(bytes)).isTrue();
+        assertThat(bytes.length).isLessThan(SerializationUtils.serialize(token).length);
+
+        OAuth2AccessToken result = codec.deserializeAccessToken(bytes);
+        assertThat(result).isInstanceOf(AACOAuth2AccessToken.class);
+
+        AACOAuth2AccessToken t = (AACOAuth2AccessToken) result;
+        assertThat(t.getValue()).isEqualTo(token.getValue());
+        assertThat(t.getToken()).isEqualTo(token.getToken());
+        assertThat(t.getSubject()).isEqualTo(token.getSubject());
+        assertThat(t.getRealm()).isEqualTo(token.getRealm());
+        assertThat(t.getAudience()).containsExactly(token.getAudience());
+        assertThat(t.getExpiration()).isEqualTo(token.getExpiration());
+        assertThat(t.getIssuedAt()).isEqualTo(token.getIssuedAt());
+        assertThat(t.getScope()).isEqualTo(token.getScope());
+        assertThat(t.getClaims()).isEqualTo(token.getClaims());
+        assertThat(t.getRefreshToken()).isInstanceOf(ExpiringOAuth2RefreshToken.class);
+        assertThat(t.getRefreshToken().getValue()).isEqualTo(token.getRefreshToken().getValue());
+    }
+
+    @Test
+    public void accessTokenWithUnsupportedClaimsFallsBack() {
+        AACOAuth2AccessToken token = accessToken();
+        Map<String, Serializable> claims = new HashMap<>();
+        claims.put("date", new Date());
+        token.setClaims(claims);
+
+        byte[] bytes = codec.serializeAccessToken(token);
+        assertThat(codec.isCurrentFormat(bytes)).isFalse();
+
+        AACOAuth2AccessToken t = (AACOAuth2AccessToken) codec.deserializeAccessToken(bytes);
+        assertThat(t.getClaims()).isEqualTo(claims);
+    }
+
+    @Test
+    public void legacyContentIsReadable() {
+        AACOAuth2AccessToken token = accessToken();
+        OAuth2Authentication auth = clientAuthentication();
+
+        JdkTokenSerializationCodec legacy = new JdkTokenSerializationCodec();
+        OAuth2AccessToken t = codec.deserializeAccessToken(legacy.serializeAccessToken(token));
+        assertThat(t.getValue()).isEqualTo(token.getValue());
+
+        OAuth2RefreshToken r = codec.deserializeRefreshToken(legacy.serializeRefreshToken(token.getRefreshToken()));
+        assertThat(r.getValue()).isEqualTo(token.getRefreshToken().getValue());
+
+        OAuth2Authentication a = codec.deserializeAuthentication(legacy.serializeAuthentication(auth));
+        assertThat(a).isEqualTo(auth);
+    }
+
+    @Test
+    public void numericClaimsKeepTheirWidth() {
+        AACOAuth2AccessToken token = accessToken();
+        Map<String, Serializable> claims = new HashMap<>();
+        claims.put("int", 5);
+        claims.put("long", 5L);
+        claims.put("epoch", 1700000000L);
+        claims.put("double", 1.5d);
+        token.setClaims(claims);
+
+        byte[] bytes = codec.serializeAccessToken(token);
+        assertThat(codec.isCurrentFormat(bytes)).isTrue();
+
+        AACOAuth2AccessToken t = (AACOAuth2AccessToken) codec.deserializeAccessToken(bytes);
+        assertThat(t.getClaims().get("int")).isInstanceOf(Integer.class);
+        assertThat(t.getClaims().get("long")).isInstanceOf(Long.class);
+        assertThat(t.getClaims().get("epoch")).isInstanceOf(Long.class);
+        assertThat(t.getClaims()).isEqualTo(claims);
+    }
+
+    @Test
+    public void legacyCodecReadsCompactContent() {
+        AACOAuth2AccessToken token = accessToken();
+        OAuth2Authentication auth = clientAuthentication();
+
+        JdkTokenSerializationCodec legacy = new JdkTokenSerializationCodec();
+        byte[] bytes = codec.serializeAccessToken(token);
+        assertThat(legacy.isCurrentFormat(bytes)).isFalse();
+
+        OAuth2AccessToken t = legacy.deserializeAccessToken(bytes);
+        assertThat(t.getValue()).isEqualTo(token.getValue());
+        assertThat(((AACOAuth2AccessToken) t).getClaims()).isEqualTo(token.getClaims());
+
+        OAuth2RefreshToken r = legacy.deserializeRefreshToken(codec.serializeRefreshToken(token.getRefreshToken()));
+        assertThat(r.getValue()).isEqualTo(token.getRefreshToken().getValue());
+
+        OAuth2Authentication a = legacy.deserializeAuthentication(codec.serializeAuthentication(auth));
+        assertThat(a.getOAuth2Request()).isEqualTo(auth.getOAuth2Request());
+    }
+
+    @Test
+    public void clientAuthenticationRoundTrip() {
+        OAuth2Authentication auth = clientAuthentication();
+
+        byte[] bytes = codec.serializeAuthentication(auth);
+        assertThat(codec.isCurrentFormat(bytes)).isTrue();
+
+        OAuth2Authentication result = codec.deserializeAuthentication(bytes);
+        assertThat(result.isClientOnly()).isTrue();
+        assertThat(result.getOAuth2Request()).isEqualTo(auth.getOAuth2Request());
+        assertThat(result.getAuthorities()).isEqualTo(auth.getAuthorities());
+    }
+
+    private AACOAuth2AccessToken accessToken() {
+        AACOAuth2AccessToken token = new AACOAuth2AccessToken("value", "token");
+        token.setSubject("subject");
+        token.setAuthorizedParty("client");
+        token.setAudience(new String[] { "client", "resource" });
+        token.setRealm("realm");
+        token.setExpiration(new Date(System.currentTimeMillis() + 3600 * 1000));
+        token.setScope(new HashSet<>(Arrays.asList("openid", "profile")));
+        token.setRefreshToken(
+            new DefaultExpiringOAuth2RefreshToken("refresh", new Date(System.currentTimeMillis() + 7200 * 1000))
+        );
+
+        Map<String, Serializable> claims = new HashMap<>();
+        claims.put("name", "test");
+        claims.put("roles", new java.util.ArrayList<>(Arrays.asList("a", "b")));
+        token.setClaims(claims);
+
+        return token;
+    }
+
+    private OAuth2Authentication clientAuthentication() {
+        Map<String, String> params = new HashMap<>();
+        params.put("grant_type", "client_credentials");
+
+        OAuth2Request request = new OAuth2Request(
+            params,
+            "client",
+            Collections.singleton(new SimpleGrantedAuthority("ROLE_CLIENT")),
+            true,
+            Collections.singleton("profile"),
+            Collections.emptySet(),
+            null,
+            Collections.emptySet(),
+            new HashMap<>()
+        );
+
+        return new OAuth2Authentication(request, null);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oauth.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.smartcommunitylab.aac.oauth.store.jdbc.JdbcExpiredTokenSweeper;
+import it.smartcommunitylab.aac.oauth.store.jdbc.JdbcLease;
+import java.sql.Timestamp;
+import java.util.UUID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+public class JdbcExpiredTokenSweeperTest {
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    public void setUp() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        new ResourceDatabasePopulator(new ClassPathResource("db/sql/oauth2/schema-h2.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Test
+    public void sweepRemovesExpiredRowsInBatches() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 25; i++) {
+            insertCode("expired" + i, new Timestamp(now - 60000 - i * 1000));
+        }
+        insertCode("valid", new Timestamp(now + 60000));
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        JdbcExpiredTokenSweeper sweeper = new JdbcExpiredTokenSweeper(dataSource);
+        sweeper.registerMetrics(registry);
+        sweeper.setBatchSize(10);
+        sweeper.setMaxBatches(2);
+
+        // bounded work per run, leftovers are reported as lag
+        assertThat(sweeper.sweep(JdbcExpiredTokenSweeper.CODES, 0)).isEqualTo(20);
+        assertThat(registry.get("oauth2.sweeper.lag").tag("table", "oauth_code").gauge().value()).isPositive();
+
+        assertThat(sweeper.sweep(JdbcExpiredTokenSweeper.CODES, 0)).isEqualTo(5);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from oauth_code", Integer.class)).isEqualTo(1);
+        assertThat(registry.get("oauth2.sweeper.rows").tag("table", "oauth_code").counter().count()).isEqualTo(25);
+        assertThat(registry.get("oauth2.sweeper.lag").tag("table", "oauth_code").gauge().value()).isZero();
+    }
+
+    @Test
+    public void sweepIsBoundedWhenRowsShareExpiry() {
+        Timestamp expiresAt = new Timestamp(System.currentTimeMillis() - 60000);
+        for (int i = 0; i < 25; i++) {
+            insertCode("expired" + i, expiresAt);
+        }
+
+        JdbcExpiredTokenSweeper sweeper = new JdbcExpiredTokenSweeper(dataSource);
+        sweeper.setBatchSize(10);
+        sweeper.setMaxBatches(1);
+
+        // ties on expiry do not widen the batch
+        assertThat(sweeper.sweep(JdbcExpiredTokenSweeper.CODES, 0)).isEqualTo(10);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from oauth_code", Integer.class)).isEqualTo(15);
+    }
+
+    @Test
+    public void sweepRemovesApprovalsWithNullKeys() {
+        Timestamp expiresAt = new Timestamp(System.currentTimeMillis() - 60000);
+        insertApproval("user", "client", "openid", expiresAt);
+        insertApproval(null, "client", "openid", expiresAt);
+        insertApproval("user", null, null, expiresAt);
+        insertApproval("user", "client", "profile", new Timestamp(System.currentTimeMillis() + 60000));
+
+        JdbcExpiredTokenSweeper sweeper = new JdbcExpiredTokenSweeper(dataSource);
+        assertThat(sweeper.sweep(JdbcExpiredTokenSweeper.APPROVALS, 0)).isEqualTo(3);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from oauth_approvals", Integer.class)).isEqualTo(1);
+    }
+
+    @Test
+    public void leaseIsHeldBySingleNode() {
+        JdbcExpiredTokenSweeper first = new JdbcExpiredTokenSweeper(dataSource);
+        JdbcExpiredTokenSweeper second = new JdbcExpiredTokenSweeper(dataSource);
+
+        assertThat(first.acquireLease()).isTrue();
+        assertThat(second.acquireLease()).isFalse();
+
+        // holder renews
+        assertThat(first.acquireLease()).isTrue();
+
+        // expired lease is taken over
+        jdbcTemplate.update("update oauth_cleanup_lease set expires_at = ?", new Timestamp(0));
+        assertThat(second.acquireLease()).isTrue();
+        assertThat(first.acquireLease()).isFalse();
+    }
+
+    @Test
+    public void leasesAreIndependentByName() {
+        JdbcExpiredTokenSweeper sweeper = new JdbcExpiredTokenSweeper(dataSource);
+        JdbcLease migration = new JdbcLease(dataSource, "oauth_token_migration");
+        JdbcLease other = new JdbcLease(dataSource, "oauth_token_migration");
+
+        // sweeping and migration can run on different nodes
+        assertThat(sweeper.acquireLease()).isTrue();
+        assertThat(migration.acquire()).isTrue();
+        assertThat(other.acquire()).isFalse();
+    }
+
+    private void insertCode(String code, Timestamp expiresAt) {
+        jdbcTemplate.update(
+            "insert into oauth_code (code, client_id, expiresAt) values (?, ?, ?)",
+            code,
+            "client",
+            expiresAt
+        );
+    }
+
+    private void insertApproval(String userId, String clientId, String scope, Timestamp expiresAt) {
+        jdbcTemplate.update(
+            "insert into oauth_approvals (userId, clientId, scope, expiresAt) values (?, ?, ?, ?)",
+            userId,
+            clientId,
+            scope,
+            expiresAt
+        );
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oidc.auth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+public class OIDCDiscoveryCacheTest {
+
+    private HttpServer server;
+    private String issuer;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private OIDCDiscoveryCache cache;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/.well-known/openid-configuration", this::respond);
+        server.start();
+        issuer = "http://localhost:" + server.getAddress().getPort();
+
+        cache = new OIDCDiscoveryCache();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        cache.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void discoverOncePerIssuer() {
+        ClientRegistration metadata = cache.resolve(issuer);
+        assertThat(metadata.getProviderDetails().getAuthorizationUri()).isEqualTo(issuer + "/authorize");
+        assertThat(metadata.getProviderDetails().getTokenUri()).isEqualTo(issuer + "/token");
+
+        assertThat(cache.resolve(issuer)).isSameAs(metadata);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void serveLastKnownGoodWhenUpstreamIsDown() throws Exception {
+        cache.setTtl(1);
+        ClientRegistration metadata = cache.resolve(issuer);
+
+        // upstream goes offline after entry is stale
+        server.stop(0);
+        Thread.sleep(1100);
+
+        assertThat(cache.resolve(issuer)).isSameAs(metadata);
+        Thread.sleep(200);
+        assertThat(cache.resolve(issuer)).isSameAs(metadata);
+    }
+
+    @Test
+    public void propagateErrorsOnFirstDiscovery() {
+        server.stop(0);
+        assertThatThrownBy(() -> cache.resolve(issuer)).isInstanceOf(RuntimeException.class);
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        calls.incrementAndGet();
+        String body =
+            "{" +
+            "\"issuer\":\"" + issuer + "\"," +
+            "\"authorization_endpoint\":\"" + issuer + "/authorize\"," +
+            "\"token_endpoint\":\"" + issuer + "/token\"," +
+            "\"jwks_uri\":\"" + issuer + "/jwks\"," +
+            "\"response_types_supported\":[\"code\"]," +
+            "\"subject_types_supported\":[\"public\"]," +
+            "\"id_token_signing_alg_values_supported\":[\"RS256\"]" +
+            "}";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.oidc.auth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Date;
+import net.minidev.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+
+public class OIDCIdTokenDecoderFactoryTest {
+
+    private static final String ISSUER = "https://idp.example.org";
+
+    private RSAKey key;
+    private OIDCIdTokenDecoderFactory factory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        key = new RSAKeyGenerator(2048).keyID("k1").generate();
+        factory = new OIDCIdTokenDecoderFactory();
+    }
+
+    @Test
+    public void decoderIsReusedUntilRegistrationChanges() throws Exception {
+        JwtDecoder decoder = factory.createDecoder(registration("client", key));
+        assertThat(factory.createDecoder(registration("client", key))).isSameAs(decoder);
+
+        // rotated keys result in a new decoder
+        RSAKey rotated = new RSAKeyGenerator(2048).keyID("k2").generate();
+        assertThat(factory.createDecoder(registration("client", rotated))).isNotSameAs(decoder);
+
+        factory.evict("test");
+        assertThat(factory.createDecoder(registration("client", key))).isNotSameAs(decoder);
+    }
+
+    @Test
+    public void verificationIsTimedPerIssuer() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        factory.registerMetrics(registry);
+
+        JwtDecoder decoder = factory.createDecoder(registration("client", key));
+        Jwt jwt = decoder.decode(idToken("client"));
+        assertThat(jwt.getSubject()).isEqualTo("user");
+
+        assertThat(
+            registry.get("oidc.idtoken.verify").tag("issuer", ISSUER).tag("outcome", "success").timer().count()
+        )
+            .isEqualTo(1);
+    }
+
+    private ClientRegistration registration(String clientId, RSAKey rsaKey) {
+        JSONObject jwks = new JSONObject(new JWKSet(rsaKey.toPublicJWK()).toJSONObject());
+        return ClientRegistration
+            .withRegistrationId("test")
+            .clientId(clientId)
+            .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+            .redirectUri("{baseUrl}")
+            .authorizationUri(ISSUER + "/authorize")
+            .tokenUri(ISSUER + "/token")
+            .issuerUri(ISSUER)
+            .providerConfigurationMetadata(Collections.singletonMap("jwks", jwks))
+            .build();
+    }
+
+    private String idToken(String clientId) throws Exception {
+        Instant now = Instant.now();
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+            .issuer(ISSUER)
+            .subject("user")
+            .audience(clientId)
+            .issueTime(Date.from(now))
+            .expirationTime(Date.from(now.plusSeconds(300)))
+            .build();
+        SignedJWT jwt = new SignedJWT(
+            new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).type(JOSEObjectType.JWT).build(),
+            claims
+        );
+        jwt.sign(new RSASSASigner(key));
+        return jwt.serialize();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.scope;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class InMemoryScopeRegistryTest {
+
+    private static final int SERVICES = 1000;
+
+    private InMemoryScopeRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        List<ScopeProvider> providers = new ArrayList<>();
+        for (int i = 0; i < SERVICES; i++) {
+            providers.add(new TestScopeProvider("service" + i, "service" + i + ".read", "service" + i + ".write"));
+        }
+
+        registry = new InMemoryScopeRegistry(providers);
+    }
+
+    @Test
+    public void lookupResolvesProviderForEveryScope() throws Exception {
+        for (int i = 0; i < SERVICES; i++) {
+            ScopeProvider sp = registry.getScopeProviderFromScope("service" + i + ".write");
+            assertThat(sp.getResourceId()).isEqualTo("service" + i);
+            assertThat(registry.findScope("service" + i + ".read")).isNotNull();
+        }
+
+        assertThat(registry.findScope("missing.scope")).isNull();
+        assertThat(registry.listScopes("service0")).hasSize(2);
+    }
+
+    @Test
+    public void registrationReplacesScopesOfResource() {
+        registry.registerScopeProvider(new TestScopeProvider("service1", "service1.admin"));
+
+        assertThat(registry.findScope("service1.read")).isNull();
+        assertThat(registry.findScope("service1.admin")).isNotNull();
+    }
+
+    @Test
+    public void unregisterRestoresShadowedScopes() {
+        TestScopeProvider shadow = new TestScopeProvider("other", "service2.read", "other.read");
+        registry.registerScopeProvider(shadow);
+        TestScopeProvider owner = (TestScopeProvider) registry.findScopeProvider("service2");
+
+        registry.unregisterScopeProvider(owner);
+
+        assertThat(registry.findScope("service2.write")).isNull();
+        assertThat(registry.findScopeProvider("service2")).isNull();
+        assertThat(registry.findScope("service2.read")).isNotNull();
+        assertThat(registry.findScope("other.read")).isNotNull();
+    }
+
+    @Test
+    public void indexIsRefreshedPastTtl() throws Exception {
+        TestScopeProvider dynamic = new TestScopeProvider("dynamic", "dynamic.read");
+        registry.registerScopeProvider(dynamic);
+        dynamic.scopes.add(new Scope("dynamic.write"));
+
+        registry.setIndexTtl(0);
+        Thread.sleep(5);
+
+        assertThat(registry.findScope("dynamic.write")).isNotNull();
+        assertThat(registry.getScopeProviderFromScope("service3.read").getResourceId()).isEqualTo("service3");
+    }
+
+    @Test
+    public void lookupsDoNotWaitForSlowRebuild() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        registry.registerScopeProvider(
+            new TestScopeProvider("slow", "slow.read") {
+                @Override
+                public Collection<Scope> getScopes() {
+                    if (Thread.currentThread().getName().equals("rebuilder")) {
+                        started.countDown();
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return super.getScopes();
+                }
+            }
+        );
+        registry.setIndexTtl(0);
+        Thread.sleep(5);
+
+        Thread rebuilder = new Thread(() -> registry.findScope("slow.read"), "rebuilder");
+        rebuilder.start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            Future<Scope> result = executor.submit(() -> registry.findScope("service4.read"));
+            assertThat(result.get(1, TimeUnit.SECONDS)).isNotNull();
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+            rebuilder.join();
+        }
+    }
+
+    private static class TestScopeProvider implements ScopeProvider {
+
+        private final String resourceId;
+        private final List<Scope> scopes = new ArrayList<>();
+
+        public TestScopeProvider(String resourceId, String... scopes) {
+            this.resourceId = resourceId;
+            for (String s : scopes) {
+                Scope scope = new Scope(s);
+                scope.setResourceId(resourceId);
+                this.scopes.add(scope);
+            }
+        }
+
+        @Override
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        @Override
+        public Resource getResource() {
+            return null;
+        }
+
+        @Override
+        public Collection<Scope> getScopes() {
+            return Collections.unmodifiableList(scopes);
+        }
+
+        @Override
+        public ScopeApprover getApprover(String scope) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.spid.auth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Stream;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class SpidMetadataLoaderTest {
+
+    private static final String IDP_METADATA =
+        "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" ID=\"_idp\" entityID=\"%s\">" +
+        "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" " +
+        "Location=\"https://idp.test.local/sso\"/>" +
+        "</md:IDPSSODescriptor>" +
+        "</md:EntityDescriptor>";
+
+    private static final byte[] METADATA = String
+        .format(IDP_METADATA, "https://idp.test.local")
+        .getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void loadInParallelAndSkipOffline() throws Exception {
+        Path idp = Files.write(dir.resolve("idp.xml"), METADATA);
+        String location = idp.toUri().toString();
+        String missing = dir.resolve("missing.xml").toUri().toString();
+
+        SpidMetadataLoader loader = new SpidMetadataLoader(2);
+        try {
+            Map<String, byte[]> result = loader.load(Arrays.asList(location, missing));
+            assertThat(result).containsOnlyKeys(location);
+            assertThat(result.get(location)).isEqualTo(METADATA);
+            assertThat(loader.getFreshness()).containsOnlyKeys(location);
+            assertThat(loader.getVersion()).isEqualTo(1);
+
+            // unchanged content does not bump version
+            loader.load(Collections.singleton(location));
+            assertThat(loader.getVersion()).isEqualTo(1);
+        } finally {
+            loader.destroy();
+        }
+    }
+
+    @Test
+    public void failedFirstFetchIsRetriedInBackground() throws Exception {
+        Path idp = dir.resolve("late.xml");
+        String location = idp.toUri().toString();
+
+        SpidMetadataLoader loader = new SpidMetadataLoader(2);
+        loader.setRetryDelay(1);
+        try {
+            assertThat(loader.load(Collections.singleton(location))).isEmpty();
+
+            // upstream comes back, request path does not retry
+            Files.write(idp, METADATA);
+            assertThat(loader.load(Collections.singleton(location))).isEmpty();
+            assertThat(loader.getVersion()).isEqualTo(0);
+
+            // background round picks it up once past backoff
+            Thread.sleep(1100);
+            loader.refreshAll();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (loader.getVersion() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertThat(loader.getVersion()).isEqualTo(1);
+            assertThat(loader.load(Collections.singleton(location)).get(location)).isEqualTo(METADATA);
+        } finally {
+            loader.destroy();
+        }
+    }
+
+    @Test
+    public void serveLastKnownGoodFromStore() throws Exception {
+        Path idp = Files.write(dir.resolve("idp.xml"), METADATA);
+        String location = idp.toUri().toString();
+        Path store = dir.resolve("store");
+
+        SpidMetadataLoader loader = new SpidMetadataLoader(2);
+        loader.setStoreDir(store.toString());
+        try {
+            assertThat(loader.load(Collections.singleton(location))).containsKey(location);
+        } finally {
+            loader.destroy();
+        }
+
+        // upstream goes offline, a new loader restores from store
+        Files.delete(idp);
+        SpidMetadataLoader restarted = new SpidMetadataLoader(2);
+        restarted.setStoreDir(store.toString());
+        try {
+            Map<String, byte[]> result = restarted.load(Collections.singleton(location));
+            assertThat(result.get(location)).isEqualTo(METADATA);
+        } finally {
+            restarted.destroy();
+        }
+    }
+
+    @Test
+    public void invalidContentDoesNotReplaceLastKnownGood() throws Exception {
+        Path idp = Files.write(dir.resolve("idp.xml"), METADATA);
+        String location = idp.toUri().toString();
+        Path store = dir.resolve("store");
+
+        SpidMetadataLoader loader = new SpidMetadataLoader(2);
+        loader.setStoreDir(store.toString());
+        try {
+            assertThat(loader.load(Collections.singleton(location)).get(location)).isEqualTo(METADATA);
+            assertThat(loader.getVersion()).isEqualTo(1);
+
+            // upstream serves garbage, refresh fails and keeps current copy
+            Files.write(idp, "<html>maintenance</html>".getBytes(StandardCharsets.UTF_8));
+            assertThatThrownBy(() -> loader.fetch(location)).isInstanceOf(RuntimeException.class);
+
+            assertThat(loader.load(Collections.singleton(location)).get(location)).isEqualTo(METADATA);
+            assertThat(loader.getVersion()).isEqualTo(1);
+            try (Stream<Path> files = Files.list(store)) {
+                assertThat(files.filter(p -> p.toString().endsWith(".xml")))
+                    .singleElement()
+                    .satisfies(p -> assertThat(Files.readAllBytes(p)).isEqualTo(METADATA));
+            }
+        } finally {
+            loader.destroy();
+        }
+    }
+
+    @Test
+    public void signatureIsRequiredWithTrustedCertificates() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X509Certificate certificate = Mockito.mock(X509Certificate.class);
+        Mockito.when(certificate.getPublicKey()).thenReturn(keyPair.getPublic());
+
+        String unsigned = dir.resolve("unsigned.xml").toUri().toString();
+        Files.write(dir.resolve("unsigned.xml"), METADATA);
+        String signed = dir.resolve("signed.xml").toUri().toString();
+        Files.write(dir.resolve("signed.xml"), sign(METADATA, keyPair.getPrivate()));
+
+        SpidMetadataLoader loader = new SpidMetadataLoader(2);
+        loader.setTrustedCertificates(Collections.singleton(certificate));
+        try {
+            Map<String, byte[]> result = loader.load(Arrays.asList(unsigned, signed));
+            assertThat(result).containsOnlyKeys(signed);
+        } finally {
+            loader.destroy();
+        }
+    }
+
+    private byte[] sign(byte[] content, PrivateKey key) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(content));
+        Element root = doc.getDocumentElement();
+        root.setIdAttribute("ID", true);
+
+        XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
+        Reference ref = fac.newReference(
+            "#_idp",
+            fac.newDigestMethod(DigestMethod.SHA256, null),
+            Collections.singletonList(fac.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null)),
+            null,
+            null
+        );
+        SignedInfo si = fac.newSignedInfo(
+            fac.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+            fac.newSignatureMethod("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", null),
+            Collections.singletonList(ref)
+        );
+        fac.newXMLSignature(si, null).sign(new DOMSignContext(key, root, root.getFirstChild()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.spid.auth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+public class SpidMetadataResolverTest {
+
+    private static final String REGISTRATION_ID = "spid_provider";
+
+    @Test
+    public void documentsAreKeyedOnResolvedEntityIdAndAcs() {
+        List<String> key = SpidMetadataResolver.cacheKey(registration("https://aac.test.local"));
+        assertThat(key).isEqualTo(SpidMetadataResolver.cacheKey(registration("https://aac.test.local")));
+
+        // a request with another host resolves to a different document
+        List<String> spoofed = SpidMetadataResolver.cacheKey(registration("https://evil.test.local"));
+        assertThat(spoofed).isNotEqualTo(key);
+    }
+
+    @Test
+    public void etagIsStableAndTracksVersion() {
+        List<String> key = SpidMetadataResolver.cacheKey(registration("https://aac.test.local"));
+        String etag = SpidMetadataResolver.etag(key, 1);
+
+        // same inputs yield the same etag on any node, regardless of signature
+        assertThat(SpidMetadataResolver.etag(SpidMetadataResolver.cacheKey(registration("https://aac.test.local")), 1))
+            .isEqualTo(etag);
+        assertThat(SpidMetadataResolver.etag(key, 2)).isNotEqualTo(etag);
+        assertThat(SpidMetadataResolver.etag(SpidMetadataResolver.cacheKey(registration("https://evil.test.local")), 1))
+            .isNotEqualTo(etag);
+    }
+
+    private RelyingPartyRegistration registration(String baseUrl) {
+        return RelyingPartyRegistration
+            .withRegistrationId(REGISTRATION_ID)
+            .entityId(baseUrl + "/auth/spid/metadata/" + REGISTRATION_ID)
+            .assertionConsumerServiceLocation(baseUrl + "/auth/spid/sso/" + REGISTRATION_ID)
+            .assertingPartyDetails(party ->
+                party.entityId("https://idp.test.local").singleSignOnServiceLocation("https://idp.test.local/sso")
+            )
+            .build();
+    }
+}
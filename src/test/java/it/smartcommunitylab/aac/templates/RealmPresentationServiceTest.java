@@ -0,0 +1,98 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.templates;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import it.smartcommunitylab.aac.common.NoSuchAuthorityException;
+import it.smartcommunitylab.aac.config.ApplicationProperties;
+import it.smartcommunitylab.aac.core.entrypoint.RealmAwareUriBuilder;
+import it.smartcommunitylab.aac.events.RealmChangedEvent;
+import it.smartcommunitylab.aac.events.TemplatesChangedEvent;
+import it.smartcommunitylab.aac.model.Realm;
+import it.smartcommunitylab.aac.realms.service.RealmService;
+import it.smartcommunitylab.aac.templates.model.TemplatesConfigurationMap;
+import it.smartcommunitylab.aac.templates.service.RealmPresentationService;
+import it.smartcommunitylab.aac.templates.service.RealmPresentationService.RealmPresentation;
+import it.smartcommunitylab.aac.templates.service.TemplateProviderAuthorityService;
+import java.util.Locale;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RealmPresentationServiceTest {
+
+    private static final String REALM = "test";
+
+    private RealmService realmService;
+    private TemplateProviderAuthorityService authorityService;
+    private RealmPresentationService service;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        realmService = mock(RealmService.class);
+        authorityService = mock(TemplateProviderAuthorityService.class);
+        RealmAwareUriBuilder uriBuilder = mock(RealmAwareUriBuilder.class);
+        when(uriBuilder.buildUrl(anyString(), anyString())).thenReturn("http://localhost/-/" + REALM + "/");
+        when(realmService.getRealm(REALM)).thenReturn(realm(".card { color: red; }"));
+
+        service = new RealmPresentationService(new ApplicationProperties(), uriBuilder, realmService, authorityService);
+    }
+
+    @Test
+    public void presentationIsCachedUntilRealmChanges() throws Exception {
+        RealmPresentation p = service.getPresentation(REALM);
+        assertThat(p.getDisplayName()).isEqualTo(REALM);
+        assertThat(p.getCustomStyleETag()).startsWith("\"");
+        assertThat(service.getPresentation(REALM)).isSameAs(p);
+        verify(realmService, times(1)).getRealm(REALM);
+
+        // new style yields a new etag
+        when(realmService.getRealm(REALM)).thenReturn(realm(".card { color: blue; }"));
+        service.onRealmChanged(new RealmChangedEvent(REALM));
+        RealmPresentation u = service.getPresentation(REALM);
+        assertThat(u).isNotSameAs(p);
+        assertThat(u.getCustomStyleETag()).isNotEqualTo(p.getCustomStyleETag());
+    }
+
+    @Test
+    public void missingTemplatesAreCachedUntilTemplatesChange() throws Exception {
+        when(authorityService.getAuthority("missing")).thenThrow(new NoSuchAuthorityException());
+
+        assertThat(service.getTemplate(REALM, "missing", "login", Locale.ENGLISH)).isNull();
+        assertThat(service.getTemplate(REALM, "missing", "login", Locale.ENGLISH)).isNull();
+        verify(authorityService, times(1)).getAuthority("missing");
+
+        service.onTemplatesChanged(new TemplatesChangedEvent(REALM));
+        assertThat(service.getTemplate(REALM, "missing", "login", Locale.ENGLISH)).isNull();
+        verify(authorityService, times(2)).getAuthority("missing");
+    }
+
+    private static Realm realm(String style) {
+        TemplatesConfigurationMap config = new TemplatesConfigurationMap();
+        config.setCustomStyle(style);
+
+        Realm r = new Realm(REALM);
+        r.setName(REALM);
+        r.setTemplatesConfiguration(config);
+        return r;
+    }
+}
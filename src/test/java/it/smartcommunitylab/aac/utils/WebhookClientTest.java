@@ -0,0 +1,175 @@
+/*
+ * Copyright 2024 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.smartcommunitylab.aac.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+public class WebhookClientTest {
+
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch slowCalls = new CountDownLatch(2);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+
+    private WebhookClient client;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ok", e -> respond(e, 200));
+        server.createContext("/fail", e -> respond(e, 500));
+        server.createContext("/deny", e -> respond(e, 403));
+        server.createContext(
+            "/slow",
+            e -> {
+                slowCalls.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(e, 200);
+            }
+        );
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+        client = new WebhookClient();
+        client.setFailureThreshold(3);
+        client.setOpenDuration(60);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        release.countDown();
+        client.destroy();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange e, int status) throws IOException {
+        calls.incrementAndGet();
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        e.sendResponseHeaders(status, body.length);
+        e.getResponseBody().write(body);
+        e.close();
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() {
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(() -> client.post("test", "hook", baseUrl + "/fail", new HttpEntity<>("{}"), 1000))
+                .isInstanceOf(HttpServerErrorException.class);
+        }
+
+        // open circuit fails fast without calling the endpoint
+        assertThatThrownBy(() -> client.post("test", "hook", baseUrl + "/ok", new HttpEntity<>("{}"), 1000))
+            .isInstanceOf(ResourceAccessException.class);
+        assertThat(calls.get()).isEqualTo(3);
+
+        // other hooks are not affected
+        ResponseEntity<String> response = client.post("test", "other", baseUrl + "/ok", new HttpEntity<>("{}"), 1000);
+        assertThat(response.getStatusCodeValue()).isEqualTo(200);
+    }
+
+    @Test
+    public void clientErrorsDoNotOpenCircuit() {
+        for (int i = 0; i < 5; i++) {
+            assertThatThrownBy(() -> client.post("test", "hook", baseUrl + "/deny", new HttpEntity<>("{}"), 1000))
+                .isInstanceOf(HttpClientErrorException.class);
+        }
+
+        ResponseEntity<String> response = client.post("test", "hook", baseUrl + "/ok", new HttpEntity<>("{}"), 1000);
+        assertThat(response.getStatusCodeValue()).isEqualTo(200);
+    }
+
+    @Test
+    public void circuitClosesAfterSuccessfulProbe() {
+        client.setOpenDuration(0);
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(() -> client.post("test", "hook", baseUrl + "/fail", new HttpEntity<>("{}"), 1000))
+                .isInstanceOf(HttpServerErrorException.class);
+        }
+
+        // half-open probe succeeds and closes the circuit
+        assertThat(client.post("test", "hook", baseUrl + "/ok", new HttpEntity<>("{}"), 1000).getStatusCodeValue())
+            .isEqualTo(200);
+        assertThat(client.post("test", "hook", baseUrl + "/ok", new HttpEntity<>("{}"), 1000).getStatusCodeValue())
+            .isEqualTo(200);
+    }
+
+    @Test
+    public void bulkheadRejectsCallsOverLimit() throws Exception {
+        client.setMaxConcurrentCalls(2);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<ResponseEntity<String>>> pending = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                pending.add(
+                    callers.submit(() -> client.post("test", "hook", baseUrl + "/slow", new HttpEntity<>("{}"), 5000))
+                );
+            }
+            assertThat(slowCalls.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // saturated hook rejects without calling the endpoint
+            assertThatThrownBy(() -> client.post("test", "hook", baseUrl + "/ok", new HttpEntity<>("{}"), 1000))
+                .isInstanceOf(ResourceAccessException.class);
+            assertThat(calls.get()).isZero();
+
+            // same name under another type has its own bulkhead
+            assertThat(client.post("other", "hook", baseUrl + "/ok", new HttpEntity<>("{}"), 1000).getStatusCodeValue())
+                .isEqualTo(200);
+
+            // permits are returned once calls complete
+            release.countDown();
+            for (Future<ResponseEntity<String>> f : pending) {
+                assertThat(f.get(5, TimeUnit.SECONDS).getStatusCodeValue()).isEqualTo(200);
+            }
+            assertThat(client.post("test", "hook", baseUrl + "/ok", new HttpEntity<>("{}"), 1000).getStatusCodeValue())
+                .isEqualTo(200);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+}